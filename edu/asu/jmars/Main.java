@@ -1417,6 +1417,7 @@ public class Main extends JFrame {
 		log.aprintln("------ CLEANING! -------");
 
 		// Delete the whole cache directory for edu.asu.jmars.layer.map2
+		CacheManager.closePacks();
 		File[] files = new File(CacheManager.getCacheDir()).listFiles();
 		if (files != null) {
 			for (File f: files) {
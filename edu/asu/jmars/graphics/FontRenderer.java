@@ -180,4 +180,37 @@ public class FontRenderer extends JLabel {
 			g2.draw(outline);
 		}
 	}
+	
+	/**
+	 * Draws a label that has already been laid out, as
+	 * {@link #paintLabel(Graphics2D, String, float, float)} would, so callers
+	 * drawing the same label repeatedly can lay it out once.
+	 */
+	public void paintLabel(Graphics2D g2, TextLayout layout, float x, float y) {
+	    Color fontColor = getForeground();
+	    Color outlineColor = getOutlineColor();
+	    
+		g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, antialias ? RenderingHints.VALUE_ANTIALIAS_ON : RenderingHints.VALUE_ANTIALIAS_OFF);
+		if (outlineColor != null && fontColor != null) {// draw the outline
+			AffineTransform at = g2.getTransform();
+			float pxWidth = 1f/(float)at.getScaleX();
+			float pxHeight = 1f/(float)at.getScaleY();
+			g2.setColor(outlineColor);
+			layout.draw(g2, x - pxWidth, y - pxHeight);
+			layout.draw(g2, x - pxWidth, y + pxHeight);
+			layout.draw(g2, x + pxWidth, y - pxHeight);
+			layout.draw(g2, x + pxWidth, y + pxHeight);
+			// draw interior
+			g2.setColor(fontColor);
+			layout.draw(g2, x, y);
+		} else if (fontColor != null && outlineColor == null) {
+			g2.setColor(fontColor);
+			layout.draw(g2, x, y);
+		} else if (fontColor == null && outlineColor != null) {
+			// Only Draw Outline
+			Shape outline = layout.getOutline(AffineTransform.getTranslateInstance(x, y));
+			g2.setColor(outlineColor);
+			g2.draw(outline);
+		}
+	}
 }
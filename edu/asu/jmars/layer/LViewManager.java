@@ -1,6 +1,8 @@
 package edu.asu.jmars.layer;
 
+import java.awt.AlphaComposite;
 import java.awt.Dimension;
+import java.awt.Graphics;
 import java.awt.Graphics2D;
 import java.awt.Insets;
 import java.awt.Rectangle;
@@ -16,8 +18,12 @@ import java.awt.image.BufferedImage;
 import java.util.AbstractList;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Observable;
+import java.util.Set;
 
 import javax.swing.*;
 
@@ -31,6 +37,7 @@ import edu.asu.jmars.ZoomManager;
 import edu.asu.jmars.graphics.GraphicsWrapped;
 import edu.asu.jmars.ruler.RulerManager;
 import edu.asu.jmars.swing.OverlapLayout;
+import edu.asu.jmars.util.Config;
 import edu.asu.jmars.util.DebugLog;
 import edu.asu.jmars.util.HVector;
 import edu.asu.jmars.util.MovableList;
@@ -264,6 +271,102 @@ public class LViewManager extends JLayeredPane {
 		return  LManager.getLManager().getActiveLView();
 	 }
 
+	/**
+	 * Whether the bottom views are drawn into one cached image, which is
+	 * only redrawn when one of them changes
+	 */
+	private static final boolean flatten = Config.get("view.flatten", false);
+	/** Whether each LView class paints only its buffers, and so can be flattened */
+	private static final Map<Class<?>,Boolean> flattenable = new HashMap<Class<?>,Boolean>();
+	/** The flattened image of the bottom views */
+	private BufferedImage flatImage;
+	/** The size, views, versions and visibility {@link #flatImage} was drawn with */
+	private List<Object> flatKey;
+	/** The views in {@link #flatImage}, which skip painting themselves */
+	private Set<Layer.LView> flattened = Collections.emptySet();
+	
+	/**
+	 * Returns true if the given view is drawn by this view manager as part
+	 * of its flattened image, rather than by the view itself.
+	 */
+	boolean isFlattened(Layer.LView view) {
+		return flattened.contains(view);
+	}
+	
+	/**
+	 * @return true if views of the given class paint nothing but their
+	 * buffers, which is the case when they don't override the painting
+	 * methods of {@link Layer.LView}.
+	 */
+	private static boolean canFlatten(Class<?> viewClass) {
+		synchronized(flattenable) {
+			Boolean can = flattenable.get(viewClass);
+			if (can == null) {
+				try {
+					can = viewClass.getMethod("paintComponent", Graphics.class).getDeclaringClass() == Layer.LView.class &&
+						viewClass.getMethod("realPaintComponent", Graphics.class).getDeclaringClass() == Layer.LView.class;
+				} catch (NoSuchMethodException e) {
+					can = false;
+				}
+				flattenable.put(viewClass, can);
+			}
+			return can;
+		}
+	}
+	
+	/**
+	 * When <code>view.flatten</code> is set, draws the lowest views that
+	 * only paint their buffers and are not busy as one cached image, so
+	 * a repaint that changes none of them costs a single image draw no
+	 * matter how many there are. Those views then skip their own painting.
+	 */
+	protected void paintComponent(Graphics g) {
+		super.paintComponent(g);
+		if (!flatten) {
+			return;
+		}
+		List<Layer.LView> run = new ArrayList<Layer.LView>();
+		List<Object> key = new ArrayList<Object>();
+		key.add(getWidth());
+		key.add(getHeight());
+		for (Layer.LView view: viewList) {
+			if (!canFlatten(view.getClass()) || view.isBusy()) {
+				break;
+			}
+			run.add(view);
+			key.add(view);
+			key.add(view.getPaintVersion());
+			key.add(view.isVisible());
+		}
+		if (run.size() < 2 || getWidth() <= 0 || getHeight() <= 0) {
+			flattened = Collections.emptySet();
+			flatImage = null;
+			flatKey = null;
+			return;
+		}
+		if (!key.equals(flatKey)) {
+			if (flatImage == null || flatImage.getWidth() != getWidth() || flatImage.getHeight() != getHeight()) {
+				flatImage = Util.newBufferedImage(getWidth(), getHeight());
+			}
+			Graphics2D g2 = flatImage.createGraphics();
+			g2.setComposite(AlphaComposite.Clear);
+			g2.fillRect(0, 0, getWidth(), getHeight());
+			g2.setComposite(AlphaComposite.SrcOver);
+			for (Layer.LView view: run) {
+				if (view.isVisible()) {
+					Graphics2D viewG2 = (Graphics2D)g2.create();
+					viewG2.translate(view.getX(), view.getY());
+					view.realPaintComponent(viewG2);
+					viewG2.dispose();
+				}
+			}
+			g2.dispose();
+			flatKey = key;
+		}
+		flattened = new HashSet<Layer.LView>(run);
+		g.drawImage(flatImage, 0, 0, null);
+	}
+	
 	public void repaintChildVMan()
 	 {
 		// THIS SEEMS LIKE A DEBUG THAT WAS NEVER REMOVED, IS IT NECESSARY!?!
@@ -20,6 +20,8 @@ import java.util.HashSet;
 import java.util.Hashtable;
 import java.util.Iterator;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 
 import javax.swing.BorderFactory;
 import javax.swing.Icon;
@@ -39,6 +41,7 @@ import edu.asu.jmars.swing.AncestorAdapter;
 import edu.asu.jmars.swing.ColorMapOp;
 import edu.asu.jmars.swing.FancyColorMapper;
 import edu.asu.jmars.swing.OverlapLayout;
+import edu.asu.jmars.util.Config;
 import edu.asu.jmars.util.DebugLog;
 import edu.asu.jmars.util.Util;
 
@@ -246,7 +249,7 @@ public abstract class Layer implements ProjectionListener
 	// Defined statically here because it's also referenced in LView
 	private static final Color INITIAL_STATUS_COLOR = Util.darkGreen;
 
-	private Color currentStatus = INITIAL_STATUS_COLOR;
+	private volatile Color currentStatus = INITIAL_STATUS_COLOR;
 	/**
 	 ** Returns the color last set with {@link #setStatus}. If no
 	 ** status has been set, the default initial status green will be
@@ -266,6 +269,7 @@ public abstract class Layer implements ProjectionListener
 	 **/
 	public final void setStatus(Color col)
 	 {
+		currentStatus = col;
 		Iterator iter = getReceivers();
 		while(iter.hasNext())
 		 {
@@ -436,6 +440,8 @@ public abstract class Layer implements ProjectionListener
 			bufferCount = newCount;
 			buffers = null;
 			bufferHidden = new boolean[newCount];
+			bufferVersions = new AtomicIntegerArray(newCount);
+			paintVersion.incrementAndGet();
 		 }
 
 		/**
@@ -454,6 +460,7 @@ public abstract class Layer implements ProjectionListener
 		protected void setBufferVisible(int i, boolean visible)
 		 {
 			bufferHidden[i] = !visible;
+			paintVersion.incrementAndGet();
 		 }
 
 		/**
@@ -538,6 +545,34 @@ public abstract class Layer implements ProjectionListener
 		 **/
 		private BufferedImage[] buffers;
 
+		/**
+		 ** Counts the times each buffer may have been drawn into, as
+		 ** far as we can tell: every graphics context or direct
+		 ** reference handed out, every clear, and every repaint request.
+		 **/
+		private volatile AtomicIntegerArray bufferVersions = new AtomicIntegerArray(1);
+
+		/**
+		 ** Counts every change that may alter what this view paints,
+		 ** see {@link #getPaintVersion}.
+		 **/
+		private final AtomicInteger paintVersion = new AtomicInteger();
+
+		/**
+		 ** Each buffer as last drawn through the color map and alpha,
+		 ** with the buffer and version it was made from, so repaints
+		 ** that follow no change to the view skip the lookup.
+		 **/
+		private BufferedImage[] composites;
+		private BufferedImage[] compositeSources;
+		private int[] compositeVersions;
+		private ColorMapOp compositeOp;
+		private float compositeAlpha;
+		private final Object compositeLock = new Object();
+
+		/** Whether the color-mapped and translucent buffers are cached */
+		private static final boolean cacheComposites = Config.get("view.cacheComposites", true);
+
 		/**
 		 ** Invokes {@link BufferedImage#flush} on all off-screen
 		 ** buffers, used for memory optimization purposes.
@@ -547,6 +582,7 @@ public abstract class Layer implements ProjectionListener
 			if(buffers != null)
 				for(int i=0; i<buffers.length; i++)
 					buffers[i].flush();
+			releaseComposites();
 		 }
 
         /**
@@ -1221,6 +1257,51 @@ public abstract class Layer implements ProjectionListener
 		{
 		}
 
+		/**
+		 ** Notes that the given buffer may be about to change.
+		 **/
+		private void touchBuffer(int i)
+		 {
+			AtomicIntegerArray versions = bufferVersions;
+			if(i < versions.length())
+				versions.incrementAndGet(i);
+			paintVersion.incrementAndGet();
+		 }
+
+		/**
+		 ** Notes that any buffer may have changed.
+		 **/
+		private void touchBuffers()
+		 {
+			AtomicIntegerArray versions = bufferVersions;
+			for(int i=0; i<versions.length(); i++)
+				versions.incrementAndGet(i);
+			paintVersion.incrementAndGet();
+		 }
+
+		/**
+		 ** Returns a number that changes whenever what this view
+		 ** paints may have changed, which {@link LViewManager} uses to
+		 ** tell when its flattened image of the views is out of date.
+		 **/
+		int getPaintVersion()
+		 {
+			return  paintVersion.get();
+		 }
+
+		/**
+		 ** Marks every buffer as changed before scheduling the repaint,
+		 ** since views repaint after drawing into their buffers. All
+		 ** the other forms of repaint() end up here.
+		 **/
+		public void repaint(long tm, int x, int y, int width, int height)
+		 {
+			// called by the superclass constructor before our fields exist
+			if(paintVersion != null)
+				touchBuffers();
+			super.repaint(tm, x, y, width, height);
+		 }
+
 		/**
 		 ** Clears all off-screen drawing buffers. Sets all their pixels
 		 ** to transparent.
@@ -1242,6 +1323,7 @@ public abstract class Layer implements ProjectionListener
 			if(buffers == null)
 				return;
 
+			touchBuffer(i);
 			Graphics2D g2 = buffers[i].createGraphics();
 			g2.setBackground(new Color(0,0,0,0));
 			g2.clearRect(0,0,
@@ -1329,6 +1411,7 @@ public abstract class Layer implements ProjectionListener
 			if(!isAlive())
 				return  null;
 
+			touchBuffer(i);
 			Graphics2D g2 = buffers[i].createGraphics();
 			g2.setTransform(getProj().getWorldToScreen());
 			return  viewman.wrapWorldGraphics(g2);
@@ -1354,6 +1437,7 @@ public abstract class Layer implements ProjectionListener
 				return null;
 			}
 			
+			touchBuffer(i);
 			return  buffers[i].createGraphics();
 		 }
 
@@ -1377,6 +1461,7 @@ public abstract class Layer implements ProjectionListener
 			if(buffers == null)
 				return  null;
 
+			touchBuffer(i);
 			Graphics2D g2 = buffers[i].createGraphics();
 			g2.setTransform(getProj().getWorldToScreen());
 			return  g2;
@@ -1485,6 +1570,9 @@ public abstract class Layer implements ProjectionListener
 				 }
 				return;
 			 }
+			// already drawn as part of the view manager's flattened image
+			if(viewman != null  &&  viewman.isFlattened(this))
+				return;
 			realPaintComponent(g);
 		 }
 
@@ -1517,14 +1605,71 @@ public abstract class Layer implements ProjectionListener
 			Graphics2D g2 = (Graphics2D) g;
 
 			boolean simpleDraw = colorMapOp.isIdentity()  &&  alpha == 1.0;
+			// while the view is busy its buffers change without notice
+			boolean cached = !simpleDraw  &&  cacheComposites  &&  !isBusy();
+			if(simpleDraw)
+				releaseComposites();
 			for(int i=0; i<buffers.length; i++)
 				if(!bufferHidden[i])
 					if(simpleDraw)
 						g.drawImage(buffers[i], 0, 0, null);
+					else if(cached)
+						g.drawImage(getComposite(i), 0, 0, null);
 					else
 						g2.drawImage(buffers[i], colorMapOp.forAlpha(alpha),
 									 0, 0);
 		 }
+
+		/**
+		 ** Returns the given buffer drawn through the color map and
+		 ** alpha, reusing the last result unless the buffer, its
+		 ** version, the color map, or the alpha has changed since.
+		 **/
+		private BufferedImage getComposite(int i)
+		 {
+			synchronized(compositeLock)
+			 {
+				BufferedImage[] current = buffers;
+				if(composites == null  ||  composites.length != current.length  ||
+				   compositeOp != colorMapOp  ||  compositeAlpha != alpha)
+				 {
+					composites = new BufferedImage[current.length];
+					compositeSources = new BufferedImage[current.length];
+					compositeVersions = new int[current.length];
+					compositeOp = colorMapOp;
+					compositeAlpha = alpha;
+				 }
+				// read before filtering, so a change made meanwhile is not lost
+				AtomicIntegerArray versions = bufferVersions;
+				int version = i < versions.length() ? versions.get(i) : 0;
+				BufferedImage src = current[i];
+				BufferedImage dst = composites[i];
+				if(dst == null  ||  compositeSources[i] != src  ||  compositeVersions[i] != version)
+				 {
+					if(dst != null  &&  (dst.getWidth() != src.getWidth()  ||
+										 dst.getHeight() != src.getHeight()))
+						dst = null;
+					composites[i] = colorMapOp.forAlpha(alpha).filter(src, dst);
+					compositeSources[i] = src;
+					compositeVersions[i] = version;
+				 }
+				return  composites[i];
+			 }
+		 }
+
+		/**
+		 ** Drops the cached composites, when they are no longer used.
+		 **/
+		private void releaseComposites()
+		 {
+			synchronized(compositeLock)
+			 {
+				composites = null;
+				compositeSources = null;
+				compositeVersions = null;
+				compositeOp = null;
+			 }
+		 }
 		
 		/**
          * Returns the <em>i</em>th backing buffer for this layer
@@ -1535,6 +1680,8 @@ public abstract class Layer implements ProjectionListener
 		public BufferedImage getBuffer(int i){
 			if (buffers == null || i < 0 || i >= buffers.length)
 				return null;
+			// the caller may draw into it
+			touchBuffer(i);
 			return buffers[i];
 		}
 
@@ -1608,6 +1755,7 @@ public abstract class Layer implements ProjectionListener
 				Dimension pixSize = getProj().getScreenSize();
 				buffers = newBufferedImageArray(pixSize.width,
 												pixSize.height);
+				paintVersion.incrementAndGet();
 			 }
 		 }
 
@@ -1646,14 +1794,37 @@ public abstract class Layer implements ProjectionListener
 			String className = getClass().getName();
 			className = className.substring(className.lastIndexOf('.')+1);
 			String threadName = viewman.getName() + "-" + className;
-			incBusy(); // we incBusy BEFORE forking a new thread
+			incBusy(); // we incBusy BEFORE queueing the change
 
-			log.println("Starting new thread: <" + threadName + ">");
+			log.println("Queueing view change: <" + threadName + ">");
 			log.println("View size: " + getWidth() + "x" + getHeight());
 			log.printStack(-1);
 
-			new WatchedThread(new ViewChangeRunnable(), threadName).start();
-			// we decBusy INSIDE the new thread, below
+			ViewChangeRunnable task = new ViewChangeRunnable(
+				viewGeneration.incrementAndGet(), threadName, className);
+			ViewChangeRunnable old;
+			synchronized(viewChangeLock)
+			 {
+				old = lastViewChange;
+				lastViewChange = task;
+			 }
+			if(old != null)
+				old.supersede();
+			ViewChangeScheduler.submit(task);
+			// we decBusy INSIDE the task, below, even if it's skipped
+		 }
+
+		/**
+		 ** Returns true if the current thread is running a view change
+		 ** that a newer view change of the same view has replaced.
+		 ** Long-running {@link #viewChangedPre}, {@link #createRequest}
+		 ** and {@link #viewChangedPost} implementations may check this
+		 ** and return early, since their results will be discarded.
+		 **/
+		protected static boolean isViewChangeStale()
+		 {
+			ViewChangeRunnable task = currentViewChange.get();
+			return task != null && task.isStale();
 		 }
 
 
@@ -1672,24 +1843,91 @@ public abstract class Layer implements ProjectionListener
 		    return ((Long)viewChangeTime.get()).longValue();
 	        } 
 
+		// The view change being run by the current thread, if any.
+		private static ThreadLocal<ViewChangeRunnable> currentViewChange = new ThreadLocal<ViewChangeRunnable>();
+
+		// Numbers each view change of this view, so stale ones can be dropped.
+		private final AtomicInteger viewGeneration = new AtomicInteger();
+		private final Object viewChangeLock = new Object();
+		private ViewChangeRunnable lastViewChange;
+
 		private class ViewChangeRunnable
 		    implements Runnable
 		{
+		    private final int generation;
+		    private final String name;
+		    private final String layerName;
+		    // The pool thread running this change, null before and after.
+		    private Thread runner;
 
-		    ViewChangeRunnable()
+		    ViewChangeRunnable(int generation, String name, String layerName)
 		    {
-//  			viewChangeTime.set( new Long(System.currentTimeMillis()) );
+			this.generation = generation;
+			this.name = name;
+			this.layerName = layerName;
+		    }
+
+		    boolean isStale()
+		    {
+			return generation != viewGeneration.get();
+		    }
+
+		    // Called once a newer change of the same view has been queued.
+		    void supersede()
+		    {
+			if(!ViewChangeScheduler.INTERRUPT_STALE)
+				return;
+			synchronized(this)
+			    {
+				if(runner != null)
+				    {
+					log.println("Interrupting stale view change <" + name + ">");
+					runner.interrupt();
+				    }
+			    }
 		    }
 
 		    public void run()
 		    {
+			if(isStale())
+			    {
+				log.println("Skipping stale view change <" + name + ">");
+				ViewChangeScheduler.recordSkipped(layerName);
+				decBusy();
+				return;
+			    }
+			Thread thread = Thread.currentThread();
+			String poolName = thread.getName();
+			thread.setName(name);
+			synchronized(this)
+			    {
+				runner = thread;
+			    }
+			long start = System.currentTimeMillis();
 			try
 			    {
-				viewChangeTime.set( new Long(System.currentTimeMillis()) );
+				currentViewChange.set(this);
+				viewChangeTime.set( new Long(start) );
 				viewChangedReal();
 			    }
+			catch(Throwable e)
+			    {
+				// an interrupted stale change is expected to fail
+				if(!isStale())
+					WatchedThread.reportUncaught(name, e);
+			    }
 			finally
 			    {
+				synchronized(this)
+				    {
+					runner = null;
+				    }
+				// don't leave an interrupt for the next task on this thread
+				Thread.interrupted();
+				currentViewChange.remove();
+				viewChangeTime.remove();
+				thread.setName(poolName);
+				ViewChangeScheduler.record(layerName, System.currentTimeMillis() - start);
 				decBusy();
 			    }
 		    }
@@ -1744,6 +1982,7 @@ public abstract class Layer implements ProjectionListener
 				log.println("Calling Factory newBufferedImage("+pixSize.width+","+pixSize.height+")");
 			   buffers = newBufferedImageArray(pixSize.width,
 											   pixSize.height);
+			   paintVersion.incrementAndGet();
 			 }
 			else
 			 {
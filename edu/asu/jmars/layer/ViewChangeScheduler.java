@@ -0,0 +1,214 @@
+package edu.asu.jmars.layer;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import edu.asu.jmars.util.Config;
+import edu.asu.jmars.util.DebugLog;
+
+/**
+ * Runs the view change work of every {@link Layer.LView} on one shared pool
+ * of threads, instead of a new thread per view per change.
+ *
+ * Most view changes spend their time waiting on map servers, databases and
+ * files rather than the processor, so the pool is sized for blocking work:
+ * four threads per processor and at least 16 by default, set with
+ * <code>view.threads</code>. Idle threads exit after 30 seconds, so the
+ * extra threads cost nothing between view changes. Each view numbers its
+ * changes, and a change that is superseded by a newer one on the same view
+ * before it starts is dropped. A change that is already running can check
+ * {@link Layer.LView#isViewChangeStale()}, and is interrupted when
+ * <code>view.interruptStale</code> is set; that is off by default, since an
+ * interrupt closes any NIO channel the thread is using at the time, such as
+ * a shared tile cache file.
+ *
+ * The time each view change takes is recorded per layer in a
+ * {@link Timing} histogram, which {@link #getTimings()} returns.
+ */
+public final class ViewChangeScheduler {
+	private static final DebugLog log = DebugLog.instance();
+
+	static final boolean INTERRUPT_STALE = Config.get("view.interruptStale", false);
+
+	/**
+	 * Well above the processor count, since with one thread per processor a
+	 * few layers blocked on slow servers held up every other layer
+	 */
+	private static final int DEFAULT_THREADS = Math.max(16, 4 * Runtime.getRuntime().availableProcessors());
+
+	private static ExecutorService pool;
+	private static final Map<String,Timing> timings = new TreeMap<String,Timing>();
+
+	private ViewChangeScheduler() {
+	}
+
+	private static synchronized ExecutorService getPool() {
+		if (pool == null) {
+			int threads = Math.max(1, Config.get("view.threads", DEFAULT_THREADS));
+			log.println("Creating view change pool with " + threads + " threads");
+			ThreadPoolExecutor exec = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+					private final AtomicInteger count = new AtomicInteger(1);
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "View Change-" + count.getAndIncrement());
+						// do NOT want a stuck layer to keep the JVM open
+						t.setDaemon(true);
+						return t;
+					}
+				});
+			exec.allowCoreThreadTimeOut(true);
+			pool = exec;
+		}
+		return pool;
+	}
+
+	/** Queues a view change; the task is responsible for skipping itself when stale */
+	static void submit(Runnable task) {
+		getPool().execute(task);
+	}
+
+	/** Adds the time taken by one view change of the named layer */
+	static void record(String layer, long ms) {
+		synchronized(timings) {
+			Timing t = timings.get(layer);
+			if (t == null) {
+				timings.put(layer, t = new Timing());
+			}
+			t.add(ms);
+		}
+		log.println("View change of " + layer + " took " + ms + " ms");
+	}
+
+	/** Counts a view change of the named layer that was dropped before it ran */
+	static void recordSkipped(String layer) {
+		synchronized(timings) {
+			Timing t = timings.get(layer);
+			if (t == null) {
+				timings.put(layer, t = new Timing());
+			}
+			t.skipped++;
+		}
+	}
+
+	/** @return a copy of the timings recorded so far, keyed by layer */
+	public static Map<String,Timing> getTimings() {
+		Map<String,Timing> copy = new TreeMap<String,Timing>();
+		synchronized(timings) {
+			for (Map.Entry<String,Timing> e: timings.entrySet()) {
+				copy.put(e.getKey(), new Timing(e.getValue()));
+			}
+		}
+		return copy;
+	}
+
+	/** Discards the recorded timings */
+	public static void resetTimings() {
+		synchronized(timings) {
+			timings.clear();
+		}
+	}
+
+	/**
+	 * Histogram of view change times, with buckets that double in width:
+	 * bucket 0 counts changes under 1 ms, bucket i counts changes of at least
+	 * 2<sup>i-1</sup> ms and under 2<sup>i</sup> ms, and the last bucket
+	 * counts everything longer.
+	 */
+	public static final class Timing {
+		public static final int BUCKETS = 18;
+
+		private final long[] counts;
+		private long total;
+		private long max;
+		private long skipped;
+
+		Timing() {
+			counts = new long[BUCKETS];
+		}
+
+		Timing(Timing t) {
+			counts = t.counts.clone();
+			total = t.total;
+			max = t.max;
+			skipped = t.skipped;
+		}
+
+		void add(long ms) {
+			int bucket = ms <= 0 ? 0 : Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(ms));
+			counts[bucket]++;
+			total += ms;
+			max = Math.max(max, ms);
+		}
+
+		/** @return the number of view changes that ran */
+		public long getCount() {
+			long n = 0;
+			for (long c: counts) {
+				n += c;
+			}
+			return n;
+		}
+
+		/** @return the number of view changes dropped because a newer one replaced them */
+		public long getSkipped() {
+			return skipped;
+		}
+
+		public long getTotalMillis() {
+			return total;
+		}
+
+		public long getMaxMillis() {
+			return max;
+		}
+
+		public double getMeanMillis() {
+			long n = getCount();
+			return n == 0 ? 0 : (double)total / n;
+		}
+
+		/** @return the count in the given bucket, as described on {@link Timing} */
+		public long getBucket(int i) {
+			return counts[i];
+		}
+
+		/**
+		 * @return an upper bound on the given percentile, from 0 to 100, taken
+		 * as the upper edge of the bucket it falls in
+		 */
+		public long getPercentileMillis(double pct) {
+			long n = getCount();
+			long target = (long)Math.ceil(n * pct / 100.0);
+			long seen = 0;
+			for (int i = 0; i < BUCKETS - 1; i++) {
+				seen += counts[i];
+				if (seen >= target && seen > 0) {
+					return 1L << i;
+				}
+			}
+			return max;
+		}
+
+		public String toString() {
+			StringBuilder buf = new StringBuilder();
+			buf.append("n=").append(getCount())
+				.append(" skipped=").append(skipped)
+				.append(" mean=").append(Math.round(getMeanMillis()))
+				.append("ms p90<=").append(getPercentileMillis(90))
+				.append("ms max=").append(max).append("ms [");
+			for (int i = 0; i < BUCKETS; i++) {
+				if (i > 0) {
+					buf.append(' ');
+				}
+				buf.append(counts[i]);
+			}
+			return buf.append(']').toString();
+		}
+	}
+}
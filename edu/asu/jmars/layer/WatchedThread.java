@@ -59,16 +59,26 @@ public class WatchedThread extends Thread
 		 }
 		catch(Throwable e)
 		 {
-			e.printStackTrace();
-			JOptionPane.showMessageDialog(
-				Main.mainFrame,
-				"Uncaught exception (in thread " + getName() + "):\n" +
-				"    " + e + "\n" +
-				"\n" +
-				"The application may or may not have been destabilized.",
-				"UNCAUGHT EXCEPTION",
-				JOptionPane.ERROR_MESSAGE
-				);
+			reportUncaught(getName(), e);
 		 }
 	 }
+
+	/**
+	 ** Shows the error dialog used for exceptions that escape a
+	 ** WatchedThread, for work run on pooled threads under the
+	 ** given name.
+	 **/
+	static void reportUncaught(String name, Throwable e)
+	 {
+		e.printStackTrace();
+		JOptionPane.showMessageDialog(
+			Main.mainFrame,
+			"Uncaught exception (in thread " + name + "):\n" +
+			"    " + e + "\n" +
+			"\n" +
+			"The application may or may not have been destabilized.",
+			"UNCAUGHT EXCEPTION",
+			JOptionPane.ERROR_MESSAGE
+			);
+	 }
  }
@@ -1,11 +1,13 @@
 package edu.asu.jmars.layer.landing;
 
 import java.io.Serializable;
+import java.util.Collections;
 
 import edu.asu.jmars.layer.map2.MapSource;
 import edu.asu.jmars.layer.util.features.FPath;
-import edu.asu.jmars.layer.util.features.FieldMap;
 import edu.asu.jmars.layer.util.features.FieldMap.Type;
+import edu.asu.jmars.layer.util.features.ZonalStatistics;
+import edu.asu.jmars.util.DebugLog;
 
 
 public class StatCalculator implements Serializable {
@@ -74,47 +76,45 @@ public class StatCalculator implements Serializable {
 		stat.upperLeft = site.getUpperLeft();
 		stat.angle = site.getAngle();
 		
+		//Sample the map once for every requested stat
+		ZonalStatistics.Result result = null;
+		if(hasAvg || hasMin || hasMax || hasStd){
+			try {
+				result = new ZonalStatistics(source, ppd, 0).compute(Collections.singletonList(path.getWorld()))[0];
+			} catch (InterruptedException e) {
+				// leave the result null, so every stat of this site is unavailable
+				Thread.currentThread().interrupt();
+				DebugLog.instance().aprintln("Interrupted while computing " + name + " for a landing site");
+			}
+		}
+		
 		if(hasAvg){
 			stat.hasAvg = true;
-			FieldMap avgValue = new FieldMap("map sampling", Type.AVG, ppd, source, 0);
-			if(avgValue.getValue(path)!=null){
-				stat.setAvg((Double) avgValue.getValue(path));
-			}else{
-				stat.setAvg(Double.NaN);
-			}
+			stat.setAvg(getStat(result, Type.AVG));
 		}
 		if(hasMin){
 			stat.hasMin = true;
-			FieldMap minValue = new FieldMap("map sampling", Type.MIN, ppd, source, 0);
-			if(minValue.getValue(path)!=null){
-				stat.setMin((Double) minValue.getValue(path));
-			}else{
-				stat.setMin(Double.NaN);
-			}
+			stat.setMin(getStat(result, Type.MIN));
 		}
 		if(hasMax){
 			stat.hasMax = true;
-			FieldMap maxValue = new FieldMap("map sampling", Type.MAX, ppd, source, 0);
-			if(maxValue.getValue(path)!=null){
-				stat.setMax((Double) maxValue.getValue(path));
-			}else{
-				stat.setMax(Double.NaN);
-			}
+			stat.setMax(getStat(result, Type.MAX));
 		}
 		if(hasStd){
 			stat.hasStd = true;
-			FieldMap stdValue = new FieldMap("map sampling", Type.STDEV, ppd, source, 0);
-			if(stdValue.getValue(path)!=null){
-				stat.setStd((Double) stdValue.getValue(path));
-			}else{
-				stat.setStd(Double.NaN);
-			}
+			stat.setStd(getStat(result, Type.STDEV));
 		}
 
 		return stat;
 		
 	}
 	
+	/** @return the given statistic, or NaN if it could not be computed */
+	private static double getStat(ZonalStatistics.Result result, Type type){
+		Double value = result == null ? null : result.get(type);
+		return value == null ? Double.NaN : value;
+	}
+	
 	//get attributes
 	public String getName(){
 		return name;
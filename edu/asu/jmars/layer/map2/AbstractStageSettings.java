@@ -6,6 +6,7 @@ import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.swing.SwingUtilities;
 
@@ -13,6 +14,8 @@ public abstract class AbstractStageSettings implements StageSettings {
 	private static final long serialVersionUID = -787452580306026300L;
 	
 	private transient List<PropertyChangeListener> listeners;
+	/** Incremented on every property change, so cached results can tell when settings change */
+	private transient AtomicLong version;
 	
 	public AbstractStageSettings(){
 		commonInit();
@@ -20,6 +23,7 @@ public abstract class AbstractStageSettings implements StageSettings {
 	
 	private void commonInit(){
 		listeners = new ArrayList<PropertyChangeListener>();
+		version = new AtomicLong();
 	}
 	
 	public void addPropertyChangeListener(PropertyChangeListener l) {
@@ -39,6 +43,7 @@ public abstract class AbstractStageSettings implements StageSettings {
 	 * @see #addPropertyChangeListener(PropertyChangeListener)
 	 */
 	public final void firePropertyChangeEvent(String propertyName, Object oldValue, Object newValue){
+		version.incrementAndGet();
 		final PropertyChangeEvent e = new PropertyChangeEvent(this, propertyName, oldValue, newValue);
 		final List<PropertyChangeListener> ll = new ArrayList<PropertyChangeListener>(listeners);
 		SwingUtilities.invokeLater(new Runnable(){
@@ -50,6 +55,15 @@ public abstract class AbstractStageSettings implements StageSettings {
 		});
 	}
 	
+	/**
+	 * Returns a counter that changes whenever a property change event is
+	 * fired, which together with the identity of this object describes the
+	 * current state of the settings.
+	 */
+	public final long getVersion() {
+		return version.get();
+	}
+	
 	public Object clone() throws CloneNotSupportedException {
 		AbstractStageSettings s = (AbstractStageSettings)super.clone();
 		s.commonInit();
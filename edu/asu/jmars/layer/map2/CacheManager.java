@@ -2,17 +2,28 @@ package edu.asu.jmars.layer.map2;
 
 import java.awt.geom.Point2D;
 import java.awt.image.BufferedImage;
-import java.awt.image.WritableRaster;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.Set;
 import java.util.Vector;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
 import javax.imageio.ImageIO;
 
-import org.apache.commons.collections.ReferenceMap;
-
 import edu.asu.jmars.Main;
 import edu.asu.jmars.ProjObj;
 import edu.asu.jmars.ProjObj.Projection_OC;
@@ -23,10 +34,39 @@ import edu.asu.jmars.util.Util;
 /**
  * We have a separate thread pool for fuzzy tiles because we don't want to ever
  * queue up an actual cache hit behind a check for fuzzy tiles.
+ * 
+ * Tiles downloaded from a {@link WMSMapSource} with an entity tag have the
+ * tag stored beside the tile file, or in a second pack beside the tile pack
+ * along with the time it was last checked. When such a tile is loaded after it has
+ * been cached longer than <code>map.cache.revalidateHours</code>, a
+ * conditional request is sent in the background, which either renews the
+ * cached copy or replaces it with the server's new version.
  */
 public class CacheManager {
 	private static final int NUM_TILE_THREADS = Config.get("map.cache.tileThreadCount", 10);	
 	private static final int NUM_FUZZY_THREADS = Config.get("map.cache.fuzzyThreadCount", 5);
+	/** Memory cache size in megabytes, defaults to an eighth of the maximum heap */
+	private static final int MEMORY_CACHE_MB = Config.get("map.cache.memoryMB", (int)(Runtime.getRuntime().maxMemory() / 8 / (1024*1024)));
+	private static final int MEMORY_CACHE_STRIPES = Config.get("map.cache.memoryStripes", 16);
+	/**
+	 * Store each source/projection/ppd in one {@link PackedTileStore} instead
+	 * of a file per tile, so checking the cache is an index lookup rather than
+	 * a file stat per tile. Per-tile files left by older releases are not read,
+	 * set this to false to keep using them.
+	 */
+	private static final boolean PACKED = Config.get("map.cache.packed", true);
+	/** Size of the reduced tile copies used for fuzzy tiles, defaults to an eighth of the memory cache */
+	private static final int MIPMAP_MB = Config.get("map.cache.mipmapMB", Math.max(1, MEMORY_CACHE_MB / 8));
+	/** Each reduced copy is this many times smaller than its tile on a side */
+	private static final int MIPMAP_FACTOR = Config.get("map.cache.mipmapFactor", 4);
+	/**
+	 * Upscaling data more than 16 times seems unlikely to provide any real
+	 * benefit to the user, so coarser tiles are not searched on disk
+	 */
+	private static final int MAX_FUZZY_RATIO = 16;
+	/** Cached tiles with an entity tag are checked with the server when older than this, 0 to disable */
+	private static final int REVALIDATE_HOURS = Config.get("map.cache.revalidateHours", 24*7);
+	private static final String ETAG_EXTENSION = ".etag";
 	
 	private static final DebugLog log = DebugLog.instance();
 	/** Helper log methods so the user must only declare one DebugLog line */
@@ -48,37 +88,45 @@ public class CacheManager {
 	
 	private static ExecutorService pool;
 	private static ExecutorService fuzzyPool;
-	static Map<String,BufferedImage> memoryCache;
+	private static ExecutorService revalidatePool;
+	/** Names of the tiles waiting to be revalidated */
+	private static final Set<String> revalidating = new HashSet<String>();
+	static TileMemoryCache memoryCache;
+	/**
+	 * Box-filtered copies of the tiles that have passed through the memory
+	 * cache, kept under the same keys, so that fuzzy tiles can be built from
+	 * memory long after the full tiles were evicted
+	 */
+	static TileMemoryCache mipmapCache;
+	/** Open pack files, keyed by path */
+	private static final Map<String,PackedTileStore> packs = new HashMap<String,PackedTileStore>();
+	/** Pack paths that failed to open, such as those locked by another JMARS, which are not retried */
+	private static final Set<String> failedPacks = new HashSet<String>();
 	
 	static {
-		memoryCache = new ReferenceMap (ReferenceMap.SOFT, ReferenceMap.SOFT);
+		memoryCache = new TileMemoryCache(MEMORY_CACHE_MB * 1024L * 1024L, MEMORY_CACHE_STRIPES);
+		mipmapCache = new TileMemoryCache(MIPMAP_MB * 1024L * 1024L, MEMORY_CACHE_STRIPES);
 		pool = Executors.newFixedThreadPool(NUM_TILE_THREADS, new MapThreadFactory("Tile Cache Loader"));
 		fuzzyPool = Executors.newFixedThreadPool(NUM_FUZZY_THREADS, new MapThreadFactory("Fuzzy Tile Cache Loader"));
+		revalidatePool = Executors.newSingleThreadExecutor(new MapThreadFactory("Tile Cache Revalidator"));
 	}
 	
-	private static void addTileToMemCache(String key, BufferedImage tile) {
-		synchronized (memoryCache) {
-			memoryCache.put(key, tile);
+	private static void addTileToMemCache(MapSource source, String key, BufferedImage tile) {
+		memoryCache.put(source.getName(), key, tile);
+		if (mipmapCache.peek(key) == null) {
+			// averaging would mix ignored values with valid ones
+			boolean average = source.getIgnoreValue() == null;
+			mipmapCache.put(source.getName(), key, TileScaler.reduce(tile, MIPMAP_FACTOR, average));
 		}
 	}
 	
-	private static BufferedImage getTileFromMemCache(String key) {
-		BufferedImage tile = null;
-		
-		synchronized (memoryCache) {
-			if (memoryCache.containsKey(key)) {
-				tile = memoryCache.get(key);
-				if (tile == null) {
-					log("Tile is null! Total memory is: " + 
-							Runtime.getRuntime().maxMemory() +
-							" Free memory is: " + Runtime.getRuntime().freeMemory() +
-					" Max - total is: " + (Runtime.getRuntime().maxMemory() - Runtime.getRuntime().totalMemory())		
-					);
-				}
-			}
-		}
-		
-		return tile;
+	private static BufferedImage getTileFromMemCache(MapSource source, String key) {
+		return memoryCache.get(source.getName(), key);
+	}
+	
+	/** @return the memory cache hit, miss, and eviction counters for the given source */
+	public static TileMemoryCache.Stats getMemoryCacheStats(MapSource source) {
+		return memoryCache.getStats(source.getName());
 	}
 	
 	private static String getTileName(String sourceName, ProjObj projection, int ppd) {
@@ -102,35 +150,85 @@ public class CacheManager {
 		}
 	}
 	
+	/**
+	 * Sends fuzzy images for the given tiles to the retriever. Tiles that can
+	 * be built from coarser tiles in memory are sent at once, in a single
+	 * update, and the disk is then searched in the background for anything
+	 * finer than what memory had.
+	 */
 	public static void getFuzzyTiles(MapRetriever retriever, MapTile tiles[]) {
 		if (tiles==null || tiles.length==0) {
 			return;
 		}
 		
+		int[] ratios = new int[tiles.length];
+		BufferedImage[] images = new BufferedImage[tiles.length];
 		for (int i = 0; i<tiles.length; i++) {
-			fuzzyPool.execute(new FuzzyTileLoader(retriever, tiles[i]));
+			ratios[i] = getFuzzyFromMemory(tiles[i], images, i);
+		}
+		retriever.fuzzyResponses(tiles, images);
+		
+		for (int i = 0; i<tiles.length; i++) {
+			if (ratios[i] > 2) {
+				fuzzyPool.execute(new FuzzyTileLoader(retriever, tiles[i], ratios[i]));
+			}
+		}
+	}
+	
+	/**
+	 * Builds a fuzzy image for the given tile from the finest coarser tile in
+	 * the memory cache, or from the reduced copy of one, without reading the
+	 * disk. The image is stored in <code>images[index]</code>.
+	 * @return the scale factor of the fuzzy image, or
+	 *         {@link Integer#MAX_VALUE} if nothing coarser was in memory.
+	 */
+	private static int getFuzzyFromMemory(MapTile tile, BufferedImage[] images, int index) {
+		MapSource source = tile.getRequest().getSource();
+		ProjObj proj = tile.getRequest().getProjection();
+		int ppd = tile.getRequest().getPPD();
+		boolean numeric = source.hasNumericKeyword();
+		for (int ratio = 2; ratio <= MAX_FUZZY_RATIO * MIPMAP_FACTOR; ratio *= 2) {
+			if (ratio <= MAX_FUZZY_RATIO && ppd / ratio > 1) {
+				BufferedImage image = memoryCache.peek(getTileName(source.getName(), proj, ppd/ratio,
+					tile.getXtile()/ratio, tile.getYtile()/ratio, numeric));
+				if (image != null && (images[index] = getFuzzyImage(tile, image, ratio)) != null) {
+					return ratio;
+				}
+			}
+			int tileRatio = ratio / MIPMAP_FACTOR;
+			if (tileRatio >= 2 && ppd / tileRatio > 1) {
+				BufferedImage image = mipmapCache.peek(getTileName(source.getName(), proj, ppd/tileRatio,
+					tile.getXtile()/tileRatio, tile.getYtile()/tileRatio, numeric));
+				if (image != null && (images[index] = getFuzzyImage(tile, image, tileRatio)) != null) {
+					return ratio;
+				}
+			}
+		}
+		return Integer.MAX_VALUE;
+	}
+	
+	/**
+	 * Enlarges the part of the given coarser image that covers the given tile
+	 * to the full tile size.
+	 * @param ratio The ratio of the tile's scale to the coarser image's tile scale.
+	 * @return the fuzzy image, or null if the coarser image is too small.
+	 */
+	private static BufferedImage getFuzzyImage(MapTile tile, BufferedImage image, int ratio) {
+		int w = image.getWidth() / ratio;
+		int h = image.getHeight() / ratio;
+		if (w == 0 || h == 0) {
+			return null;
 		}
+		int xtileindex = tile.getXtile() % ratio;
+		int ytileindex = ratio - (tile.getYtile() % ratio) - 1;
+		return TileScaler.enlarge(image, xtileindex * w, ytileindex * h, w, h,
+			MapRetriever.tiler.getPixelWidth() / (double)w);
 	}
 	
 	// TODO: move this to a more appropriate class!
 	// TODO: determine why AffineTransformOp does not work
 	public static BufferedImage scaleImage(BufferedImage image, double scale){
-		WritableRaster inRaster = image.getRaster();
-		
-		int w = (int)Math.round(image.getWidth() * scale);
-		int h = (int)Math.round(image.getHeight() * scale);
-		WritableRaster outRaster = inRaster.createCompatibleWritableRaster(w, h);
-		
-		Object outData = null;
-		for(int j=0; j<h; j++){
-			for(int i=0; i<w; i++){
-				outData = inRaster.getDataElements((int)(i/scale), (int)(j/scale), outData);
-				outRaster.setDataElements(i, j, outData);
-			}
-		}
-		
-		BufferedImage outImage = new BufferedImage(image.getColorModel(), outRaster, image.isAlphaPremultiplied(), null);
-		return outImage;
+		return TileScaler.enlarge(image, 0, 0, image.getWidth(), image.getHeight(), scale);
 	}
 	
 	public static MapTile[][] checkCache(MapTile tiles[]) {
@@ -146,12 +244,23 @@ public class CacheManager {
 		ProjObj proj = tiles[0].getRequest().getProjection();
 		int ppd = tiles[0].getRequest().getPPD();
 		
-		for (int i=0; i<tiles.length; i++) {
-			File tileFile = new File(getTileName(sourceName, proj, ppd, tiles[i].getXtile(), tiles[i].getYtile(), source.hasNumericKeyword()));
-			if (tileFile.canRead()) {
-				cachedTiles.add(tiles[i]);
-			} else {
-				nonCachedTiles.add(tiles[i]);
+		if (PACKED) {
+			PackedTileStore pack = getPack(sourceName, proj, ppd, false);
+			for (int i=0; i<tiles.length; i++) {
+				if (pack != null && pack.contains(tiles[i].getXtile(), tiles[i].getYtile())) {
+					cachedTiles.add(tiles[i]);
+				} else {
+					nonCachedTiles.add(tiles[i]);
+				}
+			}
+		} else {
+			for (int i=0; i<tiles.length; i++) {
+				File tileFile = new File(getTileName(sourceName, proj, ppd, tiles[i].getXtile(), tiles[i].getYtile(), source.hasNumericKeyword()));
+				if (tileFile.canRead()) {
+					cachedTiles.add(tiles[i]);
+				} else {
+					nonCachedTiles.add(tiles[i]);
+				}
 			}
 		}
 		
@@ -163,18 +272,120 @@ public class CacheManager {
 		return checkedTiles;
 	}
 	
+	/**
+	 * Returns the pack file for the given source, projection, and ppd,
+	 * opening it on first use.
+	 * @param create If false and the pack file does not exist yet, null is
+	 * returned rather than creating an empty file.
+	 */
+	private static PackedTileStore getPack(String sourceName, ProjObj projection, int ppd, boolean create) {
+		return getPack(sourceName, projection, ppd, create, "");
+	}
 	
-	public static BufferedImage getTile(MapSource source, String tileName) {		
-		BufferedImage tile = null;
+	/** @param suffix Added to the pack's name before the extension, to open a pack of something other than tiles */
+	private static PackedTileStore getPack(String sourceName, ProjObj projection, int ppd, boolean create, String suffix) {
+		String dir = getTileName(sourceName, projection, ppd);
+		String path = dir.substring(0, dir.length()-1) + suffix + PackedTileStore.EXTENSION;
+		PackedTileStore pack;
+		Exception failure = null;
+		synchronized(packs) {
+			pack = packs.get(path);
+			if (pack == null) {
+				if (failedPacks.contains(path)) {
+					return null;
+				}
+				File file = new File(path);
+				if (!create && !file.exists()) {
+					return null;
+				}
+				try {
+					pack = new PackedTileStore(file);
+					packs.put(path, pack);
+				} catch (Exception e) {
+					failedPacks.add(path);
+					failure = e;
+				}
+			}
+		}
+		// logged outside the lock so other tile threads are not held up
+		if (failure != null) {
+			log("Unable to open tile pack " + path);
+			log(failure);
+		}
+		return pack;
+	}
+	
+	private static BufferedImage decodeTile(MapSource source, InputStream is) throws Exception {
+		BufferedImage tile;
+		if (source.hasNumericKeyword()) {
+			tile = MyVicarReaderWriter.read(is);
+		} else {
+			tile = ImageIO.read(is);
+			if (tile != null) {
+				tile = Util.replaceWithLinearGrayCS(tile);
+			}
+		}
+		return tile;
+	}
+	
+	private static byte[] encodeTile(MapSource source, BufferedImage image) throws Exception {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		if (source.hasNumericKeyword()) {
+			MyVicarReaderWriter.write(image, bos);
+		} else {
+			ImageIO.write(image, "PNG", bos);
+		}
+		return bos.toByteArray();
+	}
+	
+	/**
+	 * Returns the tile from the memory cache if possible, otherwise from the
+	 * disk cache, or null if the tile is not cached.
+	 */
+	public static BufferedImage getTile(MapSource source, ProjObj proj, int ppd, int xTile, int yTile) {
+		String tileName = getTileName(source.getName(), proj, ppd, xTile, yTile, source.hasNumericKeyword());
 		
-		tile = CacheManager.getTileFromMemCache(tileName);
+		BufferedImage tile = CacheManager.getTileFromMemCache(source, tileName);
 		
 		if (tile!=null) {
 			return tile;
 		}
-
+		
 		log("Memory cache miss!");
-
+		
+		if (PACKED) {
+			tile = getTileFromPack(source, proj, ppd, xTile, yTile);
+		} else {
+			tile = getTileFromFile(source, tileName);
+		}
+		
+		if (tile!=null) {
+			CacheManager.addTileToMemCache(source, tileName, tile);
+		}
+		
+		return tile;
+	}
+	
+	private static BufferedImage getTileFromPack(MapSource source, ProjObj proj, int ppd, int xTile, int yTile) {
+		PackedTileStore pack = getPack(source.getName(), proj, ppd, false);
+		if (pack == null) {
+			return null;
+		}
+		try {
+			byte[] data = pack.get(xTile, yTile);
+			if (data == null) {
+				return null;
+			}
+			return decodeTile(source, new ByteArrayInputStream(data));
+		} catch (Exception e) {
+			log("Exception loading tile " + xTile + "x" + yTile + " from " + pack.getFile());
+			log(e);
+			return null;
+		}
+	}
+	
+	private static BufferedImage getTileFromFile(MapSource source, String tileName) {
+		BufferedImage tile = null;
 		
 		File tileFile = new File(tileName);
 		
@@ -185,33 +396,22 @@ public class CacheManager {
 		if (tileFile.canRead()) {
 			for (int i=0; i<3; i++) {
 				try {
-					if (source.hasNumericKeyword()) {
-						tile = MyVicarReaderWriter.read(tileFile);
-					} else {
-						tile = ImageIO.read(tileFile);
-						tile = Util.replaceWithLinearGrayCS(tile);
+					InputStream is = new BufferedInputStream(new FileInputStream(tileFile));
+					try {
+						tile = decodeTile(source, is);
+					} finally {
+						is.close();
 					}
 					
 					if (tile==null) {
-						//System.out.println("TILE " + xtile + ":" +ytile + " at " + ppd + " ppd is null!");
 						return null;
-					}							
+					}
 				} catch (Exception e) {
 					log("Exception loading tile: " + tileName);
 					log("Retrying...");
 				}
 				break;
 			}
-		} else { // tile not found
-			//System.out.println("TILE " + xtile + ":" +ytile + " at " + ppd + " ppd not found!");					
-		}
-
-		if (tile!=null) {
-			synchronized (memoryCache) {
-				log("Memory Cache size prePut = " + memoryCache.size());
-				CacheManager.addTileToMemCache(tileName, tile);
-				log("Memory Cache size postPut = " + memoryCache.size());
-			}
 		}
 		
 		return tile;
@@ -220,33 +420,51 @@ public class CacheManager {
 	public static void storeMapData(MapTile tile) {
 		MapSource source = tile.getRequest().getSource();
 		String sourceName = source.getName();
-
+		ProjObj proj = tile.getRequest().getProjection();
+		int ppd = tile.getRequest().getPPD();
+		
+		String tileName = getTileName(sourceName, proj, ppd, tile.getXtile(), tile.getYtile(), source.hasNumericKeyword());
+		
+		if (PACKED) {
+			PackedTileStore pack = getPack(sourceName, proj, ppd, true);
+			if (pack == null) {
+				return;
+			}
+			try {
+				// if already stored, assume we don't need to recache
+				if (!pack.contains(tile.getXtile(), tile.getYtile())) {
+					pack.put(tile.getXtile(), tile.getYtile(), encodeTile(source, tile.getImage()));
+					CacheManager.addTileToMemCache(source, tileName, tile.getImage());
+					if (tile.getETag() != null) {
+						writePackedETag(sourceName, proj, ppd, tile.getXtile(), tile.getYtile(), tile.getETag());
+					}
+				}
+			} catch (Exception e) {
+				log(e);
+			}
+			return;
+		}
+		
 		// Occasionally the netapp will report back that a file or directory doesn't exist, despite the
 		// fact that we've explicitly just created it.  Because of this occasional error, we attempt
 		// the write as many as three times before actually giving up.  This seems to solve this 
 		// particular rare issue with the netapp.
 		for (int i=0; i<3; i++) {
-			createDirectories(sourceName,tile.getRequest().getProjection(), tile.getRequest().getPPD());
-
-			String tileName = getTileName(
-				sourceName,
-				tile.getRequest().getProjection(),
-				tile.getRequest().getPPD(),
-				tile.getXtile(),
-				tile.getYtile(),
-				source.hasNumericKeyword());
+			createDirectories(sourceName, proj, ppd);
 			
 			File tileFile = new File(tileName);
 		
 			try {
 				if (tileFile.createNewFile()) { // if already existed, assume we don't need to recache
-					if (source.hasNumericKeyword()) {
-						MyVicarReaderWriter.write(tile.getImage(), tileFile);
-					} else {
-						ImageIO.write(tile.getImage(), "PNG", tileFile);
+					OutputStream os = new BufferedOutputStream(new FileOutputStream(tileFile));
+					try {
+						os.write(encodeTile(source, tile.getImage()));
+					} finally {
+						os.close();
 					}
 					
-					CacheManager.addTileToMemCache(tileName, tile.getImage());
+					CacheManager.addTileToMemCache(source, tileName, tile.getImage());
+					writeETag(tileName, tile.getETag());
 				}
 				break;
 			} catch (Exception e) {
@@ -256,6 +474,138 @@ public class CacheManager {
 		}		
 	}
 	
+	private static void writeETag(String tileName, String etag) throws IOException {
+		File file = new File(tileName + ETAG_EXTENSION);
+		if (etag == null) {
+			file.delete();
+			return;
+		}
+		OutputStream os = new FileOutputStream(file);
+		try {
+			os.write(etag.getBytes("UTF-8"));
+		} finally {
+			os.close();
+		}
+	}
+	
+	/**
+	 * Stores the entity tag of a packed tile, with the current time as the
+	 * time it was last checked. An empty tag is stored for null, since a
+	 * record can't be removed from a pack.
+	 */
+	private static void writePackedETag(String sourceName, ProjObj proj, int ppd, int xTile, int yTile, String etag) throws IOException {
+		PackedTileStore tags = getPack(sourceName, proj, ppd, true, ETAG_EXTENSION);
+		if (tags == null) {
+			return;
+		}
+		byte[] tag = (etag == null ? "" : etag).getBytes("UTF-8");
+		tags.put(xTile, yTile, ByteBuffer.allocate(8 + tag.length).putLong(System.currentTimeMillis()).put(tag).array());
+	}
+	
+	/**
+	 * Queues a conditional request for the given cached tile if it came from
+	 * a WMS server with an entity tag, and has been cached longer than
+	 * {@link #REVALIDATE_HOURS}.
+	 */
+	private static void revalidate(final MapTile tile) {
+		final MapSource source = tile.getRequest().getSource();
+		if (REVALIDATE_HOURS <= 0 || !(source instanceof WMSMapSource)) {
+			return;
+		}
+		final ProjObj proj = tile.getRequest().getProjection();
+		final int ppd = tile.getRequest().getPPD();
+		final String tileName = getTileName(source.getName(), proj, ppd, tile.getXtile(), tile.getYtile(), source.hasNumericKeyword());
+		final File tileFile = new File(tileName);
+		final File etagFile = new File(tileName + ETAG_EXTENSION);
+		final String packedTag;
+		long checked;
+		if (PACKED) {
+			PackedTileStore tags = getPack(source.getName(), proj, ppd, false, ETAG_EXTENSION);
+			byte[] data = null;
+			try {
+				data = tags == null ? null : tags.get(tile.getXtile(), tile.getYtile());
+			} catch (IOException e) {
+				log(e);
+			}
+			if (data == null || data.length <= 8) {
+				return;
+			}
+			checked = ByteBuffer.wrap(data).getLong();
+			try {
+				packedTag = new String(data, 8, data.length - 8, "UTF-8");
+			} catch (IOException e) {
+				log(e);
+				return;
+			}
+		} else {
+			if (!etagFile.exists()) {
+				return;
+			}
+			checked = tileFile.lastModified();
+			packedTag = null;
+		}
+		if (System.currentTimeMillis() - checked < REVALIDATE_HOURS * 3600000L) {
+			return;
+		}
+		synchronized(revalidating) {
+			if (!revalidating.add(tileName)) {
+				return;
+			}
+		}
+		revalidatePool.execute(new Runnable() {
+			public void run() {
+				try {
+					String etag = packedTag;
+					if (etag == null) {
+						InputStream is = new FileInputStream(etagFile);
+						try {
+							etag = new String(Util.getAllBytes(is), "UTF-8");
+						} finally {
+							is.close();
+						}
+					}
+					String[] newTag = new String[1];
+					BufferedImage image = ((WMSMapSource)source).fetchTile(tile.getTileRequest(), etag, newTag);
+					if (image == null) {
+						log("Cached tile " + tileName + " is current");
+						if (PACKED) {
+							writePackedETag(source.getName(), proj, ppd, tile.getXtile(), tile.getYtile(), etag);
+						} else {
+							tileFile.setLastModified(System.currentTimeMillis());
+						}
+					} else {
+						log("Cached tile " + tileName + " changed on the server, replacing it");
+						if (PACKED) {
+							PackedTileStore pack = getPack(source.getName(), proj, ppd, true);
+							if (pack != null) {
+								pack.put(tile.getXtile(), tile.getYtile(), encodeTile(source, image));
+								writePackedETag(source.getName(), proj, ppd, tile.getXtile(), tile.getYtile(), newTag[0]);
+							}
+						} else {
+							OutputStream os = new BufferedOutputStream(new FileOutputStream(tileFile));
+							try {
+								os.write(encodeTile(source, image));
+							} finally {
+								os.close();
+							}
+							writeETag(tileName, newTag[0]);
+						}
+						memoryCache.put(source.getName(), tileName, image);
+						boolean average = source.getIgnoreValue() == null;
+						mipmapCache.put(source.getName(), tileName, TileScaler.reduce(image, MIPMAP_FACTOR, average));
+					}
+				} catch (Exception e) {
+					log("Unable to revalidate cached tile " + tileName);
+					log(e);
+				} finally {
+					synchronized(revalidating) {
+						revalidating.remove(tileName);
+					}
+				}
+			}
+		});
+	}
+	
 	private static void createDirectories(String sourceName, ProjObj projection, int ppd) {
 		try {
 			new File(getTileName(sourceName, projection, ppd)).mkdirs();
@@ -265,14 +615,46 @@ public class CacheManager {
 		
 	}
 	
-	/** Removes all tiles for the given map source from the memory and disk caches */
+	/** Removes all tiles and processed outputs for the given map source from the memory and disk caches */
 	public static void removeMap(MapSource source) {
-		synchronized(memoryCache) {
-			memoryCache.clear();
-		}
+		memoryCache.removeSource(source.getName());
+		mipmapCache.removeSource(source.getName());
+		StageOutputCache.removeSource(source);
+		closePacks(cacheDir + source.getName() + "/");
 		Util.recursiveRemoveDir(new File(cacheDir + source.getName()));
 	}
 	
+	/**
+	 * Closes every open pack file and empties the memory cache, so the cache
+	 * directory may be deleted.
+	 */
+	public static void closePacks() {
+		memoryCache.clear();
+		mipmapCache.clear();
+		closePacks(cacheDir);
+	}
+	
+	private static void closePacks(String prefix) {
+		synchronized(packs) {
+			for (Iterator<String> it = packs.keySet().iterator(); it.hasNext(); ) {
+				String path = it.next();
+				if (path.startsWith(prefix)) {
+					try {
+						packs.get(path).close();
+					} catch (IOException e) {
+						log(e);
+					}
+					it.remove();
+				}
+			}
+			for (Iterator<String> it = failedPacks.iterator(); it.hasNext(); ) {
+				if (it.next().startsWith(prefix)) {
+					it.remove();
+				}
+			}
+		}
+	}
+	
 	private static class TileLoader implements Runnable {
 		MapRetriever myRetriever = null;
 		MapTile tile = null;
@@ -295,22 +677,27 @@ public class CacheManager {
 			ProjObj proj = tile.getRequest().getProjection();
 			int ppd = tile.getRequest().getPPD();
 			
-			String tileName = CacheManager.getTileName(source.getName(), proj, ppd, tile.getXtile(), tile.getYtile(), source.hasNumericKeyword());
-			
-			BufferedImage tileImage = CacheManager.getTile(source, tileName);
+			BufferedImage tileImage = CacheManager.getTile(source, proj, ppd, tile.getXtile(), tile.getYtile());
 			
 			// This image MAY be null, it is MapRetreivers job to check
 			myRetriever.cacheResponse(tile, tileImage);
+			
+			if (tileImage != null) {
+				revalidate(tile);
+			}
 		}
 	}
 	
 	private static class FuzzyTileLoader implements Runnable {
 		MapRetriever myRetriever = null;
 		MapTile tile = null;
+		/** Only images finer than this scale factor are worth loading */
+		int limitRatio;
 		
-		FuzzyTileLoader(MapRetriever retriever, MapTile mapTile) {
+		FuzzyTileLoader(MapRetriever retriever, MapTile mapTile, int limitRatio) {
 			myRetriever=retriever;
 			tile=mapTile;
+			this.limitRatio=limitRatio;
 		}
 		
 		public void run() {
@@ -335,14 +722,10 @@ public class CacheManager {
 				// Using this method, we can't upscale data to be fuzzy if it's more than 256 times larger 
 				// than the area we are looking to fill.  Upscaling data more than 16 times seems unlikely to provide
 				// any real benefit to the user, so we will quit our search at this point
-				if (ratio>16) break;
+				if (ratio>MAX_FUZZY_RATIO || ratio>=limitRatio) break;
 				
-				String tileName = CacheManager.getTileName(
-					source.getName(), proj, fuzzyPPD,
-					tile.getXtile()/ratio, tile.getYtile()/ratio,
-					source.hasNumericKeyword());
-				
-				BufferedImage tileImage = CacheManager.getTile(source, tileName);
+				BufferedImage tileImage = CacheManager.getTile(source, proj, fuzzyPPD,
+					tile.getXtile()/ratio, tile.getYtile()/ratio);
 				
 				if (tileImage==null) {								
 					continue;
@@ -371,7 +754,9 @@ public class CacheManager {
 				
 				tileImage = CacheManager.scaleImage(tileImage, ratio);
 				
+				// levels are searched from the finest, so the first found is the best
 				myRetriever.fuzzyResponse(tile, tileImage);
+				break;
 			}						
 		}
 	}
@@ -127,6 +127,7 @@ public class ChartView extends JPanel implements DataReceiver, MapChannelReceive
 		add(sp, BorderLayout.CENTER);
 		
 		ch = new MapChannel(null, ppd, Main.PO, new Pipeline[0]);
+		ch.setPriority(MapRequest.Priority.CHART);
 		ch.addReceiver(this);
 		// TODO: Figure out a better way than the following.
 		// Setting pipeline this way makes sure that we'll get a pipelineChangedEvent
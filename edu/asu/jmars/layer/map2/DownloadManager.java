@@ -1,16 +1,19 @@
 package edu.asu.jmars.layer.map2;
 
+import java.awt.image.BufferedImage;
 import java.text.MessageFormat;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import edu.asu.jmars.util.Config;
 import edu.asu.jmars.util.DebugLog;
@@ -29,12 +32,32 @@ import edu.asu.jmars.util.DebugLog;
  * threads will eventually get to it.
  * 
  * <p>
- * Within a map server, the requests are round robin scheduled on the map
+ * Each tile takes the most urgent {@link MapRequest.Priority} of the requests
+ * waiting on it, and within a map server the most urgent tiles are always
+ * downloaded first, so the main view is never stuck behind the panner or a
+ * chart. Within a priority, the requests are round robin scheduled on the map
  * source. This provides a more even filling in the of the map views, especially
  * with composite maps which typically won't display a tile until the underlying
  * tiles for all inputs have arrived.
  * 
  * <p>
+ * Tiles whose requests have all been cancelled are taken off the schedule
+ * before anything else and answered without touching the network, so fast
+ * zooming does not spend connections on tiles nobody will see.
+ * 
+ * <p>
+ * While the <code>map.download.batchSize</code> config setting is larger than
+ * one, as it is by default, a thread that picks a {@link WMSMapSource} tile
+ * also takes the waiting tiles to its right at the same scale, and fetches
+ * the whole row with one wider GetMap request, which any WMS server can
+ * answer. A batch that fails is fetched again one tile at a time.
+ * 
+ * <p>
+ * Download threads come from a cached pool, so a slow server never holds up
+ * the others, and each server is bounded by
+ * {@link MapServer#getMaxRequests()}.
+ * 
+ * <p>
  * A request for a tile while that tile is already downloading will not start a
  * new download; rather both requests will wait on the single download and the
  * data will be sent to both at the end. This greatly improves the performance
@@ -47,6 +70,14 @@ import edu.asu.jmars.util.DebugLog;
  * another part of the interface, like the advanced dialog.
  * 
  * <p>
+ * Prefetch tiles added with {@link #addPrefetch(MapTile)} are only downloaded
+ * when no other tile on the server is waiting, at most half of the server's
+ * request slots are ever used for them, and they only start new threads while
+ * fewer than <code>map.download.prefetchThreads</code> downloads are running,
+ * so a new request always finds a free slot or the next free one. A request for a tile already scheduled as a
+ * prefetch raises it to the priority of that request.
+ * 
+ * <p>
  * The download threads will wait forever for a given request to finish, with
  * the exception that when a new request is made by calling
  * {@link #addDownload(MapRetriever, MapTile)}, all servers are checked for any
@@ -60,8 +91,20 @@ public class DownloadManager {
 	private DebugLog log = DebugLog.instance();
     /** Provides the number of times to retry retryable exceptions when downloading tiles */
 	private static final int DOWNLOAD_RETRIES = Config.get("map.download.retries", 3);
+	/** Provides the number of running downloads above which prefetches do not start new threads */
+	private static final int PREFETCH_THREADS = Config.get("map.download.prefetchThreads", 16);
+	/**
+	 * Provides the largest number of adjacent WMS tiles fetched with one
+	 * request. Off by default, since a batch response has one entity tag for
+	 * the whole row, so batched tiles are cached without one and are never
+	 * revalidated.
+	 */
+	private static final int BATCH_SIZE = Math.max(1, Config.get("map.download.batchSize", 1));
 	/** Provides a pool of threads for concurrent downloading */
-	private ExecutorService pool = Executors.newCachedThreadPool(new MapThreadFactory("Tile Downloader"));
+	private final ThreadPoolExecutor pool = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS,
+		new SynchronousQueue<Runnable>(), new MapThreadFactory("Tile Downloader"));
+	/** Total tiles dropped from the schedule after being cancelled */
+	private int dropped = 0;
 	/** Tiles and destinations to download, head of list is next source to download */
 	private Map<String,Server> servers = new HashMap<String,Server>();
 	/** Total requests made so far */
@@ -73,6 +116,19 @@ public class DownloadManager {
 	
 	/** Request a tile be downloaded and sent to the indicated receiver. */
 	public synchronized void addDownload(MapRetriever receiver, MapTile mapTile) {
+		add(receiver, mapTile);
+	}
+	
+	/**
+	 * Request a tile be downloaded at low priority and stored in the
+	 * {@link CacheManager} by {@link TilePrefetcher}, using only spare download
+	 * slots. Cancelling the tile's request drops it if it has not started.
+	 */
+	public synchronized void addPrefetch(MapTile mapTile) {
+		add(null, mapTile);
+	}
+	
+	private void add(MapRetriever receiver, MapTile mapTile) {
 		// trigger a clean each time we get a new request
 		cleanupServers();
 		
@@ -95,7 +151,6 @@ public class DownloadManager {
 			if (src.source.equals(mapSource)) {
 				// if found, reuse it
 				source = src;
-				server.sources.remove(src);
 				break;
 			}
 		}
@@ -105,8 +160,14 @@ public class DownloadManager {
 			log.println(MessageFormat.format("Creating source {0}", source.hashCode()));
 		}
 		
-		// insert the Source at the head of the schedule
-		server.sources.add(0, source);
+		// insert the Source at the head of the schedule, or for prefetches,
+		// at the tail if it isn't already scheduled
+		if (receiver != null) {
+			server.sources.remove(source);
+			server.sources.add(0, source);
+		} else if (!server.sources.contains(source)) {
+			server.sources.add(source);
+		}
 		
 		// get or create tile, destroying stale tiles rather than join the wait
 		// since that case commonly never completes or times out after a very
@@ -124,8 +185,13 @@ public class DownloadManager {
 		log.println(MessageFormat.format("Tile {0} got request {1}", tile.hashCode(), mapTile.hashCode()));
 		
 		// add a tile for this server, and if we're under the parallelism
-		// limit, add a new thread for the server
-		if (server.futures.size() < mapServer.getMaxRequests()) {
+		// limit, add a new thread for the server; prefetches only start a
+		// thread when the server has none and few downloads are running
+		boolean startThread = server.futures.size() < mapServer.getMaxRequests();
+		if (receiver == null) {
+			startThread &= server.futures.isEmpty() && pool.getActiveCount() < PREFETCH_THREADS;
+		}
+		if (startThread) {
 			DownloadThread thread = new DownloadThread(server);
 			Future<?> future = pool.submit(thread);
 			server.futures.add(future);
@@ -202,12 +268,13 @@ public class DownloadManager {
 			try {
 				log.println(MessageFormat.format("Server {0} thread {1} starting", server.host, thread));
 				while(true) {
-					Tile tile = getNextTile(server);
-					if (tile == null) {
+					List<Tile> tiles = getNextTiles(server);
+					if (tiles == null) {
 						break;
 					} else {
-						log.println(MessageFormat.format("Server {0} thread {1} getting tile {2}", server.host, thread, tile.hashCode()));
-						processTile(tile);
+						log.println(MessageFormat.format("Server {0} thread {1} getting {2} tiles starting with {3}",
+							server.host, thread, tiles.size(), tiles.get(0).hashCode()));
+						processTiles(tiles);
 					}
 					synchronized(DownloadManager.this) {
 						server.lastUpdate = System.currentTimeMillis();
@@ -225,35 +292,55 @@ public class DownloadManager {
 	}
 	
 	/**
-	 * Synchronously gets the next tile, asynchronously downloads the tile,
-	 * synchronously cleans up after the tile and gets the list of receivers,
-	 * and asynchronously dispatches the tile to registered receivers.
+	 * Synchronously gets the next tiles, asynchronously downloads the tiles,
+	 * synchronously cleans up after the tiles and gets the list of receivers,
+	 * and asynchronously dispatches the tiles to registered receivers.
 	 * 
 	 * Called on a download pool thread.
 	 */
-	private void processTile(Tile tile) {
-		// if nothing needs this tile yet, then cleanup instead of downloading
-		boolean active;
+	private void processTiles(List<Tile> tiles) {
+		// if nothing needs a tile yet, then cleanup instead of downloading
+		List<Tile> active = new ArrayList<Tile>(tiles.size());
 		synchronized(this) {
-			active = tile.isTileActive();
-			if (! active) {
-				cleanup(tile);
+			for (Tile tile: tiles) {
+				if (tile.isTileActive()) {
+					active.add(tile);
+				} else {
+					cleanup(tile);
+				}
 			}
 		}
 		
-		if (active) {
+		if (!active.isEmpty()) {
 			long start = System.currentTimeMillis();
-			downloadTile(tile);
-			log.println(MessageFormat.format("Tile {0} downloaded in {1} ms", tile.hashCode(), System.currentTimeMillis()-start));
+			if (active.size() == 1 || !downloadBatch(active)) {
+				for (Tile tile: active) {
+					downloadTile(tile);
+				}
+			}
+			log.println(MessageFormat.format("{0} tiles starting with {1} downloaded in {2} ms",
+				active.size(), active.get(0).hashCode(), System.currentTimeMillis()-start));
 			
 			// synchronously clean up data structures AFTER downloading, to
 			// maximize the amount of time other requests have to join the
 			// receiver list
-			cleanup(tile);
+			for (Tile tile: active) {
+				cleanup(tile);
+			}
+		}
+		
+		for (Tile tile: tiles) {
+			respond(tile);
 		}
 		
-		// respond to each request by sending an empty tile if cancelled,
-		// otherwise copying the downloaded tile into the request tile
+		log.println(MessageFormat.format("Processed {0} requests and {1} responses", requests, responses));
+	}
+	
+	/**
+	 * Responds to each request by sending an empty tile if cancelled,
+	 * otherwise copying the downloaded tile into the request tile
+	 */
+	private void respond(Tile tile) {
 		log.println(MessageFormat.format("Tile {0} has {1} requests active", tile.hashCode(), tile.requests.size()));
 		for (Request req: tile.requests) {
 			if (req.tile.getRequest().isCancelled()) {
@@ -261,36 +348,129 @@ public class DownloadManager {
 			} else {
 				req.tile.setImage(tile.tile.getImage());
 				req.tile.setException(tile.tile.getException());
+				req.tile.setETag(tile.tile.getETag());
 			}
 			
 			log.println(MessageFormat.format("Sending tile {0} in response to request {1}", tile.hashCode(), req.tile.hashCode()));
-			req.receiver.downloadResponse(req.tile);
+			if (req.receiver == null) {
+				TilePrefetcher.downloadResponse(req.tile);
+			} else {
+				req.receiver.downloadResponse(req.tile);
+			}
 		}
-		
-		log.println(MessageFormat.format("Processed {0} requests and {1} responses", requests, responses));
 	}
 	
 	/**
-	 * Returns the first non-loading tile for this server, scheduling the
-	 * sources in round-robin fashion.
+	 * Returns the next tiles to process for this server, or null if there are
+	 * none. Cancelled tiles come first, since they are answered without
+	 * downloading, and then the first non-loading tile of the most urgent
+	 * priority, scheduling the sources in round-robin fashion. Prefetch tiles
+	 * are only returned when fewer than half of the server's slots are
+	 * prefetching. When batching is enabled, the waiting tiles to the right of
+	 * the chosen tile are returned with it.
 	 * 
 	 * Called on a download pool thread.
 	 */
-	private synchronized Tile getNextTile(Server server) {
-		// mark the first non-loading tile as loading, move the source to the
-		// tail of the schedule, and return the tile
+	private synchronized List<Tile> getNextTiles(Server server) {
+		Tile best = null;
+		MapRequest.Priority bestPriority = null;
 		for (Source source: server.sources) {
 			for (Tile tile: source.tiles.values()) {
-				if (! tile.loading) {
+				if (tile.loading) {
+					continue;
+				}
+				MapRequest.Priority priority = tile.getPriority();
+				if (priority == null) {
+					// everyone has lost interest, so drop it right away
 					tile.loading = true;
-					server.sources.remove(source);
-					server.sources.add(source);
-					return tile;
+					dropped ++;
+					log.println(MessageFormat.format("Dropping cancelled tile {0}, {1} dropped so far", tile.hashCode(), dropped));
+					return Collections.singletonList(tile);
+				}
+				if (bestPriority == null || priority.compareTo(bestPriority) < 0) {
+					best = tile;
+					bestPriority = priority;
+				}
+			}
+		}
+		if (best == null) {
+			// there are no tiles, or all tiles are loading
+			return null;
+		}
+		if (bestPriority == MapRequest.Priority.PREFETCH) {
+			int maxPrefetch = Math.max(1, best.source.source.getServer().getMaxRequests() / 2);
+			if (server.prefetching >= maxPrefetch) {
+				return null;
+			}
+			best.prefetchLoad = true;
+			server.prefetching ++;
+		}
+		// mark the tile as loading, move the source to the tail of the
+		// schedule, and return the tile
+		best.loading = true;
+		server.sources.remove(best.source);
+		server.sources.add(best.source);
+		List<Tile> tiles = new ArrayList<Tile>(BATCH_SIZE);
+		tiles.add(best);
+		if (BATCH_SIZE > 1 && best.source.source instanceof WMSMapSource) {
+			addRow(best, tiles);
+		}
+		return tiles;
+	}
+	
+	/**
+	 * Adds the waiting tiles immediately to the right of <code>first</code>
+	 * at the same scale, up to the batch size, marking each as loading.
+	 */
+	private void addRow(Tile first, List<Tile> tiles) {
+		MapRequest firstRequest = first.tile.getTileRequest();
+		int x = first.tile.getXtile();
+		while (tiles.size() < BATCH_SIZE) {
+			Tile next = null;
+			for (Tile tile: first.source.tiles.values()) {
+				MapRequest r = tile.tile.getTileRequest();
+				if (! tile.loading && tile.tile.getXtile() == x + 1 && tile.tile.getYtile() == first.tile.getYtile()
+						&& r.getPPD() == firstRequest.getPPD() && r.getProjection().equals(firstRequest.getProjection())
+						&& tile.getPriority() != null) {
+					next = tile;
+					break;
 				}
 			}
+			if (next == null) {
+				break;
+			}
+			next.loading = true;
+			tiles.add(next);
+			x++;
+		}
+	}
+	
+	/**
+	 * Downloads a row of adjacent tiles from a {@link WMSMapSource} with one
+	 * request, setting the image onto each tile. The tiles get no entity tag,
+	 * since the server's tag is for the whole row.
+	 * @return false if the batch failed and the tiles should be downloaded
+	 * one at a time.
+	 */
+	private boolean downloadBatch(List<Tile> tiles) {
+		WMSMapSource source = (WMSMapSource)tiles.get(0).source.source;
+		MapRequest[] row = new MapRequest[tiles.size()];
+		for (int i = 0; i < row.length; i++) {
+			row[i] = tiles.get(i).tile.getTileRequest();
+		}
+		try {
+			BufferedImage[] images = source.fetchTiles(row);
+			for (int i = 0; i < row.length; i++) {
+				tiles.get(i).tile.setImage(images[i]);
+				tiles.get(i).tile.setETag(null);
+				tiles.get(i).tile.setException(null);
+			}
+			return true;
+		} catch (Exception ex) {
+			log.println(MessageFormat.format("Batch of {0} tiles failed, fetching separately: {1}",
+				tiles.size(), ex.getMessage()));
+			return false;
 		}
-		// or return null if there are no tiles, or all tiles are loading
-		return null;
 	}
 	
 	/**
@@ -303,7 +483,15 @@ public class DownloadManager {
 			final MapRequest tileRequest = mapTile.getTileRequest();
 			for (int i = 0; i < DOWNLOAD_RETRIES; i++) {
 				try {
-					mapTile.setImage(tileRequest.getSource().fetchTile(tileRequest));
+					MapSource source = tileRequest.getSource();
+					if (source instanceof WMSMapSource) {
+						// keep the entity tag so the cached copy can be revalidated later
+						String[] etag = new String[1];
+						mapTile.setImage(((WMSMapSource)source).fetchTile(tileRequest, null, etag));
+						mapTile.setETag(etag[0]);
+					} else {
+						mapTile.setImage(source.fetchTile(tileRequest));
+					}
 					mapTile.setException(null);
 					break;
 				} catch (RetryableException re) {
@@ -331,6 +519,10 @@ public class DownloadManager {
 	 * Called on a download pool thread.
 	 */
 	private synchronized void cleanup(Tile tile) {
+		if (tile.prefetchLoad) {
+			tile.prefetchLoad = false;
+			tile.source.server.prefetching --;
+		}
 		tile.source.tiles.remove(tile.tile);
 		log.println(MessageFormat.format("Tile {0} removed from source {1}", tile.hashCode(), tile.source.hashCode()));
 		
@@ -350,6 +542,8 @@ public class DownloadManager {
 	/** Each server has a number of threads that pull tiles in round robin fashion from a list of sources */
 	private static class Server {
 		public int nextThreadID = 0;
+		/** Number of prefetch tiles currently downloading */
+		public int prefetching = 0;
 		public final List<Future<?>> futures = new LinkedList<Future<?>>();
 		public final String host;
 		public final List<Source> sources = new LinkedList<Source>();
@@ -393,11 +587,27 @@ public class DownloadManager {
 		public final Source source;
 		public final MapTile tile;
 		public boolean loading = false;
+		/** True if this tile was started as a prefetch */
+		public boolean prefetchLoad = false;
 		public final List<Request> requests = new LinkedList<Request>();
 		public Tile(Source source, MapTile tile) {
 			this.source = source;
 			this.tile = tile;
 		}
+		/**
+		 * Returns the most urgent priority of the requests that are still
+		 * active, or null if all have been canceled or there are no requests
+		 */
+		public MapRequest.Priority getPriority() {
+			MapRequest.Priority best = null;
+			for (Request req: requests) {
+				MapRequest r = req.tile.getRequest();
+				if (! r.isCancelled() && (best == null || r.getPriority().compareTo(best) < 0)) {
+					best = r.getPriority();
+				}
+			}
+			return best;
+		}
 		/**
 		 * Returns true if at least one request is still active, false if all
 		 * requests have been canceled or there are no requests
@@ -413,7 +623,8 @@ public class DownloadManager {
 	}
 	
 	/**
-	 * Pairs the map tile with the receiver of the results
+	 * Pairs the map tile with the receiver of the results, which is null for
+	 * prefetches
 	 */
 	private static class Request {
 		public final MapTile tile;
@@ -0,0 +1,48 @@
+package edu.asu.jmars.layer.map2;
+
+import java.awt.Rectangle;
+import java.awt.geom.Area;
+
+/**
+ * A Stage that can bring a previously created output up to date by processing
+ * only the parts of the input that have changed, rather than the whole image.
+ *
+ * {@link MapProcessor} keeps the output of each incremental stage between
+ * updates of a request, and for each update calls {@link #prepare} once and
+ * then {@link #processRegion} for each changed rectangle. The
+ * {@link Stage#process} method must still produce the same result for the
+ * whole image, since other callers use it directly.
+ */
+public interface IncrementalStage extends Stage {
+	/**
+	 * Returns the number of pixels around each output pixel that are read
+	 * from the input to compute it. Pointwise operations return 0.
+	 */
+	public int getHalo();
+
+	/**
+	 * Returns a new MapData holding a blank image of the right type for the
+	 * output of this stage given the input, with the same request as the
+	 * input.
+	 */
+	public MapData createOutput(MapData input);
+
+	/**
+	 * Called once per update before any regions are processed.
+	 * @param changedArea The area of the input that changed; stages whose
+	 * output depends on the whole input may grow this area.
+	 * @return A context object passed to each call to
+	 * {@link #processRegion}, or null if none is needed.
+	 */
+	public Object prepare(MapData input, Area changedArea);
+
+	/**
+	 * Writes the output pixels within <code>region</code>, reading input
+	 * pixels within <code>region</code> grown by {@link #getHalo()}. This
+	 * method must be safe to call concurrently for disjoint regions.
+	 * @param region The pixel rectangle to update, in the coordinates of both
+	 * images, which are always the same size.
+	 * @param context The value returned from {@link #prepare}.
+	 */
+	public void processRegion(MapData input, MapData output, Rectangle region, Object context);
+}
@@ -28,6 +28,7 @@ public class MapChannel {
 	private Rectangle2D extent;
 	private int ppd;
 	private Pipeline[] pipe;
+	private MapRequest.Priority priority = MapRequest.Priority.MAIN_VIEW;
 	/** MapSourceListeners may rely on being the first listener, so this should remain a list */
 	private List<MapChannelReceiver> receivers = new LinkedList<MapChannelReceiver>();
 	
@@ -69,6 +70,15 @@ public class MapChannel {
 		reprocess();
 	}
 	
+	/** Sets the download priority of requests made after this call */
+	public synchronized void setPriority(MapRequest.Priority priority) {
+		this.priority = priority;
+	}
+	
+	public synchronized MapRequest.Priority getPriority() {
+		return priority;
+	}
+	
 	private long sequence = 0;
 	private long startTime;
 	private MapRequest[] mapRequests = {};
@@ -90,7 +100,7 @@ public class MapChannel {
 			mapRequests = new MapRequest[pipe.length];
 			// create a new request+runner for each pipeline
 			for (int i = 0; i < pipe.length; i++) {
-				mapRequests[i] = new MapRequest(pipe[i].getSource(), extent, ppd, proj);
+				mapRequests[i] = new MapRequest(pipe[i].getSource(), extent, ppd, proj, priority);
 				new MapProcessor(mapRequests[i], pipe[i], i, this);
 			}
 		}
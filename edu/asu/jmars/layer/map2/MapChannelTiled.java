@@ -40,6 +40,7 @@ public class MapChannelTiled {
 	private ProjObj po;
 	private Rectangle2D extent;
 	private List<MapChannel> channels = new ArrayList<MapChannel>();
+	private MapRequest.Priority priority = MapRequest.Priority.MAIN_VIEW;
 	int channelCount;
 	
 	public ProjObj getProjection() {
@@ -74,6 +75,11 @@ public class MapChannelTiled {
 		this.receiver = receiver;
 	}
 	
+	/** Sets the download priority of the channels created by later calls to setRequest */
+	public synchronized void setPriority(MapRequest.Priority priority) {
+		this.priority = priority;
+	}
+	
 	public boolean isFinished() {
 		return channels.isEmpty();
 	}
@@ -111,6 +117,7 @@ public class MapChannelTiled {
 			channelCount = tiles.size();
 			for (final Point p: tiles) {
 				final MapChannel newChannel = new MapChannel();
+				newChannel.setPriority(priority);
 				log(MessageFormat.format("tile[{0},{1}] started", p.x, p.y));
 				newChannel.addReceiver(new MapChannelReceiver() {
 					public void mapChanged(MapData mapData) {
@@ -287,6 +287,19 @@ public final class MapData {
 		return getDeepCopyShell(image == null ? null : copyImage(image), nullPixel);
 	}
 	
+	/**
+	 * Returns a deep copy of this object that belongs to the given request,
+	 * which must describe the same extent, scale, and projection as the
+	 * request of this object.
+	 */
+	public synchronized MapData getDeepCopy(MapRequest newRequest) {
+		MapData md = new MapData(newRequest, image == null ? null : copyImage(image), nullPixel);
+		md.finished = isFinished();
+		md.finishedArea = (Area)getFinishedArea().clone();
+		md.fuzzyArea = (Area)getFuzzyArea().clone();
+		return md;
+	}
+	
 	/** Returns a new MapData object with clones of this MapData's properties, but the given image instead. */
 	public synchronized MapData getDeepCopyShell(BufferedImage image, double[] nullPixel) {
 		MapData md = new MapData(request, image, nullPixel);
@@ -296,13 +309,53 @@ public final class MapData {
 		return md;
 	}
 	
+	/**
+	 * Copies the finished flag and the finished and fuzzy areas from
+	 * <code>src</code>, leaving the image alone.
+	 */
+	public synchronized void copyStateFrom(MapData src) {
+		synchronized(src) {
+			finished = src.isFinished();
+			finishedArea = (Area)src.getFinishedArea().clone();
+			fuzzyArea = (Area)src.getFuzzyArea().clone();
+		}
+	}
+
+	/**
+	 * Brings this MapData up to date with <code>src</code> by copying only the
+	 * pixels within <code>region</code>, and then the state of <code>src</code>.
+	 * Both must have the same request and images of the same size and type.
+	 */
+	public synchronized void updateFrom(MapData src, Area region) {
+		synchronized(src) {
+			if (!region.isEmpty()) {
+				Rectangle2D extent = request.getExtent();
+				WritableRaster srcRaster = src.getImage().getRaster();
+				WritableRaster dstRaster = image.getRaster();
+				for (Rectangle2D rect: new PolyArea(region).getRectangles()) {
+					WritableRaster from = getRasterForWorld(srcRaster, extent, rect);
+					WritableRaster to = getRasterForWorld(dstRaster, extent, rect);
+					if (from != null && to != null) {
+						to.setRect(from);
+					}
+				}
+			}
+			copyStateFrom(src);
+		}
+	}
+
+	/** @return true if {@link #convertToCCM()} would return a converted copy */
+	public boolean needsCCMConversion() {
+		return image != null && !(image.getColorModel() instanceof ComponentColorModel);
+	}
+	
 	/**
 	 * Returns <code>this</code> if this image is null or already using
 	 * {@link ComponentColorModel}, otherwise returns a new MapData with a new
 	 * {@link BufferedImage} that does use a {@link ComponentColorModel}.
 	 */
 	public MapData convertToCCM() {
-		if (image == null || image.getColorModel() instanceof ComponentColorModel) {
+		if (!needsCCMConversion()) {
 			return this;
 		} else {
 			ColorModel srcCm = image.getColorModel();
@@ -476,7 +529,7 @@ public final class MapData {
 	private static final class IgnoreTest implements NullTest {
 		private final Raster raster;
 		private double[] ignore;
-		private double[] pixel;
+		private final ThreadLocal<double[]> pixel = new ThreadLocal<double[]>();
 		public IgnoreTest(BufferedImage bi, double[] ignore) {
 			// check for a match between non-alpha band count and ignore count
 			final int numColors = bi.getColorModel().getNumColorComponents();
@@ -496,12 +549,13 @@ public final class MapData {
 			this.ignore = ignore;
 		}
 		/**
-		 * This method is not thread safe and should be guarded by a lock
-		 * outside the loop over the x/y range being tested.
+		 * Uses a pixel buffer per thread, so stages may test disjoint regions
+		 * of the same image in parallel.
 		 * @return true if the given position in the image contains no data.
 		 */
 		public boolean isNull(int x, int y) {
-			pixel = raster.getPixel(x, y, pixel);
+			double[] pixel = raster.getPixel(x, y, this.pixel.get());
+			this.pixel.set(pixel);
 			for (int i = 0; i < ignore.length; i++) {
 				if (ignore[i] != pixel[i]) {
 					return false;
@@ -157,7 +157,9 @@ public class MapLView extends LView {
 				updateGraphicData(mapData);
 			}
 		};
-		return new MapChannelTiled(r);
+		MapChannelTiled ch = new MapChannelTiled(r);
+		ch.setPriority(getChild() != null ? MapRequest.Priority.MAIN_VIEW : MapRequest.Priority.PANNER);
+		return ch;
 	}
 	
 	/** Creates a new channel for the numeric part of the view */
@@ -167,7 +169,9 @@ public class MapLView extends LView {
 				updateNumericData(mapData);
 			}
 		};
-		return new MapChannelTiled(r);
+		MapChannelTiled ch = new MapChannelTiled(r);
+		ch.setPriority(MapRequest.Priority.CHART);
+		return ch;
 	}
 	
 	private void alog(String msg) {
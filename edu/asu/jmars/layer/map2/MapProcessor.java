@@ -1,6 +1,10 @@
 package edu.asu.jmars.layer.map2;
 
+import java.awt.Rectangle;
 import java.awt.geom.Area;
+import java.awt.geom.Rectangle2D;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
@@ -25,6 +29,16 @@ import edu.asu.jmars.util.PolyArea;
  * current processing is done, it starts processing the most recent update at
  * that point.
  * 
+ * The retrieved data and the output of each {@link IncrementalStage} are kept
+ * between updates, so that each update only copies and reprocesses the parts
+ * of the image that changed since the last one. The changed parts are split
+ * into tiles and processed in parallel by {@link TiledStageExecutor}.
+ * 
+ * Finished outputs of the inner stages are stored in {@link StageOutputCache}.
+ * When a new MapProcessor finds the output of some prefix of its pipeline
+ * there, it skips the MapRetriever and those stages entirely, and processes
+ * only the remaining stages once.
+ * 
  * MapProcessor's single constructor sets the MapRetriever's receiver to itself
  * as the very last step, which is vital since once that hook is completed, the
  * MapRetreiver could send data back at any moment.
@@ -32,18 +46,27 @@ import edu.asu.jmars.util.PolyArea;
 public final class MapProcessor implements Runnable {
 	static ExecutorService pool;
 	private static final DebugLog log = DebugLog.instance();
-	static void dbgmsg(MapChannel c, MapRequest r, String msg) {
-		synchronized(log) {
-			log.println("Channel " + (c==null?"null":""+c.hashCode())
-				+ " request " + r.hashCode() + ": "
-				+ msg);
-		}
+	static void dbgmsg(final MapChannel c, final MapRequest r, final String msg) {
+		// the message is only built if it will be printed
+		log.println(new DebugLog.Message() {
+			public String get() {
+				return "Channel " + (c==null?"null":""+c.hashCode())
+					+ " request " + r.hashCode() + ": "
+					+ msg;
+			}
+		});
 	}
 	
 	private final Pipeline pipe;
 	private final int pipeIndex;
 	private final MapChannel destination;
 	private final MapRetriever myRetriever;
+	/** Cache keys for the output of each stage, null where not cacheable */
+	private final StageOutputCache.Key[] stageKeys;
+	/** Output of the longest cached prefix of the pipeline, or null to process retrieved data */
+	private MapData cachedInput;
+	/** Index of the first stage to process the cached input */
+	private int cachedStart;
 	
 	private volatile boolean requestFinished;
 	private volatile boolean pendingUpdate;
@@ -54,7 +77,21 @@ public final class MapProcessor implements Runnable {
 		this.pipeIndex = pipelineIndex;
 		this.destination = channel;
 		this.myRetriever = new MapRetriever(request);
-		this.myRetriever.setReceiver(this);
+		Stage[] stages = pipe == null ? new Stage[0] : pipe.getProcessing();
+		this.stageKeys = StageOutputCache.getKeys(request, stages);
+		for (int i = stages.length - 2; i >= 0 && cachedInput == null; i--) {
+			if (stageKeys[i] != null) {
+				cachedInput = StageOutputCache.get(stageKeys[i], request);
+				cachedStart = i + 1;
+			}
+		}
+		if (cachedInput != null) {
+			dbgmsg(channel, request, "reusing cached output of " + cachedStart + " stages");
+			pendingUpdate = true;
+			queueProcessing();
+		} else {
+			this.myRetriever.setReceiver(this);
+		}
 	}
 	
 	public MapChannel getChannel() {
@@ -92,14 +129,29 @@ public final class MapProcessor implements Runnable {
 	
 	private PolyArea lastFinalArea = new PolyArea();
 	private PolyArea lastFuzzyArea = new PolyArea();
+	/** Our own copy of the retrieved data, brought up to date on each update */
+	private MapData retrievedCopy;
+	/** The last output of each incremental stage, by stage index */
+	private MapData[] stageOutputs;
+	/** Outputs handed to {@link StageOutputCache}, which must not be sent on as-is */
+	private final List<MapData> cachedOutputs = new ArrayList<MapData>();
 	
 	public void run() {
 		MapData retrievedData;
 		
 		pendingUpdate = false;
 		
-		// completely duplicate the current state, at the last possible moment
-		MapData result = retrievedData = myRetriever.getData();
+		int firstStage = 0;
+		if (cachedInput != null) {
+			// start from the cached output, which is already finished
+			retrievedData = cachedInput;
+			firstStage = cachedStart;
+			cachedInput = null;
+		} else {
+			// update our copy of the current state, at the last possible moment
+			retrievedData = retrievedCopy = myRetriever.getData(retrievedCopy);
+		}
+		MapData result = retrievedData;
 		
 		if (result.isFinished()) {
 			requestFinished = true;
@@ -120,7 +172,10 @@ public final class MapProcessor implements Runnable {
 			// process all of the stages
 			dbgmsg(destination, request, "starting processing");
 			Stage[] stages = pipe.getProcessing();
-			for (int i = 0; i < stages.length; i++) {
+			if (stageOutputs == null || stageOutputs.length != stages.length) {
+				stageOutputs = new MapData[stages.length];
+			}
+			for (int i = firstStage; i < stages.length; i++) {
 				try {
 					if (i == (stages.length-1)){
 						synchronized(stages[i]){
@@ -129,6 +184,9 @@ public final class MapProcessor implements Runnable {
 								result = result.getDeepCopy();
 						}
 					}
+					else if (stages[i] instanceof IncrementalStage) {
+						result = processIncremental(i, (IncrementalStage)stages[i], result, changedArea);
+					}
 					else {
 						result = stages[i].process(0, result, changedArea);
 					}
@@ -136,6 +194,11 @@ public final class MapProcessor implements Runnable {
 					if (result == null) {
 						throw new IllegalStateException("Stage returned null");
 					}
+					
+					if (stageKeys[i] != null && result.isFinished() && !request.isCancelled()) {
+						StageOutputCache.put(stageKeys[i], result);
+						cachedOutputs.add(result);
+					}
 				} catch (Exception e) {
 					log.aprintln("Error in processing stage " +
 						stages[i].getClass().getName() +
@@ -147,6 +210,11 @@ public final class MapProcessor implements Runnable {
 				}
 			}
 			dbgmsg(destination, request, "finished processing");
+			
+			// a pass-through final stage would hand off data we will update in place
+			if (result != null && isRetained(result)) {
+				result = result.getDeepCopy();
+			}
 		} else {
 			dbgmsg(destination, request, "no image, skipping processing");
 		}
@@ -159,6 +227,81 @@ public final class MapProcessor implements Runnable {
 		queueProcessing();
 	}
 	
+	/** @return true if the given data is kept by this processor or the stage output cache */
+	private boolean isRetained(MapData data) {
+		if (data == retrievedCopy || cachedOutputs.contains(data)) {
+			return true;
+		}
+		for (MapData out: stageOutputs) {
+			if (data == out) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Updates the retained output of the given incremental stage with just the
+	 * changed parts of the input, creating and filling the whole output on the
+	 * first pass. On return the changed area has been grown by the stage's halo.
+	 */
+	private MapData processIncremental(int index, IncrementalStage stage, MapData input, Area changedArea) {
+		int w = input.getImage().getWidth();
+		int h = input.getImage().getHeight();
+		Rectangle bounds = new Rectangle(0, 0, w, h);
+		Object context = stage.prepare(input, changedArea);
+		
+		MapData output = stageOutputs[index];
+		List<Rectangle> regions;
+		if (output == null || output.getImage().getWidth() != w || output.getImage().getHeight() != h) {
+			output = stageOutputs[index] = stage.createOutput(input);
+			regions = new ArrayList<Rectangle>();
+			regions.add(bounds);
+			changedArea.reset();
+			changedArea.add(new Area(input.getRequest().getExtent()));
+		} else {
+			regions = getChangedRegions(input, changedArea, stage.getHalo());
+		}
+		
+		TiledStageExecutor.process(stage, input, output, regions, context);
+		output.copyStateFrom(input);
+		return output;
+	}
+	
+	/**
+	 * Converts the changed area into pixel rectangles grown by the given halo
+	 * and clipped to the image, and grows the changed area to match.
+	 */
+	static List<Rectangle> getChangedRegions(MapData data, Area changedArea, int halo) {
+		Rectangle2D extent = data.getRequest().getExtent();
+		int w = data.getImage().getWidth();
+		int h = data.getImage().getHeight();
+		Rectangle bounds = new Rectangle(0, 0, w, h);
+		double haloX = halo * extent.getWidth() / w;
+		double haloY = halo * extent.getHeight() / h;
+		List<Rectangle> regions = new ArrayList<Rectangle>();
+		Area grown = new Area();
+		for (Rectangle2D rect: new PolyArea(changedArea).getRectangles()) {
+			Rectangle r = MapData.getRasterBoundsForWorld(data.getImage().getRaster(), extent, rect);
+			r.grow(halo, halo);
+			r = r.intersection(bounds);
+			if (!r.isEmpty()) {
+				regions.add(r);
+			}
+			if (halo > 0) {
+				grown.add(new Area(new Rectangle2D.Double(
+					rect.getMinX() - haloX, rect.getMinY() - haloY,
+					rect.getWidth() + 2*haloX, rect.getHeight() + 2*haloY)));
+			}
+		}
+		if (halo > 0) {
+			grown.intersect(new Area(extent));
+			changedArea.reset();
+			changedArea.add(grown);
+		}
+		return regions;
+	}
+	
 	/**
 	 * Should be called after the last map2 layer is removed to release
 	 * resources (e.g. thread pools)
@@ -169,5 +312,7 @@ public final class MapProcessor implements Runnable {
 			pool.shutdownNow();
 			pool = null;
 		}
+		TiledStageExecutor.close();
+		StageOutputCache.clear();
 	}
 }
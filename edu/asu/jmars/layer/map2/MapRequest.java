@@ -14,16 +14,53 @@ import edu.asu.jmars.util.DebugLog;
  * The source, worldExtent, ppd, and projection properties are immutable.
  * 
  * Other portions of the code rely on this immutability, so this MUST not change.
+ * 
+ * The priority is also fixed, and orders the downloads of tiles for this
+ * request against those of other requests. A request derived from another
+ * with {@link #MapRequest(MapRequest, int)} shares its priority and is
+ * cancelled along with it.
  */
 public class MapRequest {
 	private static final DebugLog log = DebugLog.instance();
+	
+	/** Download priorities, from most to least urgent */
+	public static enum Priority {
+		/** Data shown in the main view */
+		MAIN_VIEW,
+		/** Data shown in the panner */
+		PANNER,
+		/** Data sampled for charts, plots, and other tools */
+		CHART,
+		/** Data nobody is waiting for yet */
+		PREFETCH
+	}
+	
 	private final MapSource source;
 	private final Rectangle2D worldExtent;
 	private final int ppd;
 	private final ProjObj projection;
-	private boolean cancelled = false;
+	private final Priority priority;
+	private final MapRequest parent;
+	private volatile boolean cancelled = false;
 	
 	public MapRequest(MapSource newSource, Rectangle2D newExtent, int newScale, ProjObj newProjection) {
+		this(newSource, newExtent, newScale, newProjection, Priority.MAIN_VIEW);
+	}
+	
+	/**
+	 * Creates a request for the same source, extent, and projection as
+	 * <code>parent</code> but at a different scale, with the same priority,
+	 * that is cancelled whenever the parent is.
+	 */
+	public MapRequest(MapRequest parent, int newScale) {
+		this(parent.source, parent.worldExtent, newScale, parent.projection, parent.priority, parent);
+	}
+	
+	public MapRequest(MapSource newSource, Rectangle2D newExtent, int newScale, ProjObj newProjection, Priority newPriority) {
+		this(newSource, newExtent, newScale, newProjection, newPriority, null);
+	}
+	
+	private MapRequest(MapSource newSource, Rectangle2D newExtent, int newScale, ProjObj newProjection, Priority newPriority, MapRequest newParent) {
 		if (newSource == null) {
 			throw new IllegalArgumentException("Map source is null");
 		}
@@ -43,6 +80,8 @@ public class MapRequest {
 		source = newSource;
 		ppd = newScale;
 		projection = newProjection;
+		priority = newPriority;
+		parent = newParent;
 	}
 	
 	public MapSource getSource() {
@@ -50,7 +89,7 @@ public class MapRequest {
 	}
 	
 	public String toString() {
-		return "MapRequest [" + source + ", " + worldExtent + ", PPD [" + ppd + "], " + (cancelled?", cancelled":"");
+		return "MapRequest [" + source + ", " + worldExtent + ", PPD [" + ppd + "], " + priority + (isCancelled()?", cancelled":"");
 	}
 	private static final class RORectangle extends Rectangle2D.Double {
 		public void setRect(Rectangle2D r) {
@@ -84,6 +123,10 @@ public class MapRequest {
 		return projection;
 	}
 	
+	public Priority getPriority() {
+		return priority;
+	}
+	
 	/** Calculates and returns a new Dimension object with the size of an image necessary to hold the data this request represents */
 	public Dimension getImageSize() {
 		int w = (int)Math.ceil(worldExtent.getWidth()*ppd);
@@ -98,7 +141,7 @@ public class MapRequest {
 	}
 	
 	public boolean isCancelled() {
-		return cancelled;
+		return cancelled || (parent != null && parent.isCancelled());
 	}
 	
 	public int hashCode() {
@@ -1,6 +1,7 @@
 package edu.asu.jmars.layer.map2;
 
 import java.awt.Point;
+import java.awt.geom.Area;
 import java.awt.geom.Point2D;
 import java.awt.geom.Rectangle2D;
 import java.awt.image.BufferedImage;
@@ -48,7 +49,7 @@ public class MapRetriever implements Runnable {
 		if (request.getSource().getMaxPPD() < request.getPPD()) {
 			// request data at not more than twice the resolution of the dataset
 			int maxPPD = 1 << Math.max(0, (int)Math.ceil(Math.log(request.getSource().getMaxPPD()) / Math.log(2)));
-			request = new MapRequest(request.getSource(), request.getExtent(), maxPPD, request.getProjection());
+			request = new MapRequest(request, maxPPD);
 		}
 		
 		fetchedData = new MapData(request);
@@ -69,7 +70,9 @@ public class MapRetriever implements Runnable {
 	 * Step 4: When CacheManager done, if not all cached tiles were retrieved, request them from DLManager
 	 * Step 5: When DownloadManager done, send any successfully downloaded tiles to CacheManager so they
 	 *    can be written to disk
-	 * Step 6: Profit
+	 * Step 6: When all tiles are done, ask TilePrefetcher to fetch the tiles
+	 *    around this request in the background
+	 * Step 7: Profit
 	 * 
 	 */
 	
@@ -117,6 +120,8 @@ public class MapRetriever implements Runnable {
 		
 		MapTile tiles[]=getIncompleteTiles();
 		
+		TilePrefetcher.recordRequests(requestTiles);
+		
 		MapTile checkedTiles[][]=CacheManager.checkCache(tiles);
 		MapTile cachedTiles[]=checkedTiles[0];
 		MapTile nonCachedTiles[]=checkedTiles[1];
@@ -184,6 +189,29 @@ public class MapRetriever implements Runnable {
 		}
 	}
 	
+	/**
+	 * Receives the fuzzy images for several tiles at once, sending a single
+	 * update for all of them. Null images are skipped.
+	 */
+	public synchronized void fuzzyResponses(MapTile[] tiles, BufferedImage[] images) {
+		if (originalRequest.isCancelled()) {
+			return;
+		}
+		
+		boolean changed = false;
+		for (int i = 0; i < tiles.length; i++) {
+			if (images[i] != null && nonCachedMapTiles.contains(tiles[i])) {
+				tiles[i].setFuzzyImage(images[i]);
+				fetchedData.addTile(tiles[i]);
+				changed = true;
+			}
+		}
+		
+		if (changed) {
+			sendUpdate();
+		}
+	}
+	
 	public synchronized void downloadResponse(MapTile tile) {
 		if (tile.getRequest().isCancelled()) {
 			log.println("Received cancelled downloaded response");
@@ -234,6 +262,29 @@ public class MapRetriever implements Runnable {
 		return out;
 	}
 	
+	/**
+	 * Updates a MapData previously returned from this method or from
+	 * {@link #getData()} with the pixels that may have changed since, which
+	 * is everything valid that was not already finished in
+	 * <code>previous</code>. Falls back to returning a full copy from
+	 * {@link #getData()} when the previous data is null or the retrieved data
+	 * must be converted to fit the original request.
+	 */
+	public synchronized MapData getData(MapData previous) {
+		BufferedImage image = fetchedData.getImage();
+		if (previous == null || previous.getImage() == null || image == null
+				|| !fetchedData.getRequest().equals(originalRequest)
+				|| fetchedData.needsCCMConversion()
+				|| previous.getImage().getWidth() != image.getWidth()
+				|| previous.getImage().getHeight() != image.getHeight()) {
+			return getData();
+		}
+		Area changed = fetchedData.getValidArea();
+		changed.subtract(previous.getFinishedArea());
+		previous.updateFrom(fetchedData, changed);
+		return previous;
+	}
+
 	public MapRequest getRequest() {
 		return originalRequest;
 	}
@@ -260,6 +311,11 @@ public class MapRetriever implements Runnable {
 		}
 		
 		receiver.receiveUpdate();
+		
+		if (finishedDataSent) {
+			// the view is complete, so use the idle download slots to fetch around it
+			TilePrefetcher.prefetch(fetchedData.getRequest(), receiver.getChannel(), dman);
+		}
 	}
 	
 	public void run() {
@@ -11,6 +11,7 @@ public final class MapTile {
 	private BufferedImage image;
 	private BufferedImage fuzzyImage;
 	private Exception exception=null;
+	private String etag;
 	
 	public boolean equals(Object o) {
 		if (o instanceof MapTile) {
@@ -91,6 +92,16 @@ public final class MapTile {
 		return exception!=null;
 	}
 	
+	/** Sets the entity tag the server sent with the image, or null if it sent none */
+	public void setETag(String etag) {
+		this.etag = etag;
+	}
+	
+	/** @return the entity tag the server sent with the image, or null */
+	public String getETag() {
+		return etag;
+	}
+	
 	public MapRequest getTileRequest() {
 		return tileRequest;
 	}
@@ -0,0 +1,336 @@
+package edu.asu.jmars.layer.map2;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import edu.asu.jmars.util.DebugLog;
+
+/**
+ * Stores all of the encoded tiles for one map source, projection, and ppd in
+ * a single file, so that the disk cache costs one inode per pyramid level
+ * instead of one per tile.
+ *
+ * The file is a fixed header followed by an append-only sequence of records,
+ * each of which is the tile x and y index, the payload length, and the
+ * payload bytes. The record offsets are indexed in memory when the file is
+ * opened, so checking for a tile never touches the disk. Reads are
+ * positional reads of the channel, so any number may run at once, files may
+ * grow past 2 GB, and no mapping keeps the file from being deleted on
+ * Windows.
+ *
+ * Each pack is guarded by an exclusive lock on a ".lock" file beside it,
+ * held until {@link #close()}, so a second JMARS sharing the cache directory
+ * fails to open the pack instead of appending to it behind this one's index.
+ *
+ * Rewriting a tile appends a new record and leaves the old one as garbage;
+ * {@link #compact()} writes the live records to a ".tmp" file and moves it
+ * over the pack, so the old pack stays intact until the move succeeds. A
+ * ".tmp" file left without its pack by a crash is recovered on open. Running
+ * this class as a program compacts every pack file under the given
+ * directories.
+ *
+ * Instances are thread safe.
+ */
+public class PackedTileStore {
+	private static final DebugLog log = DebugLog.instance();
+
+	public static final String EXTENSION = ".pack";
+	private static final byte[] MAGIC = {'J','M','T','P','A','C','K','1'};
+	private static final int RECORD_HEADER = 12;
+	public static final String LOCK_EXTENSION = ".lock";
+
+	private final File file;
+	private final File lockFile;
+	private final RandomAccessFile lockRaf;
+	private final FileLock lock;
+	private RandomAccessFile raf;
+	private FileChannel channel;
+	/**
+	 * Held for reading while a tile is read from the channel, and for writing
+	 * while the channel is replaced or closed, so reads never see it closed
+	 * under them. Always taken before this object's monitor.
+	 */
+	private final ReadWriteLock channelLock = new ReentrantReadWriteLock();
+	/** Maps tile key to the offset of its payload; the length is stored alongside */
+	private final Map<Long,long[]> index = new HashMap<Long,long[]>();
+	private long end;
+	private long garbage;
+
+	/**
+	 * Opens or creates the pack file, indexing any existing records
+	 * @throws IOException if the file can't be read, or another process has
+	 * it open
+	 */
+	public PackedTileStore(File file) throws IOException {
+		this.file = file;
+		File parent = file.getParentFile();
+		if (parent != null) {
+			parent.mkdirs();
+		}
+		lockFile = new File(file.getPath() + LOCK_EXTENSION);
+		lockRaf = new RandomAccessFile(lockFile, "rw");
+		FileLock held = null;
+		try {
+			held = lockRaf.getChannel().tryLock();
+		} catch (OverlappingFileLockException e) {
+			// already open elsewhere in this process
+		}
+		lock = held;
+		if (lock == null) {
+			lockRaf.close();
+			throw new IOException("Tile pack is in use by another process: " + file);
+		}
+		try {
+			open();
+		} catch (IOException e) {
+			releaseLock();
+			throw e;
+		}
+	}
+
+	private File tmpFile() {
+		return new File(file.getPath() + ".tmp");
+	}
+
+	private void open() throws IOException {
+		File tmp = tmpFile();
+		if (!file.exists() && tmp.exists()) {
+			log.aprintln("Recovering tile pack " + file + " from an interrupted compaction");
+			Files.move(tmp.toPath(), file.toPath());
+		}
+		raf = new RandomAccessFile(file, "rw");
+		channel = raf.getChannel();
+		if (raf.length() == 0) {
+			raf.write(MAGIC);
+		} else {
+			byte[] magic = new byte[MAGIC.length];
+			raf.seek(0);
+			raf.readFully(magic);
+			if (!Arrays.equals(magic, MAGIC)) {
+				throw new IOException("Not a tile pack file: " + file);
+			}
+		}
+		end = MAGIC.length;
+		index.clear();
+		garbage = 0;
+		long length = raf.length();
+		while (end + RECORD_HEADER <= length) {
+			raf.seek(end);
+			int x = raf.readInt();
+			int y = raf.readInt();
+			int len = raf.readInt();
+			if (len < 0 || end + RECORD_HEADER + len > length) {
+				break;
+			}
+			long[] old = index.put(key(x, y), new long[]{end + RECORD_HEADER, len});
+			if (old != null) {
+				garbage += RECORD_HEADER + old[1];
+			}
+			end += RECORD_HEADER + len;
+		}
+		if (end != length) {
+			// a write was interrupted, drop the partial record
+			log.println("Truncating " + (length - end) + " trailing bytes from " + file);
+			raf.setLength(end);
+		}
+	}
+
+	private static Long key(int x, int y) {
+		return ((long)x << 32) | (y & 0xffffffffL);
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/** @return true if a tile has been stored at the given tile indices. */
+	public synchronized boolean contains(int x, int y) {
+		return index.containsKey(key(x, y));
+	}
+
+	/** @return the number of distinct tiles in this file. */
+	public synchronized int size() {
+		return index.size();
+	}
+
+	/** @return the number of bytes held by records that have since been rewritten. */
+	public synchronized long getGarbageBytes() {
+		return garbage;
+	}
+
+	/**
+	 * @return the stored payload for the given tile indices, or null if no
+	 * tile has been stored there.
+	 */
+	public byte[] get(int x, int y) throws IOException {
+		channelLock.readLock().lock();
+		try {
+			long[] loc;
+			FileChannel ch;
+			synchronized(this) {
+				loc = index.get(key(x, y));
+				if (loc == null) {
+					return null;
+				}
+				ch = channel;
+			}
+			// records are never changed once written, so only the channel must be held
+			ByteBuffer buf = ByteBuffer.allocate((int)loc[1]);
+			long pos = loc[0];
+			while (buf.hasRemaining()) {
+				int n = ch.read(buf, pos);
+				if (n < 0) {
+					throw new EOFException("Tile record past the end of " + file);
+				}
+				pos += n;
+			}
+			return buf.array();
+		} finally {
+			channelLock.readLock().unlock();
+		}
+	}
+
+	/** Appends the payload as the new contents of the given tile. */
+	public synchronized void put(int x, int y, byte[] data) throws IOException {
+		ByteBuffer buf = ByteBuffer.allocate(RECORD_HEADER + data.length);
+		buf.putInt(x).putInt(y).putInt(data.length).put(data);
+		buf.flip();
+		long pos = end;
+		while (buf.hasRemaining()) {
+			pos += channel.write(buf, pos);
+		}
+		long[] old = index.put(key(x, y), new long[]{end + RECORD_HEADER, data.length});
+		if (old != null) {
+			garbage += RECORD_HEADER + old[1];
+		}
+		end = pos;
+	}
+
+	/**
+	 * Rewrites the file with only the most recent record for each tile. The
+	 * store remains usable afterward, and is left unchanged if the compacted
+	 * copy can't replace it. Reads wait until this finishes.
+	 */
+	public void compact() throws IOException {
+		channelLock.writeLock().lock();
+		try {
+			synchronized(this) {
+				if (garbage == 0) {
+					return;
+				}
+				File tmp = tmpFile();
+				tmp.delete();
+				PackedTileStore out = new PackedTileStore(tmp);
+				try {
+					for (Long k: index.keySet()) {
+						long[] loc = index.get(k);
+						byte[] data = new byte[(int)loc[1]];
+						raf.seek(loc[0]);
+						raf.readFully(data);
+						out.put((int)(k >> 32), (int)(long)k, data);
+					}
+				} finally {
+					out.close();
+				}
+				// the lock file stays locked while the pack itself is replaced,
+				// and the pack is closed first since Windows can't replace an open file
+				channel.close();
+				raf.close();
+				try {
+					try {
+						Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+					} catch (AtomicMoveNotSupportedException e) {
+						Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+					}
+				} catch (IOException e) {
+					tmp.delete();
+					open();
+					throw new IOException("Unable to replace " + file + " with compacted copy", e);
+				}
+				open();
+			}
+		} finally {
+			channelLock.writeLock().unlock();
+		}
+	}
+
+	/** Releases the file handle and lock; the store may not be used after this. */
+	public void close() throws IOException {
+		channelLock.writeLock().lock();
+		try {
+			synchronized(this) {
+				try {
+					channel.close();
+					raf.close();
+				} finally {
+					releaseLock();
+				}
+			}
+		} finally {
+			channelLock.writeLock().unlock();
+		}
+	}
+
+	private void releaseLock() throws IOException {
+		try {
+			lock.release();
+		} finally {
+			lockRaf.close();
+			lockFile.delete();
+		}
+	}
+
+	/** Compacts every pack file found under each of the given directories. */
+	public static void main(String[] args) throws IOException {
+		if (args.length == 0) {
+			System.err.println("Usage: PackedTileStore <cache dir> [<cache dir> ...]");
+			System.exit(1);
+		}
+		for (String dir: args) {
+			compactAll(new File(dir));
+		}
+	}
+
+	private static void compactAll(File dir) throws IOException {
+		File[] files = dir.listFiles(new FileFilter() {
+			public boolean accept(File f) {
+				return f.isDirectory() || f.getName().endsWith(EXTENSION);
+			}
+		});
+		if (files == null) {
+			return;
+		}
+		for (File f: files) {
+			if (f.isDirectory()) {
+				compactAll(f);
+			} else {
+				PackedTileStore store;
+				try {
+					store = new PackedTileStore(f);
+				} catch (EOFException e) {
+					System.err.println("Skipping truncated file " + f);
+					continue;
+				}
+				long before = f.length();
+				store.compact();
+				store.close();
+				System.out.println(f + ": " + before + " -> " + f.length() + " bytes");
+			}
+		}
+	}
+}
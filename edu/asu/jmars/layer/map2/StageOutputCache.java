@@ -0,0 +1,196 @@
+package edu.asu.jmars.layer.map2;
+
+import java.awt.geom.Point2D;
+import java.awt.geom.Rectangle2D;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import edu.asu.jmars.ProjObj;
+import edu.asu.jmars.util.Config;
+import edu.asu.jmars.util.DebugLog;
+
+/**
+ * Keeps the finished output of the inner stages of recently processed
+ * pipelines, so that a {@link MapProcessor} for the same request can start
+ * after the longest chain of stages whose settings have not changed.
+ *
+ * Each entry is keyed by the map source, extent, scale, and projection of the
+ * request, and by the class, settings object, and settings version of each
+ * stage up to and including the one that produced it. Changing the colors of
+ * a stretch stage therefore reuses the shaded relief computed below it, and
+ * panning back to a previous view reuses everything but the final composite.
+ *
+ * The cache holds up to a fixed number of bytes of raster data, evicting the
+ * least recently used outputs first. Outputs computed while the settings of
+ * their stages changed are not stored.
+ */
+final class StageOutputCache {
+	private static final DebugLog log = DebugLog.instance();
+	private static final long MAX_BYTES = 1024L * 1024L *
+		Config.get("map.processor.stageCacheMB", (int)(Runtime.getRuntime().maxMemory() / 16 / (1024*1024)));
+
+	private static final LinkedHashMap<Key,Entry> entries = new LinkedHashMap<Key,Entry>(16, 0.75f, true);
+	private static long sizeBytes;
+	private static long hits;
+	private static long misses;
+
+	private StageOutputCache() {
+	}
+
+	/**
+	 * Returns the cache key for the output of each stage of the pipeline when
+	 * processing the given request. Entries are null from the first stage
+	 * whose output cannot be cached, and the final stage is never cached.
+	 */
+	static Key[] getKeys(MapRequest request, Stage[] stages) {
+		Key[] keys = new Key[stages.length];
+		Object[] chain = new Object[0];
+		for (int i = 0; i < stages.length - 1; i++) {
+			StageSettings settings = stages[i].getSettings();
+			if (stages[i].getInputCount() != 1 || !(settings instanceof AbstractStageSettings)) {
+				break;
+			}
+			chain = Arrays.copyOf(chain, chain.length + 3);
+			chain[chain.length-3] = stages[i].getClass();
+			chain[chain.length-2] = new Identity(settings);
+			chain[chain.length-1] = ((AbstractStageSettings)settings).getVersion();
+			keys[i] = new Key(request, chain);
+		}
+		return keys;
+	}
+
+	/**
+	 * Returns a copy of the cached output for the given key bound to the given
+	 * request, or null if there is none.
+	 */
+	static MapData get(Key key, MapRequest request) {
+		Entry e;
+		synchronized(entries) {
+			e = entries.get(key);
+			if (e == null) {
+				misses ++;
+				return null;
+			}
+			hits ++;
+		}
+		return e.data.getDeepCopy(request);
+	}
+
+	/**
+	 * Stores a finished stage output. The caller must not modify the data
+	 * afterward. Outputs larger than the whole cache are not stored.
+	 */
+	static void put(Key key, MapData data) {
+		if (data.getImage() == null || !data.isFinished() || !key.isCurrent()) {
+			return;
+		}
+		Entry e = new Entry(data);
+		if (e.bytes > MAX_BYTES) {
+			return;
+		}
+		synchronized(entries) {
+			Entry old = entries.put(key, e);
+			if (old != null) {
+				sizeBytes -= old.bytes;
+			}
+			sizeBytes += e.bytes;
+			Iterator<Entry> it = entries.values().iterator();
+			while (sizeBytes > MAX_BYTES && it.hasNext()) {
+				sizeBytes -= it.next().bytes;
+				it.remove();
+			}
+		}
+	}
+
+	/** Removes every output computed from the given map source. */
+	static void removeSource(MapSource source) {
+		synchronized(entries) {
+			for (Iterator<Map.Entry<Key,Entry>> it = entries.entrySet().iterator(); it.hasNext(); ) {
+				Map.Entry<Key,Entry> me = it.next();
+				if (me.getKey().source.equals(source)) {
+					sizeBytes -= me.getValue().bytes;
+					it.remove();
+				}
+			}
+		}
+	}
+
+	/** Removes every output. */
+	static void clear() {
+		synchronized(entries) {
+			entries.clear();
+			sizeBytes = 0;
+			log.println("Stage output cache cleared after " + hits + " hits and " + misses + " misses");
+		}
+	}
+
+	private static final class Entry {
+		final MapData data;
+		final long bytes;
+		Entry(MapData data) {
+			this.data = data;
+			this.bytes = TileMemoryCache.sizeOf(data.getImage());
+		}
+	}
+
+	/** Compares settings objects by identity, since their state is in the version */
+	private static final class Identity {
+		final Object o;
+		Identity(Object o) {
+			this.o = o;
+		}
+		public boolean equals(Object other) {
+			return other instanceof Identity && ((Identity)other).o == o;
+		}
+		public int hashCode() {
+			return System.identityHashCode(o);
+		}
+	}
+
+	/** Describes one stage output; immutable once created */
+	static final class Key {
+		final MapSource source;
+		final Point2D offset;
+		final double[] ignore;
+		final Rectangle2D extent;
+		final int ppd;
+		final ProjObj proj;
+		final Object[] chain;
+		private final int hash;
+		Key(MapRequest request, Object[] chain) {
+			source = request.getSource();
+			offset = (Point2D)source.getOffset().clone();
+			ignore = source.getIgnoreValue() == null ? null : source.getIgnoreValue().clone();
+			extent = (Rectangle2D)request.getExtent().clone();
+			ppd = request.getPPD();
+			proj = request.getProjection();
+			this.chain = chain;
+			hash = ((source.hashCode() * 31 + extent.hashCode()) * 31 + ppd) * 31 + Arrays.hashCode(chain);
+		}
+		public int hashCode() {
+			return hash;
+		}
+		/** @return true if no settings in the chain have changed since this key was created */
+		boolean isCurrent() {
+			for (int i = 0; i < chain.length; i += 3) {
+				AbstractStageSettings settings = (AbstractStageSettings)((Identity)chain[i+1]).o;
+				if (settings.getVersion() != ((Long)chain[i+2]).longValue()) {
+					return false;
+				}
+			}
+			return true;
+		}
+		public boolean equals(Object o) {
+			if (!(o instanceof Key)) {
+				return false;
+			}
+			Key k = (Key)o;
+			return hash == k.hash && ppd == k.ppd && source.equals(k.source)
+				&& extent.equals(k.extent) && proj.equals(k.proj)
+				&& offset.equals(k.offset) && Arrays.equals(ignore, k.ignore)
+				&& Arrays.equals(chain, k.chain);
+		}
+	}
+}
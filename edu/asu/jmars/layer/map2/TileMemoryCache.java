@@ -0,0 +1,289 @@
+package edu.asu.jmars.layer.map2;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A memory cache of decoded map tiles that is bounded by the number of bytes
+ * held, rather than by the garbage collector.
+ *
+ * The key space is split across a fixed number of stripes, each with its own
+ * lock and an equal share of the byte budget, so that tile loaders working on
+ * different tiles rarely contend with each other.
+ *
+ * Each stripe is a segmented LRU: new tiles enter a probationary segment, and
+ * are promoted to a protected segment when they are hit again. A long pan
+ * that touches many tiles once will therefore flush the probationary segment
+ * without disturbing the tiles that are being revisited.
+ *
+ * Hit, miss, and eviction counts are kept for each map source name.
+ */
+public class TileMemoryCache {
+	/** Fraction of each stripe's budget that may be held by the protected segment */
+	private static final double PROTECTED_FRACTION = 0.8;
+
+	private final Stripe[] stripes;
+	private final long maxBytes;
+	private final Map<String,Stats> stats = new ConcurrentHashMap<String,Stats>();
+
+	/**
+	 * @param maxBytes The maximum number of bytes of raster data to hold.
+	 * @param stripeCount The number of independently locked segments.
+	 */
+	public TileMemoryCache(long maxBytes, int stripeCount) {
+		if (stripeCount < 1) {
+			throw new IllegalArgumentException("Stripe count must be positive");
+		}
+		this.maxBytes = maxBytes;
+		stripes = new Stripe[stripeCount];
+		for (int i = 0; i < stripeCount; i++) {
+			stripes[i] = new Stripe(maxBytes / stripeCount);
+		}
+	}
+
+	/** @return the tile stored under <code>key</code>, or null if it is not in memory. */
+	public BufferedImage get(String sourceName, String key) {
+		BufferedImage tile = stripeFor(key).get(key);
+		Stats s = getStats(sourceName);
+		if (tile == null) {
+			s.misses.incrementAndGet();
+		} else {
+			s.hits.incrementAndGet();
+		}
+		return tile;
+	}
+
+	/**
+	 * @return the tile stored under <code>key</code>, or null, without
+	 * counting a hit or miss or promoting the tile to the protected segment.
+	 */
+	public BufferedImage peek(String key) {
+		return stripeFor(key).peek(key);
+	}
+
+	/**
+	 * Stores the tile, evicting least recently used tiles from the same stripe
+	 * as necessary. Tiles larger than a whole stripe are not cached.
+	 */
+	public void put(String sourceName, String key, BufferedImage tile) {
+		if (tile == null) {
+			return;
+		}
+		stripeFor(key).put(new Entry(sourceName, key, tile));
+	}
+
+	/** Removes every tile belonging to the given map source. */
+	public void removeSource(String sourceName) {
+		for (Stripe s: stripes) {
+			s.removeSource(sourceName);
+		}
+	}
+
+	/** Removes every tile. */
+	public void clear() {
+		for (Stripe s: stripes) {
+			s.clear();
+		}
+	}
+
+	/** @return the number of bytes of raster data currently held. */
+	public long getSizeBytes() {
+		long size = 0;
+		for (Stripe s: stripes) {
+			size += s.getSizeBytes();
+		}
+		return size;
+	}
+
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+
+	/** @return the counters for the given source, created on first use. */
+	public Stats getStats(String sourceName) {
+		Stats s = stats.get(sourceName);
+		if (s == null) {
+			synchronized(stats) {
+				s = stats.get(sourceName);
+				if (s == null) {
+					s = new Stats();
+					stats.put(sourceName, s);
+				}
+			}
+		}
+		return s;
+	}
+
+	/** @return a sorted snapshot of the counters for every source seen so far. */
+	public Map<String,Stats> getAllStats() {
+		return Collections.unmodifiableMap(new TreeMap<String,Stats>(stats));
+	}
+
+	private Stripe stripeFor(String key) {
+		int h = key.hashCode();
+		h ^= (h >>> 16);
+		return stripes[(h & 0x7fffffff) % stripes.length];
+	}
+
+	/** @return the approximate number of bytes used by the raster of the given image. */
+	static long sizeOf(BufferedImage image) {
+		DataBuffer db = image.getRaster().getDataBuffer();
+		long bits = (long)db.getSize() * db.getNumBanks() * DataBuffer.getDataTypeSize(db.getDataType());
+		return bits / 8;
+	}
+
+	/** Cache counters for a single map source */
+	public static final class Stats {
+		private final AtomicLong hits = new AtomicLong();
+		private final AtomicLong misses = new AtomicLong();
+		private final AtomicLong evictions = new AtomicLong();
+		public long getHits() {
+			return hits.get();
+		}
+		public long getMisses() {
+			return misses.get();
+		}
+		public long getEvictions() {
+			return evictions.get();
+		}
+		public String toString() {
+			return "hits=" + getHits() + " misses=" + getMisses() + " evictions=" + getEvictions();
+		}
+	}
+
+	private static final class Entry {
+		final String sourceName;
+		final String key;
+		final BufferedImage tile;
+		final long bytes;
+		Entry(String sourceName, String key, BufferedImage tile) {
+			this.sourceName = sourceName;
+			this.key = key;
+			this.tile = tile;
+			this.bytes = sizeOf(tile);
+		}
+	}
+
+	/** One lock's worth of the cache, with probationary and protected LRU segments */
+	private final class Stripe {
+		private final long budget;
+		private final long protectedBudget;
+		private final LinkedHashMap<String,Entry> probation = new LinkedHashMap<String,Entry>(16, 0.75f, true);
+		private final LinkedHashMap<String,Entry> protectd = new LinkedHashMap<String,Entry>(16, 0.75f, true);
+		private long probationBytes;
+		private long protectedBytes;
+
+		Stripe(long budget) {
+			this.budget = budget;
+			this.protectedBudget = (long)(budget * PROTECTED_FRACTION);
+		}
+
+		synchronized BufferedImage get(String key) {
+			Entry e = protectd.get(key);
+			if (e != null) {
+				return e.tile;
+			}
+			e = probation.remove(key);
+			if (e == null) {
+				return null;
+			}
+			probationBytes -= e.bytes;
+			protectd.put(key, e);
+			protectedBytes += e.bytes;
+			// demote the oldest protected entries back to probation
+			Iterator<Entry> it = protectd.values().iterator();
+			while (protectedBytes > protectedBudget && it.hasNext()) {
+				Entry old = it.next();
+				if (old == e) {
+					break;
+				}
+				it.remove();
+				protectedBytes -= old.bytes;
+				probation.put(old.key, old);
+				probationBytes += old.bytes;
+			}
+			return e.tile;
+		}
+
+		synchronized BufferedImage peek(String key) {
+			Entry e = protectd.get(key);
+			if (e == null) {
+				e = probation.get(key);
+			}
+			return e == null ? null : e.tile;
+		}
+
+		synchronized void put(Entry e) {
+			remove(e.key);
+			if (e.bytes > budget) {
+				return;
+			}
+			probation.put(e.key, e);
+			probationBytes += e.bytes;
+			evict();
+		}
+
+		private void evict() {
+			Iterator<Entry> it = probation.values().iterator();
+			while (probationBytes + protectedBytes > budget && it.hasNext()) {
+				Entry old = it.next();
+				it.remove();
+				probationBytes -= old.bytes;
+				getStats(old.sourceName).evictions.incrementAndGet();
+			}
+			it = protectd.values().iterator();
+			while (probationBytes + protectedBytes > budget && it.hasNext()) {
+				Entry old = it.next();
+				it.remove();
+				protectedBytes -= old.bytes;
+				getStats(old.sourceName).evictions.incrementAndGet();
+			}
+		}
+
+		private void remove(String key) {
+			Entry old = probation.remove(key);
+			if (old != null) {
+				probationBytes -= old.bytes;
+			}
+			old = protectd.remove(key);
+			if (old != null) {
+				protectedBytes -= old.bytes;
+			}
+		}
+
+		synchronized void removeSource(String sourceName) {
+			for (Iterator<Entry> it = probation.values().iterator(); it.hasNext(); ) {
+				Entry e = it.next();
+				if (e.sourceName.equals(sourceName)) {
+					it.remove();
+					probationBytes -= e.bytes;
+				}
+			}
+			for (Iterator<Entry> it = protectd.values().iterator(); it.hasNext(); ) {
+				Entry e = it.next();
+				if (e.sourceName.equals(sourceName)) {
+					it.remove();
+					protectedBytes -= e.bytes;
+				}
+			}
+		}
+
+		synchronized void clear() {
+			probation.clear();
+			protectd.clear();
+			probationBytes = 0;
+			protectedBytes = 0;
+		}
+
+		synchronized long getSizeBytes() {
+			return probationBytes + protectedBytes;
+		}
+	}
+}
@@ -0,0 +1,251 @@
+package edu.asu.jmars.layer.map2;
+
+import java.awt.geom.Rectangle2D;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import edu.asu.jmars.util.Config;
+import edu.asu.jmars.util.DebugLog;
+
+/**
+ * Warms the tile caches around a finished map request, so the next pan or
+ * zoom starts from tiles that are already on disk.
+ *
+ * When a {@link MapRetriever} has received every tile of its view, it hands
+ * the request to {@link #prefetch}, which on a thread of its own schedules
+ * the uncached tiles in a ring around the view at the same scale, then the
+ * tiles covering the view at half and twice the scale. The tiles go to {@link DownloadManager} as
+ * prefetches, which only use spare download slots, and the results are stored
+ * with {@link CacheManager#storeMapData(MapTile)}.
+ *
+ * Each new prefetch for a map source cancels the one before it from the same
+ * requester, so tiles around a view the user has moved away from are dropped
+ * before they are downloaded, and tiles for new views are always downloaded
+ * first. Requesters are the {@link MapChannel}s the retrievers work for, so
+ * the main view and the panner showing the same source keep separate
+ * prefetches.
+ *
+ * A tile requested by a view after being prefetched counts as a hit for its
+ * map source, and the hit rate is logged with each prefetch.
+ */
+public final class TilePrefetcher {
+	private static final DebugLog log = DebugLog.instance();
+	private static final boolean ENABLED = Config.get("map.prefetch.enabled", true);
+	/** Number of tiles of margin to fetch around the view */
+	private static final int RING = Config.get("map.prefetch.ring", 1);
+	/** Largest number of tiles scheduled by one prefetch */
+	private static final int MAX_TILES = Config.get("map.prefetch.maxTiles", 64);
+	/** Number of prefetched tiles remembered for counting hits */
+	private static final int TRACKED_TILES = 4096;
+
+	/** The prefetch requests currently scheduled for each requester and map source */
+	private static final Map<Owner,List<MapRequest>> active = new HashMap<Owner,List<MapRequest>>();
+	/** Prefetched tile requests not yet requested by a view, oldest first */
+	private static final Map<MapRequest,Boolean> prefetched = new LinkedHashMap<MapRequest,Boolean>(16, 0.75f, false) {
+		private static final long serialVersionUID = 1L;
+		protected boolean removeEldestEntry(Map.Entry<MapRequest,Boolean> eldest) {
+			return size() > TRACKED_TILES;
+		}
+	};
+	private static final Map<String,Stats> stats = new HashMap<String,Stats>();
+	/**
+	 * Checks the cache for each prefetch off the retriever's thread, one at a
+	 * time so each prefetch cancels the one before it in order
+	 */
+	private static final ExecutorService scheduler = Executors.newSingleThreadExecutor(new MapThreadFactory("Tile Prefetcher"));
+
+	private TilePrefetcher() {
+	}
+
+	/**
+	 * Queues the neighbors of the given request to be scheduled for download,
+	 * cancelling any previous prefetch for the same requester and map source.
+	 * Returns at once, since finding the uncached tiles reads the disk cache.
+	 * @param requester The object the request was made for, which is
+	 * compared by identity.
+	 */
+	static void prefetch(final MapRequest request, final Object requester, final DownloadManager dman) {
+		if (!ENABLED || request.isCancelled()) {
+			return;
+		}
+		scheduler.execute(new Runnable() {
+			public void run() {
+				schedule(request, requester, dman);
+			}
+		});
+	}
+
+	private static void schedule(MapRequest request, Object requester, DownloadManager dman) {
+		if (request.isCancelled()) {
+			return;
+		}
+		MapSource source = request.getSource();
+		if (source.getMimeType() == null) {
+			// tiles from this source are never cached
+			return;
+		}
+		Owner owner = new Owner(requester, source);
+		cancel(owner);
+
+		int ppd = request.getPPD();
+		Rectangle2D extent = request.getExtent();
+		Set<MapTile> visible = MapRetriever.createTiles(request);
+
+		List<MapRequest> levels = new ArrayList<MapRequest>();
+		double marginX = RING * MapRetriever.tiler.getPixelWidth() / (double)ppd;
+		double marginY = RING * MapRetriever.tiler.getPixelHeight() / (double)ppd;
+		levels.add(new MapRequest(source, new Rectangle2D.Double(
+			extent.getMinX() - marginX, extent.getMinY() - marginY,
+			extent.getWidth() + 2*marginX, extent.getHeight() + 2*marginY),
+			ppd, request.getProjection(), MapRequest.Priority.PREFETCH));
+		if (ppd > 1) {
+			levels.add(new MapRequest(source, extent, ppd/2, request.getProjection(), MapRequest.Priority.PREFETCH));
+		}
+		if (ppd < source.getMaxPPD()) {
+			levels.add(new MapRequest(source, extent, ppd*2, request.getProjection(), MapRequest.Priority.PREFETCH));
+		}
+
+		int count = 0;
+		List<MapTile> scheduled = new ArrayList<MapTile>();
+		for (MapRequest level: levels) {
+			Set<MapTile> tiles = new LinkedHashSet<MapTile>(MapRetriever.createTiles(level));
+			tiles.removeAll(visible);
+			MapTile[] uncached = CacheManager.checkCache(tiles.toArray(new MapTile[tiles.size()]))[1];
+			for (MapTile tile: uncached) {
+				if (count++ >= MAX_TILES) {
+					break;
+				}
+				scheduled.add(tile);
+			}
+		}
+
+		Stats s = getStats(source);
+		synchronized(TilePrefetcher.class) {
+			active.put(owner, levels);
+			for (MapTile tile: scheduled) {
+				prefetched.put(tile.getTileRequest(), Boolean.TRUE);
+			}
+		}
+		for (MapTile tile: scheduled) {
+			dman.addPrefetch(tile);
+		}
+		s.issued.addAndGet(scheduled.size());
+		log.println("Prefetching " + scheduled.size() + " tiles for " + source.getName() + ", " + s);
+	}
+
+	/** Cancels any prefetch scheduled for the given requester and source. */
+	private static void cancel(Owner owner) {
+		List<MapRequest> old;
+		synchronized(TilePrefetcher.class) {
+			old = active.remove(owner);
+		}
+		if (old != null) {
+			for (MapRequest r: old) {
+				r.cancelRequest();
+			}
+		}
+	}
+
+	/**
+	 * Called for the tiles of each view request, to count those that were
+	 * prefetched.
+	 */
+	static void recordRequests(MapTile[] tiles) {
+		if (!ENABLED || tiles.length == 0) {
+			return;
+		}
+		int hits = 0;
+		synchronized(TilePrefetcher.class) {
+			for (MapTile tile: tiles) {
+				if (prefetched.remove(tile.getTileRequest()) != null) {
+					hits ++;
+				}
+			}
+		}
+		getStats(tiles[0].getRequest().getSource()).hits.addAndGet(hits);
+	}
+
+	/** Called by {@link DownloadManager} when a prefetched tile is finished */
+	static void downloadResponse(MapTile tile) {
+		if (tile.getImage() != null && !tile.hasError()) {
+			CacheManager.storeMapData(tile);
+			getStats(tile.getRequest().getSource()).downloaded.incrementAndGet();
+		} else {
+			synchronized(TilePrefetcher.class) {
+				prefetched.remove(tile.getTileRequest());
+			}
+		}
+	}
+
+	/** @return the prefetch counters for the given source, created on first use. */
+	public static Stats getStats(MapSource source) {
+		synchronized(stats) {
+			Stats s = stats.get(source.getName());
+			if (s == null) {
+				stats.put(source.getName(), s = new Stats());
+			}
+			return s;
+		}
+	}
+
+	/** @return a sorted snapshot of the counters for every source prefetched so far. */
+	public static Map<String,Stats> getAllStats() {
+		synchronized(stats) {
+			return Collections.unmodifiableMap(new TreeMap<String,Stats>(stats));
+		}
+	}
+
+	/** A map source as prefetched for one requester */
+	private static final class Owner {
+		private final Object requester;
+		private final MapSource source;
+		Owner(Object requester, MapSource source) {
+			this.requester = requester;
+			this.source = source;
+		}
+		public boolean equals(Object o) {
+			return o instanceof Owner && ((Owner)o).requester == requester && ((Owner)o).source.equals(source);
+		}
+		public int hashCode() {
+			return System.identityHashCode(requester) * 31 + source.hashCode();
+		}
+	}
+
+	/** Prefetch counters for a single map source */
+	public static final class Stats {
+		private final AtomicLong issued = new AtomicLong();
+		private final AtomicLong downloaded = new AtomicLong();
+		private final AtomicLong hits = new AtomicLong();
+		/** @return the number of tiles scheduled for prefetching */
+		public long getIssued() {
+			return issued.get();
+		}
+		/** @return the number of prefetched tiles downloaded and cached */
+		public long getDownloaded() {
+			return downloaded.get();
+		}
+		/** @return the number of prefetched tiles later requested by a view */
+		public long getHits() {
+			return hits.get();
+		}
+		/** @return the fraction of scheduled tiles that were later requested */
+		public double getHitRate() {
+			long n = getIssued();
+			return n == 0 ? 0 : getHits() / (double)n;
+		}
+		public String toString() {
+			return "issued=" + getIssued() + " downloaded=" + getDownloaded()
+				+ " hits=" + getHits() + " hitRate=" + Math.round(100*getHitRate()) + "%";
+		}
+	}
+}
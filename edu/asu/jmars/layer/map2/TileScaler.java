@@ -0,0 +1,164 @@
+package edu.asu.jmars.layer.map2;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.IndexColorModel;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.lang.reflect.Array;
+import java.util.Arrays;
+
+/**
+ * Nearest-neighbor enlarging and box-filtered reduction of tile images, used
+ * to build fuzzy placeholders for tiles that are not yet cached.
+ *
+ * Both operations move whole rows of data elements between the rasters and
+ * primitive arrays, instead of reading and writing one pixel at a time, and
+ * each output row of an enlargement is built once and written as many times
+ * as it repeats.
+ */
+final class TileScaler {
+	private TileScaler() {
+	}
+
+	/**
+	 * Enlarges the given rectangle of the image by <code>scale</code>, copying
+	 * the nearest source pixel into each output pixel.
+	 */
+	static BufferedImage enlarge(BufferedImage image, int x, int y, int w, int h, double scale) {
+		Raster in = image.getRaster();
+		int outW = (int)Math.round(w * scale);
+		int outH = (int)Math.round(h * scale);
+		WritableRaster out = in.createCompatibleWritableRaster(outW, outH);
+		int bands = in.getNumDataElements();
+
+		Object src = in.getDataElements(x, y, w, h, null);
+		Object row = Array.newInstance(src.getClass().getComponentType(), outW * bands);
+		int[] offsets = new int[outW];
+		for (int i = 0; i < outW; i++) {
+			offsets[i] = Math.min(w - 1, (int)(i / scale)) * bands;
+		}
+
+		int lastRow = -1;
+		for (int j = 0; j < outH; j++) {
+			int srcRow = Math.min(h - 1, (int)(j / scale));
+			if (srcRow != lastRow) {
+				copyRow(src, srcRow * w * bands, offsets, bands, row);
+				lastRow = srcRow;
+			}
+			out.setDataElements(0, j, outW, 1, row);
+		}
+
+		return new BufferedImage(image.getColorModel(), out, image.isAlphaPremultiplied(), null);
+	}
+
+	/**
+	 * Copies the <code>bands</code> elements at <code>src[base+offsets[i]]</code>
+	 * to <code>row[i*bands]</code> for each output pixel.
+	 */
+	private static void copyRow(Object src, int base, int[] offsets, int bands, Object row) {
+		if (src instanceof byte[]) {
+			byte[] s = (byte[])src, r = (byte[])row;
+			for (int i = 0, o = 0; i < offsets.length; i++) {
+				for (int b = 0, k = base + offsets[i]; b < bands; b++) {
+					r[o++] = s[k++];
+				}
+			}
+		} else if (src instanceof short[]) {
+			short[] s = (short[])src, r = (short[])row;
+			for (int i = 0, o = 0; i < offsets.length; i++) {
+				for (int b = 0, k = base + offsets[i]; b < bands; b++) {
+					r[o++] = s[k++];
+				}
+			}
+		} else if (src instanceof int[]) {
+			int[] s = (int[])src, r = (int[])row;
+			for (int i = 0, o = 0; i < offsets.length; i++) {
+				for (int b = 0, k = base + offsets[i]; b < bands; b++) {
+					r[o++] = s[k++];
+				}
+			}
+		} else if (src instanceof float[]) {
+			float[] s = (float[])src, r = (float[])row;
+			for (int i = 0, o = 0; i < offsets.length; i++) {
+				for (int b = 0, k = base + offsets[i]; b < bands; b++) {
+					r[o++] = s[k++];
+				}
+			}
+		} else {
+			for (int i = 0; i < offsets.length; i++) {
+				System.arraycopy(src, base + offsets[i], row, i * bands, bands);
+			}
+		}
+	}
+
+	/**
+	 * Reduces the image by an integer factor on each side. When
+	 * <code>average</code> is set, each output sample is the mean of its block
+	 * of input samples; otherwise the top left pixel of each block is kept,
+	 * which is the only safe choice for indexed colors and data with ignore
+	 * values.
+	 */
+	static BufferedImage reduce(BufferedImage image, int factor, boolean average) {
+		Raster in = image.getRaster();
+		int outW = image.getWidth() / factor;
+		int outH = image.getHeight() / factor;
+		if (outW == 0 || outH == 0) {
+			return null;
+		}
+		WritableRaster out = in.createCompatibleWritableRaster(outW, outH);
+		if (!average || image.getColorModel() instanceof IndexColorModel) {
+			int bands = in.getNumDataElements();
+			Object src = null;
+			Object row = null;
+			for (int j = 0; j < outH; j++) {
+				src = in.getDataElements(0, j * factor, outW * factor, 1, src);
+				if (row == null) {
+					row = Array.newInstance(src.getClass().getComponentType(), outW * bands);
+				}
+				for (int i = 0; i < outW; i++) {
+					System.arraycopy(src, i * factor * bands, row, i * bands, bands);
+				}
+				out.setDataElements(0, j, outW, 1, row);
+			}
+		} else {
+			int bands = in.getNumBands();
+			int inW = outW * factor;
+			int type = in.getDataBuffer().getDataType();
+			boolean floating = type == DataBuffer.TYPE_FLOAT || type == DataBuffer.TYPE_DOUBLE;
+			double[] sums = new double[outW * bands];
+			double norm = 1.0 / (factor * factor);
+			if (floating) {
+				double[] block = null;
+				for (int j = 0; j < outH; j++) {
+					block = in.getPixels(0, j * factor, inW, factor, block);
+					Arrays.fill(sums, 0);
+					for (int k = 0; k < block.length; k++) {
+						int col = (k / bands) % inW;
+						sums[(col / factor) * bands + k % bands] += block[k];
+					}
+					for (int k = 0; k < sums.length; k++) {
+						sums[k] *= norm;
+					}
+					out.setPixels(0, j, outW, 1, sums);
+				}
+			} else {
+				int[] block = null;
+				int[] row = new int[outW * bands];
+				for (int j = 0; j < outH; j++) {
+					block = in.getPixels(0, j * factor, inW, factor, block);
+					Arrays.fill(sums, 0);
+					for (int k = 0; k < block.length; k++) {
+						int col = (k / bands) % inW;
+						sums[(col / factor) * bands + k % bands] += block[k];
+					}
+					for (int k = 0; k < sums.length; k++) {
+						row[k] = (int)Math.round(sums[k] * norm);
+					}
+					out.setPixels(0, j, outW, 1, row);
+				}
+			}
+		}
+		return new BufferedImage(image.getColorModel(), out, image.isAlphaPremultiplied(), null);
+	}
+}
@@ -0,0 +1,126 @@
+package edu.asu.jmars.layer.map2;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+
+import edu.asu.jmars.util.Config;
+import edu.asu.jmars.util.DebugLog;
+
+/**
+ * Runs the regions of an {@link IncrementalStage} update in parallel on a
+ * fork/join pool shared by all {@link MapProcessor}s.
+ *
+ * Regions are cut along a fixed grid of tiles, and the pieces that land in
+ * the same tile are merged, so each task writes a disjoint rectangle of the
+ * output and the stage reads its halo margin from the shared input directly.
+ * The pool has one worker per processor, so a single large view is spread
+ * across every core instead of running on one MapProcessor thread.
+ */
+final class TiledStageExecutor {
+	private static final DebugLog log = DebugLog.instance();
+	private static final int TILE_SIZE = Config.get("map.processor.tileSize", 256);
+
+	private static ForkJoinPool pool;
+
+	private TiledStageExecutor() {
+	}
+
+	private static synchronized ForkJoinPool getPool() {
+		if (pool == null) {
+			int procs = Math.max(1, Runtime.getRuntime().availableProcessors());
+			log.println("Creating stage tile pool with " + procs + " processors");
+			pool = new ForkJoinPool(procs, new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+				public ForkJoinWorkerThread newThread(ForkJoinPool p) {
+					ForkJoinWorkerThread t = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(p);
+					t.setName("Map Stage Tile-" + t.getPoolIndex());
+					// do NOT want a hung Stage to keep the JVM open
+					t.setDaemon(true);
+					t.setPriority(Thread.MIN_PRIORITY);
+					return t;
+				}
+			}, null, false);
+		}
+		return pool;
+	}
+
+	/** Stops the worker threads; a new pool is created on the next call to {@link #process} */
+	static synchronized void close() {
+		if (pool != null) {
+			pool.shutdownNow();
+			pool = null;
+		}
+	}
+
+	/**
+	 * Cuts the given regions along the tile grid and merges the pieces within
+	 * each tile, returning disjoint rectangles that cover every region.
+	 */
+	static List<Rectangle> toTiles(List<Rectangle> regions, int tileSize) {
+		Map<Long,Rectangle> tiles = new LinkedHashMap<Long,Rectangle>();
+		for (Rectangle r: regions) {
+			if (r.isEmpty()) {
+				continue;
+			}
+			int x0 = r.x / tileSize, x1 = (r.x + r.width - 1) / tileSize;
+			int y0 = r.y / tileSize, y1 = (r.y + r.height - 1) / tileSize;
+			for (int ty = y0; ty <= y1; ty++) {
+				for (int tx = x0; tx <= x1; tx++) {
+					Rectangle piece = r.intersection(new Rectangle(tx*tileSize, ty*tileSize, tileSize, tileSize));
+					Long key = ((long)tx << 32) | (ty & 0xffffffffL);
+					Rectangle old = tiles.get(key);
+					tiles.put(key, old == null ? piece : old.union(piece));
+				}
+			}
+		}
+		return new ArrayList<Rectangle>(tiles.values());
+	}
+
+	/**
+	 * Processes every region of the output, returning when all tiles are
+	 * done. Exceptions thrown by the stage are rethrown here.
+	 */
+	static void process(IncrementalStage stage, MapData input, MapData output, List<Rectangle> regions, Object context) {
+		List<Rectangle> tiles = toTiles(regions, TILE_SIZE);
+		if (tiles.size() == 1) {
+			stage.processRegion(input, output, tiles.get(0), context);
+		} else if (!tiles.isEmpty()) {
+			getPool().invoke(new RegionTask(stage, input, output, tiles, 0, tiles.size(), context));
+		}
+	}
+
+	private static final class RegionTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final IncrementalStage stage;
+		private final MapData input;
+		private final MapData output;
+		private final List<Rectangle> tiles;
+		private final int start;
+		private final int end;
+		private final Object context;
+		RegionTask(IncrementalStage stage, MapData input, MapData output, List<Rectangle> tiles, int start, int end, Object context) {
+			this.stage = stage;
+			this.input = input;
+			this.output = output;
+			this.tiles = tiles;
+			this.start = start;
+			this.end = end;
+			this.context = context;
+		}
+		protected void compute() {
+			if (end - start == 1) {
+				stage.processRegion(input, output, tiles.get(start), context);
+			} else {
+				int mid = (start + end) >>> 1;
+				invokeAll(
+					new RegionTask(stage, input, output, tiles, start, mid, context),
+					new RegionTask(stage, input, output, tiles, mid, end, context));
+			}
+		}
+	}
+}
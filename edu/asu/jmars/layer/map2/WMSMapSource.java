@@ -3,6 +3,7 @@ package edu.asu.jmars.layer.map2;
 import java.awt.geom.Point2D;
 import java.awt.geom.Rectangle2D;
 import java.awt.image.BufferedImage;
+import java.awt.image.WritableRaster;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.Serializable;
@@ -237,6 +238,53 @@ public class WMSMapSource extends MapSourceDefault implements MapSource, Seriali
 	}
 	
 	public BufferedImage fetchTile(MapRequest mapTileRequest) throws RetryableException, NonRetryableException {
+		return fetchTile(mapTileRequest, null, null);
+	}
+	
+	/**
+	 * Fetches a tile, or with an entity tag, only fetches it if it changed.
+	 * @param ifNoneMatch The entity tag of a cached copy of the tile, or null.
+	 * @param etag If not null, the first element receives the entity tag of
+	 * the response, or null if the server sent none.
+	 * @return The image, or null if the server reported the cached copy is
+	 * still current.
+	 */
+	public BufferedImage fetchTile(MapRequest mapTileRequest, String ifNoneMatch, String[] etag) throws RetryableException, NonRetryableException {
+		return fetchImage(mapTileRequest, MapRetriever.tiler.getPixelWidth(), MapRetriever.tiler.getPixelHeight(), ifNoneMatch, etag);
+	}
+	
+	/**
+	 * Fetches a row of horizontally adjacent tiles at the same scale and
+	 * projection with a single GetMap request, and splits the result.
+	 * @param row The tile requests, in order from left to right.
+	 * @return The image for each tile request.
+	 */
+	public BufferedImage[] fetchTiles(MapRequest[] row) throws RetryableException, NonRetryableException {
+		Rectangle2D extent = new Rectangle2D.Double();
+		extent.setRect(row[0].getExtent());
+		for (MapRequest r: row) {
+			extent.add(r.getExtent());
+		}
+		int tileWidth = MapRetriever.tiler.getPixelWidth();
+		int tileHeight = MapRetriever.tiler.getPixelHeight();
+		MapRequest rowRequest = new MapRequest(this, extent, row[0].getPPD(), row[0].getProjection());
+		BufferedImage image = fetchImage(rowRequest, tileWidth * row.length, tileHeight, null, null);
+		BufferedImage[] tiles = new BufferedImage[row.length];
+		for (int i = 0; i < row.length; i++) {
+			// copy each piece so the tiles don't share one large raster
+			WritableRaster raster = image.getRaster().createCompatibleWritableRaster(tileWidth, tileHeight);
+			raster.setRect(-i * tileWidth, 0, image.getRaster());
+			tiles[i] = new BufferedImage(image.getColorModel(), raster, image.isAlphaPremultiplied(), null);
+		}
+		return tiles;
+	}
+	
+	/**
+	 * Downloads the image for the given request, which must have the given
+	 * size, or null if ifNoneMatch is set and the server says it still
+	 * matches
+	 */
+	private BufferedImage fetchImage(MapRequest mapTileRequest, int width, int height, String ifNoneMatch, String[] etag) throws RetryableException, NonRetryableException {
 		String urlString = getRequestURI(mapTileRequest).toString();
 		String mimeType = getMimeType();
 		log.println("Downloading ["+mimeType+"] tile from URL " + urlString);
@@ -260,6 +308,8 @@ public class WMSMapSource extends MapSourceDefault implements MapSource, Seriali
 //			}
 //		});
         request.setRetryNever();
+        request.setPooled();
+        request.setIfNoneMatch(ifNoneMatch);
         
 		BufferedImage tileImage = null;
 	    
@@ -269,6 +319,13 @@ public class WMSMapSource extends MapSourceDefault implements MapSource, Seriali
             request.send();
 //			client.executeMethod(method);   // TODO (PW) call send()
 			
+			if (etag != null) {
+				etag[0] = request.getETag();
+			}
+			if (ifNoneMatch != null && request.isNotModified()) {
+				return null;
+			}
+			
 			// check the resulting content type
 			String contentType = checkForWMSException(request); // TODO (PW) need to pass JmarsHttpRequest object instead 
 			
@@ -283,8 +340,8 @@ public class WMSMapSource extends MapSourceDefault implements MapSource, Seriali
 			}
 
 			if (tileImage == null ||
-					tileImage.getWidth() != MapRetriever.tiler.getPixelWidth() ||
-					tileImage.getHeight() != MapRetriever.tiler.getPixelHeight()) {
+					tileImage.getWidth() != width ||
+					tileImage.getHeight() != height) {
 				throw new RetryableException(tileImage==null?"Downloaded image was null": "Wrong size image downloaded");
 			}
 		}
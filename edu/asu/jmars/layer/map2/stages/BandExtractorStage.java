@@ -1,5 +1,6 @@
 package edu.asu.jmars.layer.map2.stages;
 
+import java.awt.Rectangle;
 import java.awt.geom.Area;
 import java.awt.image.BufferedImage;
 import java.awt.image.ColorModel;
@@ -12,12 +13,13 @@ import java.io.Serializable;
 import java.util.Arrays;
 
 import edu.asu.jmars.layer.map2.AbstractStage;
+import edu.asu.jmars.layer.map2.IncrementalStage;
 import edu.asu.jmars.layer.map2.MapAttr;
 import edu.asu.jmars.layer.map2.MapData;
 import edu.asu.jmars.layer.map2.StageSettings;
 import edu.asu.jmars.util.Util;
 
-public class BandExtractorStage extends AbstractStage implements Cloneable, Serializable {
+public class BandExtractorStage extends AbstractStage implements IncrementalStage, Cloneable, Serializable {
 	private static final long serialVersionUID = 986482229581280926L;
 
 	public BandExtractorStage(StageSettings settings){
@@ -33,12 +35,27 @@ public class BandExtractorStage extends AbstractStage implements Cloneable, Seri
 	}
 
 	public MapData process(int inputNumber, MapData data, Area changedArea) {
+		MapData out = createOutput(data);
+		BufferedImage image = data.getImage();
+		processRegion(data, out, new Rectangle(0, 0, image.getWidth(), image.getHeight()), prepare(data, changedArea));
+		return out;
+	}
+	
+	private int getBandNumber() {
 		BandExtractorStageSettings settings = (BandExtractorStageSettings)getSettings();
 		String band = settings.getSelectedBand();
 		int bandNumber = Arrays.asList(settings.getBands()).indexOf(band);
 		if (bandNumber < 0)
 			throw new IllegalArgumentException("Invalid selected band: "+band);
-		
+		return bandNumber;
+	}
+	
+	public int getHalo() {
+		return 0;
+	}
+	
+	public MapData createOutput(MapData data) {
+		int bandNumber = getBandNumber();
 		BufferedImage image = data.getImage();
 		image.coerceData(false);
 		Raster r = image.getRaster();
@@ -49,14 +66,23 @@ public class BandExtractorStage extends AbstractStage implements Cloneable, Seri
 				false, false, BufferedImage.OPAQUE, outRaster.getTransferType());
 		BufferedImage outImage = new BufferedImage(outCM, outRaster, outCM.isAlphaPremultiplied(), null);
 		
-		outImage.getRaster().setRect(r);
-		//if (image.getAlphaRaster() != null && outImage.getAlphaRaster() != null)
-		//	outImage.getAlphaRaster().setRect(image.getAlphaRaster());
-		
 		double[] oldNull = data.getNullPixel();
 		double[] newNull = oldNull == null || bandNumber >= oldNull.length  ? null : new double[]{oldNull[bandNumber]};
 		return data.getDeepCopyShell(outImage, newNull);
 	}
+	
+	public Object prepare(MapData input, Area changedArea) {
+		input.getImage().coerceData(false);
+		return getBandNumber();
+	}
+	
+	public void processRegion(MapData data, MapData output, Rectangle region, Object context) {
+		int bandNumber = (Integer)context;
+		Raster r = data.getImage().getRaster().createChild(region.x, region.y, region.width, region.height, region.x, region.y, new int[]{ bandNumber });
+		output.getImage().getRaster().setRect(r);
+		//if (image.getAlphaRaster() != null && outImage.getAlphaRaster() != null)
+		//	outImage.getAlphaRaster().setRect(image.getAlphaRaster());
+	}
 
 	public MapAttr[] consumes(int inputNumber){
 		return new MapAttr[]{ MapAttr.ANY };
@@ -1,5 +1,6 @@
 package edu.asu.jmars.layer.map2.stages;
 
+import java.awt.Rectangle;
 import java.awt.geom.Area;
 import java.awt.image.BufferedImage;
 import java.awt.image.ColorConvertOp;
@@ -9,13 +10,15 @@ import java.io.ObjectInputStream;
 import java.io.Serializable;
 
 import edu.asu.jmars.layer.map2.AbstractStage;
+import edu.asu.jmars.layer.map2.IncrementalStage;
 import edu.asu.jmars.layer.map2.MapAttr;
 import edu.asu.jmars.layer.map2.MapData;
 import edu.asu.jmars.layer.map2.StageSettings;
+import edu.asu.jmars.swing.ColorMapper;
 import edu.asu.jmars.util.DebugLog;
 import edu.asu.jmars.util.Util;
 
-public class ColorStretcherStage extends AbstractStage implements Cloneable, Serializable {
+public class ColorStretcherStage extends AbstractStage implements IncrementalStage, Cloneable, Serializable {
 	private static final long serialVersionUID = -1320855669272199638L;
 	private static final Object globalLock = new Object();
 	public static DebugLog log = DebugLog.instance();
@@ -45,11 +48,30 @@ public class ColorStretcherStage extends AbstractStage implements Cloneable, Ser
 	}
 	
 	public MapData process(int inputNumber, MapData data, Area changedArea) {
+		MapData out = createOutput(data);
 		BufferedImage image = data.getImage();
-
+		processRegion(data, out, new Rectangle(0, 0, image.getWidth(), image.getHeight()), prepare(data, changedArea));
+		return out;
+	}
+	
+	public int getHalo() {
+		return 0;
+	}
+	
+	public MapData createOutput(MapData input) {
+		BufferedImage image = input.getImage();
 		// Create an output image which is compatible with the FancyColorMapper's color map op
-		BufferedImage outImage = Util.newBufferedImage(image.getWidth(), image.getHeight());
-
+		return input.getDeepCopyShell(Util.newBufferedImage(image.getWidth(), image.getHeight()), null);
+	}
+	
+	public Object prepare(MapData input, Area changedArea) {
+		return ((ColorStretcherStageSettings)getSettings()).getColorMapperState();
+	}
+	
+	public void processRegion(MapData data, MapData output, Rectangle region, Object context) {
+		BufferedImage image = data.getImage().getSubimage(region.x, region.y, region.width, region.height);
+		BufferedImage outImage = output.getImage().getSubimage(region.x, region.y, region.width, region.height);
+		
 		// the color convert op may be the cause of a relatively rare jvm crash
 		// that is rumored to occur as a result of a race condition within
 		// libcmm.so on linux versions of Java, that supposedly does not occur
@@ -65,20 +87,18 @@ public class ColorStretcherStage extends AbstractStage implements Cloneable, Ser
 		
 		// TODO: fcm is a Swing object while the Stage is multi-threaded. How do we cope?
 		// TODO: Don't know what alpha to use here, "1" seems like a reasonable choice.
-		ColorStretcherStageSettings settings = (ColorStretcherStageSettings)getSettings(); 
-		settings.getColorMapperState().getColorMapOp(outImage).forAlpha(1.0f).filter(outImage, outImage);
+		ColorMapper.State state = (ColorMapper.State)context;
+		state.getColorMapOp(outImage).forAlpha(1.0f).filter(outImage, outImage);
 		
 		WritableRaster alpha = outImage.getAlphaRaster();
 		if (alpha != null) {
-			for (int j = image.getHeight()-1; j>=0; j--) {
-				for (int i = image.getWidth()-1; i>=0; i--) {
+			for (int j = region.height-1; j>=0; j--) {
+				for (int i = region.width-1; i>=0; i--) {
 					int curVal = alpha.getSample(i, j, 0);
-					alpha.setSample(i, j, 0, data.isNull(i, j) ? 0 : curVal);
+					alpha.setSample(i, j, 0, data.isNull(region.x + i, region.y + j) ? 0 : curVal);
 				}
 			}
 		}
-		
-		return data.getDeepCopyShell(outImage, null);
 	}
 
 	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
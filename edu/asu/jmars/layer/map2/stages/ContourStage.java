@@ -1,8 +1,10 @@
 package edu.asu.jmars.layer.map2.stages;
 
 import java.awt.Color;
+import java.awt.Rectangle;
 import java.awt.geom.Area;
 import java.awt.image.BufferedImage;
+import java.awt.image.Raster;
 import java.awt.image.RasterOp;
 import java.awt.image.WritableRaster;
 import java.io.IOException;
@@ -11,10 +13,11 @@ import java.io.Serializable;
 
 import edu.asu.jmars.layer.map2.AbstractStage;
 import edu.asu.jmars.layer.map2.BinRasterOp;
+import edu.asu.jmars.layer.map2.IncrementalStage;
 import edu.asu.jmars.layer.map2.MapAttr;
 import edu.asu.jmars.layer.map2.MapData;
 
-public class ContourStage extends AbstractStage implements Cloneable, Serializable {
+public class ContourStage extends AbstractStage implements IncrementalStage, Cloneable, Serializable {
 	public ContourStage(ContourStageSettings settings){
 		super(settings);
 	}
@@ -42,24 +45,53 @@ public class ContourStage extends AbstractStage implements Cloneable, Serializab
 		if (inputNumber != 0)
 			throw new IllegalArgumentException();
 		
-		double start = getSettings().getBase();
-		double step = getSettings().getStep();
+		Object binOp = prepare(data, changedArea);
+		MapData out = createOutput(data);
+		BufferedImage image = data.getImage();
+		processRegion(data, out, new Rectangle(0, 0, image.getWidth(), image.getHeight()), binOp);
+		
+		changedArea.reset();
+		changedArea.add(new Area(data.getRequest().getExtent()));
+		
+		return out;
+	}
+	
+	/**
+	 * Contour pixels are found from the 3x3 neighborhood of binned values,
+	 * and thick lines extend one pixel further
+	 */
+	public int getHalo() {
+		return 2;
+	}
+	
+	public MapData createOutput(MapData data) {
+		BufferedImage image = data.getImage();
+		return data.getDeepCopyShell(new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_ARGB), null);
+	}
+	
+	/** @return the binning operator */
+	public Object prepare(MapData data, Area changedArea) {
+		return new BinRasterOp(getSettings().getBase(), getSettings().getStep());
+	}
+	
+	public void processRegion(MapData data, MapData output, Rectangle region, Object context) {
 		Color    color = getSettings().getColor();
 		int lineThickness = getSettings().getLineThickness();
 		
-		RasterOp binOp = new BinRasterOp(start, step);
-		WritableRaster binnedRaster = binOp.filter(data.getImage().getRaster(), null);
+		// bin the region plus the halo
+		Raster inRaster = data.getImage().getRaster();
+		Rectangle src = new Rectangle(region);
+		src.grow(getHalo(), getHalo());
+		src = src.intersection(inRaster.getBounds());
+		RasterOp binOp = (RasterOp)context;
+		WritableRaster binnedRaster = binOp.filter(inRaster.createChild(src.x, src.y, src.width, src.height, 0, 0, null), null);
 		
 		int w = binnedRaster.getWidth();
 		int h = binnedRaster.getHeight();
-		int b = binnedRaster.getNumBands();
-
-		BufferedImage outImage = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
-		//WritableRaster outRaster = WritableRaster.createBandedRaster(DataBuffer.TYPE_FLOAT, w, h, b, null);
 		
+		// find the contour pixels, in the coordinates of the binned raster
+		boolean[] filled = new boolean[w*h];
 		double[] dArray = new double[9];
-		boolean filled;
-		
 		for(int k=0; k<1; k++){
 			for(int j=0; j<h; j++){
 				for(int i=0; i<w; i++){
@@ -69,58 +101,42 @@ public class ContourStage extends AbstractStage implements Cloneable, Serializab
 					int lcloc = lw * (j-y1) + (i-x1);
 					
 					binnedRaster.getSamples(x1, y1, lw, lh, k, dArray);
-					filled = false;
-					for(int y=0; !filled && y<lh; y++){
-						for(int x=0; !filled && x<lw; x++){
+					boolean f = false;
+					for(int y=0; !f && y<lh; y++){
+						for(int x=0; !f && x<lw; x++){
 							if ((x+x1) == i && (y+y1) == j)
 								continue;
 							
 							if (dArray[lcloc] < dArray[lw*y+x])
-								filled = true;
+								f = true;
 						}
 					}
-					
-					if (filled) {
-						switch(lineThickness) {
-						case 1:
-							outImage.setRGB(i, j, color.getRGB());
-							break;
-						case 2:
-							outImage.setRGB(i, j, color.getRGB());
-							if (i<w-1) 
-								outImage.setRGB(i+1, j, color.getRGB());
-							if (j<h-1) 
-								outImage.setRGB(i, j+1, color.getRGB());
-							
-							break;	
-						case 3:
-							outImage.setRGB(i, j, color.getRGB());
-							if (i<w-1) 
-								outImage.setRGB(i+1, j, color.getRGB());
-							if (i>0)
-								outImage.setRGB(i-1, j, color.getRGB());
-							if (j<h-1) 
-								outImage.setRGB(i, j+1, color.getRGB());
-							if (j>0)
-								outImage.setRGB(i, j-1, color.getRGB());							
-							break;
-						default:
-							outImage.setRGB(i, j, color.getRGB());
-							break;
-						}
-					}
-						//outRaster.setSample(i, j, k, dArray[lcloc]);
+					filled[j*w+i] = f;
 				}
 			}
 		}
 		
-		//ColorModel outCM = new EmptyColorModel();
-		//BufferedImage outImage = new BufferedImage(outCM, outRaster, outCM.isAlphaPremultiplied(), null);
-		
-		changedArea.reset();
-		changedArea.add(new Area(data.getRequest().getExtent()));
-		
-		return data.getDeepCopyShell(outImage, null);
+		// a thick line draws filled pixels into their right/lower (2) or all
+		// four (3) neighbors, so each output pixel looks back at those neighbors
+		int rgb = color.getRGB();
+		int[] row = new int[region.width];
+		WritableRaster outRaster = output.getImage().getRaster();
+		int dx = region.x - src.x, dy = region.y - src.y;
+		for (int j = 0; j < region.height; j++) {
+			int y = j + dy;
+			for (int i = 0; i < region.width; i++) {
+				int x = i + dx;
+				boolean on = filled[y*w+x];
+				if (!on && (lineThickness == 2 || lineThickness == 3)) {
+					on = (x > 0 && filled[y*w+x-1]) || (y > 0 && filled[(y-1)*w+x]);
+				}
+				if (!on && lineThickness == 3) {
+					on = (x < w-1 && filled[y*w+x+1]) || (y < h-1 && filled[(y+1)*w+x]);
+				}
+				row[i] = on ? rgb : 0;
+			}
+			outRaster.setDataElements(region.x, region.y + j, region.width, 1, row);
+		}
 	}
 
 	public String getStageName(){
@@ -1,6 +1,7 @@
 package edu.asu.jmars.layer.map2.stages;
 
 
+import java.awt.Rectangle;
 import java.awt.geom.Area;
 import java.awt.geom.Rectangle2D;
 import java.awt.image.BufferedImage;
@@ -13,6 +14,7 @@ import java.io.Serializable;
 
 import edu.asu.jmars.layer.map2.AbstractStage;
 import edu.asu.jmars.layer.map2.GrayRescaleToByteOp;
+import edu.asu.jmars.layer.map2.IncrementalStage;
 import edu.asu.jmars.layer.map2.MapAttr;
 import edu.asu.jmars.layer.map2.MapData;
 import edu.asu.jmars.util.DebugLog;
@@ -24,7 +26,7 @@ import edu.asu.jmars.util.Util;
  * an alpha band if the input image had an alpha band or if there is an ignore
  * value defined on the map source.
  */
-public class GrayscaleStage extends AbstractStage implements Cloneable, Serializable {
+public class GrayscaleStage extends AbstractStage implements IncrementalStage, Cloneable, Serializable {
 	private static final long serialVersionUID = 2L;
 
 	private static DebugLog log = DebugLog.instance();
@@ -42,6 +44,25 @@ public class GrayscaleStage extends AbstractStage implements Cloneable, Serializ
 	}
 	
 	public MapData process(int inputNumber, MapData data, Area changedArea) {
+		Object minMax = prepare(data, changedArea);
+		MapData out = createOutput(data);
+		BufferedImage image = data.getImage();
+		processRegion(data, out, new Rectangle(0, 0, image.getWidth(), image.getHeight()), minMax);
+		return out;
+	}
+	
+	public int getHalo() {
+		return 0;
+	}
+	
+	public MapData createOutput(MapData data) {
+		BufferedImage image = data.getImage();
+		boolean outputAlpha = !Double.isNaN(getIgnore(data)) || image.getColorModel().hasAlpha();
+		return data.getDeepCopyShell(Util.createGrayscaleImage(image.getWidth(), image.getHeight(), outputAlpha), null);
+	}
+	
+	/** @return the [min, max] range to stretch over */
+	public Object prepare(MapData data, Area changedArea) {
 		BufferedImage image = data.getImage();
 		if (image.getColorModel().getNumColorComponents() != 1)
 			throw new IllegalArgumentException("Input images must be single band images.");
@@ -49,20 +70,23 @@ public class GrayscaleStage extends AbstractStage implements Cloneable, Serializ
 		// Convert from source # bits to 8-bit data per plane
 		image.coerceData(false); // have alpha separated out
 		
-		int w = image.getWidth();
-		int h = image.getHeight();
+		double[] minMax = getMinMax(data, changedArea);
+		log.println("GrayscaleStage: "+minMax[0]+","+minMax[1]);
+		return minMax;
+	}
+	
+	public void processRegion(MapData data, MapData output, Rectangle region, Object context) {
+		BufferedImage image = data.getImage().getSubimage(region.x, region.y, region.width, region.height);
+		BufferedImage outImage = output.getImage().getSubimage(region.x, region.y, region.width, region.height);
+		
+		int w = region.width;
+		int h = region.height;
 		double ignore = getIgnore(data);
-		boolean outputAlpha = !Double.isNaN(ignore) || image.getColorModel().hasAlpha();
 		
-		double[] minMax = getMinMax(data, changedArea);
+		double[] minMax = (double[])context;
 		double minValue = minMax[0];
 		double maxValue = minMax[1];
 		
-		log.println("GrayscaleStage: "+minValue+","+maxValue);
-		
-		// create output image
-		BufferedImage outImage = Util.createGrayscaleImage(w, h, outputAlpha);
-		
 		// rescale the data band
 		double diff = maxValue - minValue;
 		double scaleFactor = diff == 0? 0: 255.0 / (maxValue - minValue);
@@ -89,8 +113,6 @@ public class GrayscaleStage extends AbstractStage implements Cloneable, Serializ
 				adata.setDataElements(0, row, w, 1, apixels);
 			}
 		}
-		
-		return data.getDeepCopyShell(outImage, null);
 	}
 	
 	/**
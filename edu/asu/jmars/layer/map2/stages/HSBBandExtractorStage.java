@@ -1,6 +1,7 @@
 package edu.asu.jmars.layer.map2.stages;
 
 import java.awt.Color;
+import java.awt.Rectangle;
 import java.awt.geom.Area;
 import java.awt.image.BufferedImage;
 import java.io.Serializable;
@@ -17,28 +18,34 @@ public class HSBBandExtractorStage extends BandExtractorStage implements Cloneab
 		super(settings);
 	}
 	
-	public MapData process(int inputNumber, MapData inputData, Area changedArea){
+	public MapData createOutput(MapData inputData) {
+		BufferedImage image = inputData.getImage();
+		BufferedImage outImage = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_BYTE_GRAY);
+		return inputData.getDeepCopyShell(outImage, null);
+	}
+	
+	public Object prepare(MapData inputData, Area changedArea) {
 		HSBBandExtractorStageSettings settings = (HSBBandExtractorStageSettings)getSettings();
 		String band = settings.getSelectedBand();
 		int index = Arrays.asList(settings.getBands()).indexOf(band);
 		if (index < 0)
 			throw new IllegalArgumentException("Invalid band \""+band+"\" encountered.");
-		
+		return index;
+	}
+	
+	public void processRegion(MapData inputData, MapData output, Rectangle region, Object context) {
+		int index = (Integer)context;
 		BufferedImage image = inputData.getImage();
-		int w = image.getWidth();
-		int h = image.getHeight();
-		BufferedImage outImage = new BufferedImage(w, h, BufferedImage.TYPE_BYTE_GRAY);
+		BufferedImage outImage = output.getImage();
 		float[] hsbvals = new float[3];
-		for(int j=0; j<h; j++){
-			for(int i=0; i<w; i++){
+		for(int j=region.y; j<region.y+region.height; j++){
+			for(int i=region.x; i<region.x+region.width; i++){
 				int rgb = image.getRGB(i, j);
 				Color.RGBtoHSB((rgb & 0xff0000) >> 16, (rgb & 0xff00) >> 8, (rgb & 0xff), hsbvals);
 				rgb = (int)(hsbvals[index]*255+0.5);
 				outImage.setRGB(i, j, rgb << 16 | rgb << 8 | rgb);
 			}
 		}
-		
-		return inputData.getDeepCopyShell(outImage, null);
 	}
 	
 	public MapAttr[] consumes(int inputNumber){
@@ -1,21 +1,24 @@
 package edu.asu.jmars.layer.map2.stages;
 
+import java.awt.Rectangle;
 import java.awt.geom.Area;
 import java.awt.image.BufferedImage;
 import java.awt.image.Kernel;
 import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.Serializable;
 
 import edu.asu.jmars.layer.map2.AbstractStage;
 import edu.asu.jmars.layer.map2.ConvolveOp;
+import edu.asu.jmars.layer.map2.IncrementalStage;
 import edu.asu.jmars.layer.map2.MapAttr;
 import edu.asu.jmars.layer.map2.MapData;
 import edu.asu.jmars.util.DebugLog;
 
 
-public class LowPassFilterStage extends AbstractStage implements Cloneable, Serializable {
+public class LowPassFilterStage extends AbstractStage implements IncrementalStage, Cloneable, Serializable {
 	private static final long serialVersionUID = 1L;
 	
 	private static DebugLog log = DebugLog.instance();
@@ -33,6 +36,27 @@ public class LowPassFilterStage extends AbstractStage implements Cloneable, Seri
 	}
 	
 	public MapData process(int inputNumber, MapData data, Area changedArea){
+		Object convolve = prepare(data, changedArea);
+		MapData out = createOutput(data);
+		BufferedImage image = data.getImage();
+		processRegion(data, out, new Rectangle(0, 0, image.getWidth(), image.getHeight()), convolve);
+		return out;
+	}
+	
+	public int getHalo() {
+		return ((LowPassFilterStageSettings)getSettings()).getGridSize() / 2;
+	}
+	
+	public MapData createOutput(MapData data) {
+		BufferedImage image = data.getImage();
+		BufferedImage outConvolve = new BufferedImage(image.getColorModel(),
+			image.getRaster().createCompatibleWritableRaster(),
+			image.isAlphaPremultiplied(), null);
+		return data.getDeepCopyShell(outConvolve, null);
+	}
+	
+	/** @return the convolution operator to apply */
+	public Object prepare(MapData data, Area changedArea) {
 		BufferedImage image = data.getImage();
 		if (image.getColorModel().getNumColorComponents() != 1) {
 			throw new IllegalArgumentException("Input images must be single band images.");
@@ -49,11 +73,33 @@ public class LowPassFilterStage extends AbstractStage implements Cloneable, Seri
 		}
 			
 		Kernel kernel = new Kernel(s.getGridSize(),s.getGridSize(), imgData);
-		ConvolveOp convolve = new ConvolveOp(kernel,ConvolveOp.EDGE_NO_OP, null);
-		BufferedImage outConvolve = null;
-		outConvolve = convolve.filter(image, outConvolve);
-
-		return data.getDeepCopyShell(outConvolve, null);
+		return new ConvolveOp(kernel,ConvolveOp.EDGE_NO_OP, null);
+	}
+	
+	/**
+	 * Convolves the region plus a margin of half the kernel size, so pixels
+	 * within the region see the same neighbors they would in the whole image,
+	 * and copies just the region to the output.
+	 */
+	public void processRegion(MapData data, MapData output, Rectangle region, Object context) {
+		ConvolveOp convolve = (ConvolveOp)context;
+		Raster inRaster = data.getImage().getRaster();
+		Kernel kernel = convolve.getKernel();
+		int halo = Math.max(kernel.getWidth(), kernel.getHeight()) / 2;
+		Rectangle src = new Rectangle(region);
+		src.grow(halo, halo);
+		src = src.intersection(inRaster.getBounds());
+		if (src.width < kernel.getWidth() || src.height < kernel.getHeight()) {
+			// regions against the image edge need extra room for the op to run
+			src.grow(kernel.getWidth(), kernel.getHeight());
+			src = src.intersection(inRaster.getBounds());
+		}
+		
+		Raster in = inRaster.createChild(src.x, src.y, src.width, src.height, 0, 0, null);
+		WritableRaster convolved = convolve.filter(in, null);
+		WritableRaster out = output.getImage().getRaster().createWritableChild(
+			region.x, region.y, region.width, region.height, 0, 0, null);
+		out.setRect(src.x - region.x, src.y - region.y, convolved);
 	}
 
 	public MapAttr[] consumes(int inputNumber){
@@ -1,7 +1,9 @@
 package edu.asu.jmars.layer.map2.stages;
 
+import java.awt.Rectangle;
 import java.awt.geom.Area;
 import java.awt.image.BufferedImage;
+import java.awt.image.WritableRaster;
 import java.io.Serializable;
 import java.util.Arrays;
 
@@ -15,31 +17,36 @@ public class RGBBandExtractorStage extends BandExtractorStage implements Cloneab
 		super(settings);
 	}
 	
-	public MapData process(int inputNumber, MapData mapData, Area changedArea){
+	public MapData createOutput(MapData mapData) {
+		BufferedImage image = mapData.getImage();
+		BufferedImage outImage = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_BYTE_GRAY);
+		return mapData.getDeepCopyShell(outImage, null);
+	}
+	
+	public Object prepare(MapData mapData, Area changedArea) {
 		RGBBandExtractorStageSettings settings = (RGBBandExtractorStageSettings)getSettings();
 		
 		String band = settings.getSelectedBand();
 		int index = Arrays.asList(settings.getBands()).indexOf(band);
 		if (index < 0)
 			throw new IllegalArgumentException("Invalid band \""+band+"\" encountered.");
-		
-		int shift = (2-index)*8;
+		return index;
+	}
+	
+	public void processRegion(MapData mapData, MapData output, Rectangle region, Object context) {
+		int shift = (2-(Integer)context)*8;
 		BufferedImage image = mapData.getImage();
-		int w = image.getWidth();
-		int h = image.getHeight();
-		BufferedImage outImage = new BufferedImage(w, h, BufferedImage.TYPE_BYTE_GRAY);
-		for(int j=0; j<h; j++){
-			for(int i=0; i<w; i++){
+		WritableRaster outRaster = output.getImage().getRaster();
+		for(int j=region.y; j<region.y+region.height; j++){
+			for(int i=region.x; i<region.x+region.width; i++){
 				int rgb = image.getRGB(i, j);
 				//int alpha = rgb & 0xff000000;
 				rgb = (rgb >> shift) & 0xff;
 				//rgb = alpha | rgb << 16 | rgb << 8 | rgb;
 				//outImage.setRGB(i, j, rgb);
-				outImage.getRaster().setSample(i, j, 0, rgb);
+				outRaster.setSample(i, j, 0, rgb);
 			}
 		}
-		
-		return mapData.getDeepCopyShell(outImage, null);
 	}
 	
 	public boolean canTake(int inputNumber, MapAttr mapAttr){
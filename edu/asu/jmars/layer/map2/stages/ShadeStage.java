@@ -1,8 +1,10 @@
 package edu.asu.jmars.layer.map2.stages;
 
+import java.awt.Rectangle;
 import java.awt.Transparency;
 import java.awt.color.ColorSpace;
 import java.awt.geom.Area;
+import java.awt.geom.Rectangle2D;
 import java.awt.image.BandedSampleModel;
 import java.awt.image.BufferedImage;
 import java.awt.image.ColorModel;
@@ -16,14 +18,16 @@ import java.io.ObjectInputStream;
 import java.io.Serializable;
 
 import edu.asu.jmars.layer.map2.AbstractStage;
+import edu.asu.jmars.layer.map2.IncrementalStage;
 import edu.asu.jmars.layer.map2.MapAttr;
 import edu.asu.jmars.layer.map2.MapData;
 import edu.asu.jmars.layer.map2.ReliefShadeOp;
 import edu.asu.jmars.util.DebugLog;
+import edu.asu.jmars.util.PolyArea;
 import edu.asu.jmars.util.Util;
 
 
-public class ShadeStage extends AbstractStage implements Cloneable, Serializable {
+public class ShadeStage extends AbstractStage implements IncrementalStage, Cloneable, Serializable {
 	private static final long serialVersionUID = 1L;
 	
 	private static DebugLog log = DebugLog.instance();
@@ -41,6 +45,37 @@ public class ShadeStage extends AbstractStage implements Cloneable, Serializable
 	}
 	
 	public MapData process(int inputNumber, MapData data, Area changedArea){
+		Object context = prepare(data, changedArea);
+		MapData out = createOutput(data);
+		BufferedImage image = data.getImage();
+		processRegion(data, out, new Rectangle(0, 0, image.getWidth(), image.getHeight()), context);
+		return out;
+	}
+	
+	/**
+	 * The op reads a 3x3 neighborhood, and then copies the second row/column
+	 * onto the image edges. Past the max ppd each shaded pixel covers several
+	 * input pixels, so {@link #prepare} grows the changed area further.
+	 */
+	public int getHalo() {
+		return 2;
+	}
+	
+	public MapData createOutput(MapData data) {
+		BufferedImage image = data.getImage();
+		SampleModel sm = new BandedSampleModel(DataBuffer.TYPE_FLOAT, image.getWidth(), image.getHeight(), 1);
+		WritableRaster outRaster = Raster.createWritableRaster(sm, null);
+		ColorModel cm = new ComponentColorModel(ColorSpace.getInstance(ColorSpace.CS_GRAY), 
+				false, false, Transparency.OPAQUE, outRaster.getTransferType());
+		return data.getDeepCopyShell(new BufferedImage(cm, outRaster, false, null), null);
+	}
+	
+	/**
+	 * @return the ReliefShadeOp to run on each region, or when the data is
+	 * past the max ppd of the source, the whole shaded image to copy regions
+	 * from.
+	 */
+	public Object prepare(MapData data, Area changedArea) {
 		BufferedImage image = data.getImage();
 		
 		if (image.getColorModel().getNumColorComponents() != 1)
@@ -48,75 +83,101 @@ public class ShadeStage extends AbstractStage implements Cloneable, Serializable
 		
 		image.coerceData(false); // have alpha separated out
 		
-		int w = image.getWidth();
-		int h = image.getHeight();
-		boolean outputAlpha = image.getColorModel().hasAlpha();//TODO: do conditions exist where we need to address the alpha?
 		double ppd = data.getRequest().getPPD();
+		ShadeStageSettings s = (ShadeStageSettings)getSettings();
+		double radius = Util.MEAN_RADIUS * 1000;
+		double cellSize = ((2*Math.PI*radius)/360.0)/ppd;
 		
-		//we will use a max ppd, check to see if the current ppd is higher than that. If it is, we will create a new BufferedImage, 
-		//populate it by scaling it down to the max ppd, then running it through the ReliefShadeOp, and then scale the image back to its original
-		//ppd
 		int maxPPD = new Double(data.getRequest().getSource().getMaxPPD()).intValue(); 
 		int currentPPD = new Double(ppd).intValue();
-		WritableRaster tempRaster = null;
-		
 		if (currentPPD > maxPPD) {
 			int factor = currentPPD / maxPPD;
-			Raster newRaster = image.getData();
-			int width = w/factor;
-			int height = h/factor;
-			SampleModel sm = new BandedSampleModel(DataBuffer.TYPE_FLOAT, width, height, 1);
-			tempRaster = Raster.createWritableRaster(sm, null);
-			
-			//scale down the image to max ppd
-			double dArray[] = null;
-			for(int y=0; y<height; y++){
-				for(int x=0; x<width; x++){
-					dArray = newRaster.getPixel(x * factor, y * factor, dArray);
-					tempRaster.setPixel(x, y, dArray);
-				}
+			if (changedArea != null) {
+				// a changed input pixel reaches 2*factor+1 output pixels once shaded at the lower ppd and enlarged
+				growChangedArea(data, changedArea, 2*factor + 1 - getHalo());
 			}
+			return shadeScaled(image, factor, new ReliefShadeOp(s.getAz(), s.getEl(), cellSize));
 		} else {
-			tempRaster = image.getRaster();
+			return new ReliefShadeOp(s.getAz(), s.getEl(), cellSize);
+		}
+	}
+	
+	public void processRegion(MapData data, MapData output, Rectangle region, Object context) {
+		WritableRaster out = output.getImage().getRaster().createWritableChild(
+			region.x, region.y, region.width, region.height, 0, 0, null);
+		if (context instanceof BufferedImage) {
+			Raster shaded = ((BufferedImage)context).getRaster();
+			out.setRect(-region.x, -region.y, shaded);
+			return;
 		}
 		
-		ShadeStageSettings s = (ShadeStageSettings)getSettings();
-		double radius = Util.MEAN_RADIUS * 1000;
-		double cellSize = ((2*Math.PI*radius)/360.0)/ppd;
+		ReliefShadeOp op = (ReliefShadeOp)context;
+		Raster inRaster = data.getImage().getRaster();
+		Rectangle src = new Rectangle(region);
+		src.grow(getHalo(), getHalo());
+		src = src.intersection(inRaster.getBounds());
+		Raster in = inRaster.createChild(src.x, src.y, src.width, src.height, 0, 0, null);
+		out.setRect(src.x - region.x, src.y - region.y, op.filter(in, null));
+	}
+	
+	/** Grows each rectangle of the changed area by the given number of pixels, within the extent */
+	private static void growChangedArea(MapData data, Area changedArea, int pixels) {
+		Rectangle2D extent = data.getRequest().getExtent();
+		double dx = pixels * extent.getWidth() / data.getImage().getWidth();
+		double dy = pixels * extent.getHeight() / data.getImage().getHeight();
+		Area grown = new Area();
+		for (Rectangle2D rect: new PolyArea(changedArea).getRectangles()) {
+			grown.add(new Area(new Rectangle2D.Double(
+				rect.getMinX() - dx, rect.getMinY() - dy,
+				rect.getWidth() + 2*dx, rect.getHeight() + 2*dy)));
+		}
+		grown.intersect(new Area(extent));
+		changedArea.reset();
+		changedArea.add(grown);
+	}
+	
+	/**
+	 * We use a max ppd: when the current ppd is higher than that, we create a
+	 * new BufferedImage, populate it by scaling it down to the max ppd, then
+	 * run it through the ReliefShadeOp, and then scale the image back to its
+	 * original ppd
+	 */
+	private BufferedImage shadeScaled(BufferedImage image, int factor, ReliefShadeOp op) {
+		int w = image.getWidth();
+		int h = image.getHeight();
 		
-		ReliefShadeOp op = new ReliefShadeOp(s.getAz(), s.getEl(), cellSize);
-		WritableRaster outRaster = op.createCompatibleDestRaster(tempRaster);
-		ColorModel cm = new ComponentColorModel(ColorSpace.getInstance(ColorSpace.CS_GRAY), 
-				false, false, Transparency.OPAQUE, outRaster.getTransferType());
-		BufferedImage outImage = new BufferedImage(cm, outRaster, false, null);
-		op.filter(tempRaster, outRaster);
+		Raster newRaster = image.getData();
+		int width = w/factor;
+		int height = h/factor;
+		SampleModel sm = new BandedSampleModel(DataBuffer.TYPE_FLOAT, width, height, 1);
+		WritableRaster tempRaster = Raster.createWritableRaster(sm, null);
 		
-		WritableRaster finalRaster = null;
-		BufferedImage finalImage = null;
-		if (currentPPD > maxPPD) {
-			int factor = currentPPD / maxPPD;
-			Raster newRaster = outImage.getData();
-			int width = newRaster.getWidth() * factor;
-			int height = newRaster.getHeight() * factor;
-			SampleModel sm = new BandedSampleModel(DataBuffer.TYPE_FLOAT, width, height, 1);
-			finalRaster = Raster.createWritableRaster(sm, null);
-			
-			//scale up the image to current ppd
-			double dArray[] = null;
-			for(int y=0; y<height; y++){
-				for(int x=0; x<width; x++){
-					dArray = newRaster.getPixel(x/factor, y/factor, dArray);
-					finalRaster.setPixel(x, y, dArray);
-				}
+		//scale down the image to max ppd
+		double dArray[] = null;
+		for(int y=0; y<height; y++){
+			for(int x=0; x<width; x++){
+				dArray = newRaster.getPixel(x * factor, y * factor, dArray);
+				tempRaster.setPixel(x, y, dArray);
 			}
-			ColorModel cm2 = new ComponentColorModel(ColorSpace.getInstance(ColorSpace.CS_GRAY), 
-					false, false, Transparency.OPAQUE, finalRaster.getTransferType());
-			finalImage = new BufferedImage(cm2, finalRaster, false, null);
-		} else {
-			finalImage = outImage;
 		}
 		
-		return data.getDeepCopyShell(finalImage, null);
+		WritableRaster outRaster = op.filter(tempRaster, null);
+		
+		width = outRaster.getWidth() * factor;
+		height = outRaster.getHeight() * factor;
+		sm = new BandedSampleModel(DataBuffer.TYPE_FLOAT, width, height, 1);
+		WritableRaster finalRaster = Raster.createWritableRaster(sm, null);
+		
+		//scale up the image to current ppd
+		for(int y=0; y<height; y++){
+			for(int x=0; x<width; x++){
+				dArray = outRaster.getPixel(x/factor, y/factor, dArray);
+				finalRaster.setPixel(x, y, dArray);
+			}
+		}
+		ColorModel cm2 = new ComponentColorModel(ColorSpace.getInstance(ColorSpace.CS_GRAY), 
+				false, false, Transparency.OPAQUE, finalRaster.getTransferType());
+		return new BufferedImage(cm2, finalRaster, false, null);
 	}
 
 	public MapAttr[] consumes(int inputNumber){
@@ -112,9 +112,7 @@ public class MosaicsLView extends LView implements MouseListener {
 		Graphics2D g2sc = getOffScreenG2Direct();
 		if (g2w != null) {
 			ShapeRenderer sr = getFeatureRenderer(selections);
-			for (Feature f: features) {
-				sr.draw(g2w, g2sc, f);
-			}
+			sr.draw(g2w, g2sc, features);
 		}
 		repaint();
 	}
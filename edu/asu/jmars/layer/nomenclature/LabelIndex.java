@@ -0,0 +1,77 @@
+package edu.asu.jmars.layer.nomenclature;
+
+import java.awt.geom.Rectangle2D;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A uniform grid of the rectangles already claimed on the map, used to find
+ * label placements that don't overlap other labels or landmark points.
+ *
+ * Each rectangle is stored in every cell it touches, so a query only looks
+ * at the rectangles near it, and placing N labels costs about O(N) rather
+ * than comparing each label against every other one. The cell size should
+ * be on the order of a label's size; it is given in world units.
+ */
+final class LabelIndex {
+	private final Map<Long,List<Rectangle2D>> cells = new HashMap<Long,List<Rectangle2D>>();
+	private double cellWidth = 1;
+	private double cellHeight = 1;
+
+	/** Removes every rectangle, and sets the cell size for those added afterward */
+	public void clear(double cellWidth, double cellHeight) {
+		cells.clear();
+		this.cellWidth = cellWidth > 0 ? cellWidth : 1;
+		this.cellHeight = cellHeight > 0 ? cellHeight : 1;
+	}
+
+	/** Claims the given rectangle */
+	public void add(Rectangle2D rect) {
+		int x0 = cellX(rect.getMinX()), x1 = cellX(rect.getMaxX());
+		int y0 = cellY(rect.getMinY()), y1 = cellY(rect.getMaxY());
+		for (int y = y0; y <= y1; y++) {
+			for (int x = x0; x <= x1; x++) {
+				Long key = key(x, y);
+				List<Rectangle2D> list = cells.get(key);
+				if (list == null) {
+					cells.put(key, list = new ArrayList<Rectangle2D>(4));
+				}
+				list.add(rect);
+			}
+		}
+	}
+
+	/** @return true if the given rectangle intersects any claimed rectangle */
+	public boolean conflicts(Rectangle2D rect) {
+		int x0 = cellX(rect.getMinX()), x1 = cellX(rect.getMaxX());
+		int y0 = cellY(rect.getMinY()), y1 = cellY(rect.getMaxY());
+		for (int y = y0; y <= y1; y++) {
+			for (int x = x0; x <= x1; x++) {
+				List<Rectangle2D> list = cells.get(key(x, y));
+				if (list == null) {
+					continue;
+				}
+				for (Rectangle2D r: list) {
+					if (rect.intersects(r)) {
+						return true;
+					}
+				}
+			}
+		}
+		return false;
+	}
+
+	private int cellX(double x) {
+		return (int)Math.floor(x / cellWidth);
+	}
+
+	private int cellY(double y) {
+		return (int)Math.floor(y / cellHeight);
+	}
+
+	private static Long key(int x, int y) {
+		return ((long)x << 32) | (y & 0xffffffffL);
+	}
+}
@@ -25,8 +25,11 @@ import java.io.FileReader;
 import java.io.InputStreamReader;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
@@ -71,6 +74,16 @@ public class NomenclatureLView extends Layer.LView {
 	private List<MarsFeature> landmarks = new ArrayList<MarsFeature>();
 	private Set<String> landmarkTypes = new HashSet<String>();
 	private Map<MarsFeature,Rectangle2D> labelLocations = new HashMap<MarsFeature,Rectangle2D>();
+	/** Every point box and label placed by the current redraw */
+	private final LabelIndex labelIndex = new LabelIndex();
+	/**
+	 * The position each label was given by the previous redraw, tried first
+	 * when the scale is unchanged so labels stay put while panning
+	 */
+	private Map<MarsFeature,Integer> labelPlacements = new HashMap<MarsFeature,Integer>();
+	private Map<MarsFeature,Integer> lastLabelPlacements = new HashMap<MarsFeature,Integer>();
+	private double lastPixelWidth = Double.NaN;
+	private Font lastLabelFont = null;
 	private Font labelFont = null;
 
 	public NomenclatureLView(Layer parent) {
@@ -229,14 +242,45 @@ public class NomenclatureLView extends Layer.LView {
 			return;
 		}
 		
+		// previous placements only make sense at the same scale
+		Dimension2D pixelSize = getProj().getPixelSize();
+		if (pixelSize.getWidth() != lastPixelWidth || !labelFont.equals(lastLabelFont)) {
+			lastLabelPlacements.clear();
+		}
+		lastPixelWidth = pixelSize.getWidth();
+		lastLabelFont = labelFont;
+		labelIndex.clear(pixelSize.getWidth() * 64, pixelSize.getHeight() * 32);
+		
+		// draw every point first, so labels avoid points of landmarks
+		// whose labels come later
+		Map<MarsFeature,Point2D[]> visible = new LinkedHashMap<MarsFeature,Point2D[]>();
 		for (int i = 0; i < landmarks.size(); i++) {
 			MarsFeature mf = landmarks.get(i);
 			if (settings.showLandmarkTypes.contains(mf.landmarkType)) {
 				Point2D p = new Point2D.Double(mf.longitude, mf.latitude);
-				Point2D[] worldPoints = spatialG2.spatialToWorlds(p);
-				mf.draw(g1, g2, worldPoints);
+				Point2D[] worldPoints = mf.drawPoints(g2, spatialG2.spatialToWorlds(p));
+				if (worldPoints.length > 0) {
+					visible.put(mf, worldPoints);
+				}
 			}
 		}
+		
+		// then place labels, largest features first
+		List<MarsFeature> order = new ArrayList<MarsFeature>(visible.keySet());
+		Collections.sort(order, new Comparator<MarsFeature>() {
+			public int compare(MarsFeature a, MarsFeature b) {
+				return Double.compare(b.diameter, a.diameter);
+			}
+		});
+		labelPlacements.clear();
+		for (MarsFeature mf: order) {
+			for (Point2D pt: visible.get(mf)) {
+				mf.drawLabel(g1, g2, pt);
+			}
+		}
+		Map<MarsFeature,Integer> swap = lastLabelPlacements;
+		lastLabelPlacements = labelPlacements;
+		labelPlacements = swap;
 	}
 
 	protected Component[] getContextMenuTop(Point2D worldPt) {
@@ -794,8 +838,6 @@ public class NomenclatureLView extends Layer.LView {
 		public double longitude;
 		public double diameter;
 		public String origin = "";
-		// do not assume this to be the same value always
-		public Point2D thisWorldPoint = new Point2D.Double(0, 0);
 
 		public String getPopupInfo(boolean showAsHTML) {
 			String info = "";
@@ -829,10 +871,14 @@ public class NomenclatureLView extends Layer.LView {
 			return info;
 		}
 
-		public void draw(Graphics2D g1, Graphics2D g2, Point2D[] worldPoints) {
+		/**
+		 * Draws the point at each of the given world locations that is in
+		 * view, and returns those locations.
+		 */
+		public Point2D[] drawPoints(Graphics2D g2, Point2D[] worldPoints) {
 			// nothing to draw
 			if (worldPoints == null || worldPoints.length == 0)
-				return;
+				return new Point2D[0];
 
 			Rectangle2D worldwin = getProj().getWorldWindow();
 
@@ -840,15 +886,16 @@ public class NomenclatureLView extends Layer.LView {
 				worldwin = HighResExport.fullExportExtent;
 			}
 			
+			List<Point2D> drawn = new ArrayList<Point2D>(worldPoints.length);
 			for (int i = 0; i < worldPoints.length; i++) {
 
 				if (!worldwin.contains(worldPoints[i]))
 					continue;
 
 				drawPoint(g2, worldPoints[i]);
-				drawLabel(g1, g2, worldPoints[i]);
-
+				drawn.add(worldPoints[i]);
 			}
+			return drawn.toArray(new Point2D[drawn.size()]);
 		}
 
 		protected void drawPoint(Graphics2D g2, Point2D worldPoint) {
@@ -877,29 +924,12 @@ public class NomenclatureLView extends Layer.LView {
 
 			// store the labels location
 			labelLocations.put(this, box);
+			labelIndex.add(box);
 		}
 
 		protected boolean inConflict(Rectangle2D r) {
-			// check for conflicts with other locations
-			for (int i = 0; i < landmarks.size(); i++) {
-
-				MarsFeature mf = (MarsFeature) landmarks.get(i);
-
-				// skip this one
-				if (mf.equals(MarsFeature.this))
-					continue;
-
-				if (r.contains(mf.thisWorldPoint))
-					return true;
-			}
-
-			// check for conflicts with other labels
-			for (Rectangle2D existingRect: labelLocations.values()) {
-				if (r.intersects(existingRect))
-					return true;
-			}
-
-			return false;
+			// check for conflicts with landmark points and other labels
+			return labelIndex.conflicts(r);
 		}
 
 		protected void drawLabel(Graphics2D g1, Graphics2D g2, Point2D pt) {
@@ -923,23 +953,33 @@ public class NomenclatureLView extends Layer.LView {
 			// we want to include the point in the bounds
 			double yLoc = pt.getY() - yHeight * .7;
 
-			Rectangle2D.Double labelLoc = new Rectangle2D.Double(xLoc, yLoc, xWidth, yHeight);
-			if (inConflict(labelLoc)) {
-				// try some different locations if there is a conflict with
-				// other labels or points
-				yLoc = pt.getY() + yHeight * .3;
-				labelLoc = new Rectangle2D.Double(xLoc, yLoc, xWidth, yHeight);
-
-				if (inConflict(labelLoc)) {
-					xLoc = pt.getX() + getProj().getPixelSize().getWidth() * 5;
-					yLoc = pt.getY();
-					labelLoc = new Rectangle2D.Double(xLoc, yLoc, xWidth, yHeight);
+			// try some different locations if there is a conflict with
+			// other labels or points, keeping the last one regardless
+			Rectangle2D[] candidates = {
+				new Rectangle2D.Double(xLoc, yLoc, xWidth, yHeight),
+				new Rectangle2D.Double(xLoc, pt.getY() + yHeight * .3, xWidth, yHeight),
+				new Rectangle2D.Double(pt.getX() + getProj().getPixelSize().getWidth() * 5, pt.getY(), xWidth, yHeight)
+			};
+			Integer last = lastLabelPlacements.get(this);
+			int choice;
+			if (last != null && !inConflict(candidates[last])) {
+				choice = last;
+			} else {
+				choice = candidates.length - 1;
+				for (int i = 0; i < candidates.length - 1; i++) {
+					if (!inConflict(candidates[i])) {
+						choice = i;
+						break;
+					}
 				}
 			}
+			Rectangle2D labelLoc = candidates[choice];
+			labelPlacements.put(this, choice);
 
 			// store the labels location - ok to overwrite point locations since
 			// they are inclusive
 			labelLocations.put(this, labelLoc);
+			labelIndex.add(labelLoc);
 
 			pt = getProj().world.toScreen(labelLoc.getX(), labelLoc.getY());
 
@@ -1,5 +1,6 @@
 package edu.asu.jmars.layer.shape2;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
@@ -17,6 +18,8 @@ import edu.asu.jmars.layer.util.features.FeatureCollection;
 import edu.asu.jmars.layer.util.features.FeatureEvent;
 import edu.asu.jmars.layer.util.features.FeatureListener;
 import edu.asu.jmars.layer.util.features.Field;
+import edu.asu.jmars.layer.util.features.FieldMap;
+import edu.asu.jmars.util.Config;
 import edu.asu.jmars.util.History;
 import edu.asu.jmars.util.Versionable;
 
@@ -84,6 +87,9 @@ public class CalcFieldListener implements Versionable, FeatureListener {
 		}
 	}
 	
+	/** Number of features whose map sampling fields are computed together */
+	private static final int SAMPLING_BATCH = Config.get("shape.sampling.batch", 2000);
+	
 	private Thread workingThread;
 	private final List<Collection<Feature>> workingFeatures = new LinkedList<Collection<Feature>>();
 	private final List<Map<Field,CalculatedField>> workingFields = new LinkedList<Map<Field,CalculatedField>>();
@@ -150,23 +156,32 @@ public class CalcFieldListener implements Versionable, FeatureListener {
 					// in shape rendering.
 					int delay = Collections.disjoint(layer.getStyles().getFields(), fieldMap.keySet()) ? 500 : 10000;
 					
-					for (Feature feature: features) {
-						Map<Field,Object> values;
-						if (fieldMap.size() == 1) {
-							Entry<Field,CalculatedField> entry = fieldMap.entrySet().iterator().next();
-							values = Collections.singletonMap(
-								entry.getKey(),
-								entry.getValue().getValue(layer, feature));
-						} else {
-							values = new HashMap<Field,Object>();
-							for (Entry<Field,CalculatedField> entry: fieldMap.entrySet()) {
-								values.put(entry.getKey(), entry.getValue().getValue(layer, feature));
+					List<Feature> featureList = new ArrayList<Feature>(features);
+					for (int start = 0; start < featureList.size(); start += SAMPLING_BATCH) {
+						List<Feature> batch = featureList.subList(start, Math.min(featureList.size(), start + SAMPLING_BATCH));
+						
+						// map sampling fields are computed for the whole batch
+						// at once, so each map tile is only fetched once
+						Map<Field,Map<Feature,Object>> sampled = FieldMap.getValues(layer, batch, fieldMap);
+						
+						for (Feature feature: batch) {
+							Map<Field,Object> values;
+							if (fieldMap.size() == 1) {
+								Entry<Field,CalculatedField> entry = fieldMap.entrySet().iterator().next();
+								values = Collections.singletonMap(
+									entry.getKey(),
+									getValue(sampled, entry, feature));
+							} else {
+								values = new HashMap<Field,Object>();
+								for (Entry<Field,CalculatedField> entry: fieldMap.entrySet()) {
+									values.put(entry.getKey(), getValue(sampled, entry, feature));
+								}
+							}
+							feat2fld2val.put(feature, values);
+							// Send event after 50,000 cells or enough time has passed
+							if (feat2fld2val.size() > 50000/fieldMap.size() || System.currentTimeMillis() - lastTime > delay) {
+								send();
 							}
-						}
-						feat2fld2val.put(feature, values);
-						// Send event after 50,000 cells or enough time has passed
-						if (feat2fld2val.size() > 50000/fieldMap.size() || System.currentTimeMillis() - lastTime > delay) {
-							send();
 						}
 					}
 					if (!feat2fld2val.isEmpty()) {
@@ -175,6 +190,16 @@ public class CalcFieldListener implements Versionable, FeatureListener {
 					return true;
 				}
 				
+				/** @return the batch sampled value if there is one, or else the value computed for just this feature */
+				private Object getValue(Map<Field,Map<Feature,Object>> sampled, Entry<Field,CalculatedField> entry, Feature feature) {
+					Map<Feature,Object> values = sampled.get(entry.getKey());
+					if (values != null) {
+						return values.get(feature);
+					} else {
+						return entry.getValue().getValue(layer, feature);
+					}
+				}
+				
 				/** dispatch results to the feature collection */
 				private void send() {
 					try {
@@ -56,6 +56,7 @@ import edu.asu.jmars.graphics.GraphicsWrapped;
 import edu.asu.jmars.layer.map2.MapChannelReceiver;
 import edu.asu.jmars.layer.map2.MapChannelTiled;
 import edu.asu.jmars.layer.map2.MapData;
+import edu.asu.jmars.layer.map2.MapRequest;
 import edu.asu.jmars.layer.map2.MapSource;
 import edu.asu.jmars.layer.map2.Pipeline;
 import edu.asu.jmars.layer.map2.Stage;
@@ -763,6 +764,7 @@ public class PixelExportDialog extends JDialog{
 		@Override
 		public void run() {
 			try{
+				ch.setPriority(MapRequest.Priority.CHART);
 				ch.setRequest(Main.PO, bounds, ppd, new Pipeline[]{new Pipeline(source, new Stage[0])});
 			}catch (Exception e){
 				e.printStackTrace();
@@ -737,6 +737,8 @@ public class ShapeLView extends LView implements FeatureListener, ObservableSetL
 	 *  @see SerializingThread#add(Runnable)
 	 */
 	private class DrawingUow implements Runnable {
+		/** Number of features handed to the renderer at once */
+		private static final int DRAW_BATCH = 256;
 		private final Iterator<Feature> features;
 		private final long timeStamp;
 		private final boolean selected;
@@ -779,17 +781,23 @@ public class ShapeLView extends LView implements FeatureListener, ObservableSetL
 				
 				clearOffScreen(selected? 1: 0);
 				
+				// draw in batches so the renderer can share graphics state
+				// between features that look the same
+				List<Feature> batch = new ArrayList<Feature>(DRAW_BATCH);
 				while (features.hasNext()) {
-					Feature f = features.next();
+					batch.clear();
+					while (features.hasNext() && batch.size() < DRAW_BATCH) {
+						batch.add(features.next());
+					}
 					if (superceeded()){
 						log.println(toString()+" superceeded.");
 						break;
 					}
 					
-					sr.draw(g2world, g2screen, f);
+					sr.draw(g2world, g2screen, batch);
+					position += batch.size();
 					updatePaint();
 					updateProgress(position, featureCount);
-					position ++;
 				}
 			} finally {
 			    shapeLayer.end(led);
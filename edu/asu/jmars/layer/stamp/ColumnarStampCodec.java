@@ -0,0 +1,411 @@
+package edu.asu.jmars.layer.stamp;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import edu.asu.msff.ResponseInfo;
+import edu.asu.msff.StampInterface;
+
+/**
+ * Reads and writes stamp query results in a compact columnar format, as an
+ * alternative to one Java serialized object per stamp.
+ *
+ * A stream starts with a magic number and version, the response status,
+ * message and record count, and the column names and classes. Stamps follow
+ * in blocks, each prefixed by its length in bytes and its record count, and
+ * a block with no records ends the stream. Within a block the ids come
+ * first, then the footprints as float arrays of west-leading longitude and
+ * latitude pairs, then the values of each data column in turn. Every value
+ * starts with a one byte type tag, and a value equal to the one in the row
+ * above it is sent as a single tag byte.
+ *
+ * The {@link Reader} decodes one block at a time into {@link CompactStamp}s,
+ * so callers can show the first stamps while the rest are still arriving.
+ * {@link #isColumnar} tells a columnar response from a Java serialized one,
+ * so older servers keep working.
+ */
+public final class ColumnarStampCodec {
+	/** "JSTC" */
+	private static final int MAGIC = 0x4A535443;
+	private static final int VERSION = 1;
+	/** Number of stamps per block written by {@link Writer} */
+	private static final int BLOCK_SIZE = 1000;
+
+	private static final byte NULL = 0;
+	private static final byte SAME = 1;
+	private static final byte STRING = 2;
+	private static final byte INT = 3;
+	private static final byte LONG = 4;
+	private static final byte DOUBLE = 5;
+	private static final byte FLOAT = 6;
+	private static final byte BOOLEAN = 7;
+	private static final byte SHORT = 8;
+	private static final byte BYTE = 9;
+	private static final byte DATE = 10;
+	private static final byte TIMESTAMP = 11;
+	private static final byte DOUBLES = 12;
+	private static final byte FLOATS = 13;
+	private static final byte INTS = 14;
+	/** Anything else, as a length prefixed Java serialized object */
+	private static final byte OBJECT = 15;
+
+	private ColumnarStampCodec() {
+	}
+
+	/**
+	 * Returns true if the stream starts with a columnar response, without
+	 * consuming anything from it.
+	 */
+	public static boolean isColumnar(BufferedInputStream in) throws IOException {
+		in.mark(4);
+		try {
+			return new DataInputStream(in).readInt() == MAGIC;
+		} catch (EOFException e) {
+			return false;
+		} finally {
+			in.reset();
+		}
+	}
+
+	/** Decodes a columnar response one block of stamps at a time */
+	public static final class Reader {
+		private final DataInputStream in;
+		private final ResponseInfo info;
+		private final String[] columnNames;
+		private final Class<?>[] columnClasses;
+		private boolean done;
+
+		/** Reads the header from the given stream */
+		public Reader(InputStream input) throws IOException {
+			in = new DataInputStream(input);
+			if (in.readInt() != MAGIC) {
+				throw new IOException("Not a columnar stamp response");
+			}
+			int version = in.readInt();
+			if (version != VERSION) {
+				throw new IOException("Unsupported columnar stamp response version " + version);
+			}
+			int status = in.readInt();
+			String message = in.readBoolean() ? in.readUTF() : null;
+			info = new ResponseInfo(status, message);
+			info.setRecordCnt(in.readInt());
+			int cols = in.readInt();
+			columnNames = new String[cols];
+			columnClasses = new Class<?>[cols];
+			for (int i = 0; i < cols; i++) {
+				columnNames[i] = in.readUTF();
+				String className = in.readUTF();
+				try {
+					columnClasses[i] = Class.forName(className);
+				} catch (ClassNotFoundException e) {
+					columnClasses[i] = Object.class;
+				}
+			}
+		}
+
+		public ResponseInfo getInfo() {
+			return info;
+		}
+
+		public String[] getColumnNames() {
+			return columnNames;
+		}
+
+		public Class<?>[] getColumnClasses() {
+			return columnClasses;
+		}
+
+		/** @return the stamps in the next block, or null when the stream is finished */
+		public List<StampInterface> nextBlock() throws IOException {
+			if (done) {
+				return null;
+			}
+			int length = in.readInt();
+			if (length == 0) {
+				done = true;
+				return null;
+			}
+			byte[] block = new byte[length];
+			in.readFully(block);
+			DataInputStream bin = new DataInputStream(new ByteArrayInputStream(block));
+
+			int count = bin.readInt();
+			String[] ids = new String[count];
+			Object prev = null;
+			for (int i = 0; i < count; i++) {
+				prev = ids[i] = (String)readValue(bin, prev);
+			}
+			float[][] points = new float[count][];
+			for (int i = 0; i < count; i++) {
+				float[] pts = new float[bin.readInt()];
+				for (int p = 0; p < pts.length; p++) {
+					pts[p] = bin.readFloat();
+				}
+				points[i] = pts;
+			}
+			Object[][] data = new Object[count][columnNames.length];
+			for (int c = 0; c < columnNames.length; c++) {
+				prev = null;
+				for (int i = 0; i < count; i++) {
+					prev = data[i][c] = readValue(bin, prev);
+				}
+			}
+
+			List<StampInterface> stamps = new ArrayList<StampInterface>(count);
+			for (int i = 0; i < count; i++) {
+				stamps.add(new CompactStamp(ids[i], points[i], data[i]));
+			}
+			return stamps;
+		}
+	}
+
+	private static Object readValue(DataInputStream in, Object prev) throws IOException {
+		byte tag = in.readByte();
+		switch (tag) {
+		case NULL:
+			return null;
+		case SAME:
+			return prev;
+		case STRING:
+			byte[] utf = new byte[in.readInt()];
+			in.readFully(utf);
+			return new String(utf, "UTF-8");
+		case INT:
+			return in.readInt();
+		case LONG:
+			return in.readLong();
+		case DOUBLE:
+			return in.readDouble();
+		case FLOAT:
+			return in.readFloat();
+		case BOOLEAN:
+			return in.readBoolean();
+		case SHORT:
+			return in.readShort();
+		case BYTE:
+			return in.readByte();
+		case DATE:
+			return new Date(in.readLong());
+		case TIMESTAMP:
+			java.sql.Timestamp ts = new java.sql.Timestamp(in.readLong());
+			ts.setNanos(in.readInt());
+			return ts;
+		case DOUBLES: {
+			double[] v = new double[in.readInt()];
+			for (int i = 0; i < v.length; i++) {
+				v[i] = in.readDouble();
+			}
+			return v;
+		}
+		case FLOATS: {
+			float[] v = new float[in.readInt()];
+			for (int i = 0; i < v.length; i++) {
+				v[i] = in.readFloat();
+			}
+			return v;
+		}
+		case INTS: {
+			int[] v = new int[in.readInt()];
+			for (int i = 0; i < v.length; i++) {
+				v[i] = in.readInt();
+			}
+			return v;
+		}
+		case OBJECT:
+			byte[] bytes = new byte[in.readInt()];
+			in.readFully(bytes);
+			try {
+				return new ObjectInputStream(new ByteArrayInputStream(bytes)).readObject();
+			} catch (ClassNotFoundException e) {
+				throw new IOException("Unknown class in columnar stamp response: " + e.getMessage());
+			}
+		default:
+			throw new IOException("Unknown value tag " + tag + " in columnar stamp response");
+		}
+	}
+
+	/**
+	 * Encodes stamps in the columnar format, for local caches and stand-in
+	 * servers. Footprints are taken from {@link StampInterface#getPoints()}
+	 * as west-leading longitudes, exactly as the {@link Reader} returns them.
+	 */
+	public static final class Writer {
+		private final DataOutputStream out;
+		private final int columns;
+		private final List<StampInterface> pending = new ArrayList<StampInterface>(BLOCK_SIZE);
+
+		/** Writes the header to the given stream */
+		public Writer(OutputStream output, ResponseInfo info, String[] columnNames, Class<?>[] columnClasses) throws IOException {
+			out = new DataOutputStream(output);
+			columns = columnNames.length;
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(info.getStatus());
+			out.writeBoolean(info.getMessage() != null);
+			if (info.getMessage() != null) {
+				out.writeUTF(info.getMessage());
+			}
+			out.writeInt(info.getRecordCnt());
+			out.writeInt(columns);
+			for (int i = 0; i < columns; i++) {
+				out.writeUTF(columnNames[i]);
+				out.writeUTF(columnClasses[i] == null ? Object.class.getName() : columnClasses[i].getName());
+			}
+		}
+
+		/** Adds a stamp, writing a block whenever enough stamps have been added */
+		public void write(StampInterface stamp) throws IOException {
+			pending.add(stamp);
+			if (pending.size() >= BLOCK_SIZE) {
+				flushBlock();
+			}
+		}
+
+		/** Writes any remaining stamps and the end of the stream, and flushes it */
+		public void finish() throws IOException {
+			flushBlock();
+			out.writeInt(0);
+			out.flush();
+		}
+
+		private void flushBlock() throws IOException {
+			if (pending.isEmpty()) {
+				return;
+			}
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream bout = new DataOutputStream(bytes);
+			bout.writeInt(pending.size());
+			Object prev = null;
+			for (StampInterface s: pending) {
+				writeValue(bout, s.getId(), prev);
+				prev = s.getId();
+			}
+			for (StampInterface s: pending) {
+				if (s instanceof CompactStamp) {
+					float[] pts = ((CompactStamp)s).getFloatPoints();
+					bout.writeInt(pts.length);
+					for (float f: pts) {
+						bout.writeFloat(f);
+					}
+				} else {
+					double[] pts = s.getPoints();
+					bout.writeInt(pts.length);
+					for (double d: pts) {
+						bout.writeFloat((float)d);
+					}
+				}
+			}
+			for (int c = 0; c < columns; c++) {
+				prev = null;
+				for (StampInterface s: pending) {
+					Object[] data = s.getData();
+					Object value = data != null && c < data.length ? data[c] : null;
+					writeValue(bout, value, prev);
+					prev = value;
+				}
+			}
+			bout.flush();
+			out.writeInt(bytes.size());
+			bytes.writeTo(out);
+			pending.clear();
+		}
+	}
+
+	private static void writeValue(DataOutputStream out, Object v, Object prev) throws IOException {
+		if (v == null) {
+			out.writeByte(NULL);
+		} else if (prev != null && isSame(v, prev)) {
+			out.writeByte(SAME);
+		} else if (v instanceof String) {
+			byte[] utf = ((String)v).getBytes("UTF-8");
+			out.writeByte(STRING);
+			out.writeInt(utf.length);
+			out.write(utf);
+		} else if (v instanceof Integer) {
+			out.writeByte(INT);
+			out.writeInt((Integer)v);
+		} else if (v instanceof Long) {
+			out.writeByte(LONG);
+			out.writeLong((Long)v);
+		} else if (v instanceof Double) {
+			out.writeByte(DOUBLE);
+			out.writeDouble((Double)v);
+		} else if (v instanceof Float) {
+			out.writeByte(FLOAT);
+			out.writeFloat((Float)v);
+		} else if (v instanceof Boolean) {
+			out.writeByte(BOOLEAN);
+			out.writeBoolean((Boolean)v);
+		} else if (v instanceof Short) {
+			out.writeByte(SHORT);
+			out.writeShort((Short)v);
+		} else if (v instanceof Byte) {
+			out.writeByte(BYTE);
+			out.writeByte((Byte)v);
+		} else if (v instanceof java.sql.Timestamp) {
+			out.writeByte(TIMESTAMP);
+			out.writeLong(((java.sql.Timestamp)v).getTime());
+			out.writeInt(((java.sql.Timestamp)v).getNanos());
+		} else if (v.getClass() == Date.class) {
+			out.writeByte(DATE);
+			out.writeLong(((Date)v).getTime());
+		} else if (v instanceof double[]) {
+			double[] a = (double[])v;
+			out.writeByte(DOUBLES);
+			out.writeInt(a.length);
+			for (double d: a) {
+				out.writeDouble(d);
+			}
+		} else if (v instanceof float[]) {
+			float[] a = (float[])v;
+			out.writeByte(FLOATS);
+			out.writeInt(a.length);
+			for (float f: a) {
+				out.writeFloat(f);
+			}
+		} else if (v instanceof int[]) {
+			int[] a = (int[])v;
+			out.writeByte(INTS);
+			out.writeInt(a.length);
+			for (int i: a) {
+				out.writeInt(i);
+			}
+		} else {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			ObjectOutputStream oos = new ObjectOutputStream(bytes);
+			oos.writeObject(v);
+			oos.close();
+			out.writeByte(OBJECT);
+			out.writeInt(bytes.size());
+			bytes.writeTo(out);
+		}
+	}
+
+	/** Repeats are only collapsed for values whose type survives the round trip */
+	private static boolean isSame(Object v, Object prev) {
+		if (v.getClass() != prev.getClass()) {
+			return false;
+		}
+		if (v instanceof double[]) {
+			return Arrays.equals((double[])v, (double[])prev);
+		} else if (v instanceof float[]) {
+			return Arrays.equals((float[])v, (float[])prev);
+		} else if (v instanceof int[]) {
+			return Arrays.equals((int[])v, (int[])prev);
+		}
+		return v.equals(prev);
+	}
+}
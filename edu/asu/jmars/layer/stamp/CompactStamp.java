@@ -0,0 +1,71 @@
+package edu.asu.jmars.layer.stamp;
+
+import java.io.Serializable;
+import java.lang.ref.SoftReference;
+
+import edu.asu.msff.StampInterface;
+
+/**
+ * A stamp record decoded by {@link ColumnarStampCodec}, which keeps its
+ * footprint as a float array of west-leading longitude and latitude pairs.
+ *
+ * {@link #getPoints()} widens the footprint to doubles on first use and keeps
+ * the result in a soft reference, so the stamps currently being drawn pay
+ * for the conversion once, while the double copies of idle stamps can be
+ * reclaimed under memory pressure.
+ */
+public final class CompactStamp implements StampInterface, Serializable {
+	private static final long serialVersionUID = 1L;
+
+	private final String id;
+	private final Object[] data;
+	private final float[] points;
+	private transient SoftReference<double[]> widened;
+
+	/**
+	 * @param points West-leading longitude and latitude pairs, in degrees,
+	 * with NaN pairs separating disjoint parts.
+	 */
+	public CompactStamp(String id, float[] points, Object[] data) {
+		this.id = id;
+		this.points = points;
+		this.data = data;
+	}
+
+	public String getId() {
+		return id;
+	}
+
+	public Object[] getData() {
+		return data;
+	}
+
+	/** @return the footprint as stored, which must not be modified */
+	public float[] getFloatPoints() {
+		return points;
+	}
+
+	public double[] getPoints() {
+		double[] pts = widened == null ? null : widened.get();
+		if (pts == null) {
+			pts = new double[points.length];
+			for (int i = 0; i < pts.length; i++) {
+				pts[i] = points[i];
+			}
+			widened = new SoftReference<double[]>(pts);
+		}
+		return pts;
+	}
+
+	public String toString() {
+		return id;
+	}
+
+	public int hashCode() {
+		return id.hashCode();
+	}
+
+	public boolean equals(Object obj) {
+		return obj instanceof CompactStamp && ((CompactStamp)obj).id.equals(id);
+	}
+}
@@ -14,7 +14,14 @@ import java.awt.image.DataBufferFloat;
 import java.awt.image.Raster;
 import java.awt.image.SampleModel;
 import java.awt.image.WritableRaster;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import edu.asu.jmars.Main;
 import edu.asu.jmars.ProjObj;
@@ -23,10 +30,23 @@ import edu.asu.jmars.layer.stamp.projection.JMARSCylindrical;
 import edu.asu.jmars.layer.stamp.projection.SimpleCylindrical;
 import edu.asu.jmars.layer.stamp.projection.Projection;
 import edu.asu.jmars.layer.stamp.projection.Unprojected;
+import edu.asu.jmars.util.Config;
 import edu.asu.jmars.util.HVector;
 import edu.asu.jmars.util.Util;
 
 public class ImageProjecter {
+	/** Destinations smaller than this many pixels are filled on the calling thread */
+	private static final int PARALLEL_PIXELS = Config.get("stamp.projecter.parallelPixels", 65536);
+
+	private static ExecutorService pool;
+
+	private static synchronized ExecutorService getPool() {
+		if (pool == null) {
+			int procs = Math.max(1, Runtime.getRuntime().availableProcessors());
+			pool = Executors.newFixedThreadPool(procs, new StampThreadFactory("Stamp Projecter"));
+		}
+		return pool;
+	}
 
 	ImageFrame frame;
 
@@ -92,6 +112,10 @@ public class ImageProjecter {
 
 		this.proj = frame.wholeStamp.imageProjection;
 
+		mappingKey = instrument + ":" + frame.productID + ":" + frameNum + ":" + renderPPD + ":" + where + ":"
+			+ srcWidth + "x" + srcHeight + ":" + srcOffsetX + "," + srcOffsetY + ":" + frame.wholeStamp.isFullImageLocal() + ":"
+			+ proj.getUpLon() + "," + proj.getUpLat() + "," + proj.getCenterLon() + "," + proj.getCenterLat();
+
 	}
 
 	Cell cell = null; // Not used in all cases.  How do we initialize?
@@ -134,176 +158,240 @@ public class ImageProjecter {
 
 	JMARSCylindrical dstProj = null;
 
-	// TODO: Are we loading these into memory multiple times?
-			// Can we point to the same memory being used by the ACTUAL frame these belong to?
-	BufferedImage prevImage = null;
-	BufferedImage nextImage = null;
-	BufferedImage aboveImage = null;
-	BufferedImage belowImage = null;
+	// The frames around this one, loaded before filling when the projection reaches into them
+	private SourcePixels prevPixels = null;
+	private SourcePixels nextPixels = null;
+	private SourcePixels abovePixels = null;
+	private SourcePixels belowPixels = null;
+
+	/** Key of the source to destination mapping for this frame in {@link ProjectionCache} */
+	private final String mappingKey;
+
+	/** The pixels of one source frame, copied out of its image once */
+	private static final class SourcePixels {
+		final int width;
+		final int height;
+		/** Non-premultiplied ARGB values, for color images */
+		final int[] argb;
+		/** Sample values with missing data replaced by the ignore value, for numeric images */
+		final float[] values;
+		SourcePixels(BufferedImage image, boolean numeric) {
+			width = image.getWidth();
+			height = image.getHeight();
+			if (numeric) {
+				argb = null;
+				values = image.getRaster().getSamples(0, 0, width, height, 0, (float[])null);
+				for (int k = 0; k < values.length; k++) {
+					// This will catch -Float.MAX_VALUE and similar values, and the PDS null value
+					if (values[k] < -1000000 || values[k] == -32768) {
+						values[k] = StampImage.IGNORE_VALUE;
+					}
+				}
+			} else {
+				values = null;
+				if (image.getType() == BufferedImage.TYPE_INT_ARGB) {
+					argb = (int[])image.getRaster().getDataElements(0, 0, width, height, null);
+				} else {
+					argb = image.getRGB(0, 0, width, height, null, 0, width);
+				}
+			}
+		}
+	}
+
+	/** Returns the pixels of the given frame, or null if the frame or its image is missing */
+	private SourcePixels loadFrame(int num) {
+		if (num < 0 || num >= frame.wholeStamp.frames.length) {
+			return null;
+		}
+		BufferedImage image = frame.wholeStamp.frames[num].loadSrcImage();
+		return image == null ? null : new SourcePixels(image, frame.wholeStamp.isNumeric);
+	}
+
+	/** Loads the neighboring frames that the given mapping reaches into */
+	private void loadNeighbors(ProjectionCache.Mapping m, int srcW, int srcH) {
+		boolean prev = false, next = false, above = false, below = false;
+		boolean lastFrame = !(frame.wholeStamp.frames.length > frameNum+1);
+		for (int k = 0; k < m.samples.length; k++) {
+			int sample = m.samples[k];
+			int line = m.lines[k];
+			if (line<0 && sample<0) {
+				continue;
+			}
+			if (sample<0 && frameNum>0) {
+				prev = true;
+			} else if (line<0) {
+				above = true;
+			} else if (line>=srcH) {
+				below = true;
+			} else if (sample>=srcW && !lastFrame) {
+				next = true;
+			}
+		}
+		if (prev && prevPixels == null) {
+			prevPixels = loadFrame(frameNum-1);
+		}
+		if (next && nextPixels == null) {
+			nextPixels = loadFrame(frameNum+1);
+		}
+		if (above && abovePixels == null) {
+			abovePixels = loadFrame(frameNum-frame.wholeStamp.horizontalSplitCnt);
+		}
+		if (below && belowPixels == null) {
+			belowPixels = loadFrame(frameNum+frame.wholeStamp.horizontalSplitCnt);
+		}
+	}
 
 	// FillImage copied from THEMISImage... previously just used for DCS
 	// For HiRISE, this doesn't seem to make a significant difference.
 	// Pro of doing everything this way: Fewer code paths.
-	public void fillImage(int xsrcArray[][], int ysrcArray[][]) {    	  
+	// The destination pixels are gathered into an array and written to the image at once, and
+	// large images are filled a band of rows per processor.
+	void fillImage(final ProjectionCache.Mapping m) {
+		final boolean numeric = frame.wholeStamp.isNumeric;
+		final int[] argb = numeric ? null : new int[dstW*dstH];
+		final float[] values = numeric ? (float[])dstImage.getRaster().getDataElements(0, 0, dstW, dstH, null) : null;
 		try {
-			for (int i=0; i<xsrcArray.length; i++) {
-				for (int j=0; j<xsrcArray[0].length; j++) {
-					int sample = xsrcArray[i][j];
-					int line = ysrcArray[i][j];
-
-					BufferedImage pixelSrc = srcImage;
-
-					if (line<0 && sample<0) {
-						continue;
-					}
-
-					if (frame.wholeStamp.isFullImageLocal()) {
-						if (line<0 || sample<0) {
-							continue;
-						}
-
-						try {
-							if (frame.wholeStamp.isNumeric) {
-								// TODO: How do we know for sure this is a PdsImage?  Could be davinci or other local image
-								dstImage.getRaster().setSample(i, j, 0, (float)((PdsImage)frame.wholeStamp).getTemp(sample, line));
-							} else {
-								dstImage.setRGB(i, j, frame.wholeStamp.getRGB(sample, line));
-							}
-						} catch (Exception e) {
-							//   	   	    				System.out.println("Bombed on line: " + line + "   sample = " + sample + " frame = " + frameNum);
-						}
-						continue;
-					}    	    
-
-					if (sample<0 && frameNum>0) {
-						if (prevImage==null) {
-							prevImage=frame.wholeStamp.frames[frameNum-1].loadSrcImage();
-						}
-
-						pixelSrc=prevImage;
-						sample+=pixelSrc.getWidth();
-					} else if (line<0) {
-						int aboveFrameNum = frameNum-frame.wholeStamp.horizontalSplitCnt;
-
-						if (aboveFrameNum>=0 && aboveImage==null) {
-							aboveImage=frame.wholeStamp.frames[aboveFrameNum].loadSrcImage();
-						}
-
-						if (aboveImage!=null) {
-							pixelSrc=aboveImage;
-							line+=pixelSrc.getHeight();
-						}   	        			
-					} else if (line>=pixelSrc.getHeight()) {
-						int belowFrameNum = frameNum+frame.wholeStamp.horizontalSplitCnt;
-
-						// TODO: Better way to tell if this is too many frames
-						if (belowFrameNum<frame.wholeStamp.frames.length && belowImage==null) {
-							belowImage=frame.wholeStamp.frames[belowFrameNum].loadSrcImage();
-						}
-
-						if (belowImage!=null) {
-							line-=pixelSrc.getHeight();
-							pixelSrc=belowImage;
-						}
-					} else {   	        		
-						boolean lastFrame=false;
-						lastFrame = !(frame.wholeStamp.frames.length > frameNum+1);
-
-						if (sample>=pixelSrc.getWidth() && !lastFrame) {
-							if (nextImage==null) {
-								nextImage=frame.wholeStamp.frames[frameNum+1].loadSrcImage();
+			if (frame.wholeStamp.isFullImageLocal()) {
+				fillRowsFromStamp(m, argb, values);
+			} else {
+				if (srcImage == null) {
+					return;
+				}
+				final SourcePixels src = new SourcePixels(srcImage, numeric);
+				loadNeighbors(m, src.width, src.height);
+				int procs = Runtime.getRuntime().availableProcessors();
+				int tasks = dstW*dstH < PARALLEL_PIXELS ? 1 : Math.min(dstH, 4*procs);
+				if (tasks <= 1) {
+					fillRows(m, src, argb, values, 0, dstH);
+				} else {
+					List<Callable<Object>> jobs = new ArrayList<Callable<Object>>(tasks);
+					for (int t=0; t<tasks; t++) {
+						final int start = (int)((long)dstH*t/tasks);
+						final int end = (int)((long)dstH*(t+1)/tasks);
+						jobs.add(new Callable<Object>() {
+							public Object call() {
+								fillRows(m, src, argb, values, start, end);
+								return null;
 							}
-
-							sample-=srcImage.getWidth();
-							pixelSrc=nextImage;
-						}
+						});
 					}
-
-					if (sample>=pixelSrc.getWidth()) {
-						continue;
+					for (Future<Object> f: getPool().invokeAll(jobs)) {
+						f.get();
 					}
+				}
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+		if (numeric) {
+			dstImage.getRaster().setDataElements(0, 0, dstW, dstH, values);
+		} else if (dstImage.getType() == BufferedImage.TYPE_INT_ARGB) {
+			dstImage.getRaster().setDataElements(0, 0, dstW, dstH, argb);
+		} else {
+			dstImage.setRGB(0, 0, dstW, dstH, argb, 0, dstW);
+		}
+	}
 
-					// TODO: Is this reasonable??
-					if (line==pixelSrc.getHeight()) {
-						line--;
-					}
+	/** Fills the given rows from the pixels of this frame and its neighbors */
+	private void fillRows(ProjectionCache.Mapping m, SourcePixels src, int[] argb, float[] values, int startRow, int endRow) {
+		boolean lastFrame = !(frame.wholeStamp.frames.length > frameNum+1);
+		int splitCnt = frame.wholeStamp.horizontalSplitCnt;
+		boolean firstFrameInRow = frameNum%splitCnt==0;
+		boolean lastFrameInRow = frameNum%splitCnt==(splitCnt-1);
+		double scale = renderPPD / frame.wholeStamp.getMaxRenderPPD();
 
-					if (line>=pixelSrc.getHeight()) {
-						continue;
-					}
+		for (int k=startRow*dstW; k<endRow*dstW; k++) {
+			int sample = m.samples[k];
+			int line = m.lines[k];
+
+			if (line<0 && sample<0) {
+				continue;
+			}
 
-					try {
+			SourcePixels pixelSrc = src;
 
-						if (isCTX) {
-							double scale = -1;
+			if (sample<0 && frameNum>0) {
+				pixelSrc = prevPixels;
+				if (pixelSrc==null) {
+					continue;
+				}
+				sample+=pixelSrc.width;
+			} else if (line<0) {
+				if (abovePixels!=null) {
+					pixelSrc=abovePixels;
+					line+=pixelSrc.height;
+				}
+			} else if (line>=src.height) {
+				if (belowPixels!=null) {
+					line-=src.height;
+					pixelSrc=belowPixels;
+				}
+			} else if (sample>=src.width && !lastFrame) {
+				if (nextPixels==null) {
+					continue;
+				}
+				sample-=src.width;
+				pixelSrc=nextPixels;
+			}
 
-							scale = renderPPD / frame.wholeStamp.getMaxRenderPPD();
+			if (sample>=pixelSrc.width) {
+				continue;
+			}
 
-							boolean firstFrameInRow=false;
-							boolean lastFrameInRow=false;
+			// TODO: Is this reasonable??
+			if (line==pixelSrc.height) {
+				line--;
+			}
 
-							firstFrameInRow = frameNum%frame.wholeStamp.horizontalSplitCnt==0;
-							lastFrameInRow = frameNum%frame.wholeStamp.horizontalSplitCnt==(frame.wholeStamp.horizontalSplitCnt-1);
+			if (line>=pixelSrc.height || line<0 || sample<0) {
+				continue;
+			}
 
-							if ( 
-									( firstFrameInRow && sample < (46*scale)             ) || 
-									( lastFrameInRow  && sample > (srcWidth-(30*scale))  )
-							) {          				
-								dstImage.setRGB(i,j,0);
-							} else {
-								dstImage.setRGB(i, j, pixelSrc.getRGB(sample, line));
-							}
-						} else {
-							if (frame.wholeStamp.isNumeric) {
-								float f = pixelSrc.getRaster().getSampleFloat(sample, line, 0);
-
-								if (f<-1000000) {  // This will catch -Float.MAX_VALUE and similar values
-									f= StampImage.IGNORE_VALUE;
-								}
-
-								if (f==-32768) {  // This is the same currently, but on the off chance StampImage.IGNORE_VALUE changes
-									f = StampImage.IGNORE_VALUE;
-								}
-								
-								dstImage.getRaster().setSample(i, j, 0, f);	
-							} else {
-								dstImage.setRGB(i, j, pixelSrc.getRGB(sample,line));
-							}
-						}	                		
+			// Mask the edges of CTX images
+			if (isCTX && (
+					( firstFrameInRow && sample < (46*scale)             ) ||
+					( lastFrameInRow  && sample > (srcWidth-(30*scale))  ))) {
+				continue;
+			}
 
-					} catch (ArrayIndexOutOfBoundsException e) {
-						//e.printStackTrace();
-					}
-				}
+			if (values != null) {
+				values[k] = pixelSrc.values[line*pixelSrc.width + sample];
+			} else {
+				argb[k] = pixelSrc.argb[line*pixelSrc.width + sample];
 			}
-		} catch (Exception e) {
-			e.printStackTrace();
 		}
 	}
 
-
+	/** Fills every row from a stamp whose entire image is local, such as THEMIS BWS */
+	private void fillRowsFromStamp(ProjectionCache.Mapping m, int[] argb, float[] values) {
+		for (int k=0; k<m.samples.length; k++) {
+			int sample = m.samples[k];
+			int line = m.lines[k];
+			if (line<0 || sample<0) {
+				continue;
+			}
+			try {
+				if (values != null) {
+					// TODO: How do we know for sure this is a PdsImage?  Could be davinci or other local image
+					values[k] = (float)((PdsImage)frame.wholeStamp).getTemp(sample, line);
+				} else {
+					argb[k] = frame.wholeStamp.getRGB(sample, line);
+				}
+			} catch (Exception e) {
+				//   	   	    				System.out.println("Bombed on line: " + line + "   sample = " + sample + " frame = " + frameNum);
+			}
+		}
+	}
 
 	// Projection for images, not a JMARS ProjObj
 	Projection proj = null;
 
 	synchronized BufferedImage getProjectedImage()
 	{
-		// We create two two dimensional arrays to store indexes before we do pixel by pixel copying from source tile to destination tile
+		// The source pixel for each destination pixel is computed before any pixels are copied from source tile to destination tile.
 		// This method is necessary for THEMIS DCS which reads from a random access file, and we want to do all of the work at once.
 		// It seems to work fine for other cases as well, so we do everything this way to limit the number of code paths.
-		int xsrcCoords[][]=null;
-		int ysrcCoords[][]=null;
-				
-		xsrcCoords = new int[dstW][dstH];
-		ysrcCoords = new int[dstW][dstH];
-
-		for (int i=0; i<dstW; i++) {
-			for (int j=0; j<dstH; j++) {
-				xsrcCoords[i][j] = -1;
-				ysrcCoords[i][j] = -1;
-			}
-		}
-
+		
 //		System.out.println("### Creating new image: " + dstW + " : " + dstH);
 		
 		if (frame.wholeStamp.isNumeric) {
@@ -317,9 +405,7 @@ public class ImageProjecter {
 			
 			float[] fdata = new float[dstW*dstH];
 			
-			for (int i=0;i<fdata.length;i++) {
-				fdata[i]=StampImage.IGNORE_VALUE;  // Initialize to ignore values.  Anything that isn't explicitly set will be transparent
-			}
+			Arrays.fill(fdata, StampImage.IGNORE_VALUE);  // Initialize to ignore values.  Anything that isn't explicitly set will be transparent
 			
 			dstImage.getRaster().setDataElements(0, 0, dstW, dstH, fdata);
 		} else {
@@ -332,6 +418,30 @@ public class ImageProjecter {
 		return null;
 		}
 
+		ProjectionCache.Mapping mapping = getMapping();
+
+		// Used for THEMIS DCS only
+		if (frame.wholeStamp instanceof THEMISImage) {
+			((THEMISImage)frame.wholeStamp).fillImage(dstImage, mapping.samples, mapping.lines, dstW);
+		} else {
+			fillImage(mapping);
+		}
+
+		return dstImage;
+	}
+
+	/**
+	 * Returns the source sample and line for each destination pixel, from
+	 * {@link ProjectionCache} if this frame was projected into the same
+	 * bounds before.
+	 */
+	private ProjectionCache.Mapping getMapping() {
+		ProjectionCache.Mapping m = ProjectionCache.get(mappingKey);
+		if (m != null && m.width == dstW && m.height == dstH) {
+			return m;
+		}
+		m = new ProjectionCache.Mapping(dstW, dstH);
+
 		// These variable are used and reused by the for loop below
 		Point2D lonLat = new Point2D.Double();
 		Point2D lineSample = new Point2D.Double();
@@ -359,19 +469,13 @@ public class ImageProjecter {
 				} 
 
 				// Save the indices for now, we'll copy them from src to dest en masse later
-				xsrcCoords[i][j]=srcPt.x;
-				ysrcCoords[i][j]=srcPt.y;
+				m.samples[j*dstW+i]=srcPt.x;
+				m.lines[j*dstW+i]=srcPt.y;
 			}
 		}
 
-		// Used for THEMIS DCS only
-		if (frame.wholeStamp instanceof THEMISImage) {
-			((THEMISImage)frame.wholeStamp).fillImage(dstImage, xsrcCoords, ysrcCoords);
-		} else {
-			fillImage(xsrcCoords, ysrcCoords);
-		}
-
-		return dstImage;
+		ProjectionCache.put(mappingKey, m);
+		return m;
 	}
 
 	private void projectUnprojected(int j, int i) {
@@ -0,0 +1,86 @@
+package edu.asu.jmars.layer.stamp;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import edu.asu.jmars.util.Config;
+
+/**
+ * Remembers which source pixel {@link ImageProjecter} chose for each
+ * destination pixel of recently projected frames.
+ *
+ * Projecting the same frame into the same world rectangle again, as happens
+ * when switching between image types of a stamp, changing its stretch, or
+ * repainting a view zoomed in past the frame limit, then skips the
+ * per-pixel projection math entirely.
+ *
+ * Mappings are keyed by product, frame, render scale, world bounds, source
+ * size, and JMARS projection, and the cache holds up to a fixed number of
+ * bytes, evicting the least recently used mappings first.
+ */
+final class ProjectionCache {
+	private static final long MAX_BYTES = 1024L * 1024L * Config.get("stamp.projectionCacheMB", 64);
+	/** Rough cost of an entry beyond its arrays, so tiny mappings are not free */
+	private static final long ENTRY_BYTES = 256;
+
+	private static final LinkedHashMap<String,Mapping> mappings = new LinkedHashMap<String,Mapping>(16, 0.75f, true);
+	private static long sizeBytes;
+
+	private ProjectionCache() {
+	}
+
+	/** @return the mapping stored under the given key, or null if there is none */
+	static Mapping get(String key) {
+		synchronized(mappings) {
+			return mappings.get(key);
+		}
+	}
+
+	/** Stores a mapping, evicting the least recently used ones as necessary */
+	static void put(String key, Mapping m) {
+		if (m.bytes() > MAX_BYTES) {
+			return;
+		}
+		synchronized(mappings) {
+			Mapping old = mappings.put(key, m);
+			if (old != null) {
+				sizeBytes -= old.bytes();
+			}
+			sizeBytes += m.bytes();
+			Iterator<Mapping> it = mappings.values().iterator();
+			while (sizeBytes > MAX_BYTES && it.hasNext()) {
+				sizeBytes -= it.next().bytes();
+				it.remove();
+			}
+		}
+	}
+
+	/** Removes every mapping */
+	static void clear() {
+		synchronized(mappings) {
+			mappings.clear();
+			sizeBytes = 0;
+		}
+	}
+
+	/**
+	 * The source sample and line for every pixel of a projected frame, in
+	 * row-major order; -1 marks pixels with no source. Never modified once
+	 * stored.
+	 */
+	static final class Mapping {
+		final int width;
+		final int height;
+		final int[] samples;
+		final int[] lines;
+		Mapping(int width, int height) {
+			this.width = width;
+			this.height = height;
+			samples = new int[width * height];
+			lines = new int[width * height];
+		}
+		long bytes() {
+			return ENTRY_BYTES + 8L * samples.length;
+		}
+	}
+}
@@ -242,6 +242,7 @@ public class StampCache implements Runnable {
 	}
 	
 	public static void cleanCache() {
+		ProjectionCache.clear();
 		Util.recursiveRemoveDir(new File(STAMP_CACHE));
 		Util.recursiveRemoveDir(new File(STAMP_SRC_CACHE));
 		
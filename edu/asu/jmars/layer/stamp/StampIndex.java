@@ -0,0 +1,196 @@
+package edu.asu.jmars.layer.stamp;
+
+import java.awt.geom.Rectangle2D;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import edu.asu.jmars.Main;
+import edu.asu.jmars.ProjObj;
+
+/**
+ * A read-only R-tree over the bounds of the normalized world paths of a
+ * fixed array of stamps, bulk loaded with Sort-Tile-Recursive packing.
+ *
+ * Queries return the positions of every stamp whose bounds touch either of
+ * two world rectangles, in the same order as the stamps were given, so
+ * callers can keep the wrapped second rectangle they already build for
+ * stamps that extend past 360 degrees, and then run their exact shape tests
+ * on just the candidates.
+ *
+ * The bounds depend on the JMARS projection, so an index is only valid for
+ * the stamps and projection it was built for; see {@link #isFor}.
+ */
+final class StampIndex {
+	/** Maximum number of children of each node */
+	private static final int FANOUT = 16;
+
+	private final Object stamps;
+	private final int size;
+	private final ProjObj po;
+
+	/** Stamp positions in leaf order */
+	private final int[] ids;
+	/**
+	 * Bounds of each level, with the leaf stamps at level 0 and the root at
+	 * the last level; node k of level L covers entries k*FANOUT to
+	 * (k+1)*FANOUT-1 of level L-1
+	 */
+	private final double[][] minX, minY, maxX, maxY;
+
+	/** Builds an index over the given stamps in the current projection */
+	static StampIndex build(StampShape[] stamps) {
+		return new StampIndex(stamps, stamps, Main.PO);
+	}
+
+	/** Builds an index over the given stamps in the current projection */
+	static StampIndex build(List<StampShape> stamps) {
+		return new StampIndex(stamps, stamps.toArray(new StampShape[stamps.size()]), Main.PO);
+	}
+
+	private StampIndex(Object source, StampShape[] stamps, ProjObj po) {
+		this.stamps = source;
+		this.size = stamps.length;
+		this.po = po;
+
+		int n = stamps.length;
+		final double[] cx = new double[n], cy = new double[n];
+		double[] x0 = new double[n], y0 = new double[n], x1 = new double[n], y1 = new double[n];
+		for (int i = 0; i < n; i++) {
+			Rectangle2D b = stamps[i].getNormalPath().getBounds2D();
+			x0[i] = b.getMinX();
+			y0[i] = b.getMinY();
+			x1[i] = b.getMaxX();
+			y1[i] = b.getMaxY();
+			cx[i] = b.getCenterX();
+			cy[i] = b.getCenterY();
+		}
+
+		Integer[] order = new Integer[n];
+		for (int i = 0; i < n; i++) {
+			order[i] = i;
+		}
+		pack(order, cx, cy);
+		ids = new int[n];
+		for (int i = 0; i < n; i++) {
+			ids[i] = order[i];
+		}
+
+		int levels = 1;
+		for (int count = n; count > 1; count = (count + FANOUT - 1) / FANOUT) {
+			levels++;
+		}
+		minX = new double[levels][];
+		minY = new double[levels][];
+		maxX = new double[levels][];
+		maxY = new double[levels][];
+		minX[0] = new double[n];
+		minY[0] = new double[n];
+		maxX[0] = new double[n];
+		maxY[0] = new double[n];
+		for (int i = 0; i < n; i++) {
+			minX[0][i] = x0[ids[i]];
+			minY[0][i] = y0[ids[i]];
+			maxX[0][i] = x1[ids[i]];
+			maxY[0][i] = y1[ids[i]];
+		}
+		for (int level = 1; level < levels; level++) {
+			int count = (minX[level-1].length + FANOUT - 1) / FANOUT;
+			minX[level] = new double[count];
+			minY[level] = new double[count];
+			maxX[level] = new double[count];
+			maxY[level] = new double[count];
+			for (int k = 0; k < count; k++) {
+				double ax = Double.POSITIVE_INFINITY, ay = Double.POSITIVE_INFINITY;
+				double bx = Double.NEGATIVE_INFINITY, by = Double.NEGATIVE_INFINITY;
+				int end = Math.min(minX[level-1].length, (k+1) * FANOUT);
+				for (int c = k * FANOUT; c < end; c++) {
+					ax = Math.min(ax, minX[level-1][c]);
+					ay = Math.min(ay, minY[level-1][c]);
+					bx = Math.max(bx, maxX[level-1][c]);
+					by = Math.max(by, maxY[level-1][c]);
+				}
+				minX[level][k] = ax;
+				minY[level][k] = ay;
+				maxX[level][k] = bx;
+				maxY[level][k] = by;
+			}
+		}
+	}
+
+	/**
+	 * Orders the stamps into vertical slices by center x, and each slice by
+	 * center y, so consecutive runs of {@link #FANOUT} stamps are compact.
+	 */
+	private static void pack(Integer[] order, final double[] cx, final double[] cy) {
+		int n = order.length;
+		Arrays.sort(order, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				return Double.compare(cx[a], cx[b]);
+			}
+		});
+		int leaves = (n + FANOUT - 1) / FANOUT;
+		int slices = Math.max(1, (int)Math.ceil(Math.sqrt(leaves)));
+		int sliceSize = slices * FANOUT;
+		Comparator<Integer> byY = new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				return Double.compare(cy[a], cy[b]);
+			}
+		};
+		for (int start = 0; start < n; start += sliceSize) {
+			Arrays.sort(order, start, Math.min(n, start + sliceSize), byY);
+		}
+	}
+
+	/** @return true if this index was built for the given stamps in the current projection */
+	boolean isFor(Object stamps, int size) {
+		return this.stamps == stamps && this.size == size && po == Main.PO;
+	}
+
+	/**
+	 * Returns the positions of the stamps whose bounds touch either rectangle,
+	 * in ascending order. The second rectangle may be null. Touching is tested
+	 * with closed intervals, so the result includes every stamp that
+	 * {@link Rectangle2D#intersects} would accept.
+	 */
+	int[] query(Rectangle2D r1, Rectangle2D r2) {
+		if (size == 0) {
+			return new int[0];
+		}
+		int[] hits = new int[16];
+		int count = 0;
+		int top = minX.length - 1;
+		// the stack holds pairs of level and node index
+		int[] stack = new int[2 * (FANOUT * minX.length + 1)];
+		int sp = 0;
+		stack[sp++] = top;
+		stack[sp++] = 0;
+		while (sp > 0) {
+			int k = stack[--sp];
+			int level = stack[--sp];
+			if (!touches(level, k, r1) && (r2 == null || !touches(level, k, r2))) {
+				continue;
+			}
+			if (level == 0) {
+				if (count == hits.length) {
+					hits = Arrays.copyOf(hits, count * 2);
+				}
+				hits[count++] = ids[k];
+			} else {
+				int end = Math.min(minX[level-1].length, (k+1) * FANOUT);
+				for (int c = k * FANOUT; c < end; c++) {
+					stack[sp++] = level - 1;
+					stack[sp++] = c;
+				}
+			}
+		}
+		hits = Arrays.copyOf(hits, count);
+		Arrays.sort(hits);
+		return hits;
+	}
+
+	private boolean touches(int level, int k, Rectangle2D r) {
+		return minX[level][k] <= r.getMaxX() && maxX[level][k] >= r.getMinX()
+			&& minY[level][k] <= r.getMaxY() && maxY[level][k] >= r.getMinY();
+	}
+}
@@ -1338,7 +1338,8 @@ public class StampLView extends Layer.LView implements StampSelectionListener
 
 		// Perform multiple proximity tests at the same time
 		// to avoid re-sorting resulting stamp list.
-		for (int i=0; i<stamps.length; i++) {
+		StampShape[] stamps = this.stamps;
+		for (int i: getStampIndex(stamps).query(proximity1, proximity2)) {
 			Shape shape = stamps[i].getNormalPath();
 			Rectangle2D stampBounds = shape.getBounds2D();
 			
@@ -1363,6 +1364,20 @@ public class StampLView extends Layer.LView implements StampSelectionListener
 		return list;
 	}
 
+	private StampIndex stampIndex;
+	
+	/**
+	 * Returns the spatial index over the given stamps, building it the first
+	 * time it is needed after the stamps or the projection change.
+	 */
+	private synchronized StampIndex getStampIndex(StampShape[] stamps)
+	{
+		if (stampIndex == null || !stampIndex.isFor(stamps, stamps.length)) {
+			stampIndex = StampIndex.build(stamps);
+		}
+		return stampIndex;
+	}
+
 	private StampShape findStampByScreenPt(Point screenPt)
 	{
 		MultiProjection proj = getProj();
@@ -1423,7 +1438,8 @@ public class StampLView extends Layer.LView implements StampSelectionListener
 			log.println("proximity2 = " + proximity2);
 		}
 		
-		for (int i=0; i<stamps.length; i++) {
+		StampShape[] stamps = this.stamps;
+		for (int i: getStampIndex(stamps).query(proximity1, proximity2)) {
 			Shape normalPath = stamps[i].getNormalPath();
 			
 			if (normalPath.intersects(proximity1) ||(proximity2 != null && normalPath.intersects(proximity2))) {
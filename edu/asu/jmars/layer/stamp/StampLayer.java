@@ -3,6 +3,7 @@ package edu.asu.jmars.layer.stamp;
 import java.awt.Color;
 import java.awt.Shape;
 import java.awt.geom.Rectangle2D;
+import java.io.BufferedInputStream;
 import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
@@ -16,6 +17,9 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.zip.GZIPInputStream;
 
 import javax.swing.JOptionPane;
@@ -604,6 +608,20 @@ public class StampLayer extends Layer
         task.updateStatus(Status.DONE);
     }
 
+	private StampIndex stampIndex;
+	
+	/**
+	 * Returns the spatial index over the given stamps, building it the first
+	 * time it is needed after the stamps or the projection change.
+	 */
+	private synchronized StampIndex getStampIndex(List<StampShape> stamps)
+	{
+		if (stampIndex == null || !stampIndex.isFor(stamps, stamps.size())) {
+			stampIndex = StampIndex.build(stamps);
+		}
+		return stampIndex;
+	}
+
 	private List<StampShape> findStampsByWorldRect(List<StampShape> stamps, Rectangle2D proximity)
 	{
 		if (stamps == null || proximity == null)
@@ -637,7 +655,8 @@ public class StampLayer extends Layer
 
 		// Perform multiple proximity tests at the same time
 		// to avoid re-sorting resulting stamp list.
-		for (StampShape ss : stamps) {
+		for (int i : getStampIndex(stamps).query(proximity1, proximity2)) {
+			StampShape ss = stamps.get(i);
 			// TODO: Update this to compare against fillAreas instead
 			Shape shape = ss.getNormalPath();
 			Rectangle2D stampBounds = shape.getBounds2D();
@@ -939,6 +958,12 @@ public class StampLayer extends Layer
 				task.updateStatus(Status.RED);
 
 				ArrayList<StampInterface> newStamps = new ArrayList<StampInterface>();
+				ArrayList<StampShape> newShapes = new ArrayList<StampShape>();
+				boolean previewed = false;
+				// set once the server's stamps are shown, so a slower cached preview is dropped
+				AtomicBoolean superseded = new AtomicBoolean();
+				ResponseInfo newInfo = null;
+				boolean fromCache = false;
 				Class[] newColumnClasses=new Class[0];
 				String[] newColumnNames=new String[0];
 
@@ -952,56 +977,132 @@ public class StampLayer extends Layer
 					dialog = new ProgressDialog(Main.mainFrame, StampLayer.this); 
 
 					String urlStr = settings.queryStr;
+					String cacheKey = StampMetadataCache.key(urlStr);
+					if (COLUMNAR) {
+						urlStr += "&format=columnar";
+					}
 
-					dialog.updateStatus("Requesting stamps from server....");
+					BufferedInputStream zipStream = null;
+					File cacheFile = StampMetadataCache.find(cacheKey);
+					if (cacheFile != null && StampMetadataCache.isFresh(cacheFile)) {
+						dialog.updateStatus("Reading stamps from cache....");
+						zipStream = StampMetadataCache.open(cacheFile, cacheKey);
+						fromCache = zipStream != null;
+					} else if (cacheFile != null) {
+						// show the old result while asking the server for a new one
+						showCachedPreview(cacheFile, cacheKey, superseded);
+						previewed = true;
+					}
 
-					GZIPInputStream zipStream = new GZIPInputStream(StampLayer.queryServer(urlStr, 120));
+					if (zipStream == null) {
+						dialog.updateStatus("Requesting stamps from server....");
+						zipStream = new BufferedInputStream(new GZIPInputStream(StampLayer.queryServer(urlStr, 120)));
+					}
 
-					ois = new ObjectInputStream(zipStream);
+					if (ColumnarStampCodec.isColumnar(zipStream)) {
+						ColumnarStampCodec.Reader reader = new ColumnarStampCodec.Reader(zipStream);
+						ResponseInfo info = newInfo = reader.getInfo();
+						if (info.getStatus()!=0) {
+							JOptionPane.showMessageDialog(
+									Main.mainFrame,
+									info.getMessage(),
+									"Query Result",
+									JOptionPane.INFORMATION_MESSAGE
+							);
+						}
 
-					ResponseInfo info = (ResponseInfo)ois.readObject();
-					if (info.getStatus()!=0) {
-						JOptionPane.showMessageDialog(
-								Main.mainFrame,
-								info.getMessage(),
-								"Query Result",
-								JOptionPane.INFORMATION_MESSAGE
-						);
-					}
+						dialog.updateStatus("Server completed query");
 
-					dialog.updateStatus("Server completed query");
+						newColumnClasses = reader.getColumnClasses();
+						newColumnNames = reader.getColumnNames();
 
-					newColumnClasses = (Class[])ois.readObject();
-					newColumnNames = (String[])ois.readObject();
+						dialog.updateStatus("Retrieving " + info.getRecordCnt() + " stamps...");
 
-					dialog.updateStatus("Retrieving " + info.getRecordCnt() + " stamps...");
+						int recordsToRead=info.getRecordCnt();
+						newStamps = new ArrayList<StampInterface>(recordsToRead);
+						newShapes = new ArrayList<StampShape>(recordsToRead);
 
-					int recordsToRead=info.getRecordCnt();            
-					int recordsRead=0;
+						dialog.startDownload(0, recordsToRead);
 
-					newStamps = new ArrayList<StampInterface>(recordsToRead);
+						long lastPreview = 0;
+						List<StampInterface> block;
+						while (!dialog.isCanceled() && (block = reader.nextBlock()) != null) {
+							newStamps.addAll(block);
+							for (StampInterface s: block) {
+								newShapes.add(createShape(s));
+							}
+							dialog.downloadStatus(newStamps.size());
+							dialog.setNote("Retrieving: " + newStamps.size() + " of " + recordsToRead);
+
+							// show what has arrived so far, without waiting for the rest
+							long now = System.currentTimeMillis();
+							if (now - lastPreview >= PREVIEW_INTERVAL_MS) {
+								lastPreview = now;
+								previewed = true;
+								superseded.set(true);
+								showPreview(newShapes, null);
+							}
+						}
 
-					dialog.startDownload(0, recordsToRead);
+						zipStream.close();
 
-					while (recordsToRead>recordsRead && !dialog.isCanceled()) {
-						StampInterface newStamp = (StampInterface)ois.readObject();
-						newStamps.add(newStamp);
-						recordsRead++;
-						if (recordsRead%100==0) {
-							dialog.downloadStatus(recordsRead);
+						if (dialog.isCanceled()) {
+							dialog.close();
+							if (previewed) {
+								restoreVisibleStamps();
+							}
+							return;
+						}
+					} else {
+						ois = new ObjectInputStream(zipStream);
+
+						ResponseInfo info = newInfo = (ResponseInfo)ois.readObject();
+						if (info.getStatus()!=0) {
+							JOptionPane.showMessageDialog(
+									Main.mainFrame,
+									info.getMessage(),
+									"Query Result",
+									JOptionPane.INFORMATION_MESSAGE
+							);
 						}
 
-						dialog.setNote("Retrieving: " + recordsRead + " of " + recordsToRead);
-					}
+						dialog.updateStatus("Server completed query");
 
-					dialog.downloadStatus(recordsRead);
+						newColumnClasses = (Class[])ois.readObject();
+						newColumnNames = (String[])ois.readObject();
 
-					ois.close();
-					zipStream.close();
+						dialog.updateStatus("Retrieving " + info.getRecordCnt() + " stamps...");
 
-					if (dialog.isCanceled()) {
-						dialog.close();
-						return;
+						int recordsToRead=info.getRecordCnt();            
+						int recordsRead=0;
+
+						newStamps = new ArrayList<StampInterface>(recordsToRead);
+
+						dialog.startDownload(0, recordsToRead);
+
+						while (recordsToRead>recordsRead && !dialog.isCanceled()) {
+							StampInterface newStamp = (StampInterface)ois.readObject();
+							newStamps.add(newStamp);
+							recordsRead++;
+							if (recordsRead%100==0) {
+								dialog.downloadStatus(recordsRead);
+							}
+
+							dialog.setNote("Retrieving: " + recordsRead + " of " + recordsToRead);
+						}
+
+						dialog.downloadStatus(recordsRead);
+
+						ois.close();
+						zipStream.close();
+
+						if (dialog.isCanceled()) {
+							dialog.close();
+							if (previewed) {
+								restoreVisibleStamps();
+							}
+							return;
+						}
 					}
 
 					int numRecords = newStamps.size();
@@ -1012,6 +1113,10 @@ public class StampLayer extends Layer
 						String msg = "No stamps match the specified filter";
 						throw new NoStampsException(msg);
 					}
+
+					if (!fromCache && newInfo.getStatus()==ResponseInfo.COMPLETED) {
+						StampMetadataCache.store(cacheKey, newInfo, newColumnClasses, newColumnNames, newStamps);
+					}
 				}
 				catch (NoStampsException ex) {
 					log.println(ex);
@@ -1044,6 +1149,7 @@ public class StampLayer extends Layer
 						);
 				}
 				finally {                    	
+					superseded.set(true);
 					task.updateStatus(Status.DONE);
 
 					if (!dialog.isCanceled()) {
@@ -1061,17 +1167,8 @@ public class StampLayer extends Layer
 							cachedStamps = new ArrayList<StampShape>();
 							
 							for (int i=0; i<newStamps.size(); i++) {
-								StampInterface s = newStamps.get(i);
-
-								StampShape shape = null;
-								
-								if (vectorShapes()) {
-									shape=new WindShape(s, StampLayer.this);
-								} else if (pointShapes()) {
-									shape=new PointShape(s, StampLayer.this);
-								} else {
-									shape=new StampShape(s, StampLayer.this);
-								}
+								// shapes may already have been made while streaming
+								StampShape shape = i < newShapes.size() ? newShapes.get(i) : createShape(newStamps.get(i));
 
 								cachedStamps.add(shape);
 								stampMap.put(shape.getId().trim(), shape);
@@ -1191,6 +1288,97 @@ public class StampLayer extends Layer
 		queryThread.start();
 	}
 	
+	/** Whether to ask the server for the columnar format rather than Java serialization */
+	private static final boolean COLUMNAR = Config.get("stamps.columnar", false);
+	/** Minimum time between previews of stamps that are still arriving */
+	private static final long PREVIEW_INTERVAL_MS = Config.get("stamps.previewIntervalMs", 1000);
+
+	private StampShape createShape(StampInterface s) {
+		if (vectorShapes()) {
+			return new WindShape(s, this);
+		} else if (pointShapes()) {
+			return new PointShape(s, this);
+		} else {
+			return new StampShape(s, this);
+		}
+	}
+
+	/** Decodes out of date cache files for previews, so the server is asked without waiting on them */
+	private static final ExecutorService cachePreviews = Executors.newSingleThreadExecutor(new StampThreadFactory("Stamp Cache Preview"));
+
+	/**
+	 * Shows the given stamps, unfiltered, while a query is still loading;
+	 * the full result replaces them once it has arrived.
+	 * @param superseded If not null, nothing is shown once this is set.
+	 * @return true if the stamps were shown
+	 */
+	private boolean showPreview(List<StampShape> shapes, AtomicBoolean superseded) {
+		ArrayList<StampShape> preview = new ArrayList<StampShape>(shapes);
+		synchronized(this) {
+			if (superseded != null && superseded.get()) {
+				return false;
+			}
+			visibleStamps = preview;
+		}
+		SwingUtilities.invokeLater(new Runnable() {
+			public void run() {
+				if (viewToUpdate != null) {
+					viewToUpdate.viewChanged();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Shows the stamps from an out of date cache file while the query runs
+	 * again, so a restored session has something to show right away. The
+	 * file is decoded in the background, and the stamps are only shown if
+	 * the server's stamps haven't been shown first.
+	 */
+	private void showCachedPreview(final File cacheFile, final String cacheKey, final AtomicBoolean superseded) {
+		cachePreviews.execute(new Runnable() {
+			public void run() {
+				if (superseded.get()) {
+					return;
+				}
+				BufferedInputStream in = StampMetadataCache.open(cacheFile, cacheKey);
+				if (in == null) {
+					return;
+				}
+				List<StampShape> shapes = new ArrayList<StampShape>();
+				try {
+					ColumnarStampCodec.Reader reader = new ColumnarStampCodec.Reader(in);
+					List<StampInterface> block;
+					while (!superseded.get() && (block = reader.nextBlock()) != null) {
+						for (StampInterface s: block) {
+							shapes.add(createShape(s));
+						}
+					}
+				} catch (IOException e) {
+					log.println("Unable to read cached stamps: " + e);
+					return;
+				} finally {
+					try {
+						in.close();
+					} catch (IOException e) {
+					}
+				}
+				if (showPreview(shapes, superseded)) {
+					log.println("Showing " + shapes.size() + " cached stamps until the server responds");
+				}
+			}
+		});
+	}
+
+	/** Goes back to showing the stamps loaded before a cancelled query */
+	private void restoreVisibleStamps() {
+		SwingUtilities.invokeLater(new Runnable() {
+			public void run() {
+				updateVisibleStamps();
+			}
+		});
+	}
+
     public Thread queryThread = null;
     
     private synchronized void reprojectStampData()
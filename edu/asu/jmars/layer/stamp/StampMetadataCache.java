@@ -0,0 +1,164 @@
+package edu.asu.jmars.layer.stamp;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import edu.asu.jmars.Main;
+import edu.asu.jmars.util.Config;
+import edu.asu.jmars.util.DebugLog;
+import edu.asu.msff.ResponseInfo;
+import edu.asu.msff.StampInterface;
+
+/**
+ * Keeps the results of stamp layer queries on disk, so reopening a session
+ * or repeating a query does not have to download the same metadata again.
+ *
+ * Each result is stored in its own gzipped file in the
+ * {@link ColumnarStampCodec} format, named by a digest of the server, the
+ * query, the client version and the user, since all of them can change what
+ * the server returns. The full key is written at the start of the file and
+ * checked when reading, so a digest collision is just a miss.
+ *
+ * The client can't tell when the server's data changes, so by default a
+ * cached result is only shown while the query runs again, and the server's
+ * answer replaces it on screen and on disk. Setting
+ * <code>stamps.cache.maxAgeHours</code> above zero uses results younger than
+ * that without asking the server at all. The cache lives in the stamp cache
+ * directory, so clearing that clears this too.
+ */
+final class StampMetadataCache {
+	private static final DebugLog log = DebugLog.instance();
+
+	private static final String META_CACHE = Main.getJMarsPath() + "stamps" + File.separator + "meta" + File.separator;
+	private static final boolean ENABLED = Config.get("stamps.cache.enabled", true);
+	private static final long MAX_AGE_MS = 60L * 60L * 1000L * Config.get("stamps.cache.maxAgeHours", 0);
+
+	/** Writes results in the background, one at a time */
+	private static final ExecutorService writer = Executors.newSingleThreadExecutor(new StampThreadFactory("Stamp Metadata Writer"));
+
+	private StampMetadataCache() {
+	}
+
+	/** @return the cache key for a query, which is sent to the server without any format parameter */
+	static String key(String queryStr) {
+		return StampLayer.stampURL + "\n" + queryStr + "\n" + StampLayer.versionStr + "\n" + Main.USER;
+	}
+
+	/** @return the cache file for the given key, or null if there is none or the cache is disabled */
+	static File find(String key) {
+		if (!ENABLED) {
+			return null;
+		}
+		File file = fileFor(key);
+		return file.isFile() && file.canRead() ? file : null;
+	}
+
+	/** @return true if the given cache file is recent enough to use without asking the server */
+	static boolean isFresh(File file) {
+		return System.currentTimeMillis() - file.lastModified() < MAX_AGE_MS;
+	}
+
+	/**
+	 * Opens a cache file, positioned at the start of its columnar data.
+	 * @return the stream, or null if the file is for a different key or
+	 * cannot be read
+	 */
+	static BufferedInputStream open(File file, String key) {
+		BufferedInputStream in = null;
+		try {
+			in = new BufferedInputStream(new GZIPInputStream(new FileInputStream(file)));
+			DataInputStream din = new DataInputStream(in);
+			byte[] stored = new byte[din.readInt()];
+			din.readFully(stored);
+			if (new String(stored, "UTF-8").equals(key) && ColumnarStampCodec.isColumnar(in)) {
+				return in;
+			}
+		} catch (IOException e) {
+			log.println("Unable to read cached stamp metadata from " + file + ": " + e);
+		}
+		if (in != null) {
+			try {
+				in.close();
+			} catch (IOException e) {
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Stores a complete query result in the background. The stamps are
+	 * written as given, so the list must not be modified afterwards.
+	 */
+	static void store(final String key, final ResponseInfo info, final Class<?>[] columnClasses,
+			final String[] columnNames, final List<StampInterface> stamps) {
+		if (!ENABLED) {
+			return;
+		}
+		writer.execute(new Runnable() {
+			public void run() {
+				write(key, info, columnClasses, columnNames, stamps);
+			}
+		});
+	}
+
+	private static void write(String key, ResponseInfo info, Class<?>[] columnClasses, String[] columnNames, List<StampInterface> stamps) {
+		File file = fileFor(key);
+		File temp = new File(file.getPath() + ".tmp");
+		try {
+			file.getParentFile().mkdirs();
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(temp))));
+			try {
+				byte[] keyBytes = key.getBytes("UTF-8");
+				out.writeInt(keyBytes.length);
+				out.write(keyBytes);
+				ColumnarStampCodec.Writer w = new ColumnarStampCodec.Writer(out, info, columnNames, columnClasses);
+				for (StampInterface s: stamps) {
+					w.write(s);
+				}
+				w.finish();
+			} finally {
+				out.close();
+			}
+			file.delete();
+			if (!temp.renameTo(file)) {
+				throw new IOException("unable to rename " + temp);
+			}
+			log.println("Cached " + stamps.size() + " stamps in " + file);
+		} catch (IOException e) {
+			log.println("Unable to cache stamp metadata: " + e);
+			temp.delete();
+		}
+	}
+
+	private static File fileFor(String key) {
+		return new File(META_CACHE + digest(key) + ".jstc.gz");
+	}
+
+	private static String digest(String key) {
+		try {
+			byte[] hash = MessageDigest.getInstance("SHA-1").digest(key.getBytes("UTF-8"));
+			StringBuilder buf = new StringBuilder(hash.length * 2);
+			for (byte b: hash) {
+				buf.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+			}
+			return buf.toString();
+		} catch (NoSuchAlgorithmException e) {
+			return Integer.toHexString(key.hashCode());
+		} catch (IOException e) {
+			return Integer.toHexString(key.hashCode());
+		}
+	}
+}
@@ -85,7 +85,10 @@ public class THEMISImage extends StampImage
             
     ImageInputStream iis = null;
     ImageReader reader = null;
-    public void fillImage(BufferedImage dstImage, int xsrcArray[][], int ysrcArray[][]) {
+    /**
+     * Fills the destination image from the source pixels given for each of its pixels, in row-major order
+     */
+    public void fillImage(BufferedImage dstImage, int xsrcArray[], int ysrcArray[], int width) {
     	try {
     		if (iis==null) {
     			iis = ImageIO.createImageInputStream(raf);
@@ -103,16 +106,14 @@ public class THEMISImage extends StampImage
 			int maxx=Integer.MIN_VALUE;
 			int maxy=Integer.MIN_VALUE;
 			
-	    	for (int i=0; i<xsrcArray.length; i++) {
-	    		for (int j=0; j<xsrcArray[0].length; j++) {
-	    			int xval = xsrcArray[i][j];
-	    			int yval = ysrcArray[i][j];
-	    			
-	    			if (minx>xval) minx=xval;
-	    			if (maxx<xval) maxx=xval;
-	    			if (miny>yval) miny=yval;
-	    			if (maxy<yval) maxy=yval;
-	    		}
+	    	for (int k=0; k<xsrcArray.length; k++) {
+	    		int xval = xsrcArray[k];
+	    		int yval = ysrcArray[k];
+	    		
+	    		if (minx>xval) minx=xval;
+	    		if (maxx<xval) maxx=xval;
+	    		if (miny>yval) miny=yval;
+	    		if (maxy<yval) maxy=yval;
 	    	}
 		    	
 	    	if (minx<0) minx=0;
@@ -124,21 +125,19 @@ public class THEMISImage extends StampImage
 			
 			BufferedImage bi=reader.read(0, param);
 
-	    	for (int i=0; i<xsrcArray.length; i++) {
-	    		for (int j=0; j<xsrcArray[0].length; j++) {
-	    			int xval = xsrcArray[i][j];
-	    			int yval = ysrcArray[i][j];
-	    			
-	    			if (xval<0 || yval <0) {
-	    				continue;
-	    			}
-	    			
-	    			if (xval>=getWidth() || yval>=getHeight()) {
-	    				continue;
-	    			}
-	    			
-	    			dstImage.setRGB(i, j, bi.getRGB(xval-minx,yval-miny));
+	    	for (int k=0; k<xsrcArray.length; k++) {
+	    		int xval = xsrcArray[k];
+	    		int yval = ysrcArray[k];
+	    		
+	    		if (xval<0 || yval <0) {
+	    			continue;
+	    		}
+	    		
+	    		if (xval>=getWidth() || yval>=getHeight()) {
+	    			continue;
 	    		}
+	    		
+	    		dstImage.setRGB(k % width, k / width, bi.getRGB(xval-minx,yval-miny));
 	    	}
     	} catch (Exception e) {
     		e.printStackTrace();
@@ -6,6 +6,7 @@ import java.awt.geom.Path2D;
 import java.awt.geom.PathIterator;
 import java.awt.geom.Point2D;
 import java.awt.geom.Rectangle2D;
+import java.lang.ref.SoftReference;
 import java.text.DecimalFormat;
 import java.text.NumberFormat;
 import java.util.ArrayList;
@@ -26,6 +27,7 @@ import com.vividsolutions.jts.geom.Polygon;
 import edu.asu.jmars.Main;
 import edu.asu.jmars.graphics.TransformingIterator;
 import edu.asu.jmars.graphics.TransformingIterator.Transformer;
+import edu.asu.jmars.util.Config;
 import edu.asu.jmars.util.HVector;
 import edu.asu.jmars.util.SPolygon;
 import edu.asu.jmars.util.Util;
@@ -65,6 +67,19 @@ public final class FPath {
 	private final int[] pathOffsets;
 	/** The closed flag for each path, which is true for those paths that end with the {@link PathIterator#SEG_CLOSE} code, and false otherwise. */
 	private final boolean[] pathClosed;
+	/**
+	 * Simplified copies of the shape for drawing, indexed by the base 2 log
+	 * of the pixels per degree they were made for, built as they are needed.
+	 * Held softly, since they can always be made again from the shape.
+	 */
+	private volatile SoftReference<Shape[]> lods;
+	
+	/** Vertices closer than this many pixels to the last one kept are left out of the shapes from {@link #getShape(int)} */
+	private static final double simplifyPixels = Config.get("shape.simplifyPixels", 0.5);
+	/** Largest zoom with its own simplified shape; the packed floats lose sub-pixel precision beyond it */
+	private static final int maxLodLevel = 31 - Integer.numberOfLeadingZeros(Math.max(1, Config.get("shape.lod.maxPPD", 4096)));
+	/** Shapes with fewer segments than this are not worth simplifying */
+	private static final int minLodSegments = 16;
 	
 	/**
 	 * Creates a new Path from the given point array, where each point
@@ -212,6 +227,133 @@ public final class FPath {
 		return shape;
 	}
 	
+	/**
+	 * Returns the shape with every vertex within <code>shape.simplifyPixels</code>
+	 * of the previous vertex removed, for drawing at the given pixels per
+	 * degree. The first and last vertex of each part are always kept.
+	 * 
+	 * Each simplified shape is made on first use and kept until memory runs
+	 * low. Zooms are rounded up to a power of two, so a handful of copies
+	 * cover every scale, and they are stored as {@link PackedShape}s, so they
+	 * take much less memory than the original. A copy is only kept when it
+	 * leaves out at least half of the vertices, so the copies of a path
+	 * together never take more memory than its shape. Past
+	 * <code>shape.lod.maxPPD</code>, and for small shapes, this returns
+	 * {@link #getShape()}.
+	 */
+	public Shape getShape(int ppd) {
+		if (simplifyPixels <= 0 || ppd <= 0 || pathOffsets[pathOffsets.length-1] < minLodSegments) {
+			return shape;
+		}
+		// the smallest power of two at least as large as ppd
+		int level = 32 - Integer.numberOfLeadingZeros(ppd - 1);
+		if (level > maxLodLevel) {
+			return shape;
+		}
+		SoftReference<Shape[]> ref = lods;
+		Shape[] cache = ref == null ? null : ref.get();
+		if (cache == null) {
+			cache = new Shape[maxLodLevel + 1];
+			lods = new SoftReference<Shape[]>(cache);
+		}
+		Shape lod = cache[level];
+		if (lod == null) {
+			cache[level] = lod = simplify(shape, simplifyPixels / (1 << level));
+		}
+		return lod;
+	}
+	
+	/**
+	 * @return the given shape with vertices closer than tol to the last one
+	 * kept removed, or the shape itself if fewer than half of them were.
+	 */
+	private static Shape simplify(Shape shape, double tol) {
+		double tol2 = tol * tol;
+		PathIterator it = shape.getPathIterator(null);
+		int windingRule = it.getWindingRule();
+		float[] coords = new float[64];
+		int[] starts = new int[4];
+		boolean[] closed = new boolean[4];
+		int n = 0, parts = 0, dropped = 0;
+		double[] seg = new double[6];
+		double lastX = 0, lastY = 0;
+		boolean skipped = false;
+		double skippedX = 0, skippedY = 0;
+		for (; !it.isDone(); it.next()) {
+			int type = it.currentSegment(seg);
+			if (type == PathIterator.SEG_LINETO) {
+				double dx = seg[0] - lastX, dy = seg[1] - lastY;
+				if (dx*dx + dy*dy < tol2) {
+					skipped = true;
+					skippedX = seg[0];
+					skippedY = seg[1];
+					dropped ++;
+					continue;
+				}
+				skipped = false;
+			} else {
+				// the end of each part is always kept
+				if (skipped) {
+					coords = grow(coords, 2*n + 2);
+					coords[2*n] = (float)skippedX;
+					coords[2*n+1] = (float)skippedY;
+					n++;
+					skipped = false;
+				}
+				if (type == PathIterator.SEG_CLOSE) {
+					closed[parts-1] = true;
+					continue;
+				}
+				if (type != PathIterator.SEG_MOVETO) {
+					// curves are left as they are
+					return shape;
+				}
+				if (parts + 1 >= starts.length) {
+					int[] newStarts = new int[starts.length * 2];
+					System.arraycopy(starts, 0, newStarts, 0, parts);
+					starts = newStarts;
+					boolean[] newClosed = new boolean[closed.length * 2];
+					System.arraycopy(closed, 0, newClosed, 0, parts);
+					closed = newClosed;
+				}
+				starts[parts++] = n;
+			}
+			coords = grow(coords, 2*n + 2);
+			coords[2*n] = (float)seg[0];
+			coords[2*n+1] = (float)seg[1];
+			n++;
+			lastX = seg[0];
+			lastY = seg[1];
+		}
+		if (skipped) {
+			coords = grow(coords, 2*n + 2);
+			coords[2*n] = (float)skippedX;
+			coords[2*n+1] = (float)skippedY;
+			n++;
+		}
+		if (dropped < n) {
+			// not worth a copy
+			return shape;
+		}
+		float[] packedCoords = new float[2*n];
+		System.arraycopy(coords, 0, packedCoords, 0, 2*n);
+		int[] packedStarts = new int[parts + 1];
+		System.arraycopy(starts, 0, packedStarts, 0, parts);
+		packedStarts[parts] = n;
+		boolean[] packedClosed = new boolean[parts];
+		System.arraycopy(closed, 0, packedClosed, 0, parts);
+		return new PackedShape(packedCoords, packedStarts, packedClosed, windingRule);
+	}
+	
+	private static float[] grow(float[] array, int size) {
+		if (size <= array.length) {
+			return array;
+		}
+		float[] bigger = new float[Math.max(size, array.length * 2)];
+		System.arraycopy(array, 0, bigger, 0, array.length);
+		return bigger;
+	}
+	
 	/** @return the result of calling {@link #getCoords(int, boolean)} with path=0. */
 	public double[] getCoords(boolean latFirst) {
 		return getCoords(0, latFirst);
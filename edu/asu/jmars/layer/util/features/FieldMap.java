@@ -1,27 +1,20 @@
 package edu.asu.jmars.layer.util.features;
 
-import java.awt.AlphaComposite;
-import java.awt.BasicStroke;
 import java.awt.BorderLayout;
-import java.awt.Color;
 import java.awt.Font;
-import java.awt.Graphics2D;
 import java.awt.GridBagConstraints;
 import java.awt.GridBagLayout;
 import java.awt.Insets;
-import java.awt.Rectangle;
-import java.awt.RenderingHints;
-import java.awt.Shape;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
-import java.awt.geom.Area;
-import java.awt.geom.Rectangle2D;
-import java.awt.image.BufferedImage;
-import java.awt.image.Raster;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import javax.swing.Box;
@@ -40,20 +33,14 @@ import javax.swing.border.TitledBorder;
 
 import org.jdesktop.swingx.combobox.EnumComboBoxModel;
 
-import edu.asu.jmars.Main;
-import edu.asu.jmars.graphics.GraphicsWrapped;
-import edu.asu.jmars.layer.map2.MapChannelReceiver;
-import edu.asu.jmars.layer.map2.MapChannelTiled;
-import edu.asu.jmars.layer.map2.MapData;
 import edu.asu.jmars.layer.map2.MapServer;
 import edu.asu.jmars.layer.map2.MapServerFactory;
 import edu.asu.jmars.layer.map2.MapSource;
-import edu.asu.jmars.layer.map2.Pipeline;
-import edu.asu.jmars.layer.map2.Stage;
 import edu.asu.jmars.layer.shape2.ColumnEditor;
 import edu.asu.jmars.layer.shape2.ShapeLayer;
 import edu.asu.jmars.layer.util.NumericMapSourceDialog;
 import edu.asu.jmars.util.Config;
+import edu.asu.jmars.util.DebugLog;
 import edu.asu.jmars.util.Util;
 
 /**
@@ -90,284 +77,107 @@ public class FieldMap extends CalculatedField {
 	}
 	
 	/**
-	 * Controls the sampling operation for a single Feature. Instances of this
-	 * class are queued up in a pool, and they block the pool thread by using a
-	 * barrier until the MapData requests have all arrived or an error occurs.
+	 * Samples the map under the given feature, blocks until the statistic
+	 * has been cobbled together, and returns the value. The map data arrives
+	 * asynchronously on the event thread, therefore this cannot block the
+	 * event thread and must be called from another thread.
 	 */
-	private class MapSampler implements Runnable, MapChannelReceiver {
-		/** the path to sample under */
-		private final FPath path;
-		private Shape roi;
-		private Rectangle2D.Double bounds;
-		private int count;
-		private double sum, m, s, min, max;
-		private MapChannelTiled ch = new MapChannelTiled(this);
-		/** the resulting map sample */
-		private Double stat;
-		private volatile boolean finished = false;
-		
-		public MapSampler(FPath path) {
-			this.path = path;
+	public Object getValue(ShapeLayer layer, Feature f) {
+		if (SwingUtilities.isEventDispatchThread()) {
+			throw new IllegalStateException("Must not be called on the AWT event thread.");
 		}
-		
-		public void run() {
-			try {
-				Shape shape = path.getShape();
-				bounds = new Rectangle2D.Double();
-				bounds.setRect(shape.getBounds2D());
-				
-				// expand bounds out to nearest pixel boundary in all
-				// directions, since MapData will round one way or the other for
-				// us, and we want a predictable result for e.g. points that are
-				// exactly between two pixels.
-				double dpp = 1d/ppd;
-				double x1 = Math.floor(bounds.x * ppd) * dpp;
-				double x2 = Math.ceil((bounds.x + bounds.width) * ppd) * dpp;
-				if (x1 == x2) {
-					x1 -= dpp;
-					x2 += dpp;
-				}
-				double y1 = Math.floor(bounds.y * ppd) * dpp;
-				double y2 = Math.ceil((bounds.y + bounds.height) * ppd) * dpp;
-				if (y1 == y2) {
-					y1 -= dpp;
-					y2 += dpp;
-				}
-				bounds.setFrameFromDiagonal(x1, y1, x2, y2);
-				
-				// keep shape x values >= 0, since MapData will as well and
-				// we want the overlap checking that occurs later to remain
-				// simple
-				if (bounds.x < 0) {
-					bounds.x += 360;
-				}
-				
-				// Area estimate for shape
-				double shapeArea = shape.getBounds2D().getWidth()*shape.getBounds2D().getHeight();
-				// Area estimate for a 1x1 pixel map at the specified ppd
-				double pixelArea = dpp *dpp;
-				
-				// Use the bounding box for points, to ensure we enclose some area
-				if (path.getType() == FPath.TYPE_POINT) {
-					roi = bounds;
-				}
-				// If our shape is smaller than a single pixel, use the entire bounds as well.  Otherwise we can end up with NO DATA
-				// because the code to draw the roi into the pixel will decide not to draw anything at all
-				else if (shapeArea < pixelArea) {
-					roi = bounds;
-				} else {
-					roi = shape;
-				}
-				
-				// initialize accumulator variables
-				sum = 0;
-				m = 0;
-				s = 0;
-				count = 0;
-				min = Double.POSITIVE_INFINITY;
-				max = Double.NEGATIVE_INFINITY;
-				
-				// kick off map request
-				ch.setRequest(Main.PO, bounds, ppd, new Pipeline[]{new Pipeline(source, new Stage[0])});
-			} catch (Exception e) {
-				e.printStackTrace();
-				finishStat();
-			}
+		return sample(Collections.singletonList(getWorldPath(layer, f)))[0].get(type);
+	}
+	
+	/**
+	 * Called from the landing layer
+	 * 
+	 * Samples the map under the given spatial path, blocks until the
+	 * statistic has been cobbled together, and returns the value. The map
+	 * data arrives asynchronously on the event thread, therefore this cannot
+	 * block the event thread and must be called from another thread.
+	 */
+	public Object getValue(FPath path) {
+		if (SwingUtilities.isEventDispatchThread()) {
+			throw new IllegalStateException("Must not be called on the AWT event thread.");
 		}
 		
-		/** add the partial statistics from this tile */
-		private void accumulateStat(MapData mapData, Rectangle2D tileBounds) {
-			Raster raster = mapData.getRasterForWorld(tileBounds);
-			int width = raster.getWidth();
-			int height = raster.getHeight();
-			
-			BufferedImage maskImage = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
-			Graphics2D g2 = maskImage.createGraphics();
-			g2.setTransform(Util.world2image(tileBounds, width, height));
-			g2 = new GraphicsWrapped(g2,360,ppd,tileBounds,"maskWrapped");
-			try {
-				g2.setComposite(AlphaComposite.getInstance(AlphaComposite.SRC));
-				g2.setColor(Color.white);
-				// anti-aliasing is slower and unwanted here
-				g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_OFF);
-				// fill and then draw a border, just more than 1 pixel so
-				// pixels touching the shape are always filled in
-				g2.fill(roi);
-				g2.setStroke(new BasicStroke(1.01f/ppd));
-				g2.draw(roi);
-			} finally {
-				g2.dispose();
-			}
-			
-			int[] mask = new int[width*height];
-			maskImage.getRaster().getPixels(0, 0, width, height, mask);
-			Rectangle region = mapData.getRasterBoundsForWorld(tileBounds);
-			for (int j = 0; j < height; j++) {
-				for (int i = 0; i < width; i++) {
-					if (mask[j*width+i] != 0 && !mapData.isNull(i + region.x, j + region.y)) {
-						count ++;
-						// TODO: add support for selecting the band to sample
-						double value = raster.getSampleDouble(i, j, band);
-						switch (type) {
-						case AVG:
-						case SUM:
-							sum += value;
-							break;
-						case MIN:
-							min = Math.min(min, value);
-							break;
-						case MAX:
-							max = Math.max(max, value);
-							break;
-						case STDEV:
-							if (count == 1) {
-								m = value;
-								s = 0;
-							} else {
-								double delta = value - m;
-								m += delta/count;
-								s += delta*(value-m);
-							}
-							break;
-						}
-					}
+		// convert from spacial degrees west to world points
+		return sample(Collections.singletonList(path.getWorld()))[0].get(type);
+	}
+	
+	/**
+	 * Computes the values of every FieldMap in <code>fieldMap</code> for all
+	 * of the given features. The features are sampled together, and fields
+	 * that only differ in their statistic share a single pass over the map.
+	 * @return The values of each field for each feature, for just the
+	 * FieldMaps in <code>fieldMap</code>
+	 */
+	public static Map<Field,Map<Feature,Object>> getValues(ShapeLayer layer, List<Feature> features, Map<Field,CalculatedField> fieldMap) {
+		Map<Field,Map<Feature,Object>> values = new HashMap<Field,Map<Feature,Object>>();
+		
+		// group the fields that sample the same map in the same way
+		Map<List<Object>,List<Field>> groups = new LinkedHashMap<List<Object>,List<Field>>();
+		for (Map.Entry<Field,CalculatedField> entry: fieldMap.entrySet()) {
+			if (entry.getValue() instanceof FieldMap) {
+				FieldMap map = (FieldMap)entry.getValue();
+				List<Object> key = Arrays.<Object>asList(map.source, map.ppd, map.band);
+				List<Field> group = groups.get(key);
+				if (group == null) {
+					groups.put(key, group = new ArrayList<Field>());
 				}
+				group.add(entry.getKey());
 			}
 		}
+		if (groups.isEmpty()) {
+			return values;
+		}
 		
-		/**
-		 * Computes the final stat or error indicator, sends it to the Feature,
-		 * stops any further processing for this Feature, and unlocks the pool
-		 * so the next Feature may be processed.
-		 */
-		private void finishStat() {
-			try {
-				if (count == 0) {
-					stat = null;
-				} else {
-					switch (type) {
-					case AVG: stat = sum/count; break;
-					case MIN: stat = min; break;
-					case MAX: stat = max; break;
-					case SUM: stat = sum; break;
-					case STDEV: stat = count==1 ? 0 : Math.sqrt(s/(count-1)); break;
-					default: throw new IllegalStateException("Unsupported stat type");
-					}
-				}
-			} finally {
-				ch.cancel();
-				finished = true;
-				synchronized(this) {
-					notifyAll();
-				}
-			}
+		List<FPath> paths = new ArrayList<FPath>(features.size());
+		for (Feature f: features) {
+			paths.add(getWorldPath(layer, f));
 		}
 		
-		public void mapChanged(MapData mapData) {
-			try {
-				if (mapData.isFinished()) {
-					// all fragments for this MapData have arrived or failed
-					// so see if the portion of 'bounds' under this request finished
-					Rectangle2D.Double tileBounds = new Rectangle2D.Double();
-					tileBounds.setFrame(bounds);
-					Area finished = mapData.getFinishedArea();
-					Rectangle2D finishedBounds = finished.getBounds2D();
-					if (!finishedBounds.intersects(tileBounds)) {
-						double xdelta = finishedBounds.getMinX() - tileBounds.x;
-						tileBounds.x += 360 * Math.signum(xdelta);
-					}
-					Rectangle2D.intersect(tileBounds, finishedBounds, tileBounds);
-					if (mapData.getImage() == null || !finished.contains(tileBounds)) {
-						// missing data, set error condition and set result on Feature
-						count = 0;
-						finishStat();
-					} else {
-						// include this tile in the running stats
-						accumulateStat(mapData, tileBounds);
-						if (ch.isFinished()) {
-							// compute final stat and set it on the feature
-							finishStat();
-						}
-					}
+		for (List<Field> group: groups.values()) {
+			ZonalStatistics.Result[] results = ((FieldMap)fieldMap.get(group.get(0))).sample(paths);
+			for (Field field: group) {
+				Type type = ((FieldMap)fieldMap.get(field)).type;
+				Map<Feature,Object> fieldValues = new HashMap<Feature,Object>();
+				for (int i = 0; i < results.length; i++) {
+					fieldValues.put(features.get(i), results[i].get(type));
 				}
-			} catch (Exception e) {
-				// something went wrong, set error condition and set result on Feature
-				e.printStackTrace();
-				count = 0;
-				finishStat();
-				return;
+				values.put(field, fieldValues);
 			}
 		}
+		return values;
 	}
 	
-	/**
-	 * Requests tiles for this map sampling operation over the given feature,
-	 * blocks until the statistic has been cobbled together, and returns the value.
-	 * The MapSampler must asynchronously receive updates on the event thread,
-	 * therefore it cannot synchronously block the event thread and must be
-	 * called from another thread.
-	 */
-	public Object getValue(ShapeLayer layer, Feature f) {
-		if (SwingUtilities.isEventDispatchThread()) {
-			throw new IllegalStateException("Must not be called on the AWT event thread.");
-		}
-		
-		// use the cache if it contains this feature
+	/** @return the indexed world path of the feature, or a newly computed one if it is not indexed */
+	private static FPath getWorldPath(ShapeLayer layer, Feature f) {
 		FPath path = layer.getIndex().getWorldPath(f);
 		if (path == null) {
-			// otherwise calculate the geometry style here
 			path = layer.getStylesLive().geometry.getValue(f).getWorld();
 		}
-		
-		MapSampler sampler = new MapSampler(path);
-		sampler.run();
-		
-		while (!sampler.finished) {
-			try {
-				synchronized(sampler) {
-					sampler.wait();
-				}
-			} catch (Exception e) {
-				e.printStackTrace();
-				return null;
-			}
-		}
-		
-		return sampler.stat;
+		return path;
 	}
 	
 	/**
-	 * Called from the landing layer
-	 * 
-	 * Requests tiles for this map sampling operation over the given feature,
-	 * blocks until the statistic has been cobbled together, and returns the value.
-	 * The MapSampler must asynchronously receive updates on the event thread,
-	 * therefore it cannot synchronously block the event thread and must be
-	 * called from another thread.
+	 * Samples this field's map under each of the given world paths.
+	 * @return The statistics for each path, which are all unavailable if
+	 * the sampling was interrupted
 	 */
-	public Object getValue(FPath path) {
-		if (SwingUtilities.isEventDispatchThread()) {
-			throw new IllegalStateException("Must not be called on the AWT event thread.");
-		}
-		
-		// convert from spacial degrees west to world points
-		FPath fPath = path.getWorld();
-		
-		MapSampler sampler = new MapSampler(fPath);
-		sampler.run();
-		
-		while (!sampler.finished) {
-			try {
-				synchronized(sampler) {
-					sampler.wait();
-				}
-			} catch (Exception e) {
-				e.printStackTrace();
-				return null;
+	private ZonalStatistics.Result[] sample(List<FPath> paths) {
+		try {
+			return new ZonalStatistics(source, ppd, band).compute(paths);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			DebugLog.instance().aprintln("Interrupted while sampling " + source.getTitle() + ", leaving statistics unavailable");
+			ZonalStatistics.Result[] empty = new ZonalStatistics.Result[paths.size()];
+			for (int i = 0; i < empty.length; i++) {
+				empty[i] = new ZonalStatistics.Result();
 			}
+			return empty;
 		}
-		
-		return sampler.stat;
 	}
 	
 	
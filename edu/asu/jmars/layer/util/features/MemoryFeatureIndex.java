@@ -2,6 +2,7 @@ package edu.asu.jmars.layer.util.features;
 
 import java.awt.geom.Rectangle2D;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.ConcurrentModificationException;
 import java.util.HashMap;
@@ -10,54 +11,129 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.vividsolutions.jts.geom.Envelope;
 import com.vividsolutions.jts.index.quadtree.Quadtree;
+import com.vividsolutions.jts.index.strtree.STRtree;
 
 import edu.asu.jmars.Main;
 import edu.asu.jmars.layer.ProjectionEvent;
 import edu.asu.jmars.layer.ProjectionListener;
+import edu.asu.jmars.util.DebugLog;
 import edu.asu.jmars.util.Util;
 
 /**
  * An in-memory spatial index over a given FeatureCollection.  Queries may return
  * records that are not strictly within the requested area, so for exact results,
  * a subsequent overlap test should be performed.
- * 
+ *
  * This index is threadsafe. Any number of queries may run separately, but
  * modification will block until all queries finish, and then block subsequent
  * queries until the changes are finished.
- * 
+ *
  * This index adds itself as a listener to the given feature collection and keeps
  * itself up to date with changes.  This does prevent querying while FeatureEvent
  * objects are being dispatched, and disconnect() should be called when this index
  * is no longer in use so it may be garbage collected.
+ *
+ * The features are bulk loaded into an STR packed R-tree on a background
+ * thread; features added later go into a small quadtree until there are
+ * enough of them to make rebuilding worthwhile, and the old trees keep
+ * answering queries while that happens. Features changed while a build runs
+ * are replayed onto its result when it is installed, the same way changes
+ * are applied to an installed index. Each feature keeps its position in
+ * the collection, so query results are put in collection order by sorting
+ * just the hits.
  */
 public final class MemoryFeatureIndex implements FeatureIndex, WorldCache, FeatureListener, ProjectionListener {
+	private static final DebugLog log = DebugLog.instance();
 	public static final Iterator<Feature> emptyIter = new ArrayList<Feature>(0).iterator();
+
+	/** Runs index builds, so they do not hold up readers or the AWT thread */
+	private static final ExecutorService builder = Executors.newCachedThreadPool(new ThreadFactory() {
+		private int id = 0;
+		public synchronized Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "Feature Index Builder " + (id++));
+			t.setDaemon(true);
+			return t;
+		}
+	});
+
+	/**
+	 * Converts features to world paths during a build, which after a
+	 * projection change is most of the work for large collections
+	 */
+	private static final ExecutorService converters = Executors.newFixedThreadPool(
+		Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+			private int id = 0;
+			public synchronized Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "Feature Index Converter " + (id++));
+				t.setDaemon(true);
+				return t;
+			}
+		});
+
+	/** Number of features given to each conversion task */
+	private static final int CONVERT_CHUNK = 2048;
+
+	/** Number of changes since the last build that will trigger a new build in the background */
+	private static final int MIN_REBUILD = 1024;
+
 	private final FeatureCollection fc;
 	private final Style<FPath> geomStyle;
-	private Quadtree tree;
-	
+	private final Stats stats = new Stats();
+
+	/** Read-only tree of the features present at the last build */
+	private STRtree bulk;
+	/** Features added since the last build */
+	private Quadtree recent;
+	/**
+	 * Features whose entries in the packed tree are out of date, since that
+	 * tree cannot remove anything once built
+	 */
+	private Set<Feature> stale;
+	/** False until the first build completes, and after any change that requires starting over */
+	private boolean ready = false;
+	/** True while a build is queued or running */
+	private boolean building = false;
+	/** Incremented on every change, so builds can tell if they are out of date */
+	private int generation = 0;
+	/** Incremented whenever the index is thrown away, which no build can catch up with */
+	private int clears = 0;
+	/** Features added, removed, or changed since the running build took its snapshot */
+	private Set<Feature> changedDuringBuild = new HashSet<Feature>();
+
 	public MemoryFeatureIndex(Style<FPath> geomStyle, FeatureCollection fc) {
 		this.fc = fc;
 		this.geomStyle = geomStyle;
-		
+
 		fc.addListener(this);
 		Main.addProjectionListener(this);
 	}
-	
+
 	public void disconnect() {
 		fc.removeListener(this);
 		Main.removeProjectionListener(this);
 	}
-	
+
 	/**
 	 * Index of feature to FPath, maintained to ensure the spatial index
 	 * elements can always be removed.
 	 */
-	private final Map<Feature,FPath> feat2path = new HashMap<Feature,FPath>();
-	
+	private Map<Feature,FPath> feat2path = new HashMap<Feature,FPath>();
+
+	/**
+	 * Position of each feature in the feature collection; positions only need
+	 * to increase along the collection, so removing features leaves gaps.
+	 */
+	private Map<Feature,Integer> ordinals = new HashMap<Feature,Integer>();
+	private int nextOrdinal = 0;
+
 	public FPath getWorldPath(Feature f) {
 		try {
 			startReader();
@@ -66,57 +142,43 @@ public final class MemoryFeatureIndex implements FeatureIndex, WorldCache, Featu
 			stopReader();
 		}
 	}
-	
+
+	/** @return the query and build counters for this index */
+	public Stats getStats() {
+		return stats;
+	}
+
 	private volatile int numReaders = 0;
 	private volatile int numWriters = 0;
-	
+
 	/**
-	 * Blocks until there are no write operations, then starts a read operation
-	 * and if the tree has not been created, it creates a new one and inserts
-	 * all features in the fc.
+	 * Blocks until there are no write operations and the index has been
+	 * built, then starts a read operation. The build runs on another thread,
+	 * so waiting for it does not keep other threads out of this monitor.
 	 */
 	private synchronized void startReader() {
-		while (numWriters > 0) {
+		while (numWriters > 0 || !ready) {
+			if (!ready) {
+				requestBuild();
+			}
 			try {
 				wait();
 			} catch (InterruptedException e) {
 				throw new RuntimeException(e);
 			}
 		}
-		if (tree == null) {
-			// If the tree has yet to be created then start a writer thread
-			// tolerant of the reader we already have, and insert all the
-			// features.
-			startWriter();
-			try {
-				tree = new Quadtree();
-				for (Feature f: fc.getFeatures()) {
-					add(f);
-				}
-			} catch (ConcurrentModificationException e) {
-				tree = null;
-				feat2path.clear();
-				throw e;
-			} catch (Exception e) {
-				e.printStackTrace();
-			} finally {
-				stopWriter();
-			}
-		}
 		numReaders ++;
 	}
-	
+
 	/** Stops a read operation and notifies all waiting operations */
 	private synchronized void stopReader() {
 		numReaders --;
 		notifyAll();
 	}
-	
+
 	/**
 	 * Blocks until there are no write or read operations, then starts a write
-	 * operation. May set 'one' to true to allow one reader to remain, which
-	 * should only be done by a thread which has previously called
-	 * {@link #startReader()} and not yet called {@link #stopReader()}.
+	 * operation.
 	 */
 	private synchronized void startWriter() {
 		while (numReaders > 0 || numWriters > 0) {
@@ -128,69 +190,316 @@ public final class MemoryFeatureIndex implements FeatureIndex, WorldCache, Featu
 		}
 		numWriters ++;
 	}
-	
+
 	/** Stops a write operation and notifies all waiting operations */
 	private synchronized void stopWriter() {
 		numWriters --;
 		notifyAll();
 	}
-	
+
+	/** Starts a background build unless one is already pending */
+	private synchronized void requestBuild() {
+		if (!building) {
+			building = true;
+			builder.execute(new Runnable() {
+				public void run() {
+					build();
+				}
+			});
+		}
+	}
+
+	/**
+	 * Builds new trees from the current features without holding any lock,
+	 * and installs them. Features that changed in the meantime are replayed
+	 * onto the new trees; if the index was thrown away in the meantime, such
+	 * as by a projection change, the build starts over.
+	 */
+	private void build() {
+		try {
+			while (true) {
+				int gen, clearsAtStart;
+				List<Feature> features;
+				synchronized(this) {
+					gen = generation;
+					clearsAtStart = clears;
+					changedDuringBuild = new HashSet<Feature>();
+				}
+				try {
+					features = new ArrayList<Feature>(fc.getFeatures());
+				} catch (ConcurrentModificationException e) {
+					continue;
+				}
+
+				long start = System.currentTimeMillis();
+				STRtree newBulk = new STRtree();
+				Map<Feature,FPath> newPaths = new HashMap<Feature,FPath>(features.size() * 4 / 3 + 1);
+				Map<Feature,Integer> newOrdinals = new HashMap<Feature,Integer>(features.size() * 4 / 3 + 1);
+				int ordinal = 0;
+				FPath[] paths = toWorld(features);
+				for (int i = 0; i < paths.length; i++) {
+					Feature f = features.get(i);
+					newOrdinals.put(f, ordinal++);
+					if (paths[i] == null) {
+						// index what we can, as a partial index is better than none
+						continue;
+					}
+					newPaths.put(f, paths[i]);
+					for (Envelope env: Util.rect2env(paths[i].getShape().getBounds2D())) {
+						newBulk.insert(env, f);
+					}
+				}
+				newBulk.build();
+
+				try {
+					startWriter();
+					if (clearsAtStart != clears) {
+						// the paths are in an old projection or the collection was replaced
+						continue;
+					}
+					bulk = newBulk;
+					recent = new Quadtree();
+					stale = new HashSet<Feature>();
+					feat2path = newPaths;
+					ordinals = newOrdinals;
+					nextOrdinal = ordinal;
+					if (gen != generation && !replayChanges()) {
+						clear();
+						continue;
+					}
+					ready = true;
+					long elapsed = System.currentTimeMillis() - start;
+					stats.builds.incrementAndGet();
+					stats.lastBuildMillis.set(elapsed);
+					log.println("Indexed " + newPaths.size() + " features in " + elapsed + " ms, "
+						+ changedDuringBuild.size() + " changed while building");
+				} finally {
+					stopWriter();
+				}
+				return;
+			}
+		} finally {
+			synchronized(this) {
+				building = false;
+				notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Converts the geometry of each feature to world coordinates and returns
+	 * the paths in the same order. The geometry style is read on the calling
+	 * thread, since styles aren't safe to share, and only the conversion is
+	 * spread over the converter threads in chunks. Features that fail to
+	 * convert get a null path.
+	 */
+	private FPath[] toWorld(List<Feature> features) {
+		final FPath[] paths = new FPath[features.size()];
+		for (int i = 0; i < paths.length; i++) {
+			try {
+				paths[i] = geomStyle.getValue(features.get(i));
+			} catch (Exception e) {
+				log.aprintln(e);
+			}
+		}
+		List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+		for (int start = 0; start < paths.length; start += CONVERT_CHUNK) {
+			final int first = start;
+			final int last = Math.min(paths.length, start + CONVERT_CHUNK);
+			tasks.add(Executors.callable(new Runnable() {
+				public void run() {
+					for (int i = first; i < last; i++) {
+						try {
+							if (paths[i] != null) {
+								paths[i] = paths[i].getWorld();
+							}
+						} catch (Exception e) {
+							paths[i] = null;
+							log.aprintln(e);
+						}
+					}
+				}
+			}));
+		}
+		if (tasks.size() == 1) {
+			try {
+				tasks.get(0).call();
+			} catch (Exception e) {
+				log.aprintln(e);
+			}
+		} else {
+			try {
+				converters.invokeAll(tasks);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				log.aprintln("Interrupted while converting features, index will be partial");
+			}
+		}
+		return paths;
+	}
+
+	/**
+	 * Brings freshly installed trees up to date with the features that
+	 * changed while they were built, by renumbering the collection and
+	 * indexing each changed feature as it is now. Called with the write lock.
+	 * @return false if the collection changed again while being read
+	 */
+	private boolean replayChanges() {
+		try {
+			ordinals = new HashMap<Feature,Integer>(ordinals.size() * 4 / 3 + 1);
+			nextOrdinal = 0;
+			for (Feature f: fc.getFeatures()) {
+				ordinals.put(f, nextOrdinal++);
+			}
+		} catch (ConcurrentModificationException e) {
+			return false;
+		}
+		for (Feature f: changedDuringBuild) {
+			remove(f);
+			if (ordinals.containsKey(f)) {
+				add(f);
+			}
+		}
+		return true;
+	}
+
 	private void add(Feature f) {
 		FPath path = geomStyle.getValue(f).getWorld();
 		feat2path.put(f, path);
 		for (Envelope env: Util.rect2env(path.getShape().getBounds2D())) {
-			tree.insert(env, f);
+			recent.insert(env, f);
 		}
 	}
-	
+
 	private void remove(Feature f) {
 		FPath path = feat2path.remove(f);
+		if (path == null) {
+			return;
+		}
 		for (Envelope env: Util.rect2env(path.getShape().getBounds2D())) {
-			tree.remove(env, f);
+			if (!recent.remove(env, f)) {
+				stale.add(f);
+			}
+		}
+	}
+
+	/**
+	 * Gives the added features positions after every other feature when they
+	 * were appended to the collection, and otherwise renumbers every feature.
+	 */
+	private void addOrdinals(FeatureEvent e) {
+		int first = fc.getFeatureCount() - e.features.size();
+		boolean appended = e.featureIndices != null && e.featureIndices.size() == e.features.size();
+		if (appended) {
+			for (Integer idx: e.featureIndices.values()) {
+				if (idx < first) {
+					appended = false;
+					break;
+				}
+			}
+		}
+		if (appended) {
+			for (Feature f: e.features) {
+				ordinals.put(f, nextOrdinal + e.featureIndices.get(f) - first);
+			}
+			nextOrdinal += e.features.size();
+		} else {
+			ordinals.clear();
+			nextOrdinal = 0;
+			for (Feature f: fc.getFeatures()) {
+				ordinals.put(f, nextOrdinal++);
+			}
 		}
 	}
-	
+
+	/**
+	 * Starts a new build in the background once enough features have been
+	 * added or have outdated entries in the packed tree.
+	 */
+	private void checkRebuild() {
+		if (recent.size() + stale.size() > Math.max(MIN_REBUILD, feat2path.size() / 4)) {
+			requestBuild();
+		}
+	}
+
+	/** Throws away the index, so the next reader waits for a new one */
+	private void clear() {
+		clears ++;
+		ready = false;
+		bulk = null;
+		recent = null;
+		stale = null;
+		feat2path = new HashMap<Feature,FPath>();
+		ordinals = new HashMap<Feature,Integer>();
+		nextOrdinal = 0;
+	}
+
 	/**
-	 * Performs a brute force search through the feature collection looking for
-	 * records that overlap the query in world coordinates, and returns an
-	 * iterator over a collection of the results.
+	 * Queries the spatial index for records that overlap the query in world
+	 * coordinates, and returns an iterator over the exact hits in
+	 * FeatureCollection order.
 	 */
 	public Iterator<Feature> queryUnwrappedWorld(Rectangle2D rect) {
+		long start = System.nanoTime();
 		try {
 			startReader();
-			
+
 			// get possible matches
-			Set<Feature> matches = new HashSet<Feature>();
+			List<Feature> matches = new ArrayList<Feature>();
 			for (Envelope env: Util.rect2env(rect)) {
-				matches.addAll((List<Feature>)tree.query(env));
-			}
-			
-			// if we have any possible matches, get them into FeatureCollection
-			// order and ensure we have exact hits
-			List<Feature> results = new ArrayList<Feature>();
-			if (!matches.isEmpty()) {
-				for (Feature f: fc.getFeatures()) {
-					if (matches.contains(f) && feat2path.get(f).intersects(rect)) {
-						results.add(f);
+				for (Object o: bulk.query(env)) {
+					if (!stale.contains(o)) {
+						matches.add((Feature)o);
 					}
 				}
+				for (Object o: recent.query(env)) {
+					matches.add((Feature)o);
+				}
+			}
+
+			// keep the exact hits, sorted by ordinal in the high bits with
+			// the match index in the low bits
+			long[] keys = new long[matches.size()];
+			int count = 0;
+			for (int i = 0; i < matches.size(); i++) {
+				Feature f = matches.get(i);
+				FPath path = feat2path.get(f);
+				if (path != null && path.intersects(rect)) {
+					keys[count++] = ((long)ordinals.get(f) << 32) | i;
+				}
+			}
+			Arrays.sort(keys, 0, count);
+
+			// put them into FeatureCollection order, dropping features
+			// found by more than one envelope
+			List<Feature> results = new ArrayList<Feature>(count);
+			long lastOrdinal = -1;
+			for (int i = 0; i < count; i++) {
+				long ordinal = keys[i] >>> 32;
+				if (ordinal != lastOrdinal) {
+					results.add(matches.get((int)keys[i]));
+					lastOrdinal = ordinal;
+				}
 			}
+			stats.record(System.nanoTime() - start, matches.size(), results.size());
 			return results.iterator();
 		} finally {
 			stopReader();
 		}
 	}
-	
+
 	public void receive(final FeatureEvent e) {
 		Runnable task = null;
 		switch (e.type) {
 		case FeatureEvent.ADD_FEATURE:
 			task = new Runnable() {
 				public void run() {
-					if (tree != null) {
+					if (ready) {
 						for (Feature f: e.features) {
 							add(f);
 						}
+						addOrdinals(e);
+						checkRebuild();
 					}
 				}
 			};
@@ -202,12 +511,13 @@ public final class MemoryFeatureIndex implements FeatureIndex, WorldCache, Featu
 					// collection has fewer remaining features than were just
 					// removed
 					if (fc.getFeatureCount() < e.features.size()) {
-						tree = null;
-						feat2path.clear();
-					} else if (tree != null) {
+						clear();
+					} else if (ready) {
 						for (Feature f: e.features) {
 							remove(f);
+							ordinals.remove(f);
 						}
+						checkRebuild();
 					}
 				}
 			};
@@ -219,15 +529,15 @@ public final class MemoryFeatureIndex implements FeatureIndex, WorldCache, Featu
 						// It's faster to recreate the tree if more than
 						// half of the features were just affected
 						if (e.valuesBefore == null || fc.getFeatureCount() / 2 < e.valuesBefore.size()) {
-							tree = null;
-							feat2path.clear();
-						} else if (tree != null) {
+							clear();
+						} else if (ready) {
 							for (Feature f: e.valuesBefore.keySet()) {
 								remove(f);
 							}
 							for (Feature f: e.valuesBefore.keySet()) {
 								add(f);
 							}
+							checkRebuild();
 						}
 					}
 				};
@@ -237,25 +547,82 @@ public final class MemoryFeatureIndex implements FeatureIndex, WorldCache, Featu
 		if (task != null) {
 			try {
 				startWriter();
+				generation ++;
+				if (building) {
+					if (e.type == FeatureEvent.CHANGE_FEATURE && e.valuesBefore != null) {
+						changedDuringBuild.addAll(e.valuesBefore.keySet());
+					} else if (e.features != null) {
+						changedDuringBuild.addAll(e.features);
+					}
+				}
 				task.run();
 			} finally {
 				stopWriter();
 			}
 		}
 	}
-	
+
 	public void reindex() {
 		try {
 			startWriter();
-			tree = null;
-			feat2path.clear();
+			generation ++;
+			clear();
 		} finally {
 			stopWriter();
 		}
+		// start the new build now rather than on the next query
+		requestBuild();
 	}
-	
+
 	public void projectionChanged(ProjectionEvent e) {
 		reindex();
 	}
+
+	/** Query latency and build counters */
+	public static final class Stats {
+		private final AtomicLong queries = new AtomicLong();
+		private final AtomicLong queryNanos = new AtomicLong();
+		private final AtomicLong maxQueryNanos = new AtomicLong();
+		private final AtomicLong candidates = new AtomicLong();
+		private final AtomicLong results = new AtomicLong();
+		private final AtomicLong builds = new AtomicLong();
+		private final AtomicLong lastBuildMillis = new AtomicLong();
+		private void record(long nanos, int candidateCount, int resultCount) {
+			queries.incrementAndGet();
+			queryNanos.addAndGet(nanos);
+			candidates.addAndGet(candidateCount);
+			results.addAndGet(resultCount);
+			long max;
+			while (nanos > (max = maxQueryNanos.get()) && !maxQueryNanos.compareAndSet(max, nanos));
+		}
+		public long getQueries() {
+			return queries.get();
+		}
+		/** @return the mean time per query in milliseconds, including any wait for a build */
+		public double getMeanQueryMillis() {
+			long n = queries.get();
+			return n == 0 ? 0 : queryNanos.get() / 1e6 / n;
+		}
+		public double getMaxQueryMillis() {
+			return maxQueryNanos.get() / 1e6;
+		}
+		public long getCandidates() {
+			return candidates.get();
+		}
+		public long getResults() {
+			return results.get();
+		}
+		public long getBuilds() {
+			return builds.get();
+		}
+		public long getLastBuildMillis() {
+			return lastBuildMillis.get();
+		}
+		public String toString() {
+			return "queries=" + getQueries() + " meanMs=" + getMeanQueryMillis() + " maxMs=" + getMaxQueryMillis() +
+				" candidates=" + getCandidates() + " results=" + getResults() +
+				" builds=" + getBuilds() + " lastBuildMs=" + getLastBuildMillis();
+		}
+	}
 }
 
@@ -0,0 +1,163 @@
+package edu.asu.jmars.layer.util.features;
+
+import java.awt.Rectangle;
+import java.awt.Shape;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Path2D;
+import java.awt.geom.PathIterator;
+import java.awt.geom.Point2D;
+import java.awt.geom.Rectangle2D;
+
+/**
+ * An immutable shape made only of straight line parts, stored as one float
+ * array of x,y pairs with the start of each part and whether it is closed.
+ * It takes about a quarter of the memory of the equivalent Path2D.Double,
+ * and is meant for the simplified copies of geometry kept for drawing, where
+ * float precision is far below a pixel.
+ *
+ * The containment and intersection tests build a temporary path, so this
+ * class is best used where those are rare.
+ */
+final class PackedShape implements Shape {
+	private final float[] coords;
+	/** Index of the first vertex of each part, plus the vertex count at the end */
+	private final int[] starts;
+	private final boolean[] closed;
+	private final int windingRule;
+	private final Rectangle2D bounds;
+
+	/**
+	 * Creates the shape from vertices in coords[0..2*vertexCount], with each
+	 * part beginning at the vertex given in starts, and starts[parts] equal
+	 * to the number of vertices.
+	 */
+	PackedShape(float[] coords, int[] starts, boolean[] closed, int windingRule) {
+		this.coords = coords;
+		this.starts = starts;
+		this.closed = closed;
+		this.windingRule = windingRule;
+		int n = starts[starts.length - 1];
+		if (n == 0) {
+			bounds = new Rectangle2D.Float();
+		} else {
+			float minX = Float.POSITIVE_INFINITY, minY = Float.POSITIVE_INFINITY;
+			float maxX = Float.NEGATIVE_INFINITY, maxY = Float.NEGATIVE_INFINITY;
+			for (int i = 0; i < 2*n; i += 2) {
+				minX = Math.min(minX, coords[i]);
+				maxX = Math.max(maxX, coords[i]);
+				minY = Math.min(minY, coords[i+1]);
+				maxY = Math.max(maxY, coords[i+1]);
+			}
+			bounds = new Rectangle2D.Float(minX, minY, maxX - minX, maxY - minY);
+		}
+	}
+
+	/** @return the number of vertices in this shape */
+	public int getVertexCount() {
+		return starts[starts.length - 1];
+	}
+
+	public Rectangle getBounds() {
+		return bounds.getBounds();
+	}
+
+	public Rectangle2D getBounds2D() {
+		return (Rectangle2D)bounds.clone();
+	}
+
+	private Path2D toPath() {
+		Path2D.Float path = new Path2D.Float(windingRule, getVertexCount() + closed.length);
+		path.append(getPathIterator(null), false);
+		return path;
+	}
+
+	public boolean contains(double x, double y) {
+		return bounds.contains(x, y) && toPath().contains(x, y);
+	}
+
+	public boolean contains(Point2D p) {
+		return contains(p.getX(), p.getY());
+	}
+
+	public boolean intersects(double x, double y, double w, double h) {
+		return bounds.intersects(x, y, w, h) && toPath().intersects(x, y, w, h);
+	}
+
+	public boolean intersects(Rectangle2D r) {
+		return intersects(r.getX(), r.getY(), r.getWidth(), r.getHeight());
+	}
+
+	public boolean contains(double x, double y, double w, double h) {
+		return bounds.contains(x, y, w, h) && toPath().contains(x, y, w, h);
+	}
+
+	public boolean contains(Rectangle2D r) {
+		return contains(r.getX(), r.getY(), r.getWidth(), r.getHeight());
+	}
+
+	public PathIterator getPathIterator(AffineTransform at, double flatness) {
+		return getPathIterator(at);
+	}
+
+	public PathIterator getPathIterator(final AffineTransform at) {
+		return new PathIterator() {
+			private int part = 0;
+			private int vertex = 0;
+			/** True when the current segment is the close of the current part */
+			private boolean closing = false;
+			{
+				// skip empty parts
+				while (part < closed.length && starts[part] == starts[part+1]) {
+					part++;
+				}
+				if (part < closed.length) {
+					vertex = starts[part];
+				}
+			}
+			public int getWindingRule() {
+				return windingRule;
+			}
+			public boolean isDone() {
+				return part >= closed.length;
+			}
+			public void next() {
+				if (closing) {
+					closing = false;
+					part++;
+				} else if (++vertex == starts[part+1]) {
+					if (closed[part]) {
+						closing = true;
+					} else {
+						part++;
+					}
+				}
+				// skip empty parts
+				while (!closing && part < closed.length && starts[part] == starts[part+1]) {
+					part++;
+				}
+			}
+			public int currentSegment(float[] out) {
+				if (closing) {
+					return SEG_CLOSE;
+				}
+				out[0] = coords[2*vertex];
+				out[1] = coords[2*vertex+1];
+				if (at != null) {
+					at.transform(out, 0, out, 0, 1);
+				}
+				return vertex == starts[part] ? SEG_MOVETO : SEG_LINETO;
+			}
+			public int currentSegment(double[] out) {
+				if (closing) {
+					return SEG_CLOSE;
+				}
+				out[0] = coords[2*vertex];
+				out[1] = coords[2*vertex+1];
+				if (at != null) {
+					at.transform(out, 0, out, 0, 1);
+				}
+				return vertex == starts[part] ? SEG_MOVETO : SEG_LINETO;
+			}
+		};
+	}
+}
@@ -2,24 +2,30 @@ package edu.asu.jmars.layer.util.features;
 
 import java.awt.BasicStroke;
 import java.awt.Color;
-import java.awt.Dimension;
 import java.awt.Font;
 import java.awt.Graphics2D;
 import java.awt.RenderingHints;
 import java.awt.Shape;
 import java.awt.Stroke;
+import java.awt.font.FontRenderContext;
+import java.awt.font.TextLayout;
 import java.awt.geom.AffineTransform;
 import java.awt.geom.Line2D;
 import java.awt.geom.Path2D;
 import java.awt.geom.PathIterator;
 import java.awt.geom.Point2D;
 import java.awt.geom.Rectangle2D;
-import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 
 import edu.asu.jmars.Main;
 import edu.asu.jmars.graphics.FontRenderer;
+import edu.asu.jmars.layer.MultiProjection;
+import edu.asu.jmars.util.Config;
 import edu.asu.jmars.util.HighResExport;
 import edu.asu.jmars.util.LineType;
 
@@ -86,6 +92,19 @@ public class ShapeRenderer {
 	private final Map<Integer,Map<Double,Stroke>> strokeCaches = new HashMap<Integer,Map<Double,Stroke>>();
 	/** Source of FPath instances */
 	private StyleSource<FPath> pathSource;
+	/** The look whose label colors are on {@link #fRenderer} */
+	private Look labelLook;
+	
+	/** Whether geometry smaller than a pixel is drawn as a single pixel */
+	private static final boolean cullSubpixel = Config.get("shape.cullSubpixel", true);
+	/** Label layouts, keyed by label, font and render context, evicted in LRU order */
+	private static final Map<List<Object>,TextLayout> layouts = new LinkedHashMap<List<Object>,TextLayout>(256, .75f, true) {
+		private static final long serialVersionUID = 1L;
+		private final int max = Config.get("shape.labelCacheSize", 10000);
+		protected boolean removeEldestEntry(Map.Entry<List<Object>,TextLayout> eldest) {
+			return size() > max;
+		}
+	};
 	
 	/**
 	 * Create a renderer instance suitable for one rendering pass.
@@ -136,12 +155,107 @@ public class ShapeRenderer {
 	 *            Feature object to render.
 	 */
 	public void draw(Graphics2D g2w, Graphics2D g2s, Feature f) {
+		lastLook = null;
+		drawFeature(g2w, g2s, f);
+	}
+	
+	/**
+	 * Draws the given Features in order, as {@link #draw(Graphics2D, Graphics2D, Feature)}
+	 * would. Consecutive features that resolve to the same style values share
+	 * one set of strokes, fonts and rendering hints, which are only installed
+	 * on the graphics when the style changes, so this is much faster for the
+	 * usual case of a layer where most features look alike. Nothing else may
+	 * draw to the graphics objects during this call.
+	 */
+	public void draw(Graphics2D g2w, Graphics2D g2s, Collection<Feature> features) {
+		lastLook = null;
+		for (Feature f: features) {
+			drawFeature(g2w, g2s, f);
+		}
+	}
+	
+	/**
+	 * The style values a feature is drawn with, along with the graphics
+	 * objects built from them, which are reused for as long as consecutive
+	 * features resolve to equal values.
+	 */
+	private static final class Look {
+		final boolean antialias;
+		final Color fillColor;
+		final boolean fillPolygons;
+		final int pointSize;
+		final double lineWidth;
+		final Color lineColor;
+		final LineType lineDash;
+		final boolean drawOutlines;
+		final boolean showVertices;
+		final int vertexSize;
+		final boolean showLineDir;
+		final boolean showLabels;
+		final Color labelColor;
+		final Color labelBorderColor;
+		final int fontSize;
+		final String fontStyle;
+		final String fontName;
+		
+		Stroke lineStroke;
+		Stroke plainStroke;
+		Font font;
+		
+		Look(Styles styles, Feature f, int zoomFactor) {
+			antialias = styles.antialias.getValue(f);
+			fillColor = styles.fillColor.getValue(f);
+			fillPolygons = styles.fillPolygons.getValue(f);
+			pointSize = styles.pointSize.getValue(f).intValue()*zoomFactor;
+			lineWidth = styles.lineWidth.getValue(f).doubleValue()*zoomFactor;
+			lineColor = styles.lineColor.getValue(f);
+			lineDash = styles.lineDash.getValue(f);
+			drawOutlines = styles.drawOutlines.getValue(f);
+			showVertices = styles.showVertices.getValue(f);
+			vertexSize = styles.vertexSize.getValue(f).intValue()*zoomFactor;
+			showLineDir = styles.showLineDir.getValue(f);
+			showLabels = styles.showLabels.getValue(f);
+			if (showLabels) {
+				labelColor = styles.labelColor.getValue(f);
+				labelBorderColor = styles.labelBorderColor.getValue(f);
+				fontSize = styles.labelSize.getValue(f).intValue()*zoomFactor;
+				fontStyle = styles.labelStyle.getValue(f);
+				fontName = styles.labelFont.getValue(f);
+			} else {
+				labelColor = labelBorderColor = null;
+				fontSize = 0;
+				fontStyle = fontName = null;
+			}
+		}
+		
+		public boolean equals(Object o) {
+			if (!(o instanceof Look)) {
+				return false;
+			}
+			Look l = (Look)o;
+			return antialias == l.antialias && fillPolygons == l.fillPolygons && pointSize == l.pointSize
+				&& lineWidth == l.lineWidth && drawOutlines == l.drawOutlines && showVertices == l.showVertices
+				&& vertexSize == l.vertexSize && showLineDir == l.showLineDir && showLabels == l.showLabels
+				&& fontSize == l.fontSize && lineDash.getType() == l.lineDash.getType()
+				&& same(fillColor, l.fillColor) && same(lineColor, l.lineColor)
+				&& same(labelColor, l.labelColor) && same(labelBorderColor, l.labelBorderColor)
+				&& same(fontStyle, l.fontStyle) && same(fontName, l.fontName);
+		}
+		
+		public int hashCode() {
+			return (lineColor == null ? 0 : lineColor.hashCode()) * 31 + (int)(lineWidth * 100) + pointSize;
+		}
+		
+		private static boolean same(Object a, Object b) {
+			return a == null ? b == null : a.equals(b);
+		}
+	}
+	
+	/** The look of the last feature drawn by the current call, whose state is on the graphics */
+	private Look lastLook;
+	
+	private void drawFeature(Graphics2D g2w, Graphics2D g2s, Feature f) {
 		try {
-			g2w.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
-				styles.antialias.getValue(f)
-					? RenderingHints.VALUE_ANTIALIAS_ON
-					: RenderingHints.VALUE_ANTIALIAS_OFF);
-			
 			// Get the path and path type
 			FPath path = pathSource.getValue(f).getWorld();
 			Shape p = path.getShape();
@@ -158,114 +272,74 @@ public class ShapeRenderer {
 				zoomFactor = HighResExport.zoomFactor;
 			}
 			
+			Look look = new Look(styles, f, zoomFactor);
+			if (look.equals(lastLook)) {
+				look = lastLook;
+			} else {
+				g2w.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
+					look.antialias
+						? RenderingHints.VALUE_ANTIALIAS_ON
+						: RenderingHints.VALUE_ANTIALIAS_OFF);
+				look.lineStroke = getStroke(look.lineWidth, look.lineDash);
+				look.plainStroke = getStroke(look.lineWidth, noLineDash);
+				lastLook = look;
+			}
+			
+			// Geometry smaller than a pixel is drawn as a single pixel, since
+			// nothing else about it would be visible at this scale
+			// Lines and polygons are drawn from the copy simplified for this zoom
+			Shape outline = type == FPath.TYPE_POINT ? p : path.getShape(ppd);
+			if (type != FPath.TYPE_POINT && cullSubpixel) {
+				Rectangle2D bounds = outline.getBounds2D();
+				if (bounds.getWidth() * ppd < 1 && bounds.getHeight() * ppd < 1) {
+					g2w.setColor(type == FPath.TYPE_POLYGON && look.fillPolygons ? look.fillColor : look.lineColor);
+					double size = 1.0 / ppd;
+					g2w.fill(new Rectangle2D.Double(bounds.getCenterX() - size/2, bounds.getCenterY() - size/2, size, size));
+					drawLabel(g2s, look, f, path);
+					return;
+				}
+			}
+			
 			// Install various pieces of style as needed and draw.
 			
 			// Draw filled polygon.
 			if (type == FPath.TYPE_POINT) {
-				g2w.setColor(styles.fillColor.getValue(f));
-				fillVertices(g2w, p, styles.pointSize.getValue(f).intValue()*zoomFactor);
-			} else if (type == FPath.TYPE_POLYGON) {
-				g2w.setColor(styles.fillColor.getValue(f));
-				if (styles.fillPolygons.getValue(f)) {
-					g2w.fill(p);
+				g2w.setColor(look.fillColor);
+				fillVertices(g2w, p, look.pointSize);
+			} else {
+				if (type == FPath.TYPE_POLYGON) {
+					g2w.setColor(look.fillColor);
+					if (look.fillPolygons) {
+						g2w.fill(outline);
+					}
 				}
 			}
 			
-			double lineWidth = styles.lineWidth.getValue(f).doubleValue()*zoomFactor;
-			
-			g2w.setColor(styles.lineColor.getValue(f));
+			g2w.setColor(look.lineColor);
 			
-			if (type == FPath.TYPE_POLYLINE || styles.drawOutlines.getValue(f)) {
-				g2w.setStroke(getStroke(lineWidth, styles.lineDash.getValue(f)));
+			if (type == FPath.TYPE_POLYLINE || look.drawOutlines) {
+				g2w.setStroke(look.lineStroke);
 				
 				if (type == FPath.TYPE_POINT)
-					drawVertices(g2w, p, styles.pointSize.getValue(f).intValue()*zoomFactor);
+					drawVertices(g2w, p, look.pointSize);
 				else
-					g2w.draw(p);
+					g2w.draw(outline);
 			}
 			
-			g2w.setStroke(getStroke(lineWidth, noLineDash));
+			g2w.setStroke(look.plainStroke);
 			
 			// Draw vertices.
-			if (f.getPath().getType() != FPath.TYPE_POINT && styles.showVertices.getValue(f))
-				drawVertices(g2w, p, styles.vertexSize.getValue(f).intValue()*zoomFactor);
+			if (f.getPath().getType() != FPath.TYPE_POINT && look.showVertices)
+				drawVertices(g2w, p, look.vertexSize);
 			
 			// Draw direction arrows.
-			if (type == FPath.TYPE_POLYLINE && styles.showLineDir.getValue(f)) {
+			if (type == FPath.TYPE_POLYLINE && look.showLineDir) {
 				Line2D lastSeg = getLastSegment(p);
 				Path2D arrowHead = makeArrowHead(lastSeg);
 				g2w.fill(arrowHead);
 			}
 			
-			// Draw optional text.
-			if (styles.showLabels.getValue(f)) {
-				String label = styles.labelText.getValue(f);
-				Color labelColor = styles.labelColor.getValue(f);
-				Color labelOutlineColor = styles.labelBorderColor.getValue(f);
-				int fontSize = styles.labelSize.getValue(f).intValue()*zoomFactor;
-				int fontStyleInt = Font.PLAIN;
-				String fontStyle = styles.labelStyle.getValue(f);
-				String fontName = styles.labelFont.getValue(f);
-				Point2D center = path.getCenter();
-				//need to be drawing in screen coordinates for labels
-				Point2D scCenter = Main.testDriver.mainWindow.getProj().world.toScreen(center);
-				//We need to make sure we get all the screen coordinates this point may
-				// show up on (if the world wraps it will show in multiple places)
-				//Only care about the x direction, doesn't wrap in the y direction
-				Dimension s = Main.testDriver.mainWindow.getSize();
-				double maxX = s.getWidth();
-				ArrayList<Double> xs = new ArrayList<Double>();
-				double x = scCenter.getX();
-				//Add the original screen x
-				xs.add(x);
-				//First go to the left (negative world coords)
-				int j = 0;
-				double centerX = center.getX();
-				while(x>0){
-					centerX = centerX - 360;
-					Point2D newWorld = new Point2D.Double(centerX, center.getY());
-					Point2D newScreen = Main.testDriver.mainWindow.getProj().world.toScreen(newWorld);
-					x = newScreen.getX();
-					if(x>0){
-						xs.add(x);
-					}
-				}
-				//Next start over and go right (positive world coords)
-				centerX = center.getX();
-				while(x<maxX){
-					centerX = centerX + 360;
-					Point2D newWorld = new Point2D.Double(centerX, center.getY());
-					Point2D newScreen = Main.testDriver.mainWindow.getProj().world.toScreen(newWorld);
-					x = newScreen.getX();
-
-					if(x<maxX){
-						xs.add(x);
-					}
-				}
-				//The y value doesn't change
-				double y = scCenter.getY();
-				int xOffset = 8;
-				int yOffset = 0;
-				
-				
-				if (fontStyle.equalsIgnoreCase("plain")) {
-					fontStyleInt = Font.PLAIN;
-				} else if (fontStyle.equalsIgnoreCase("bold")) {
-					fontStyleInt = Font.BOLD;
-				} else if (fontStyle.equalsIgnoreCase("italic")) {
-					fontStyleInt = Font.ITALIC;
-				}
-			    fRenderer.setFont(new Font(fontName, fontStyleInt, fontSize));
-				fRenderer.setForeground(labelColor);
-				fRenderer.setOutlineColor(labelOutlineColor);
-				
-				//draw all the labels that are on the screen
-				float yVal = (float)y + yOffset;
-				for(int i=0; i<xs.size(); i++){
-					float xVal = xs.get(i).floatValue() + xOffset;
-					fRenderer.paintLabel(g2s, label, xVal, yVal);
-				}
-			}
+			drawLabel(g2s, look, f, path);
 		} catch (ClassCastException ex) {
 			ex.printStackTrace();
 		} catch (NullPointerException ex) {
@@ -273,6 +347,72 @@ public class ShapeRenderer {
 		}
 	}
 	
+	/** Draws the optional label of a feature at each place its center appears on screen */
+	private void drawLabel(Graphics2D g2s, Look look, Feature f, FPath path) {
+		if (!look.showLabels) {
+			return;
+		}
+		String label = styles.labelText.getValue(f);
+		if (label == null || label.length() == 0) {
+			return;
+		}
+		if (look.font == null) {
+			int fontStyleInt = Font.PLAIN;
+			if (look.fontStyle.equalsIgnoreCase("plain")) {
+				fontStyleInt = Font.PLAIN;
+			} else if (look.fontStyle.equalsIgnoreCase("bold")) {
+				fontStyleInt = Font.BOLD;
+			} else if (look.fontStyle.equalsIgnoreCase("italic")) {
+				fontStyleInt = Font.ITALIC;
+			}
+			look.font = new Font(look.fontName, fontStyleInt, look.fontSize);
+		}
+		if (labelLook != look) {
+			fRenderer.setForeground(look.labelColor);
+			fRenderer.setOutlineColor(look.labelBorderColor);
+			labelLook = look;
+		}
+		TextLayout layout = getLayout(label, look.font, g2s.getFontRenderContext());
+		
+		//need to be drawing in screen coordinates for labels
+		Point2D center = path.getCenter();
+		MultiProjection proj = Main.testDriver.mainWindow.getProj();
+		Point2D scCenter = proj.world.toScreen(center);
+		//We need to draw the label everywhere this point shows up on screen
+		//(if the world wraps it will show in multiple places). The world only
+		//wraps in the x direction, every 360 degrees.
+		double period = proj.world.toScreen(center.getX() + 360, center.getY()).getX() - scCenter.getX();
+		double maxX = Main.testDriver.mainWindow.getSize().getWidth();
+		int xOffset = 8;
+		int yOffset = 0;
+		float yVal = (float)scCenter.getY() + yOffset;
+		double x = scCenter.getX();
+		fRenderer.paintLabel(g2s, layout, (float)x + xOffset, yVal);
+		if (period > 0) {
+			for (double left = x - period; left > 0; left -= period) {
+				fRenderer.paintLabel(g2s, layout, (float)left + xOffset, yVal);
+			}
+			for (double right = x + period; right < maxX; right += period) {
+				fRenderer.paintLabel(g2s, layout, (float)right + xOffset, yVal);
+			}
+		}
+	}
+	
+	/**
+	 * Returns the layout of the given label in the given font, shared by
+	 * every renderer so labels are only laid out again when they change.
+	 */
+	private static TextLayout getLayout(String label, Font font, FontRenderContext frc) {
+		List<Object> key = Arrays.asList(label, font, frc);
+		synchronized(layouts) {
+			TextLayout layout = layouts.get(key);
+			if (layout == null) {
+				layouts.put(key, layout = new TextLayout(label, font, frc));
+			}
+			return layout;
+		}
+	}
+	
 	/**
 	 * Returns the shared instance of vertex box used for various drawing
 	 * routines. The vetex box is constructed using the LView's current
@@ -0,0 +1,345 @@
+package edu.asu.jmars.layer.util.features;
+
+import java.awt.AlphaComposite;
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.Shape;
+import java.awt.geom.Area;
+import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.Raster;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import edu.asu.jmars.Main;
+import edu.asu.jmars.ProjObj;
+import edu.asu.jmars.graphics.GraphicsWrapped;
+import edu.asu.jmars.layer.map2.MapChannel;
+import edu.asu.jmars.layer.map2.MapChannelReceiver;
+import edu.asu.jmars.layer.map2.MapData;
+import edu.asu.jmars.layer.map2.MapRequest;
+import edu.asu.jmars.layer.map2.MapRetriever;
+import edu.asu.jmars.layer.map2.MapSource;
+import edu.asu.jmars.layer.map2.MapThreadFactory;
+import edu.asu.jmars.layer.map2.Pipeline;
+import edu.asu.jmars.layer.map2.Stage;
+import edu.asu.jmars.util.Config;
+import edu.asu.jmars.util.DebugLog;
+import edu.asu.jmars.util.Util;
+
+/**
+ * Computes the count, sum, min, max, mean, and standard deviation of map
+ * pixels under each of many shapes at once.
+ *
+ * The shapes are grouped by the map tiles they overlap, each tile is
+ * requested once, and every shape over it is accumulated from that one
+ * raster, so neighboring shapes do not fetch the same tiles again, and all
+ * statistics come out of a single pass. Tiles are fetched and accumulated
+ * on a shared pool of <code>map.sampling.threads</code> threads.
+ *
+ * A shape covers the pixels its outline touches. Points, and shapes smaller
+ * than a pixel, cover the pixels around them. If any tile under a shape is
+ * missing, the statistics for that shape are not available.
+ */
+public final class ZonalStatistics {
+	private static final DebugLog log = DebugLog.instance();
+	private static final ExecutorService pool = Executors.newFixedThreadPool(
+		Config.get("map.sampling.threads", 2 * Runtime.getRuntime().availableProcessors()),
+		new MapThreadFactory("Map Sampler"));
+
+	private final MapSource source;
+	private final int ppd;
+	private final int band;
+
+	/**
+	 * @param source The map to sample
+	 * @param ppd The resolution to sample at
+	 * @param band The band of the map to sample
+	 */
+	public ZonalStatistics(MapSource source, int ppd, int band) {
+		this.source = source;
+		this.ppd = ppd;
+		this.band = band;
+	}
+
+	/**
+	 * Samples the map under each of the given world coordinate paths, and
+	 * blocks until every statistic is ready. Must not be called on the AWT
+	 * event thread, which delivers the map data.
+	 * @return The statistics for each path, in the same order
+	 */
+	public Result[] compute(List<FPath> paths) throws InterruptedException {
+		final ProjObj po = Main.PO;
+		final Result[] results = new Result[paths.size()];
+		final Rectangle2D.Double[] bounds = new Rectangle2D.Double[paths.size()];
+		final Shape[] rois = new Shape[paths.size()];
+
+		// find the tiles under each shape
+		Map<Point,List<Integer>> tiles = new LinkedHashMap<Point,List<Integer>>();
+		for (int i = 0; i < results.length; i++) {
+			results[i] = new Result();
+			FPath path = paths.get(i);
+			try {
+				bounds[i] = getPixelBounds(path.getShape().getBounds2D());
+				rois[i] = getRegion(path, bounds[i]);
+				for (Rectangle2D wrapped: Util.toWrappedWorld(bounds[i])) {
+					for (Point tile: MapRetriever.tiler.getTiles(wrapped, ppd)) {
+						List<Integer> under = tiles.get(tile);
+						if (under == null) {
+							tiles.put(tile, under = new ArrayList<Integer>());
+						}
+						if (under.isEmpty() || under.get(under.size()-1) != i) {
+							under.add(i);
+						}
+					}
+				}
+			} catch (Exception e) {
+				log.aprintln(e);
+				results[i].fail();
+			}
+		}
+
+		// fetch and accumulate each tile once
+		List<Future<?>> tasks = new ArrayList<Future<?>>(tiles.size());
+		List<List<Integer>> taskShapes = new ArrayList<List<Integer>>(tiles.size());
+		for (final Map.Entry<Point,List<Integer>> entry: tiles.entrySet()) {
+			taskShapes.add(entry.getValue());
+			tasks.add(pool.submit(new Runnable() {
+				public void run() {
+					sampleTile(po, entry.getKey(), entry.getValue(), bounds, rois, results);
+				}
+			}));
+		}
+		try {
+			for (int t = 0; t < tasks.size(); t++) {
+				try {
+					tasks.get(t).get();
+				} catch (ExecutionException e) {
+					log.aprintln(e.getCause());
+					// the tile's shapes were not all accumulated
+					for (int i: taskShapes.get(t)) {
+						results[i].fail();
+					}
+				}
+			}
+		} catch (InterruptedException e) {
+			for (Future<?> task: tasks) {
+				task.cancel(true);
+			}
+			throw e;
+		}
+		return results;
+	}
+
+	/**
+	 * Expands the bounds out to the nearest pixel boundary in all directions,
+	 * since MapData will round one way or the other for us, and we want a
+	 * predictable result for e.g. points that are exactly between two pixels.
+	 * The x values are kept >= 0, since MapData will as well and we want the
+	 * overlap checking that occurs later to remain simple.
+	 */
+	private Rectangle2D.Double getPixelBounds(Rectangle2D shapeBounds) {
+		Rectangle2D.Double bounds = new Rectangle2D.Double();
+		bounds.setRect(shapeBounds);
+		double dpp = 1d/ppd;
+		double x1 = Math.floor(bounds.x * ppd) * dpp;
+		double x2 = Math.ceil((bounds.x + bounds.width) * ppd) * dpp;
+		if (x1 == x2) {
+			x1 -= dpp;
+			x2 += dpp;
+		}
+		double y1 = Math.floor(bounds.y * ppd) * dpp;
+		double y2 = Math.ceil((bounds.y + bounds.height) * ppd) * dpp;
+		if (y1 == y2) {
+			y1 -= dpp;
+			y2 += dpp;
+		}
+		bounds.setFrameFromDiagonal(x1, y1, x2, y2);
+		if (bounds.x < 0) {
+			bounds.x += 360;
+		}
+		return bounds;
+	}
+
+	/**
+	 * Returns the region to sample under the path, which is the bounding box
+	 * for points and for shapes smaller than a single pixel, since the code
+	 * to draw a tiny shape into the mask may decide not to draw anything at
+	 * all, leaving us with no data.
+	 */
+	private Shape getRegion(FPath path, Rectangle2D.Double bounds) {
+		Shape shape = path.getShape();
+		double shapeArea = shape.getBounds2D().getWidth()*shape.getBounds2D().getHeight();
+		double pixelArea = 1d/ppd/ppd;
+		if (path.getType() == FPath.TYPE_POINT || shapeArea < pixelArea) {
+			return bounds;
+		} else {
+			return shape;
+		}
+	}
+
+	/** Fetches one tile and adds its pixels to the statistics of each shape over it */
+	private void sampleTile(ProjObj po, Point tile, List<Integer> under, Rectangle2D.Double[] bounds, Shape[] rois, Result[] results) {
+		MapData mapData;
+		try {
+			mapData = fetch(po, MapRetriever.tiler.getExtent(tile, ppd));
+		} catch (InterruptedException e) {
+			for (int i: under) {
+				results[i].fail();
+			}
+			return;
+		}
+		Area finished = mapData.getFinishedArea();
+		Rectangle2D finishedBounds = finished.getBounds2D();
+		for (int i: under) {
+			if (results[i].failed) {
+				continue;
+			}
+			// see if the portion of the shape's bounds under this tile finished
+			Rectangle2D.Double tileBounds = new Rectangle2D.Double();
+			tileBounds.setFrame(bounds[i]);
+			if (!finishedBounds.intersects(tileBounds)) {
+				double xdelta = finishedBounds.getMinX() - tileBounds.x;
+				tileBounds.x += 360 * Math.signum(xdelta);
+			}
+			Rectangle2D.intersect(tileBounds, finishedBounds, tileBounds);
+			if (mapData.getImage() == null || !finished.contains(tileBounds)) {
+				results[i].fail();
+			} else {
+				Result partial = new Result();
+				accumulate(mapData, tileBounds, rois[i], partial);
+				results[i].merge(partial);
+			}
+		}
+	}
+
+	/** Requests the given tile and blocks until it has finished */
+	private MapData fetch(ProjObj po, Rectangle2D extent) throws InterruptedException {
+		final MapData[] data = {null};
+		final CountDownLatch done = new CountDownLatch(1);
+		MapChannel ch = new MapChannel();
+		ch.setPriority(MapRequest.Priority.CHART);
+		ch.addReceiver(new MapChannelReceiver() {
+			public void mapChanged(MapData mapData) {
+				if (mapData.isFinished() && done.getCount() > 0) {
+					data[0] = mapData;
+					done.countDown();
+				}
+			}
+		});
+		ch.setPipeline(Pipeline.getStageCopy(new Pipeline[]{new Pipeline(source, new Stage[0])}));
+		ch.setMapWindow(extent, ppd, po);
+		try {
+			done.await();
+		} finally {
+			ch.setPipeline(null);
+		}
+		return data[0];
+	}
+
+	/** Adds the pixels of the map data within tileBounds that are under the region to the statistics */
+	private void accumulate(MapData mapData, Rectangle2D tileBounds, Shape roi, Result partial) {
+		Raster raster = mapData.getRasterForWorld(tileBounds);
+		int width = raster.getWidth();
+		int height = raster.getHeight();
+
+		BufferedImage maskImage = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
+		Graphics2D g2 = maskImage.createGraphics();
+		g2.setTransform(Util.world2image(tileBounds, width, height));
+		g2 = new GraphicsWrapped(g2,360,ppd,tileBounds,"maskWrapped");
+		try {
+			g2.setComposite(AlphaComposite.getInstance(AlphaComposite.SRC));
+			g2.setColor(Color.white);
+			// anti-aliasing is slower and unwanted here
+			g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_OFF);
+			// fill and then draw a border, just more than 1 pixel so
+			// pixels touching the shape are always filled in
+			g2.fill(roi);
+			g2.setStroke(new BasicStroke(1.01f/ppd));
+			g2.draw(roi);
+		} finally {
+			g2.dispose();
+		}
+
+		int[] mask = maskImage.getRaster().getPixels(0, 0, width, height, (int[])null);
+		double[] values = raster.getSamples(0, 0, width, height, band, (double[])null);
+		Rectangle region = mapData.getRasterBoundsForWorld(tileBounds);
+		for (int j = 0; j < height; j++) {
+			for (int i = 0, k = j*width; i < width; i++, k++) {
+				if (mask[k] != 0 && !mapData.isNull(i + region.x, j + region.y)) {
+					partial.add(values[k]);
+				}
+			}
+		}
+	}
+
+	/** Running statistics for one shape, which may be merged from several tiles */
+	public static final class Result {
+		private int count;
+		private double sum;
+		private double min = Double.POSITIVE_INFINITY;
+		private double max = Double.NEGATIVE_INFINITY;
+		/** running mean and sum of squared differences from it */
+		private double m, s;
+		private volatile boolean failed;
+
+		private void add(double value) {
+			count ++;
+			sum += value;
+			min = Math.min(min, value);
+			max = Math.max(max, value);
+			double delta = value - m;
+			m += delta/count;
+			s += delta*(value-m);
+		}
+
+		private synchronized void merge(Result o) {
+			if (o.count == 0) {
+				return;
+			}
+			int n = count + o.count;
+			double delta = o.m - m;
+			m += delta * o.count / n;
+			s += o.s + delta * delta * count * o.count / n;
+			count = n;
+			sum += o.sum;
+			min = Math.min(min, o.min);
+			max = Math.max(max, o.max);
+		}
+
+		private synchronized void fail() {
+			failed = true;
+		}
+
+		/** @return the number of pixels sampled, or 0 if any data was missing */
+		public synchronized int getCount() {
+			return failed ? 0 : count;
+		}
+
+		/** @return the given statistic, or null if there were no pixels or any data was missing */
+		public synchronized Double get(FieldMap.Type type) {
+			if (failed || count == 0) {
+				return null;
+			}
+			switch (type) {
+			case AVG: return sum/count;
+			case MIN: return min;
+			case MAX: return max;
+			case SUM: return sum;
+			case STDEV: return count==1 ? 0 : Math.sqrt(s/(count-1));
+			default: throw new IllegalStateException("Unsupported stat type");
+			}
+		}
+	}
+}
@@ -4,6 +4,7 @@ import java.sql.Timestamp;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.io.*;
 
 /***
@@ -26,6 +27,15 @@ import java.io.*;
 	aprintStack() functions are used to print a stack trace
 	conditionally or unconditionally, respectively.
 
+	<p>A conditional print that can't succeed returns before looking
+	up its caller, and the state of each caller is cached, so disabled
+	prints are cheap. Messages that are costly to build can be passed
+	as a {@link DebugLog.Message}, which is only evaluated if the
+	message will be printed. With "+ASYNC" in the .debugrc file,
+	output is written on a background thread through a ring buffer;
+	that is off by default, since whatever is still in the buffer is
+	lost if the VM dies.
+
 	<p><b>=== MANUAL STATE FUNCTIONS ===</b>
 
 	<p>The set() function can be passed true/false to manually set the
@@ -114,6 +124,21 @@ public class DebugLog
 	// The "default state"
 	static private boolean defaultActive = false;
 
+	// Whether anything at all can print conditionally, so disabled
+	// prints can return before looking up their caller.
+	static private volatile boolean anyActive = false;
+
+	// Counts registration changes, so instances know when to recheck
+	// whether their class can print.
+	static private volatile int registrations = 0;
+
+	// The active state of each caller function seen so far, cleared
+	// whenever the registrations change.
+	static private final Map<String,Boolean> activation = new ConcurrentHashMap<String,Boolean>();
+
+	// Write output on a background thread through a ring buffer
+	static private boolean asyncOutput = false;
+
 	// Show thread name on every printed line
 	static private boolean showThreads = false;
 
@@ -132,6 +157,7 @@ public class DebugLog
 	static
 	 {
 		readFile(".debugrc");
+		changed();
 	 }
 
 	// ANSI color codes
@@ -320,6 +346,7 @@ public class DebugLog
 				else if(part2.equals("COLORS"))     showColors = whatToDo;
 				else if(part2.equals("OPTIMIZE"))     optimize = whatToDo;
 				else if(part2.equals("PARSE_ERRORS")) showParseErrors=whatToDo;
+				else if(part2.equals("ASYNC"))       asyncOutput = whatToDo;
 				else
 				 {
 					if(whatToDo)
@@ -341,6 +368,7 @@ public class DebugLog
 		 {
 			System.out.println("I/O error reading " + filename);
 		 }
+		changed();
 	 }
 
 	// If custom is true, then the object has a manual state set.
@@ -352,6 +380,13 @@ public class DebugLog
 	// The hilight to put at the end of every printed line.
 	protected String hilight;
 
+	// The top-level class that asked for this log, if known, and
+	// whether anything registered for it can print as of the given
+	// registration count.
+	private String owner;
+	private boolean ownerActive = true;
+	private int ownerRegistrations = -1;
+
 	// Holds the caller function. This can't be passed thru the call
 	// chain of print()s, so we hold it as a member variable. It's a
 	// thread-local to keep this method thread-safe. All accesses to
@@ -359,7 +394,8 @@ public class DebugLog
 	private static final ThreadLocal theCaller = new ThreadLocal();
 
 	// The "actual" PrintStream being used to output data.
-	private static PrintStream pout = System.err;
+	private static PrintStream pout = asyncOutput ?
+		new PrintStream(new RingOutputStream(System.err)) : System.err;
 	
 	public static synchronized PrintStream getOutputStream() {
 		return pout;
@@ -385,6 +421,147 @@ public class DebugLog
 			pout = new PrintStream(out);
 	 }
 
+	/**
+	 ** An {@link OutputStream} that hands everything to a daemon
+	 ** thread through a fixed ring buffer, so printing threads don't
+	 ** wait on the console. Writers only block when the buffer is
+	 ** full, and whatever is left is written out when the VM shuts
+	 ** down. Used when "+ASYNC" is in the .debugrc file.
+	 **/
+	private static final class RingOutputStream extends OutputStream implements Runnable
+	 {
+		private final OutputStream target;
+		private final byte[] ring = new byte[1 << 16];
+		// Total bytes ever put in and taken out of the ring
+		private long head = 0;
+		private long tail = 0;
+
+		RingOutputStream(OutputStream target)
+		 {
+			this.target = target;
+			Thread writer = new Thread(this, "DebugLog Writer");
+			writer.setDaemon(true);
+			writer.start();
+			Runtime.getRuntime().addShutdownHook(new Thread("DebugLog Flush")
+			 {
+				public void run()
+				 {
+					drain(1000);
+				 }
+			 });
+		 }
+
+		public void write(int b)
+		 throws IOException
+		 {
+			write(new byte[] {(byte) b}, 0, 1);
+		 }
+
+		public synchronized void write(byte[] b, int off, int len)
+		 throws IOException
+		 {
+			while(len > 0)
+			 {
+				while(head - tail == ring.length)
+					try
+					 {
+						wait();
+					 }
+					catch(InterruptedException e)
+					 {
+						throw new InterruptedIOException();
+					 }
+				int pos = (int) (head % ring.length);
+				int n = Math.min(len, Math.min(ring.length - pos,
+											   ring.length - (int) (head - tail)));
+				System.arraycopy(b, off, ring, pos, n);
+				head += n;
+				off += n;
+				len -= n;
+				notifyAll();
+			 }
+		 }
+
+		// The writer thread flushes the target whenever it catches up
+		public void flush()
+		 {
+		 }
+
+		public void run()
+		 {
+			byte[] chunk = new byte[8192];
+			while(true)
+			 {
+				int n;
+				synchronized(this)
+				 {
+					while(head == tail)
+						try
+						 {
+							wait();
+						 }
+						catch(InterruptedException e)
+						 {
+							return;
+						 }
+					int pos = (int) (tail % ring.length);
+					n = (int) Math.min(chunk.length,
+									   Math.min(head - tail, ring.length - pos));
+					System.arraycopy(ring, pos, chunk, 0, n);
+				 }
+				boolean caughtUp;
+				try
+				 {
+					target.write(chunk, 0, n);
+				 }
+				catch(IOException e)
+				 {
+				 }
+				synchronized(this)
+				 {
+					tail += n;
+					caughtUp = head == tail;
+					notifyAll();
+				 }
+				if(caughtUp)
+					try
+					 {
+						target.flush();
+					 }
+					catch(IOException e)
+					 {
+					 }
+			 }
+		 }
+
+		// Waits up to the given time for the writer thread to catch up
+		void drain(long millis)
+		 {
+			long end = System.currentTimeMillis() + millis;
+			synchronized(this)
+			 {
+				long left;
+				while(head != tail  &&
+					  (left = end - System.currentTimeMillis()) > 0)
+					try
+					 {
+						wait(left);
+					 }
+					catch(InterruptedException e)
+					 {
+						break;
+					 }
+			 }
+			try
+			 {
+				target.flush();
+			 }
+			catch(IOException e)
+			 {
+			 }
+		 }
+	 }
+
 	/**
 	 ** A {@link OutputStream} that goes nowhere.
 	 **/
@@ -570,14 +747,17 @@ public class DebugLog
 	 **/
 	public static DebugLog instance()
 	 {
-		if(!optimize  ||  defaultActive)
-			return  new DebugLog();
-
 		DebugLog fakeLog = new DebugLog();
 		fakeLog.setMode(1, null);
 		String caller = fakeLog.getCaller();
 		String callerTopClass = caller.substring(0, caller.indexOf("."));
 
+		if(!optimize  ||  defaultActive)
+		 {
+			fakeLog.owner = callerTopClass;
+			return  fakeLog;
+		 }
+
 		for(Iterator i=activeItems.iterator(); i.hasNext(); )
 		 {
 			String entry = (String) i.next();
@@ -586,7 +766,8 @@ public class DebugLog
 			 {
 				log.aprintln("ACTIVATED: " +
 								   callerTopClass);
-				return  new DebugLog();
+				fakeLog.owner = callerTopClass;
+				return  fakeLog;
 			 }
 		 }
 
@@ -628,10 +809,34 @@ public class DebugLog
 	 **/
     public boolean isActive()
 	 {
+		if(skip())
+			return  false;
 		setMode(1, NONE);
 		return  getActive();
 	 }
 
+	/**
+	 ** Cheap test done before anything else by every conditional
+	 ** print, which returns true when the print can't possibly
+	 ** succeed, without the stack walk needed to find the caller.
+	 **/
+	protected final boolean skip()
+	 {
+		if(custom)
+			return  !active;
+		if(!anyActive)
+			return  true;
+		if(owner == null)
+			return  false;
+		int current = registrations;
+		if(ownerRegistrations != current)
+		 {
+			ownerActive = mayBeActive(owner);
+			ownerRegistrations = current;
+		 }
+		return  !ownerActive;
+	 }
+
 	/**
 	 ** Internal function used to determine whether or not conditional
 	 ** prints should succeed.
@@ -756,11 +961,30 @@ public class DebugLog
 	 }
 
 
+	// Returns the active state of the given caller, worked out once per
+	// caller and then cached until the registrations change.
+	static private boolean getStaticActive(String caller)
+	 {
+		Boolean cached = activation.get(caller);
+		if(cached != null)
+			return  cached.booleanValue();
+		return  resolveActive(caller);
+	 }
+
+	// Works out and caches the state of a caller. Holding the class
+	// lock keeps a registration change from slipping in between.
+	static synchronized private boolean resolveActive(String caller)
+	 {
+		boolean state = findActive(caller);
+		activation.put(caller, Boolean.valueOf(state));
+		return  state;
+	 }
+
 	// Internal utility method to perform the logic needed to
 	// determine whether a given caller is registered as active or
 	// inactive. See the comments at the top of this file for a
 	// description of the algorithm.
-	static synchronized private boolean getStaticActive(String caller)
+	static synchronized private boolean findActive(String caller)
 	 {
 		if(activeItems.contains(caller))
 			return  true;
@@ -788,6 +1012,29 @@ public class DebugLog
 		return  defaultActive;
 	 }
 
+	// Whether any caller in the given top-level class could be
+	// active, using the same test as instance().
+	static synchronized private boolean mayBeActive(String topClass)
+	 {
+		if(defaultActive)
+			return  true;
+		for(Object item: activeItems)
+		 {
+			String entry = (String) item;
+			if(entry.startsWith(topClass+".")  ||  entry.equals(topClass))
+				return  true;
+		 }
+		return  false;
+	 }
+
+	// Called after any registration change, to drop cached states.
+	static synchronized private void changed()
+	 {
+		activation.clear();
+		anyActive = defaultActive  ||  !activeItems.isEmpty();
+		registrations++;
+	 }
+
 	// Same thing as getStaticActive, but for colors instead of state.
 	static synchronized private String getStaticColor(String caller)
 	 {
@@ -825,6 +1072,7 @@ public class DebugLog
 	 {
 		unset(what);
 		(newActive ? activeItems : inactiveItems).add(what);
+		changed();
 	 }
 
 	// Unregisters something previously registered. Has no effect if
@@ -833,6 +1081,7 @@ public class DebugLog
 	 {
 		activeItems.remove(what);
 		inactiveItems.remove(what);
+		changed();
 	 }
 
 	// Convenience method for set(what, true).
@@ -848,9 +1097,10 @@ public class DebugLog
 	 }
 
 	// Use true/false to set the default status to active/inactive
-	static public void setDefault(boolean _defaultActive)
+	static synchronized public void setDefault(boolean _defaultActive)
 	 {
 		defaultActive = _defaultActive;
+		changed();
 	 }
 
 	// Sets the ANSI color code for something
@@ -906,6 +1156,8 @@ public class DebugLog
 	/********** THREAD-PRINTING ***********/
 	public synchronized void printThread()
 	 {
+		if(skip())
+			return;
 		setMode(1, NONE);
 		if(getActive())
 			realPS.println(Thread.currentThread().getName());
@@ -922,6 +1174,8 @@ public class DebugLog
 	// Conditionally prints a stack trace, to a given depth.
 	public synchronized void printStack(int frameCount)
 	 {
+		if(skip())
+			return;
 		setMode(1, NONE);
 		if(getActive())
 			realPrintStack(getStack(1, frameCount));
@@ -971,6 +1225,16 @@ public class DebugLog
 	 ** argument types.
 	 ***********************************************************/
 	
+	/**
+	 ** A message that is only put together if it is going to be
+	 ** printed, for messages that are costly to build, or are logged
+	 ** while holding a lock.
+	 **/
+	public interface Message
+	 {
+		String get();
+	 }
+
 	//prepend timestamp to messages
 	private void prependTS() {
 //		realPS.print(new Timestamp(new Date().getTime()).toString()+": ");
@@ -978,30 +1242,32 @@ public class DebugLog
 	
 	/********** CONDITIONAL PRINT ***********/
 
-	public void print(boolean what) { setMode(1, NONE); if(getActive()) { prependTS(); realPS.print(what); uncolor(); } }
-	public void print(   char what) { setMode(1, NONE); if(getActive()) { prependTS(); realPS.print(what); uncolor(); } }
-	public void print( char[] what) { setMode(1, NONE); if(getActive()) { prependTS(); realPS.print(what); uncolor(); } }
-	public void print( double what) { setMode(1, NONE); if(getActive()) { prependTS(); realPS.print(what); uncolor(); } }
-	public void print(  float what) { setMode(1, NONE); if(getActive()) { prependTS(); realPS.print(what); uncolor(); } }
-	public void print(    int what) { setMode(1, NONE); if(getActive()) { prependTS(); realPS.print(what); uncolor(); } }
-	public void print(   long what) { setMode(1, NONE); if(getActive()) { prependTS(); realPS.print(what); uncolor(); } }
-	public void print( Object what) { setMode(1, NONE); if(getActive()) { prependTS(); realPS.print(what); uncolor(); } }
-	public void print( String what) { setMode(1, NONE); if(getActive()) { prependTS(); realPS.print(what); uncolor(); } }
-	public void print(Throwable  e) { setMode(1, EXCEPT); if(getActive()) { prependTS(); printException(e); uncolor(); } }
+	public void print(boolean what) { if(skip()) return; setMode(1, NONE); if(getActive()) { prependTS(); realPS.print(what); uncolor(); } }
+	public void print(   char what) { if(skip()) return; setMode(1, NONE); if(getActive()) { prependTS(); realPS.print(what); uncolor(); } }
+	public void print( char[] what) { if(skip()) return; setMode(1, NONE); if(getActive()) { prependTS(); realPS.print(what); uncolor(); } }
+	public void print( double what) { if(skip()) return; setMode(1, NONE); if(getActive()) { prependTS(); realPS.print(what); uncolor(); } }
+	public void print(  float what) { if(skip()) return; setMode(1, NONE); if(getActive()) { prependTS(); realPS.print(what); uncolor(); } }
+	public void print(    int what) { if(skip()) return; setMode(1, NONE); if(getActive()) { prependTS(); realPS.print(what); uncolor(); } }
+	public void print(   long what) { if(skip()) return; setMode(1, NONE); if(getActive()) { prependTS(); realPS.print(what); uncolor(); } }
+	public void print( Object what) { if(skip()) return; setMode(1, NONE); if(getActive()) { prependTS(); realPS.print(what); uncolor(); } }
+	public void print( String what) { if(skip()) return; setMode(1, NONE); if(getActive()) { prependTS(); realPS.print(what); uncolor(); } }
+	public void print(Throwable  e) { if(skip()) return; setMode(1, EXCEPT); if(getActive()) { prependTS(); printException(e); uncolor(); } }
+	public void print(Message what) { if(skip()) return; setMode(1, NONE); if(getActive()) { prependTS(); realPS.print(what.get()); uncolor(); } }
 
 	/********** CONDITIONAL PRINT WITH ENDLINE ***********/
 
-	public void println(            ) { setMode(1, NONE); if(getActive()) { prependTS(); realPS.println(""); uncolor(); } }
-	public void println(boolean what) { setMode(1, NONE); if(getActive()) { prependTS(); realPS.println(what); uncolor(); } }
-	public void println(   char what) { setMode(1, NONE); if(getActive()) { prependTS(); realPS.println(what); uncolor(); } }
-	public void println( char[] what) { setMode(1, NONE); if(getActive()) { prependTS(); realPS.println(what); uncolor(); } }
-	public void println( double what) { setMode(1, NONE); if(getActive()) { prependTS(); realPS.println(what); uncolor(); } }
-	public void println(  float what) { setMode(1, NONE); if(getActive()) { prependTS(); realPS.println(what); uncolor(); } }
-	public void println(    int what) { setMode(1, NONE); if(getActive()) { prependTS(); realPS.println(what); uncolor(); } }
-	public void println(   long what) { setMode(1, NONE); if(getActive()) { prependTS(); realPS.println(what); uncolor(); } }
-	public void println( Object what) { setMode(1, NONE); if(getActive()) { prependTS(); realPS.println(what); uncolor(); } }
-	public void println( String what) { setMode(1, NONE); if(getActive()) { prependTS(); realPS.println(what); uncolor(); } }
-	public void println(Throwable  e) { setMode(1, EXCEPT); if(getActive()) { prependTS(); printException(e); uncolor(); } }
+	public void println(            ) { if(skip()) return; setMode(1, NONE); if(getActive()) { prependTS(); realPS.println(""); uncolor(); } }
+	public void println(boolean what) { if(skip()) return; setMode(1, NONE); if(getActive()) { prependTS(); realPS.println(what); uncolor(); } }
+	public void println(   char what) { if(skip()) return; setMode(1, NONE); if(getActive()) { prependTS(); realPS.println(what); uncolor(); } }
+	public void println( char[] what) { if(skip()) return; setMode(1, NONE); if(getActive()) { prependTS(); realPS.println(what); uncolor(); } }
+	public void println( double what) { if(skip()) return; setMode(1, NONE); if(getActive()) { prependTS(); realPS.println(what); uncolor(); } }
+	public void println(  float what) { if(skip()) return; setMode(1, NONE); if(getActive()) { prependTS(); realPS.println(what); uncolor(); } }
+	public void println(    int what) { if(skip()) return; setMode(1, NONE); if(getActive()) { prependTS(); realPS.println(what); uncolor(); } }
+	public void println(   long what) { if(skip()) return; setMode(1, NONE); if(getActive()) { prependTS(); realPS.println(what); uncolor(); } }
+	public void println( Object what) { if(skip()) return; setMode(1, NONE); if(getActive()) { prependTS(); realPS.println(what); uncolor(); } }
+	public void println( String what) { if(skip()) return; setMode(1, NONE); if(getActive()) { prependTS(); realPS.println(what); uncolor(); } }
+	public void println(Throwable  e) { if(skip()) return; setMode(1, EXCEPT); if(getActive()) { prependTS(); printException(e); uncolor(); } }
+	public void println(Message what) { if(skip()) return; setMode(1, NONE); if(getActive()) { prependTS(); realPS.println(what.get()); uncolor(); } }
 
 	/********** UNCONDITIONAL PRINT ***********/
 
@@ -1048,6 +1314,7 @@ public class DebugLog
 		public void print( Object what) { }
 		public void print( String what) { }
 		public void print(Throwable  e) { }
+		public void print(Message what) { }
 
 		/********** CONDITIONAL PRINT WITH ENDLINE ***********/
 
@@ -1062,6 +1329,7 @@ public class DebugLog
 		public void println( Object what) { }
 		public void println( String what) { }
 		public void println(Throwable  e) { }
+		public void println(Message what) { }
 
 		public void printStack(int n) { }
 		public void printThread() { }
@@ -1097,30 +1365,32 @@ public class DebugLog
 
 		/********** CONDITIONAL PRINT ***********/
 
-		public void print(boolean what) { setMode(1, NONE); if(getActive()) { prefix(); realPS.print(what); uncolor(); } }
-		public void print(   char what) { setMode(1, NONE); if(getActive()) { prefix(); realPS.print(what); uncolor(); } }
-		public void print( char[] what) { setMode(1, NONE); if(getActive()) { prefix(); realPS.print(what); uncolor(); } }
-		public void print( double what) { setMode(1, NONE); if(getActive()) { prefix(); realPS.print(what); uncolor(); } }
-		public void print(  float what) { setMode(1, NONE); if(getActive()) { prefix(); realPS.print(what); uncolor(); } }
-		public void print(    int what) { setMode(1, NONE); if(getActive()) { prefix(); realPS.print(what); uncolor(); } }
-		public void print(   long what) { setMode(1, NONE); if(getActive()) { prefix(); realPS.print(what); uncolor(); } }
-		public void print( Object what) { setMode(1, NONE); if(getActive()) { prefix(); realPS.print(what); uncolor(); } }
-		public void print( String what) { setMode(1, NONE); if(getActive()) { prefix(); realPS.print(what); uncolor(); } }
-		public void print(Throwable  e) { setMode(1, EXCEPT); if(getActive()) { prefix(); printException(e); uncolor(); } }
+		public void print(boolean what) { if(skip()) return; setMode(1, NONE); if(getActive()) { prefix(); realPS.print(what); uncolor(); } }
+		public void print(   char what) { if(skip()) return; setMode(1, NONE); if(getActive()) { prefix(); realPS.print(what); uncolor(); } }
+		public void print( char[] what) { if(skip()) return; setMode(1, NONE); if(getActive()) { prefix(); realPS.print(what); uncolor(); } }
+		public void print( double what) { if(skip()) return; setMode(1, NONE); if(getActive()) { prefix(); realPS.print(what); uncolor(); } }
+		public void print(  float what) { if(skip()) return; setMode(1, NONE); if(getActive()) { prefix(); realPS.print(what); uncolor(); } }
+		public void print(    int what) { if(skip()) return; setMode(1, NONE); if(getActive()) { prefix(); realPS.print(what); uncolor(); } }
+		public void print(   long what) { if(skip()) return; setMode(1, NONE); if(getActive()) { prefix(); realPS.print(what); uncolor(); } }
+		public void print( Object what) { if(skip()) return; setMode(1, NONE); if(getActive()) { prefix(); realPS.print(what); uncolor(); } }
+		public void print( String what) { if(skip()) return; setMode(1, NONE); if(getActive()) { prefix(); realPS.print(what); uncolor(); } }
+		public void print(Throwable  e) { if(skip()) return; setMode(1, EXCEPT); if(getActive()) { prefix(); printException(e); uncolor(); } }
+		public void print(Message what) { if(skip()) return; setMode(1, NONE); if(getActive()) { prefix(); realPS.print(what.get()); uncolor(); } }
 
 		/********** CONDITIONAL PRINT WITH ENDLINE ***********/
 
-		public void println(            ) { setMode(1, NONE); if(getActive()) { prefix(); realPS.println(""); uncolor(); } }
-		public void println(boolean what) { setMode(1, NONE); if(getActive()) { prefix(); realPS.println(what); uncolor(); } }
-		public void println(   char what) { setMode(1, NONE); if(getActive()) { prefix(); realPS.println(what); uncolor(); } }
-		public void println( char[] what) { setMode(1, NONE); if(getActive()) { prefix(); realPS.println(what); uncolor(); } }
-		public void println( double what) { setMode(1, NONE); if(getActive()) { prefix(); realPS.println(what); uncolor(); } }
-		public void println(  float what) { setMode(1, NONE); if(getActive()) { prefix(); realPS.println(what); uncolor(); } }
-		public void println(    int what) { setMode(1, NONE); if(getActive()) { prefix(); realPS.println(what); uncolor(); } }
-		public void println(   long what) { setMode(1, NONE); if(getActive()) { prefix(); realPS.println(what); uncolor(); } }
-		public void println( Object what) { setMode(1, NONE); if(getActive()) { prefix(); realPS.println(what); uncolor(); } }
-		public void println( String what) { setMode(1, NONE); if(getActive()) { prefix(); realPS.println(what); uncolor(); } }
-		public void println(Throwable  e) { setMode(1, EXCEPT); if(getActive()) { prefix(); printException(e); uncolor(); } }
+		public void println(            ) { if(skip()) return; setMode(1, NONE); if(getActive()) { prefix(); realPS.println(""); uncolor(); } }
+		public void println(boolean what) { if(skip()) return; setMode(1, NONE); if(getActive()) { prefix(); realPS.println(what); uncolor(); } }
+		public void println(   char what) { if(skip()) return; setMode(1, NONE); if(getActive()) { prefix(); realPS.println(what); uncolor(); } }
+		public void println( char[] what) { if(skip()) return; setMode(1, NONE); if(getActive()) { prefix(); realPS.println(what); uncolor(); } }
+		public void println( double what) { if(skip()) return; setMode(1, NONE); if(getActive()) { prefix(); realPS.println(what); uncolor(); } }
+		public void println(  float what) { if(skip()) return; setMode(1, NONE); if(getActive()) { prefix(); realPS.println(what); uncolor(); } }
+		public void println(    int what) { if(skip()) return; setMode(1, NONE); if(getActive()) { prefix(); realPS.println(what); uncolor(); } }
+		public void println(   long what) { if(skip()) return; setMode(1, NONE); if(getActive()) { prefix(); realPS.println(what); uncolor(); } }
+		public void println( Object what) { if(skip()) return; setMode(1, NONE); if(getActive()) { prefix(); realPS.println(what); uncolor(); } }
+		public void println( String what) { if(skip()) return; setMode(1, NONE); if(getActive()) { prefix(); realPS.println(what); uncolor(); } }
+		public void println(Throwable  e) { if(skip()) return; setMode(1, EXCEPT); if(getActive()) { prefix(); printException(e); uncolor(); } }
+		public void println(Message what) { if(skip()) return; setMode(1, NONE); if(getActive()) { prefix(); realPS.println(what.get()); uncolor(); } }
 
 		/********** UNCONDITIONAL PRINT ***********/
 
@@ -2,22 +2,28 @@ package edu.asu.jmars.util;
 
 import java.awt.BorderLayout;
 import java.awt.Color;
+import java.awt.Component;
+import java.awt.Cursor;
 import java.awt.Dimension;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
 import java.awt.GraphicsEnvironment;
 import java.awt.GridLayout;
-import java.awt.Image;
 import java.awt.Toolkit;
 import java.awt.Transparency;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.FocusEvent;
 import java.awt.event.FocusListener;
+import java.awt.event.KeyAdapter;
+import java.awt.event.KeyEvent;
+import java.awt.event.MouseAdapter;
 import java.awt.geom.Point2D;
 import java.awt.geom.Rectangle2D;
 import java.awt.image.BufferedImage;
-import java.beans.PropertyChangeEvent;
-import java.beans.PropertyChangeListener;
+import java.awt.image.Raster;
 import java.io.File;
+import java.io.IOException;
 import java.text.DecimalFormat;
 
 import javax.swing.BorderFactory;
@@ -32,6 +38,7 @@ import javax.swing.JLabel;
 import javax.swing.JOptionPane;
 import javax.swing.JPanel;
 import javax.swing.JTextField;
+import javax.swing.ProgressMonitor;
 import javax.swing.SwingUtilities;
 import javax.swing.border.EmptyBorder;
 import javax.swing.border.TitledBorder;
@@ -39,6 +46,7 @@ import javax.swing.border.TitledBorder;
 import edu.asu.jmars.Main;
 import edu.asu.jmars.layer.Layer;
 import edu.asu.jmars.layer.MultiProjection;
+import edu.asu.jmars.layer.WatchedThread;
 import edu.asu.jmars.layer.grid.GridLView;
 import edu.asu.jmars.layer.investigate.InvestigateLView;
 import edu.asu.jmars.layer.north.NorthLView;
@@ -46,6 +54,8 @@ import edu.asu.jmars.layer.scale.ScaleLView;
 import edu.asu.jmars.layer.shape2.ShapeLView;
 
 public class HighResExport {
+	private static final DebugLog log = DebugLog.instance();
+	
 	public static boolean exporting = false;
 	public static int zoomFactor = 1;
 	public static Rectangle2D fullExportExtent = null;
@@ -468,6 +478,16 @@ public class HighResExport {
     	doExport(newZoom);	
     }
     
+    /**
+     * Exports the current view at the given zoom. The view is captured one
+     * window-sized tile at a time, but instead of asking the user to confirm
+     * each tile, the export runs on its own thread and waits for every
+     * visible layer to go idle before capturing. Tiles are streamed to a
+     * {@link TiledTiffWriter} when a .tif name is chosen, which the user is
+     * offered when the image is too large to hold in memory as a PNG, so
+     * exports of any size can run unattended. The main window ignores input
+     * until the export finishes, so the view can't be moved under it.
+     */
     public static void doExport(int newZoom) {
 		Rectangle2D extent = Main.testDriver.mainWindow.getProj().getWorldWindow();
 		
@@ -480,16 +500,17 @@ public class HighResExport {
 		
 		final Rectangle2D screenExtent = Main.testDriver.mainWindow.getProj().getScreenWindow();
 		
+		// Views we should scale up directly rather than requesting higher res data are
+		// drawn now, at the current zoom, and laid over each tile as it is captured
+		final BufferedImage overlays = renderOverlays();
+		
     	Main.testDriver.mainWindow.getZoomManager().setZoomPPD(newZoom, true);
                 	            	
         String filename = null;
         JFileChooser fc = Main.getFileChooser(".png", "PNG Files (*.png)");
         if (fc == null)
             return;
-        fc.setDialogTitle("Capture to PNG File");
-        
-        final BufferedImage finalImage;
-        final String selectedFilename;
+        fc.setDialogTitle("Capture to PNG or TIFF File");
         
         if (fc.showSaveDialog(Main.mainFrame) == JFileChooser.APPROVE_OPTION) {
         	exporting=true;
@@ -525,148 +546,289 @@ public class HighResExport {
             	}
             }
             
-            selectedFilename = filename;
-            
-			final double ratio = newZoom / oldZoom;
+			final int ratio = newZoom / oldZoom;
+			int width = (int)screenExtent.getWidth() * ratio;
+			int height = (int)screenExtent.getHeight() * ratio;
+			if (!isTiff(filename) && (long)width * height > MAX_PNG_PIXELS) {
+				String tiffName = Util.rTrim(filename.toLowerCase().endsWith(".png") ? filename.substring(0, filename.length() - 4) : filename, '.') + ".tif";
+				int val = JOptionPane.showConfirmDialog(Main.mainFrame,
+					"A " + width + "x" + height + " image is too large to export as a PNG.\n"
+						+ "Save it as the tiled TIFF " + tiffName + " instead?"
+						+ (new File(tiffName).exists() ? "\nThe existing file will be replaced." : ""),
+					"Image too large for PNG", JOptionPane.OK_CANCEL_OPTION);
+				if (val != JOptionPane.OK_OPTION) {
+					restoreOldSizes();
+					return;
+				}
+				filename = tiffName;
+			}
+			
+            final String selectedFilename = filename;
+			
+			new WatchedThread(new Runnable() {
+				public void run() {
+					exportTiles(selectedFilename, ratio, minViewX, minViewY, viewWidth, viewHeight, screenExtent, overlays);
+				}
+			}, "High Resolution Export").start();
+        } else {
+        	restoreOldSizes();
+        }
+    }
+    
+    /** Paints the views that are scaled up rather than re-rendered, at the current window size */
+    private static BufferedImage renderOverlays() {
+		BufferedImage image = Util.newBufferedImage(Main.testDriver.mainWindow.getWidth(), Main.testDriver.mainWindow.getHeight());
+		Graphics g = image.getGraphics();
+		for (Layer.LView view : Main.testDriver.mainWindow.viewList) {
+			if (view.isVisible() && (view instanceof ScaleLView || view instanceof NorthLView || view instanceof InvestigateLView)) {
+				view.paintComponent(g);
+			}
+		}
+		g.dispose();
+		return image;
+    }
+    
+    /**
+     * Captures each tile of the export in turn and streams it to the output
+     * file, then restores the user's view. Runs off the AWT thread.
+     */
+    private static void exportTiles(String filename, final int ratio, double minViewX, double minViewY,
+    		double viewWidth, double viewHeight, Rectangle2D screenExtent, BufferedImage overlays) {
+		final int xsize=(int)screenExtent.getWidth();
+		final int ysize=(int)screenExtent.getHeight();
+		final int width = xsize * ratio;
+		final int height = ysize * ratio;
+		final ProgressMonitor[] progress = new ProgressMonitor[1];
+		ExportSink sink = null;
+		try {
+			sink = createSink(filename, width, height);
+			
+			SwingUtilities.invokeAndWait(new Runnable() {
+				public void run() {
+					blockInput();
+					progress[0] = new ProgressMonitor(Main.mainFrame, "Exporting high resolution image", "", 0, ratio * ratio);
+					progress[0].setMillisToDecideToPopup(0);
+					progress[0].setMillisToPopup(0);
+				}
+			});
 			
-		    finalImage = GraphicsEnvironment
-		    .getLocalGraphicsEnvironment()
-		    .getDefaultScreenDevice()
-		    .getDefaultConfiguration()
-		    .createCompatibleImage((int)(screenExtent.getWidth() * ratio), (int)(screenExtent.getHeight() * ratio), Transparency.OPAQUE);
-		    
-		    
 			for (int j=0; j<ratio ; j++) {
 				for (int i=0 ; i<ratio ; i++) {
-					Point2D newLoc = new Point2D.Double((minViewX+viewWidth/ratio/2 + (viewWidth*(i/ratio))), minViewY+viewHeight/ratio/2 + (viewHeight*(j/ratio)));							
-					Main.testDriver.mainWindow.getLocationManager().setLocation(newLoc, true);
-					
-					Object[] options = {"Continue", "Cancel"};
-					
-					final JOptionPane optionPane = new JOptionPane("Preparing tile " + ((int)(j*ratio+i+1)) + " out of " + ((int)(ratio*ratio)) + ".\nPlease wait for all layers to finish loading, then click Continue.",
-			              JOptionPane.INFORMATION_MESSAGE, JOptionPane.YES_NO_OPTION, null, options);
-
-					final JDialog dialog = new JDialog(Main.mainFrame, 
-			                             "Export progress...",
-			                             true);
-					
-					dialog.setContentPane(optionPane);
-			
-					dialog.setLocationRelativeTo(Main.mainFrame);
-					
-					optionPane.addPropertyChangeListener(
-					    new PropertyChangeListener() {
-					        public void propertyChange(PropertyChangeEvent e) {
-					            String prop = e.getPropertyName();
-
-					            if (dialog.isVisible() && (e.getSource() == optionPane) && (prop.equals(JOptionPane.VALUE_PROPERTY))) {
-					                dialog.setVisible(false);
-					            }
-					        }
-					    });		
+					final Point2D newLoc = new Point2D.Double((minViewX+viewWidth/ratio/2 + (viewWidth*(i/(double)ratio))), minViewY+viewHeight/ratio/2 + (viewHeight*(j/(double)ratio)));
+					final int tile = j*ratio+i;
+					SwingUtilities.invokeAndWait(new Runnable() {
+						public void run() {
+							Main.testDriver.mainWindow.getLocationManager().setLocation(newLoc, true);
+							progress[0].setNote("Preparing tile " + (tile+1) + " out of " + (ratio*ratio));
+						}
+					});
 					
-					dialog.pack();
-					dialog.setVisible(true);
-					
-					String selectedValue = (String)optionPane.getValue();
-					if (selectedValue==null || !selectedValue.equalsIgnoreCase("Continue")) {
-						restoreOldSizes();
+					if (!waitForLayers(progress[0])) {
+						log.aprintln("High resolution export cancelled");
+						sink.cancel();
+						sink = null;
 						return;
-					}					
+					}
 					
-					BufferedImage thisFrame=Main.testDriver.mainWindow.getSnapshot(true);
+					final BufferedImage[] thisFrame = new BufferedImage[1];
+					SwingUtilities.invokeAndWait(new Runnable() {
+						public void run() {
+							thisFrame[0] = Main.testDriver.mainWindow.getSnapshot(true);
+						}
+					});
 					
-					int xsize=(int)screenExtent.getWidth();
-					int ysize=(int)screenExtent.getHeight();
+					int x = i*xsize;
+					int y = height-(j*ysize)-ysize;
+					Graphics2D g2 = thisFrame[0].createGraphics();
+					g2.translate(-x, -y);
+					g2.scale(width / (double)overlays.getWidth(), height / (double)overlays.getHeight());
+					g2.drawImage(overlays, 0, 0, null);
+					g2.dispose();
 					
-					finalImage.getRaster().setRect(i*xsize, (finalImage.getHeight()-(j*ysize))-ysize, thisFrame.getRaster());
+					sink.write(x, y, thisFrame[0].getRaster());
+					SwingUtilities.invokeLater(new Runnable() {
+						public void run() {
+							progress[0].setProgress(tile+1);
+						}
+					});
 				}
 			}
 			
-        } else {
-        	finalImage=null;
-        	selectedFilename=null;
-        }
-        
-		if  (finalImage!=null) {		
-	        exporting=false;
-			Point2D newLoc = new Point2D.Double((minViewX+viewWidth/2), minViewY+viewHeight/2);							
-			Main.testDriver.mainWindow.getLocationManager().setLocation(newLoc, true);
-	    	Main.testDriver.mainWindow.getZoomManager().setZoomPPD(oldZoom, true);
-
-			Object[] options = {"Continue", "Cancel"};
-			
-			final JOptionPane optionPane = new JOptionPane("Preparing final overlays.\nPlease wait for all layers to finish loading, then click Continue.",
-	              JOptionPane.INFORMATION_MESSAGE, JOptionPane.YES_NO_OPTION, null, options);
-
-			final JDialog dialog = new JDialog(Main.mainFrame, 
-	                             "Export progress...",
-	                             true);
-			
-			dialog.setContentPane(optionPane);
-	
-			dialog.setLocationRelativeTo(Main.mainFrame);
-			
-			optionPane.addPropertyChangeListener(
-			    new PropertyChangeListener() {
-			        public void propertyChange(PropertyChangeEvent e) {
-			            String prop = e.getPropertyName();
-
-			            if (dialog.isVisible() && (e.getSource() == optionPane) && (prop.equals(JOptionPane.VALUE_PROPERTY))) {
-			                dialog.setVisible(false);
-			            }
-			        }
-			    });		
-			
-			dialog.pack();
-			dialog.setVisible(true);
-			
-			String selectedValue = (String)optionPane.getValue();
-			if (selectedValue==null || !selectedValue.equalsIgnoreCase("Continue")) {
-				restoreOldSizes();
-				return;
-			}	
-			
-			// Iterate through the list of views again, looking for views we should scale up directly,
-			// rather than requesting higher res data.  Includes Map Scale bar, Investigate Tool and Shape layers
-			for (Layer.LView view : Main.testDriver.mainWindow.viewList) {
-				if (view.isVisible() && view instanceof ScaleLView) {
-					Image image = Util.newBufferedImage(Main.testDriver.mainWindow.getWidth(), Main.testDriver.mainWindow.getHeight());
-					view.paintComponent(image.getGraphics());
-					finalImage.getGraphics().drawImage(image, 0, 0, finalImage.getWidth(), finalImage.getHeight(), 0, 0, Main.testDriver.mainWindow.getWidth(),
-							 Main.testDriver.mainWindow.getHeight(), null);
-				}
-				if (view.isVisible() && view instanceof NorthLView) {
-					Image image = Util.newBufferedImage(Main.testDriver.mainWindow.getWidth(), Main.testDriver.mainWindow.getHeight());
-					view.paintComponent(image.getGraphics());
-					finalImage.getGraphics().drawImage(image, 0, 0, finalImage.getWidth(), finalImage.getHeight(), 0, 0, Main.testDriver.mainWindow.getWidth(),
-							 Main.testDriver.mainWindow.getHeight(), null);
+			SwingUtilities.invokeLater(new Runnable() {
+				public void run() {
+					progress[0].setNote("Writing file");
 				}
-				if (view.isVisible() && view instanceof InvestigateLView) {
-					Image image = Util.newBufferedImage(Main.testDriver.mainWindow.getWidth(), Main.testDriver.mainWindow.getHeight());
-					view.paintComponent(image.getGraphics());
-					finalImage.getGraphics().drawImage(image, 0, 0, finalImage.getWidth(), finalImage.getHeight(), 0, 0, Main.testDriver.mainWindow.getWidth(),
-							 Main.testDriver.mainWindow.getHeight(), null);
+			});
+			sink.close();
+			sink = null;
+		} catch (Exception e) {
+			log.aprintln("High resolution export failed: " + e);
+			log.aprintln(e);
+			final String msg = e.getMessage();
+			SwingUtilities.invokeLater(new Runnable() {
+				public void run() {
+					JOptionPane.showMessageDialog(Main.mainFrame, "Unable to export image:\n" + msg, "Export failed", JOptionPane.ERROR_MESSAGE);
 				}
-//				if (view.isVisible() && view instanceof GridLView) {
-//					Image image = Util.newBufferedImage(Main.testDriver.mainWindow.getWidth(), Main.testDriver.mainWindow.getHeight());
-//					view.paintComponent(image.getGraphics());
-//					finalImage.getGraphics().drawImage(image, 0, 0, finalImage.getWidth(), finalImage.getHeight(), 0, 0, Main.testDriver.mainWindow.getWidth(),
-//							 Main.testDriver.mainWindow.getHeight(), null);
-//				}
-//				if (view.isVisible() && view instanceof ShapeLView) {
-//					Image image = Util.newBufferedImage(Main.testDriver.mainWindow.getWidth(), Main.testDriver.mainWindow.getHeight());
-//					view.paintComponent(image.getGraphics());
-//					finalImage.getGraphics().drawImage(image, 0, 0, finalImage.getWidth(), finalImage.getHeight(), 0, 0, Main.testDriver.mainWindow.getWidth(),
-//							 Main.testDriver.mainWindow.getHeight(), null);
-//				}
-
+			});
+		} finally {
+			if (sink != null) {
+				sink.cancel();
 			}
-			
-			Util.saveAsPng(finalImage, selectedFilename);
-			
-	        restoreOldSizes();
-		}    	
+			SwingUtilities.invokeLater(new Runnable() {
+				public void run() {
+					if (progress[0] != null) {
+						progress[0].close();
+					}
+					unblockInput();
+					restoreOldSizes();
+				}
+			});
+		}
+    }
+    
+    private static Component oldGlassPane;
+    
+    /**
+     * Covers the main window with a glass pane that swallows mouse and key
+     * events, so the user can't pan, zoom or resize the view while tiles are
+     * being captured. The progress dialog is its own window and stays usable.
+     */
+    private static void blockInput() {
+    	JPanel blocker = new JPanel();
+    	blocker.setOpaque(false);
+    	blocker.setFocusable(true);
+    	blocker.setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
+    	// having any mouse listener keeps events from reaching the components underneath
+    	MouseAdapter mouse = new MouseAdapter() {};
+    	blocker.addMouseListener(mouse);
+    	blocker.addMouseMotionListener(mouse);
+    	blocker.addMouseWheelListener(mouse);
+    	blocker.addKeyListener(new KeyAdapter() {
+    		public void keyPressed(KeyEvent e) {
+    			e.consume();
+    		}
+    		public void keyTyped(KeyEvent e) {
+    			e.consume();
+    		}
+    	});
+    	oldGlassPane = Main.mainFrame.getGlassPane();
+    	Main.mainFrame.setGlassPane(blocker);
+    	Main.mainFrame.setResizable(false);
+    	blocker.setVisible(true);
+    	blocker.requestFocusInWindow();
+    }
+    
+    /** Undoes {@link #blockInput()} */
+    private static void unblockInput() {
+    	if (oldGlassPane != null) {
+    		Main.mainFrame.getGlassPane().setVisible(false);
+    		Main.mainFrame.setGlassPane(oldGlassPane);
+    		Main.mainFrame.setResizable(true);
+    		oldGlassPane = null;
+    	}
+    }
+    
+    /**
+     * Waits until every visible layer has been idle, with a green status,
+     * for <code>export.settleMs</code>. Gives up waiting and captures what is
+     * there after <code>export.tileTimeoutSec</code>, so one stuck layer
+     * can't hold up an unattended export forever.
+     * @return false if the user cancelled the export
+     */
+    private static boolean waitForLayers(ProgressMonitor progress) throws InterruptedException {
+    	long settle = Config.get("export.settleMs", 1000);
+    	long timeout = 1000L * Config.get("export.tileTimeoutSec", 600);
+    	long start = System.currentTimeMillis();
+    	long idleSince = -1;
+    	while (!progress.isCanceled()) {
+    		long now = System.currentTimeMillis();
+    		if (!layersIdle()) {
+    			idleSince = -1;
+    		} else if (idleSince < 0) {
+    			idleSince = now;
+    		} else if (now - idleSince >= settle) {
+    			return true;
+    		}
+    		if (now - start > timeout) {
+    			log.aprintln("Layers still busy after " + (timeout/1000) + " seconds, capturing tile anyway");
+    			return true;
+    		}
+    		Thread.sleep(100);
+    	}
+    	return false;
+    }
+    
+    private static boolean layersIdle() {
+    	Layer.LView[] views = Main.testDriver.mainWindow.viewList.toArray(new Layer.LView[0]);
+    	for (Layer.LView view: views) {
+    		if (!view.isVisible()) {
+    			continue;
+    		}
+    		if (view.isBusy()) {
+    			return false;
+    		}
+    		Layer layer = view.getLayer();
+    		if (layer != null && !Util.darkGreen.equals(layer.getStatus())) {
+    			return false;
+    		}
+    	}
+    	return true;
+    }
+    
+    /** Receives the captured tiles of an export */
+    private interface ExportSink {
+    	void write(int x, int y, Raster raster) throws IOException;
+    	/** Finishes writing the file */
+    	void close() throws IOException;
+    	/** Abandons the export, removing any partial file */
+    	void cancel();
+    }
+    
+    /** Largest image, in pixels, that is collected in memory and saved as a PNG */
+    private static final long MAX_PNG_PIXELS = Config.get("export.maxPngPixels", 64 * 1024 * 1024);
+    
+    private static boolean isTiff(String filename) {
+    	String lower = filename.toLowerCase();
+    	return lower.endsWith(".tif") || lower.endsWith(".tiff");
+    }
+    
+    /**
+     * Streams to a tiled TIFF when the name ends in .tif or .tiff, and
+     * otherwise collects the image in memory and saves it as a PNG.
+     */
+    private static ExportSink createSink(String filename, final int width, final int height) throws IOException {
+    	final File file = new File(filename);
+    	if (isTiff(filename)) {
+    		final TiledTiffWriter writer = new TiledTiffWriter(file, width, height, Config.get("export.bigtiff", false));
+    		return new ExportSink() {
+    			public void write(int x, int y, Raster raster) throws IOException {
+    				writer.write(x, y, raster);
+    			}
+    			public void close() throws IOException {
+    				writer.close();
+    			}
+    			public void cancel() {
+    				writer.abort();
+    			}
+    		};
+    	} else {
+    		final String pngName = filename;
+    		final BufferedImage finalImage = GraphicsEnvironment
+    		    .getLocalGraphicsEnvironment()
+    		    .getDefaultScreenDevice()
+    		    .getDefaultConfiguration()
+    		    .createCompatibleImage(width, height, Transparency.OPAQUE);
+    		return new ExportSink() {
+    			public void write(int x, int y, Raster raster) {
+    				finalImage.getRaster().setRect(x, y, raster);
+    			}
+    			public void close() {
+    				Util.saveAsPng(finalImage, pngName);
+    			}
+    			public void cancel() {
+    			}
+    		};
+    	}
     }
     	
 
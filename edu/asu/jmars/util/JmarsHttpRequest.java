@@ -17,6 +17,7 @@ import javax.swing.JOptionPane;
 
 import org.apache.http.Header;
 import org.apache.http.HttpEntity;
+import org.apache.http.HttpException;
 import org.apache.http.HttpHost;
 import org.apache.http.HttpStatus;
 import org.apache.http.HttpVersion;
@@ -32,6 +33,7 @@ import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.client.protocol.HttpClientContext;
 import org.apache.http.client.utils.DateUtils;
 import org.apache.http.client.utils.URIBuilder;
 import org.apache.http.entity.ContentType;
@@ -42,11 +44,16 @@ import org.apache.http.entity.mime.content.ContentBody;
 import org.apache.http.entity.mime.content.FileBody;
 import org.apache.http.entity.mime.content.StringBody;
 import org.apache.http.conn.HttpHostConnectException;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.routing.HttpRoutePlanner;
 import org.apache.http.impl.client.BasicCredentialsProvider;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClientBuilder;
 import org.apache.http.impl.client.LaxRedirectStrategy;
 import org.apache.http.impl.client.ProxyAuthenticationStrategy;
+import org.apache.http.impl.conn.DefaultProxyRoutePlanner;
+import org.apache.http.impl.conn.DefaultRoutePlanner;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 import org.apache.http.message.BasicNameValuePair;
 import org.apache.http.protocol.HttpContext;
 import org.apache.http.util.EntityUtils;
@@ -70,9 +77,18 @@ public class JmarsHttpRequest {
     private static final int REQUEST_AUTH_REQUIRED      = 3;
     private static final int REQUEST_COND_AUTH_REQUIRED = 4;
 
+    /** Connections kept open between pooled requests, shared by every host */
+    private static final int POOL_MAX_TOTAL = Config.get("http.pool.maxTotal", 64);
+    /** Connections kept open between pooled requests to one host, unless set by setMaxConnections() */
+    private static final int POOL_MAX_PER_HOST = Config.get("http.pool.maxPerHost", 8);
+    /** Pooled connections idle this long are checked before being reused */
+    private static final int POOL_VALIDATE_MS = Config.get("http.pool.validateAfterMs", 2000);
+    private static PoolingHttpClientConnectionManager connectionPool = null;
+
     int             kindOfRequest = REQUEST_NONE;
     String          targetHost = null;
     int             targetPort = 0;
+    String          targetScheme = null;
     boolean         alreadySent = false;
 
     HttpRequestType requestMethod = null;
@@ -81,6 +97,8 @@ public class JmarsHttpRequest {
     String          user = null;
     String          pass = null;
     Date            sinceDate = null;
+    String          ifNoneMatch = null;
+    boolean         pooled = false;
 
     boolean customRequestConfig = false;
     boolean browserCompatibleCookiePolicy = false;
@@ -207,6 +225,25 @@ public class JmarsHttpRequest {
     public void setLaxRedirect() {
         laxRedirect = true;
     }
+
+    /**
+     * Sends this request over a connection from a pool shared by all pooled
+     * requests, and returns the connection to the pool on close() so the next
+     * request to the same host skips the TCP and TLS handshakes. The response
+     * must be consumed or closed for the connection to be reused.
+     */
+    public void setPooled() {
+        pooled = true;
+    }
+
+    /**
+     * Makes this a conditional request that the server answers with
+     * {@link HttpStatus#SC_NOT_MODIFIED} if the resource still has the given
+     * entity tag, as returned by {@link #getETag()} on an earlier response.
+     */
+    public void setIfNoneMatch(String etag) {
+        ifNoneMatch = etag;
+    }
     
     public void addRequestParameter(BasicNameValuePair nvPair) {                 // TODO (PW) Consider making it work for GETs too
     	params.add(nvPair);
@@ -278,6 +315,9 @@ public class JmarsHttpRequest {
         if (this.kindOfRequest == REQUEST_CONDITIONAL || this.kindOfRequest == REQUEST_COND_AUTH_REQUIRED) {
             this.httpRequest.setHeader("If-Modified-Since", DateUtils.formatDate(this.sinceDate));           
         }
+        if (this.ifNoneMatch != null) {
+            this.httpRequest.setHeader("If-None-Match", this.ifNoneMatch);
+        }
 
         while (!done) {
  
@@ -381,6 +421,17 @@ public class JmarsHttpRequest {
         return this.httpCode;
     }
     
+    /** @return true if a conditional request found the resource unchanged */
+    public boolean isNotModified() {
+        return this.httpCode == HttpStatus.SC_NOT_MODIFIED;
+    }
+    
+    /** @return the entity tag of the response, or null if the server did not send one */
+    public String getETag() {
+        Header etag = httpResponse == null ? null : httpResponse.getFirstHeader("ETag");
+        return etag == null ? null : etag.getValue();
+    }
+    
     public long getContentLength() {
     	return this.entity.getContentLength();
     }
@@ -473,6 +524,7 @@ public class JmarsHttpRequest {
         URI requestUri = new URI(url);
         this.targetHost = requestUri.getHost();
         this.targetPort = requestUri.getPort();
+        this.targetScheme = requestUri.getScheme();
         
         switch (methodType) {
             case GET:
@@ -540,9 +592,12 @@ public class JmarsHttpRequest {
         HttpClientBuilder   clientBuilder = HttpClientBuilder.create();
         boolean anyAuthenticationRequired = false;
  
+        HttpRoutePlanner routePlanner = new DefaultRoutePlanner(null);
         ProxyInformation proxyInfo = ProxyInformation.getInstance();
         if (proxyInfo.isProxyUsed()) {
-            clientBuilder.setProxy(new HttpHost(proxyInfo.getHost(), proxyInfo.getPort()));
+            // the same planner HttpClientBuilder.setProxy() would install
+            routePlanner = new DefaultProxyRoutePlanner(new HttpHost(proxyInfo.getHost(), proxyInfo.getPort()));
+            clientBuilder.setRoutePlanner(routePlanner);
 
             // Use proxy authentication if required
             if (proxyInfo.isAuthenticationUsed()) {
@@ -574,6 +629,23 @@ public class JmarsHttpRequest {
             clientBuilder.setRedirectStrategy(new LaxRedirectStrategy());
         }
         
+        if (pooled) {
+            // closing the client must leave the shared pool open
+            PoolingHttpClientConnectionManager pool = getConnectionPool();
+            if (maxConnectionsPerHost > 0) {
+                // ask the client's planner for the route, so proxied routes match the pool's
+                HttpHost target = new HttpHost(this.targetHost, this.targetPort, this.targetScheme);
+                try {
+                    HttpRoute route = routePlanner.determineRoute(target, this.httpRequest, HttpClientContext.create());
+                    pool.setMaxPerRoute(route, maxConnectionsPerHost);
+                } catch (HttpException e) {
+                    this.log.println("JmarsHttpRequest: Unable to determine route to " + target + ": " + e);
+                }
+            }
+            clientBuilder.setConnectionManager(pool);
+            clientBuilder.setConnectionManagerShared(true);
+        }
+        
         if (retryNever) {
             clientBuilder.setRetryHandler(new HttpRequestRetryHandler() {
                 public boolean retryRequest(IOException exception, int executionCount, HttpContext context) {
@@ -608,6 +680,17 @@ public class JmarsHttpRequest {
     } // getHttpClient()
     
     
+    /** Returns the connection pool shared by all pooled requests, creating it on first use */
+    private static synchronized PoolingHttpClientConnectionManager getConnectionPool() {
+        if (connectionPool == null) {
+            connectionPool = new PoolingHttpClientConnectionManager();
+            connectionPool.setMaxTotal(POOL_MAX_TOTAL);
+            connectionPool.setDefaultMaxPerRoute(POOL_MAX_PER_HOST);
+            connectionPool.setValidateAfterInactivity(POOL_VALIDATE_MS);
+        }
+        return connectionPool;
+    }
+    
     private void displayProxyInfoDialog() {
         
 //        JTextField proxyHost = new JTextField();
@@ -93,12 +93,7 @@ final public class MarsTimeCache implements TimeCache
 	 throws TimeException
 	 {
 		long packedSclk = sclk * 256 + frac;
-		DequaxPair pair = forSclk(packedSclk);
-		if(pair == null)
-			throw  new TimeException("The sclk " + sclk + " is out of range!");
-		return  pair.interpolateToEt(packedSclk,
-									 pair.a.packedSclk,
-									 pair.b.packedSclk);
+		return  packedSclk2et(packedSclk, forSclk(packedSclk));
 	 }
 
 	/* (non-Javadoc)
@@ -107,12 +102,10 @@ final public class MarsTimeCache implements TimeCache
 	public double orbit2et(int orbit, double offset)
 	 throws TimeException
 	 {
-		DequaxPair pair = forOrbit(orbit);
-		if(pair == null)
+		int row = forOrbit(orbit);
+		if(row < 0)
 			throw  new TimeException("The orbit " +orbit+ " is out of range!");
-		return  pair.interpolateToEt(orbit,
-									 pair.a.orbit,
-									 pair.b.orbit) + offset;
+		return  index.toEt(ORBIT, row, orbit) + offset;
 	 }
 
 	/* (non-Javadoc)
@@ -122,12 +115,10 @@ final public class MarsTimeCache implements TimeCache
 	 throws TimeException
 	 {
 		long utcMillis = utc2millis(utc);
-		DequaxPair pair = forUtc(utcMillis);
-		if(pair == null)
+		int row = forUtc(utcMillis);
+		if(row < 0)
 			throw  new TimeException("The UTC " + utc + " is out of range!");
-		return  pair.interpolateToEt(utcMillis,
-									 pair.a.utcMillis,
-									 pair.b.utcMillis);
+		return  index.toEt(UTC, row, utcMillis);
 	 }
 
 	/* (non-Javadoc)
@@ -136,12 +127,7 @@ final public class MarsTimeCache implements TimeCache
 	public double millis2et(long utcMillis)
 	 throws TimeException
 	 {
-		DequaxPair pair = forUtc(utcMillis);
-		if(pair == null)
-			throw  new TimeException(utcMillis + " is out of range!");
-		return  pair.interpolateToEt(utcMillis,
-									 pair.a.utcMillis,
-									 pair.b.utcMillis);
+		return  millis2et(utcMillis, forUtc(utcMillis));
 	 }
 
 	/* (non-Javadoc)
@@ -150,16 +136,7 @@ final public class MarsTimeCache implements TimeCache
 	public double et2sclkf(double et)
 	 throws TimeException
 	 {
-		DequaxPair pair = forEt(et);
-
-		if(pair == null)
-			throw  new TimeException("The ET " + et + " is out of range!");
-
-		long psclk = pair.interpolateFromEtL(et,
-											 pair.a.packedSclk,
-											 pair.b.packedSclk);
-		// Convert packed sclk to fraction-encoded
-		return  (psclk / 256) + (psclk%256) / 1000.0;
+		return  et2sclkf(et, forEt(et));
 	 }
 
 	/* (non-Javadoc)
@@ -168,18 +145,16 @@ final public class MarsTimeCache implements TimeCache
 	public int[] et2orbitn(double et)
 	 throws TimeException
 	 {
-		DequaxPair pair = forEt(et);
+		int row = forEt(et);
 
-		if(pair == null)
+		if(row < 0)
 			throw  new TimeException("The ET " + et + " is out of range!");
 
-		double orbitF = pair.interpolateFromEtF(et,
-											   pair.a.orbit,
-											   pair.b.orbit);
+		double orbitF = index.fromEt(ORBIT, row, et);
 		// Convert partial orbit to orbit+secs
 		int orbit = (int) Math.floor(orbitF);
 		int secs = (int) Math.round( (orbitF-orbit) *
-							   (pair.b.utcMillis - pair.a.utcMillis) / 1000 );
+							   (index.get(UTC, row) - index.get(UTC, row-1)) / 1000 );
 		return  new int[] { orbit, secs };
 	 }
 
@@ -217,15 +192,7 @@ final public class MarsTimeCache implements TimeCache
 	public long et2millis(double et)
 	 throws TimeException
 	 {
-		DequaxPair pair = forEt(et);
-
-		if(pair == null)
-			throw  new TimeException("The ET " + et + " is out of range!");
-
-		long millis = pair.interpolateFromEtL(et,
-											  pair.a.utcMillis,
-											  pair.b.utcMillis);
-		return  millis;
+		return  et2millis(et, forEt(et));
 	 }
 
 	/* (non-Javadoc)
@@ -244,145 +211,105 @@ final public class MarsTimeCache implements TimeCache
 
 
 
-	private DequaxPair forOrbit(int orbit)
+	// Columns of the time index besides et
+	private static final int ORBIT = 0;
+	private static final int UTC = 1;
+	private static final int SCLK = 2;
+
+	/*
+	 * Each of these returns the row of the time index that ends the
+	 * interval holding the given time, -1 if the time is past the
+	 * last row, or throws if it is before the first.
+	 */
+
+	private int forOrbit(int orbit)
 	 throws TimeException
 	 {
-		Dequax last = null;
-		for(int i=0; i<data.length; i++)
-			if(data[i] != null)
-				if(data[i].orbit > orbit)
-					if(last == null)
-						throw new TimeException(
-							"Time not covered! (orbit:" + orbit + ")");
-					else
-						return  new DequaxPair(last, data[i]);
-				else
-					last = data[i];
-		return  null;
+		int row = index.above(ORBIT, orbit);
+		if(row == index.size())
+			return  -1;
+		if(row == 0)
+			throw new TimeException(
+				"Time not covered! (orbit:" + orbit + ")");
+		return  row;
 	 }
 
-	private DequaxPair forEt(double et)
+	private int forEt(double et)
 	 throws TimeException
 	 {
-		Dequax last = null;
-		for(int i=0; i<data.length; i++)
-			if(data[i] != null)
-				if(data[i].et > et)
-					if(last == null)
-						throw new TimeException(
-							"Time not covered! (et:" + et + ")");
-					else
-						return  new DequaxPair(last, data[i]);
-				else
-					last = data[i];
-		return  null;
+		int row = index.aboveEt(et);
+		if(row == index.size())
+			return  -1;
+		if(row == 0)
+			throw new TimeException(
+				"Time not covered! (et:" + et + ")");
+		return  row;
 	 }
 
-	private DequaxPair forSclk(long packedSclk)
+	private int forSclk(long packedSclk)
 	 throws TimeException
 	 {
-		Dequax last = null;
-		for(int i=0; i<data.length; i++)
-			if(data[i] != null)
-				if(data[i].packedSclk > packedSclk)
-					if(last == null)
-						throw new TimeException(
-							"Time not covered! (sclk:" + packedSclk/256 +
-							":" + packedSclk%256 + ")");
-					else
-						return  new DequaxPair(last, data[i]);
-				else
-					last = data[i];
-		return  null;
+		int row = index.above(SCLK, packedSclk);
+		if(row == index.size())
+			return  -1;
+		if(row == 0)
+			throw new TimeException(
+				"Time not covered! (sclk:" + packedSclk/256 +
+				":" + packedSclk%256 + ")");
+		return  row;
 	 }
 
-	private DequaxPair forUtc(long utcMillis)
+	private int forUtc(long utcMillis)
 	 throws TimeException
 	 {
-		Dequax last = null;
-		for(int i=0; i<data.length; i++)
-			if(data[i] != null)
-				if(data[i].utcMillis > utcMillis)
-					if(last == null)
-						throw new TimeException(
-							"Time not covered! (utcMillis:" + utcMillis + ")");
-					else
-						return  new DequaxPair(last, data[i]);
-				else
-					last = data[i];
-		return  null;
+		int row = index.above(UTC, utcMillis);
+		if(row == index.size())
+			return  -1;
+		if(row == 0)
+			throw new TimeException(
+				"Time not covered! (utcMillis:" + utcMillis + ")");
+		return  row;
 	 }
 
-	/**
-	 ** Encapsulates a pair of equator crossings that together form an
-	 ** interpolatable interval in time.
-	 **/
-	private static class DequaxPair
+	/*
+	 * Each of these converts one time, given the row found for it by the
+	 * matching lookup above, and throws if it was past the last row.
+	 */
+
+	private double packedSclk2et(long packedSclk, int row)
+	 throws TimeException
 	 {
-		Dequax a;
-		Dequax b;
+		if(row < 0)
+			throw  new TimeException("The sclk " + packedSclk/256 + " is out of range!");
+		return  index.toEt(SCLK, row, packedSclk);
+	 }
 
-		DequaxPair(Dequax a, Dequax b)
-		 {
-			this.a = a;
-			this.b = b;
-		 }
+	private double millis2et(long utcMillis, int row)
+	 throws TimeException
+	 {
+		if(row < 0)
+			throw  new TimeException(utcMillis + " is out of range!");
+		return  index.toEt(UTC, row, utcMillis);
+	 }
 
-		/**
-		 ** Calculates an interpolated et from some other source time
-		 ** format, given the boundary values for the source time at
-		 ** points a and b.
-		 **
-		 ** <p>For instance, invoking this.interpolateToEt(packedSclk,
-		 ** this.a.packedSclk, this.b.packedSclk) will interpolate the
-		 ** sclk value packedSclk to an et.
-		 **/
-		double interpolateToEt(double srcVal,
-							   double srcA,
-							   double srcB)
-		 {
-			return
-				(srcVal - srcA) /
-				(srcB   - srcA) *
-				(b.et   - a.et) +
-				a.et;
-		 }
+	private double et2sclkf(double et, int row)
+	 throws TimeException
+	 {
+		if(row < 0)
+			throw  new TimeException("The ET " + et + " is out of range!");
 
-		/**
-		 ** Calculates an interpolated time in some destination format
-		 ** from et, given the boundary values for the destination
-		 ** time at points a and b.
-		 **
-		 ** <p>For instance, invoking this.interpolateFromEt(etTime,
-		 ** this.a.packedSclk, this.b.packedSclk) will interpolate the
-		 ** et value etTime to a sclk.
-		 **
-		 ** <p>Generally only useful (and only needed) for sclk and
-		 ** utcMillis.
-		 **/
-		long interpolateFromEtL(double srcEt,
-								long dstA,
-								long dstB)
-		 {
-			return Math.round(
-				(srcEt - a.et) /
-				(b.et  - a.et) *
-				(dstB  - dstA) +
-				dstA
-				);
-		 }
+		long psclk = Math.round(index.fromEt(SCLK, row, et));
+		// Convert packed sclk to fraction-encoded
+		return  (psclk / 256) + (psclk%256) / 1000.0;
+	 }
 
-		double interpolateFromEtF(double srcEt,
-								 int dstA,
-								 int dstB)
-		 {
-			return (
-				(srcEt - a.et) /
-				(b.et  - a.et) *
-				(dstB  - dstA) +
-				dstA
-				);
-		 }
+	private long et2millis(double et, int row)
+	 throws TimeException
+	 {
+		if(row < 0)
+			throw  new TimeException("The ET " + et + " is out of range!");
+
+		return  Math.round(index.fromEt(UTC, row, et));
 	 }
 
 	private static class Dequax
@@ -397,6 +324,37 @@ final public class MarsTimeCache implements TimeCache
 	private int FIRST_ORBIT;
 	private Dequax[] data;
 
+	/**
+	 ** The crossings in {@link #data}, as columns for fast lookups.
+	 **/
+	private TimeIndex index;
+
+	/**
+	 ** Builds {@link #index} from the crossings that were loaded.
+	 **/
+	private void buildIndex()
+	 {
+		int count = 0;
+		for(int i=0; i<data.length; i++)
+			if(data[i] != null)
+				count++;
+		double[] et = new double[count];
+		long[] orbit = new long[count];
+		long[] utcMillis = new long[count];
+		long[] packedSclk = new long[count];
+		int row = 0;
+		for(int i=0; i<data.length; i++)
+			if(data[i] != null)
+			 {
+				et[row] = data[i].et;
+				orbit[row] = data[i].orbit;
+				utcMillis[row] = data[i].utcMillis;
+				packedSclk[row] = data[i].packedSclk;
+				row++;
+			 }
+		index = new TimeIndex(et, orbit, utcMillis, packedSclk);
+	 }
+
 	/**
 	 ** Loads time records through the web.
 	 **/
@@ -449,6 +407,7 @@ final public class MarsTimeCache implements TimeCache
 				d.packedSclk = sclk * 256 + frac;
 				d.et = Double.parseDouble(tok.nextToken());
 			 }				
+			buildIndex();
 			log.aprintln("Successfully loaded all time records!");
 			log.printStack(-1);
 			req.close();
@@ -518,6 +477,7 @@ final public class MarsTimeCache implements TimeCache
 				d.packedSclk = rs.getLong(3) * 256 + rs.getInt(4);
 				d.et = rs.getDouble(5);
 			 }				
+			buildIndex();
 			log.aprintln("Successfully loaded all time records!");
 		 }
 		catch(SQLException e)
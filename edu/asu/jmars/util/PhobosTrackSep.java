@@ -11,7 +11,6 @@ import edu.asu.jmars.layer.util.InMemElevationSource;
 import edu.asu.jspice.JS;
 import edu.asu.jspice.JSNadirProviderCentroid;
 import edu.asu.jspice.JSScanNormPerpOrbitTrack;
-import edu.asu.jspice.JSpice;
 
 /**
  * Prints the angular separation between the THEMIS groundtrack and the center
@@ -24,7 +23,7 @@ public class PhobosTrackSep {
 	private static final int mars = 499;
 	private static final int phobos = 401;
 	private static final int sun = 10;
-	private static JS JS;
+	private static JS js;
 	public static void main(String[] args) throws IOException, VicarException, URISyntaxException {
 		if (args.length == 0) {
 			System.out.println("Arguments:\n\tet1 et2");
@@ -40,7 +39,7 @@ public class PhobosTrackSep {
 		}
 		String moons = "/tes/src/naif/data/mar022-LONG.bsp";
 		try {
-			JSpice.furnshc(new StringBuffer(moons));
+			JS.furnshc(moons);
 		} catch (Exception e) {
 			System.err.println("Couldn't find moon kernel at " + moons);
 		}
@@ -52,7 +51,7 @@ public class PhobosTrackSep {
 				continue;
 			} else if (!bits[0].trim().equalsIgnoreCase("OPTG")) {
 				try {
-					JSpice.furnshc(new StringBuffer(bits[1].trim()));
+					JS.furnshc(bits[1].trim());
 				} catch (Exception e) {
 					System.err.println("Failed to load " + bits[1]);
 					e.printStackTrace();
@@ -61,7 +60,7 @@ public class PhobosTrackSep {
 		}
 		
 		// as soon as kernels are furnished, build JS
-		JS = new JS(ody,mars,24.6229,new JSNadirProviderCentroid(),new JSScanNormPerpOrbitTrack());
+		js = new JS(ody,mars,24.6229,new JSNadirProviderCentroid(),new JSScanNormPerpOrbitTrack());
 		
 		String url = Config.get("themis2.alt.file.url", "http://jmars.asu.edu/internal/mola_16ppd_topo.vic");
 		ElevationSource topo = new InMemElevationSource(url, 3396d, 1/1000.0d);
@@ -71,10 +70,10 @@ public class PhobosTrackSep {
 		int hit = 0, missed = 0;
 		System.out.println("et\tsep1\tsep2\tdir\tlt\tlat");
 		for (double et = et1; et <= et2; et += 100) {
-			HVector phobosPos = JS.spkez(et, phobos)[0];
-			HVector sunPos = JS.spkez(et, sun)[0];
+			HVector phobosPos = js.spkez(et, phobos)[0];
+			HVector sunPos = js.spkez(et, sun)[0];
 			HVector shadowDir = phobosPos.sub(sunPos).unit();
-			HVector ellipseHit = JS.surfpt(phobosPos, shadowDir);
+			HVector ellipseHit = js.surfpt(phobosPos, shadowDir);
 			HVector demHit = topo.getSurfacePoint(phobosPos, shadowDir);
 			if (ellipseHit == null || demHit == null) {
 				if (lastValid) {
@@ -86,21 +85,21 @@ public class PhobosTrackSep {
 			}
 			hit ++;
 			lastValid = true;
-			HVector odyPos = JS.spkez(et, ody)[0];
+			HVector odyPos = js.spkez(et, ody)[0];
 			// compute separation values; we can use 'odyPos' directly since the
 			// look vector is toward the center of the planet and therefore the
 			// spot THEMIS sees is in the direction of 'odyPos'
 			double sep1 = odyPos.separation(ellipseHit);
 			double sep2 = odyPos.separation(demHit);
 			// get the average direction Phobos moved FROM in the last 100 seconds
-			HVector phobosDir = JS.spkez(et-100, phobos)[0].sub(phobosPos).unit();
+			HVector phobosDir = js.spkez(et-100, phobos)[0].sub(phobosPos).unit();
 			// get the direction from the current position of Phobos to the current THEMIS target
-			HVector odyTarget = JS.surfpt(odyPos, odyPos.neg());
+			HVector odyTarget = js.surfpt(odyPos, odyPos.neg());
 			HVector shadowToTargetDir = odyTarget.sub(ellipseHit).unit();
 			// compute the 'dir' value as the separation between the direction
 			// phobos has been moving and the direction from phobos shadow to
 			// themis target around the surface normal at the phobos shadow.
-			double dir = Math.abs(shadowToTargetDir.separationPlanar(phobosDir, JS.surfnm(ellipseHit)));
+			double dir = Math.abs(shadowToTargetDir.separationPlanar(phobosDir, js.surfnm(ellipseHit)));
 			// compute the local time at the THEMIS target
 			double lt = MarsOrbitUtil.calcLocalTime((long)et, odyTarget.toLonLat(null));
 			// compute the latitude at the THEMIS target
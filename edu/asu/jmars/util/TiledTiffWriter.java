@@ -0,0 +1,368 @@
+package edu.asu.jmars.util;
+
+import java.awt.image.Raster;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+
+/**
+ * Writes an 8-bit RGB image to a tiled TIFF file as pieces of it arrive, so
+ * images far larger than the heap can be produced.
+ *
+ * Callers hand over arbitrary non-overlapping rectangles with
+ * {@link #write(int, int, Raster)}. They are cut into square tiles, and each
+ * tile is compressed with deflate on a pool of threads and appended to the
+ * file as soon as every pixel in it has been written, so only the partly
+ * covered tiles are held in memory. The directory is written by
+ * {@link #close()}, which fills any tile that was never written with black,
+ * or the file is deleted by {@link #abort()}.
+ *
+ * Files whose pixel data could pass 4 GB are written as BigTIFF, which many
+ * older readers do not understand, so that is only done when it is needed or
+ * asked for.
+ */
+public final class TiledTiffWriter {
+	private static final DebugLog log = DebugLog.instance();
+
+	private static final int TILE = 256;
+	private static final int BANDS = 3;
+	private static final long CLASSIC_LIMIT = 0xF0000000L;
+
+	private static final short SHORT = 3, LONG = 4, LONG8 = 16;
+
+	private final File file;
+	private final RandomAccessFile out;
+	private final int width;
+	private final int height;
+	private final boolean big;
+	private final int tilesAcross;
+	private final int tilesDown;
+	private final long[] offsets;
+	private final long[] counts;
+	private final Map<Integer,Tile> pending = new HashMap<Integer,Tile>();
+	private final ExecutorService encoders;
+	private final Semaphore inFlight;
+	private long end;
+	private volatile IOException failure;
+	private volatile boolean aborted;
+
+	/** A tile being filled in, with the number of its pixels written so far */
+	private static final class Tile {
+		final byte[] data = new byte[TILE * TILE * BANDS];
+		int filled;
+	}
+
+	/**
+	 * Creates the file, replacing any existing one.
+	 * @param bigTiff Forces BigTIFF output; it is used regardless when the
+	 * image is too large for a classic TIFF.
+	 */
+	public TiledTiffWriter(File file, int width, int height, boolean bigTiff) throws IOException {
+		if (width <= 0 || height <= 0) {
+			throw new IllegalArgumentException("Invalid image size " + width + "x" + height);
+		}
+		this.file = file;
+		this.width = width;
+		this.height = height;
+		this.big = bigTiff || (long)width * height * BANDS > CLASSIC_LIMIT;
+		tilesAcross = (width + TILE - 1) / TILE;
+		tilesDown = (height + TILE - 1) / TILE;
+		offsets = new long[tilesAcross * tilesDown];
+		counts = new long[offsets.length];
+
+		int threads = Math.max(1, Config.get("export.threads", Runtime.getRuntime().availableProcessors()));
+		encoders = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger(1);
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "TIFF Tile Encoder-" + count.getAndIncrement());
+				t.setDaemon(true);
+				t.setPriority(Thread.MIN_PRIORITY);
+				return t;
+			}
+		});
+		// bounds the finished tiles waiting for an encoder
+		inFlight = new Semaphore(threads * 4);
+
+		file.delete();
+		out = new RandomAccessFile(file, "rw");
+		// the header is rewritten with the directory offset on close
+		end = big ? 16 : 8;
+		out.setLength(end);
+		log.println("Writing " + width + "x" + height + " " + (big ? "BigTIFF" : "TIFF") + " to " + file);
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	/**
+	 * Stores the pixels of the given raster, which must have at least three
+	 * bands, with its upper left corner at x,y in the image. Parts outside
+	 * the image are ignored. No pixel may be written twice.
+	 */
+	public synchronized void write(int x, int y, Raster raster) throws IOException {
+		checkFailure();
+		int x0 = Math.max(0, x), y0 = Math.max(0, y);
+		int x1 = Math.min(width, x + raster.getWidth()), y1 = Math.min(height, y + raster.getHeight());
+		if (x0 >= x1 || y0 >= y1) {
+			return;
+		}
+		int rx = raster.getMinX() - x, ry = raster.getMinY() - y;
+		int bands = raster.getNumBands();
+		int[] row = new int[TILE * bands];
+		for (int ty = y0 / TILE; ty <= (y1 - 1) / TILE; ty++) {
+			for (int tx = x0 / TILE; tx <= (x1 - 1) / TILE; tx++) {
+				int px0 = Math.max(x0, tx * TILE), px1 = Math.min(x1, (tx + 1) * TILE);
+				int py0 = Math.max(y0, ty * TILE), py1 = Math.min(y1, (ty + 1) * TILE);
+				int index = ty * tilesAcross + tx;
+				Tile tile = pending.get(index);
+				if (tile == null) {
+					if (counts[index] != 0) {
+						log.println("Ignoring second write to tile " + tx + "," + ty);
+						continue;
+					}
+					pending.put(index, tile = new Tile());
+				}
+				int w = px1 - px0;
+				for (int py = py0; py < py1; py++) {
+					raster.getPixels(px0 + rx, py + ry, w, 1, row);
+					int pos = ((py - ty * TILE) * TILE + (px0 - tx * TILE)) * BANDS;
+					for (int i = 0, j = 0; i < w; i++, j += bands) {
+						tile.data[pos++] = (byte)row[j];
+						tile.data[pos++] = (byte)row[j+1];
+						tile.data[pos++] = (byte)row[j+2];
+					}
+				}
+				tile.filled += w * (py1 - py0);
+				int size = (Math.min(width, (tx + 1) * TILE) - tx * TILE) * (Math.min(height, (ty + 1) * TILE) - ty * TILE);
+				if (tile.filled >= size) {
+					pending.remove(index);
+					encode(index, tile);
+				}
+			}
+		}
+	}
+
+	private void encode(final int index, final Tile tile) throws IOException {
+		try {
+			inFlight.acquire();
+		} catch (InterruptedException e) {
+			throw new IOException("Interrupted while writing " + width + "x" + height + " image");
+		}
+		// marks the tile as taken before its bytes are written
+		counts[index] = -1;
+		try {
+			encoders.execute(new Runnable() {
+				public void run() {
+					try {
+						byte[] packed = deflate(tile.data);
+						synchronized(out) {
+							out.seek(end);
+							out.write(packed);
+							offsets[index] = end;
+							counts[index] = packed.length;
+							end += packed.length;
+						}
+					} catch (IOException e) {
+						failure = e;
+					} finally {
+						inFlight.release();
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			inFlight.release();
+			throw new IOException("Writing of " + file + " was aborted");
+		}
+	}
+
+	/** Applies the horizontal differencing predictor and compresses a tile */
+	private static byte[] deflate(byte[] data) {
+		byte[] diff = new byte[data.length];
+		int rowBytes = TILE * BANDS;
+		for (int r = 0; r < data.length; r += rowBytes) {
+			for (int i = 0; i < BANDS; i++) {
+				diff[r+i] = data[r+i];
+			}
+			for (int i = r + BANDS; i < r + rowBytes; i++) {
+				diff[i] = (byte)(data[i] - data[i - BANDS]);
+			}
+		}
+		Deflater deflater = new Deflater(Config.get("export.deflateLevel", 6));
+		deflater.setInput(diff);
+		deflater.finish();
+		ByteArrayOutputStream buf = new ByteArrayOutputStream(data.length / 4);
+		byte[] chunk = new byte[64 * 1024];
+		while (!deflater.finished()) {
+			buf.write(chunk, 0, deflater.deflate(chunk));
+		}
+		deflater.end();
+		return buf.toByteArray();
+	}
+
+	private void checkFailure() throws IOException {
+		if (aborted) {
+			throw new IOException("Writing of " + file + " was aborted");
+		}
+		if (failure != null) {
+			throw failure;
+		}
+	}
+
+	/**
+	 * Writes any tiles that are still missing or partly covered, then the
+	 * directory, and closes the file.
+	 */
+	public synchronized void close() throws IOException {
+		try {
+			for (int index = 0; index < offsets.length; index++) {
+				Tile tile = pending.remove(index);
+				if (tile == null && counts[index] == 0) {
+					tile = new Tile();
+				}
+				if (tile != null) {
+					encode(index, tile);
+				}
+			}
+			encoders.shutdown();
+			try {
+				while (!encoders.awaitTermination(1, TimeUnit.MINUTES)) {
+					log.println("Waiting for TIFF tiles to be encoded");
+				}
+			} catch (InterruptedException e) {
+				throw new IOException("Interrupted while finishing image");
+			}
+			checkFailure();
+			writeDirectory();
+		} finally {
+			encoders.shutdownNow();
+			out.close();
+		}
+	}
+
+	/**
+	 * Abandons the image: drops the tiles waiting to be encoded, closes the
+	 * file without writing the directory, and deletes it. May be called from
+	 * any thread, including while another one is in {@link #write}, which
+	 * then fails.
+	 */
+	public void abort() {
+		aborted = true;
+		// wakes a writer waiting for an encoder that will now never run
+		inFlight.release(encoders.shutdownNow().size() + 1);
+		synchronized(out) {
+			try {
+				out.close();
+			} catch (IOException e) {
+				log.println("Unable to close " + file + ": " + e);
+			}
+		}
+		if (!file.delete()) {
+			log.println("Unable to delete " + file);
+		}
+	}
+
+	private void writeDirectory() throws IOException {
+		long[][] values = {
+			{width}, {height}, {8, 8, 8}, {8}, {2}, {BANDS}, {1}, {2}, {TILE}, {TILE}, offsets, counts
+		};
+		int[] tags = {256, 257, 258, 259, 262, 277, 284, 317, 322, 323, 324, 325};
+		short offsetType = big ? LONG8 : LONG;
+		short[] types = {LONG, LONG, SHORT, SHORT, SHORT, SHORT, SHORT, SHORT, SHORT, SHORT, offsetType, offsetType};
+		int inline = big ? 8 : 4;
+
+		// values too large to fit in their entry go after the tiles
+		long pos = end + (end & 1);
+		long[] where = new long[tags.length];
+		for (int i = 0; i < tags.length; i++) {
+			int size = values[i].length * typeSize(types[i]);
+			if (size > inline) {
+				ByteBuffer buf = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+				putValues(buf, types[i], values[i]);
+				out.seek(pos);
+				out.write(buf.array());
+				where[i] = pos;
+				pos += size + (size & 1);
+			}
+		}
+
+		int entry = big ? 20 : 12;
+		ByteBuffer ifd = ByteBuffer.allocate((big ? 16 : 6) + tags.length * entry).order(ByteOrder.LITTLE_ENDIAN);
+		if (big) {
+			ifd.putLong(tags.length);
+		} else {
+			ifd.putShort((short)tags.length);
+		}
+		for (int i = 0; i < tags.length; i++) {
+			ifd.putShort((short)tags[i]).putShort(types[i]);
+			if (big) {
+				ifd.putLong(values[i].length);
+			} else {
+				ifd.putInt(values[i].length);
+			}
+			int start = ifd.position();
+			if (values[i].length * typeSize(types[i]) > inline) {
+				if (big) {
+					ifd.putLong(where[i]);
+				} else {
+					ifd.putInt((int)where[i]);
+				}
+			} else {
+				putValues(ifd, types[i], values[i]);
+			}
+			ifd.position(start + inline);
+		}
+		if (big) {
+			ifd.putLong(0);
+		} else {
+			ifd.putInt(0);
+		}
+		out.seek(pos);
+		out.write(ifd.array());
+
+		ByteBuffer header = ByteBuffer.allocate(big ? 16 : 8).order(ByteOrder.LITTLE_ENDIAN);
+		header.put((byte)'I').put((byte)'I');
+		if (big) {
+			header.putShort((short)43).putShort((short)8).putShort((short)0).putLong(pos);
+		} else {
+			header.putShort((short)42).putInt((int)pos);
+		}
+		out.seek(0);
+		out.write(header.array());
+	}
+
+	private static int typeSize(short type) {
+		switch (type) {
+		case SHORT: return 2;
+		case LONG: return 4;
+		default: return 8;
+		}
+	}
+
+	private static void putValues(ByteBuffer buf, short type, long[] values) {
+		for (long v: values) {
+			switch (type) {
+			case SHORT: buf.putShort((short)v); break;
+			case LONG: buf.putInt((int)v); break;
+			default: buf.putLong(v); break;
+			}
+		}
+	}
+}
@@ -89,4 +89,4 @@ public interface TimeCache {
 	 **/
 	public abstract Date et2date(double et) throws TimeException;
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,124 @@
+package edu.asu.jmars.util;
+
+/**
+ * A table of times at known points, such as the equator crossings of an
+ * orbiter, kept as one primitive array per time format, with ephemeris time
+ * (et) in one column and any number of integer-valued formats in the others.
+ *
+ * Lookups find the pair of rows around a value with a binary search, and
+ * interpolate between them without allocating anything. A column that
+ * turns out not to be sorted is searched from the start instead, which
+ * returns the same rows the search always returned.
+ */
+final class TimeIndex {
+	private final double[] et;
+	private final long[][] columns;
+	private final boolean etSorted;
+	private final boolean[] sorted;
+
+	/**
+	 * Creates the index from rows already in time order. Each column must
+	 * have the same length as et; the arrays are used as given.
+	 */
+	TimeIndex(double[] et, long[] ... columns) {
+		this.et = et;
+		this.columns = columns;
+		boolean etOrder = true;
+		for (int i = 1; i < et.length && etOrder; i++) {
+			etOrder = et[i-1] <= et[i];
+		}
+		etSorted = etOrder;
+		sorted = new boolean[columns.length];
+		for (int c = 0; c < columns.length; c++) {
+			if (columns[c].length != et.length) {
+				throw new IllegalArgumentException("Column " + c + " has " + columns[c].length + " rows, expected " + et.length);
+			}
+			boolean order = true;
+			for (int i = 1; i < et.length && order; i++) {
+				order = columns[c][i-1] <= columns[c][i];
+			}
+			sorted[c] = order;
+		}
+	}
+
+	/** @return the number of rows */
+	int size() {
+		return et.length;
+	}
+
+	/** @return the et of the given row */
+	double et(int row) {
+		return et[row];
+	}
+
+	/** @return the value in the given column and row */
+	long get(int column, int row) {
+		return columns[column][row];
+	}
+
+	/**
+	 * @return the first row whose value in the given column is greater than
+	 * the given value, or {@link #size()} if there is none. The value
+	 * falls between that row and the one before it, when both exist.
+	 */
+	int above(int column, long value) {
+		long[] col = columns[column];
+		if (!sorted[column]) {
+			int i = 0;
+			while (i < col.length && col[i] <= value) {
+				i++;
+			}
+			return i;
+		}
+		int lo = 0, hi = col.length;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (col[mid] <= value) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		return lo;
+	}
+
+	/** Same as {@link #above(int, long)}, for the et column */
+	int aboveEt(double value) {
+		if (!etSorted) {
+			int i = 0;
+			while (i < et.length && et[i] <= value) {
+				i++;
+			}
+			return i;
+		}
+		int lo = 0, hi = et.length;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (et[mid] <= value) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		return lo;
+	}
+
+	/**
+	 * Interpolates the et of a value in the given column between the given
+	 * row and the one before it.
+	 */
+	double toEt(int column, int row, double value) {
+		long[] col = columns[column];
+		double srcA = col[row-1], srcB = col[row];
+		return (value - srcA) / (srcB - srcA) * (et[row] - et[row-1]) + et[row-1];
+	}
+
+	/**
+	 * Interpolates the value in the given column at the given et, between
+	 * the given row and the one before it.
+	 */
+	double fromEt(int column, int row, double value) {
+		long[] col = columns[column];
+		return (value - et[row-1]) / (et[row] - et[row-1]) * (col[row] - col[row-1]) + col[row-1];
+	}
+}
@@ -69,83 +69,83 @@ public class BoundingCorners {
         }
 	}
 
+	/** Codes for the texture coordinate mapping a triangle inside the bounds gets */
+	public static final int OUTSIDE = 0, FIRST = 1, SECOND = 2, THIRD = 3;
+
 	public boolean checkTriangleFirst(int[] t, double[] worlds, float[] tex) {
-		boolean ret = false;
-		
-		boolean[] ptInBounds = {false, false, false};
-		if (checkPointFirst(worlds[t[0] * 2], worlds[(t[0] * 2) + 1])) {
-			ptInBounds[0] = true;
-		}
-		
-		if (checkPointFirst(worlds[t[1] * 2], worlds[(t[1] * 2) + 1])) {
-			ptInBounds[1] = true;
+		int code = classifyFirst(t[0], t[1], t[2], worlds);
+		if (code == OUTSIDE) {
+			return false;
 		}
+		setTexCoords(code, t[0], worlds, tex);
+		setTexCoords(code, t[1], worlds, tex);
+		setTexCoords(code, t[2], worlds, tex);
+		return true;
+	}
 		
-		if (checkPointFirst(worlds[t[2] * 2], worlds[(t[2] * 2) + 1])) {
-			ptInBounds[2] = true;
+	public boolean checkTriangleSecond(int[] t, double[] worlds, float[] tex) {
+		int code = classifySecond(t[0], t[1], t[2], worlds);
+		if (code == OUTSIDE) {
+			return false;
 		}
+		setTexCoords(code, t[0], worlds, tex);
+		setTexCoords(code, t[1], worlds, tex);
+		setTexCoords(code, t[2], worlds, tex);
+		return true;
+	}
 
-		// check each point. if any fall within the bounding box include the entire triangle
-		if (ptInBounds[0] && ptInBounds[1] && ptInBounds[2]) {
-			boolean p1 = getTexCoordsFirst(worlds[t[0] * 2], worlds[(t[0] * 2) + 1], t[0], tex);
-			boolean p2 = getTexCoordsFirst(worlds[t[1] * 2], worlds[(t[1] * 2) + 1], t[1], tex);
-			boolean p3 = getTexCoordsFirst(worlds[t[2] * 2], worlds[(t[2] * 2) + 1], t[2], tex);
-			
-			if (p1 && p2 && p3) {
-				ret = true;
-			}
-		} else if ((ptInBounds[0] || ptInBounds[1] || ptInBounds[2]) 
-				&& (checkPointFirst(worlds[t[0] * 2], worlds[(t[0] * 2) + 1]) || checkPointSecond(worlds[t[0] * 2], worlds[(t[0] * 2) + 1]))
-				&& (checkPointFirst(worlds[t[1] * 2], worlds[(t[1] * 2) + 1]) || checkPointSecond(worlds[t[1] * 2], worlds[(t[1] * 2) + 1]))
-				&& (checkPointFirst(worlds[t[2] * 2], worlds[(t[2] * 2) + 1]) || checkPointSecond(worlds[t[2] * 2], worlds[(t[2] * 2) + 1]))) {
-			boolean p1 = getTexCoordsThird(worlds[t[0] * 2], worlds[(t[0] * 2) + 1], t[0], tex);
-			boolean p2 = getTexCoordsThird(worlds[t[1] * 2], worlds[(t[1] * 2) + 1], t[1], tex);
-			boolean p3 = getTexCoordsThird(worlds[t[2] * 2], worlds[(t[2] * 2) + 1], t[2], tex);
+	/**
+	 * Tests the triangle with the given vertices against the first bounding
+	 * box, without changing anything, so it may be called from any thread.
+	 * @return the mapping {@link #checkTriangleFirst} would give the vertices,
+	 * or OUTSIDE if it would reject the triangle
+	 */
+	public int classifyFirst(int a, int b, int c, double[] worlds) {
+		boolean inA = checkPointFirst(worlds[a * 2], worlds[(a * 2) + 1]);
+		boolean inB = checkPointFirst(worlds[b * 2], worlds[(b * 2) + 1]);
+		boolean inC = checkPointFirst(worlds[c * 2], worlds[(c * 2) + 1]);
 
-			if (p1 && p2 && p3) {
-				ret = true;
-			}
+		// check each point. if any fall within the bounding box include the entire triangle
+		if (inA && inB && inC) {
+			return FIRST;
+		} else if ((inA || inB || inC)
+				&& (inA || checkPointSecond(worlds[a * 2], worlds[(a * 2) + 1]))
+				&& (inB || checkPointSecond(worlds[b * 2], worlds[(b * 2) + 1]))
+				&& (inC || checkPointSecond(worlds[c * 2], worlds[(c * 2) + 1]))) {
+			return THIRD;
 		}
-		return ret;
+		return OUTSIDE;
 	}
-		
-	public boolean checkTriangleSecond(int[] t, double[] worlds, float[] tex) {
-		boolean ret = false;
-		
+
+	/** Same as {@link #classifyFirst}, for the second bounding box of a decal crossing the meridian */
+	public int classifySecond(int a, int b, int c, double[] worlds) {
 		if (!meridian) {
-			return ret;
-		}
-		boolean[] ptInBounds = {false, false, false};
-		if (checkPointSecond(worlds[t[0] * 2], worlds[(t[0] * 2) + 1])) {
-			ptInBounds[0] = true;
-		}
-		
-		if (checkPointSecond(worlds[t[1] * 2], worlds[(t[1] * 2) + 1])) {
-			ptInBounds[1] = true;
-		}
-		
-		if (checkPointSecond(worlds[t[2] * 2], worlds[(t[2] * 2) + 1])) {
-			ptInBounds[2] = true;
+			return OUTSIDE;
 		}
+		boolean inA = checkPointSecond(worlds[a * 2], worlds[(a * 2) + 1]);
+		boolean inB = checkPointSecond(worlds[b * 2], worlds[(b * 2) + 1]);
+		boolean inC = checkPointSecond(worlds[c * 2], worlds[(c * 2) + 1]);
+
 		// check each point. if any fall within the bounding box include the entire triangle
-		if (ptInBounds[0] && ptInBounds[1] && ptInBounds[2]) {
-			boolean p1 = getTexCoordsSecond(worlds[t[0] * 2], worlds[(t[0] * 2) + 1], t[0], tex);
-			boolean p2 = getTexCoordsSecond(worlds[t[1] * 2], worlds[(t[1] * 2) + 1], t[1], tex);
-			boolean p3 = getTexCoordsSecond(worlds[t[2] * 2], worlds[(t[2] * 2) + 1], t[2], tex);
-			ret = true;
-		} else if ((ptInBounds[0] || ptInBounds[1] || ptInBounds[2]) 
-				&& (checkPointFirst(worlds[t[0] * 2]-360.0, worlds[(t[0] * 2) + 1]) || checkPointSecond(worlds[t[0] * 2], worlds[(t[0] * 2) + 1]))
-				&& (checkPointFirst(worlds[t[1] * 2]-360.0, worlds[(t[1] * 2) + 1]) || checkPointSecond(worlds[t[1] * 2], worlds[(t[1] * 2) + 1]))
-				&& (checkPointFirst(worlds[t[2] * 2]-360.0, worlds[(t[2] * 2) + 1]) || checkPointSecond(worlds[t[2] * 2], worlds[(t[2] * 2) + 1]))) {
-			boolean p1 = getTexCoordsSecond(worlds[t[0] * 2], worlds[(t[0] * 2) + 1], t[0], tex);
-			boolean p2 = getTexCoordsSecond(worlds[t[1] * 2], worlds[(t[1] * 2) + 1], t[1], tex);
-			boolean p3 = getTexCoordsSecond(worlds[t[2] * 2], worlds[(t[2] * 2) + 1], t[2], tex);
+		if (inA && inB && inC) {
+			return SECOND;
+		} else if ((inA || inB || inC)
+				&& (inA || checkPointFirst(worlds[a * 2]-360.0, worlds[(a * 2) + 1]))
+				&& (inB || checkPointFirst(worlds[b * 2]-360.0, worlds[(b * 2) + 1]))
+				&& (inC || checkPointFirst(worlds[c * 2]-360.0, worlds[(c * 2) + 1]))) {
+			return SECOND;
+		}
+		return OUTSIDE;
+	}
 
-			if (p1 && p2 && p3) {
-				ret = true;
-			}
+	/** Writes the texture coordinates of the given vertex, using a mapping from the classify methods */
+	public void setTexCoords(int code, int idx, double[] worlds, float[] tex) {
+		double x = worlds[idx * 2], y = worlds[(idx * 2) + 1];
+		switch (code) {
+		case FIRST: getTexCoordsFirst(x, y, idx, tex); break;
+		case SECOND: getTexCoordsSecond(x, y, idx, tex); break;
+		case THIRD: getTexCoordsThird(x, y, idx, tex); break;
 		}
-		return ret;
 	}
 	
 	public boolean checkPoint(double x, double y) {
@@ -0,0 +1,256 @@
+package edu.asu.jmars.viz3d;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import edu.asu.jmars.util.DebugLog;
+
+/**
+ * A uniform grid over the world coordinates of a shape model's vertices,
+ * with the triangles that use each vertex, for finding the triangles a decal
+ * covers without testing every triangle of the model.
+ *
+ * A triangle can only be given to a decal when one of its vertices is inside
+ * one of the decal's bounding boxes, so the candidates are the triangles of
+ * the vertices in the grid cells under those boxes. Candidates are tested
+ * on a pool of threads, and the texture coordinates of the ones that pass
+ * are then written in triangle order, so shared vertices end up with the
+ * same coordinates as a test of every triangle in order would give them.
+ *
+ * Everything is kept in int arrays. The index must be rebuilt when the
+ * world coordinates change, such as after a projection change.
+ */
+final class TriangleIndex {
+	private static final DebugLog log = DebugLog.instance();
+
+	/** Average number of vertices per grid cell */
+	private static final int CELL_VERTICES = 8;
+	private static final int MAX_CELLS_PER_AXIS = 4096;
+
+	/** Number of candidate triangles given to each classification task */
+	private static final int CLASSIFY_CHUNK = 4096;
+
+	private static final ExecutorService classifiers = Executors.newFixedThreadPool(
+		Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+			private int id = 0;
+			public synchronized Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "Decal Triangle Classifier " + (id++));
+				t.setDaemon(true);
+				return t;
+			}
+		});
+
+	/** Builds indexes in the background as shape models are loaded or reprojected */
+	private static final ExecutorService builder = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "Decal Triangle Indexer");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+
+	private final int[] triangles;
+	private final double[] worlds;
+	private final double minX, minY, cellWidth, cellHeight;
+	private final int cellsX, cellsY;
+	/** Vertices of cell i are cellVertices[cellStart[i]..cellStart[i+1]] */
+	private final int[] cellStart;
+	private final int[] cellVertices;
+	/** Triangles of vertex i are vertexTriangles[vertexStart[i]..vertexStart[i+1]] */
+	private final int[] vertexStart;
+	private final int[] vertexTriangles;
+
+	/**
+	 * Builds the index over the given arrays, which it keeps: triangles holds
+	 * three vertex numbers per triangle, and worlds holds the world x,y of
+	 * each vertex.
+	 */
+	TriangleIndex(int[] triangles, double[] worlds) {
+		long start = System.currentTimeMillis();
+		this.triangles = triangles;
+		this.worlds = worlds;
+		int vertexCount = worlds.length / 2;
+
+		double x0 = Double.POSITIVE_INFINITY, y0 = Double.POSITIVE_INFINITY;
+		double x1 = Double.NEGATIVE_INFINITY, y1 = Double.NEGATIVE_INFINITY;
+		for (int v = 0; v < vertexCount; v++) {
+			double x = worlds[v*2], y = worlds[v*2+1];
+			if (x < x0) x0 = x;
+			if (x > x1) x1 = x;
+			if (y < y0) y0 = y;
+			if (y > y1) y1 = y;
+		}
+		if (!(x0 <= x1 && y0 <= y1)) {
+			x0 = y0 = 0;
+			x1 = y1 = 1;
+		}
+		double width = Math.max(x1 - x0, 1e-9), height = Math.max(y1 - y0, 1e-9);
+		int cells = Math.max(1, vertexCount / CELL_VERTICES);
+		cellsX = (int)Math.max(1, Math.min(MAX_CELLS_PER_AXIS, Math.ceil(Math.sqrt(cells * width / height))));
+		cellsY = (int)Math.max(1, Math.min(MAX_CELLS_PER_AXIS, Math.ceil(cells / (double)cellsX)));
+		minX = x0;
+		minY = y0;
+		cellWidth = width / cellsX;
+		cellHeight = height / cellsY;
+
+		// counting sort of the vertices by cell
+		int[] cellOf = new int[vertexCount];
+		cellStart = new int[cellsX * cellsY + 1];
+		for (int v = 0; v < vertexCount; v++) {
+			cellOf[v] = cellY(worlds[v*2+1]) * cellsX + cellX(worlds[v*2]);
+			cellStart[cellOf[v] + 1]++;
+		}
+		for (int i = 0; i < cellsX * cellsY; i++) {
+			cellStart[i + 1] += cellStart[i];
+		}
+		cellVertices = new int[vertexCount];
+		int[] fill = Arrays.copyOf(cellStart, cellStart.length - 1);
+		for (int v = 0; v < vertexCount; v++) {
+			cellVertices[fill[cellOf[v]]++] = v;
+		}
+
+		// and of the triangles by vertex
+		vertexStart = new int[vertexCount + 1];
+		for (int i = 0; i < triangles.length; i++) {
+			vertexStart[triangles[i] + 1]++;
+		}
+		for (int v = 0; v < vertexCount; v++) {
+			vertexStart[v + 1] += vertexStart[v];
+		}
+		vertexTriangles = new int[triangles.length];
+		fill = Arrays.copyOf(vertexStart, vertexCount);
+		for (int i = 0; i < triangles.length; i++) {
+			vertexTriangles[fill[triangles[i]]++] = i / 3;
+		}
+
+		log.println("Indexed " + triangles.length / 3 + " triangles in a " + cellsX + "x" + cellsY
+			+ " grid in " + (System.currentTimeMillis() - start) + " ms");
+	}
+
+	/** Starts building an index over the given arrays on a background thread */
+	static Future<TriangleIndex> build(final int[] triangles, final double[] worlds) {
+		return builder.submit(new Callable<TriangleIndex>() {
+			public TriangleIndex call() {
+				return new TriangleIndex(triangles, worlds);
+			}
+		});
+	}
+
+	private int cellX(double x) {
+		return Math.max(0, Math.min(cellsX - 1, (int)Math.floor((x - minX) / cellWidth)));
+	}
+
+	private int cellY(double y) {
+		return Math.max(0, Math.min(cellsY - 1, (int)Math.floor((y - minY) / cellHeight)));
+	}
+
+	/**
+	 * Finds the triangles of the model inside the decal's bounds, and writes
+	 * the decal's texture coordinates for their vertices into tex.
+	 * @return three vertex numbers per triangle, in the same order a test of
+	 * every triangle with {@link BoundingCorners#checkTriangleFirst} and
+	 * {@link BoundingCorners#checkTriangleSecond} would add them.
+	 */
+	int[] select(final BoundingCorners corners, float[] tex) {
+		final int[] candidates = candidates(corners);
+		final byte[] codes = new byte[candidates.length];
+		List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+		for (int start = 0; start < candidates.length; start += CLASSIFY_CHUNK) {
+			final int first = start;
+			final int last = Math.min(candidates.length, start + CLASSIFY_CHUNK);
+			tasks.add(Executors.callable(new Runnable() {
+				public void run() {
+					for (int i = first; i < last; i++) {
+						int t = candidates[i] * 3;
+						int a = triangles[t], b = triangles[t+1], c = triangles[t+2];
+						codes[i] = (byte)(corners.classifyFirst(a, b, c, worlds)
+							| corners.classifySecond(a, b, c, worlds) << 2);
+					}
+				}
+			}));
+		}
+		if (tasks.size() == 1) {
+			try {
+				tasks.get(0).call();
+			} catch (Exception e) {
+				log.aprintln(e);
+			}
+		} else if (tasks.size() > 1) {
+			try {
+				classifiers.invokeAll(tasks);
+			} catch (InterruptedException e) {
+				log.aprintln("Interrupted while selecting decal triangles, decal will be partial");
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		int[] out = new int[Math.min(candidates.length * 6, 3 * 1024)];
+		int size = 0;
+		for (int i = 0; i < candidates.length; i++) {
+			int t = candidates[i] * 3;
+			for (int pass = 0; pass < 2; pass++) {
+				int code = pass == 0 ? codes[i] & 3 : codes[i] >> 2;
+				if (code == BoundingCorners.OUTSIDE) {
+					continue;
+				}
+				if (size + 3 > out.length) {
+					out = Arrays.copyOf(out, Math.max(out.length * 2, size + 3));
+				}
+				for (int k = 0; k < 3; k++) {
+					corners.setTexCoords(code, triangles[t+k], worlds, tex);
+					out[size++] = triangles[t+k];
+				}
+			}
+		}
+		return Arrays.copyOf(out, size);
+	}
+
+	/**
+	 * @return the sorted numbers of the triangles with a vertex inside
+	 * either of the decal's bounding boxes
+	 */
+	private int[] candidates(BoundingCorners corners) {
+		int[] found = new int[1024];
+		int size = 0;
+		for (int box = 0; box < (corners.crossesMeridian() ? 2 : 1); box++) {
+			boolean first = box == 0;
+			double bx0 = first ? corners.firstMin.getX() : corners.secondMin.getX();
+			double by0 = first ? corners.firstMin.getY() : corners.secondMin.getY();
+			double bx1 = first ? corners.firstMax.getX() : corners.secondMax.getX();
+			double by1 = first ? corners.firstMax.getY() : corners.secondMax.getY();
+			int cx0 = cellX(bx0), cx1 = cellX(bx1), cy0 = cellY(by0), cy1 = cellY(by1);
+			for (int cy = cy0; cy <= cy1; cy++) {
+				for (int cx = cx0; cx <= cx1; cx++) {
+					int cell = cy * cellsX + cx;
+					for (int j = cellStart[cell]; j < cellStart[cell+1]; j++) {
+						int v = cellVertices[j];
+						double x = worlds[v*2], y = worlds[v*2+1];
+						if (first ? !corners.checkPointFirst(x, y) : !corners.checkPointSecond(x, y)) {
+							continue;
+						}
+						int n = vertexStart[v+1] - vertexStart[v];
+						if (size + n > found.length) {
+							found = Arrays.copyOf(found, Math.max(found.length * 2, size + n));
+						}
+						System.arraycopy(vertexTriangles, vertexStart[v], found, size, n);
+						size += n;
+					}
+				}
+			}
+		}
+		Arrays.sort(found, 0, size);
+		int unique = 0;
+		for (int i = 0; i < size; i++) {
+			if (unique == 0 || found[i] != found[unique - 1]) {
+				found[unique++] = found[i];
+			}
+		}
+		return Arrays.copyOf(found, unique);
+	}
+}
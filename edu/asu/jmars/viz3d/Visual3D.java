@@ -23,6 +23,8 @@ import java.nio.FloatBuffer;
 import java.nio.IntBuffer;
 import java.nio.channels.FileChannel;
 import java.util.ArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
@@ -196,6 +198,7 @@ public class Visual3D extends GLJPanel implements GLEventListener {
     		
 			currentProj = Main.PO;
     		vertsToWorldHVector(meshData.vertices, meshData.worldCoords);    	
+    		meshData.worldCoordsChanged();
     	}
     	incomingDecals.add(decal);
     	this.repaint();
@@ -605,44 +608,7 @@ public class Visual3D extends GLJPanel implements GLEventListener {
 	}
 	
 	private void checkTriangleTextures(GL2 gl, Decal decal) {
-		
-		boolean points = false;
-		int[] tris = meshData.triangles;
-		float[] texs = meshData.texture;
-		double[] worlds = meshData.worldCoords;
-		ArrayList<Integer> triangles = new ArrayList<>();
-		for (int i=0; i<tris.length; i+=3) {
-			// check each point for an intercept with the texture
-			int[] t = new int[3];
-			t[0] = tris[i];
-			t[1] = tris[i+1];
-			t[2] = tris[i+2];
-			points = decal.getCorners().checkTriangleFirst(t, worlds, texs);
-						
-			if (points) { // the entire triangle is inside the texture
-				triangles.add(t[0]);
-				triangles.add(t[1]);
-				triangles.add(t[2]);
-
-			}
-			
-			if (decal.getCorners().crossesMeridian() ) {
-				points = decal.getCorners().checkTriangleSecond(t, worlds, texs);
-				if (points) { // the entire triangle is inside the texture
-					triangles.add(t[0]);
-					triangles.add(t[1]);
-					triangles.add(t[2]);
-				}
-			}
-		}
-		int[] textureTriangles = new int[triangles.size()];		 
-		int k = 0;
-		for (Integer f : triangles) {
-			textureTriangles[k++] = f.intValue(); 
-		}
-		
-		decal.setIndices(textureTriangles);
-		
+		decal.setIndices(meshData.getIndex().select(decal.getCorners(), meshData.texture));
 	}
 
 	public Mesh getMesh() {
@@ -787,7 +753,7 @@ public class Visual3D extends GLJPanel implements GLEventListener {
 				
 
 	           this.meshData = new Mesh(vertices, tris, normals);
-	           this.meshData.worldCoords = vertsToWorldHVector(vertices);
+	           this.meshData.setWorldCoords(vertsToWorldHVector(vertices));
 			// Close the input stream
 			br.close();
 		} catch (IOException e) {
@@ -861,7 +827,7 @@ public class Visual3D extends GLJPanel implements GLEventListener {
 		    float[] normals = getVertexNormals(triangles, vertices);
 			
 	        this.meshData = new Mesh(vertices, triangles, normals);
-	        this.meshData.worldCoords = vertsToWorldHVector(vertices);
+	        this.meshData.setWorldCoords(vertsToWorldHVector(vertices));
 	        
 			// Close the input stream
 			channel.close();
@@ -925,7 +891,7 @@ public class Visual3D extends GLJPanel implements GLEventListener {
 			}
 			
 	        this.meshData = new Mesh(vertices, triangles, normals);
-	        this.meshData.worldCoords = vertsToWorldHVector(vertices);
+	        this.meshData.setWorldCoords(vertsToWorldHVector(vertices));
 			// Close the input streams
 			data.close();
 			zipReader.close();
@@ -1066,7 +1032,7 @@ System.err.println("Number of vertices: "+vertices.length/3);
 System.err.println("Number of normals: "+norms.length/3);			
 System.err.println("Number of triangles: "+tris.length/3);			
 	    this.meshData = new Mesh(vertices, tris, norms);
-        this.meshData.worldCoords = vertsToWorldHVector(vertices);
+        this.meshData.setWorldCoords(vertsToWorldHVector(vertices));
 		// Close the input stream
 		br.close();
 		} catch (Exception e) {
@@ -1541,6 +1507,7 @@ System.err.println("Number of triangles: "+tris.length/3);
 	    float[] textureVertices;
 	    int[] textureTriangles;
 	    int[] texturePolys;
+	    private volatile Future<TriangleIndex> index;
 	    float minLen = Float.MAX_VALUE, maxLen = 0f, avgLen, stdDev; // min/max vertex vector lengths
 
 	    // Copies references - no deep copy
@@ -1605,6 +1572,41 @@ System.err.println("Number of triangles: "+tris.length/3);
  	            
 	    }
 	    
+	    /** Replaces worldCoords and starts building their triangle index */
+	    public void setWorldCoords(double[] worldCoords) {
+	    	this.worldCoords = worldCoords;
+	    	worldCoordsChanged();
+	    }
+
+	    /**
+	     * Returns the index of the triangles by world coordinates, waiting for
+	     * the build started when worldCoords were last set or changed.
+	     */
+	    public TriangleIndex getIndex() {
+	    	Future<TriangleIndex> idx = index;
+	    	if (idx == null) {
+	    		worldCoordsChanged();
+	    		idx = index;
+	    	}
+	    	try {
+	    		return idx.get();
+	    	} catch (InterruptedException e) {
+	    		Thread.currentThread().interrupt();
+	    		return new TriangleIndex(triangles, worldCoords);
+	    	} catch (ExecutionException e) {
+	    		throw new IllegalStateException("Unable to index shape model triangles", e.getCause());
+	    	}
+	    }
+
+	    /** Starts rebuilding the triangle index after worldCoords are changed in place */
+	    public void worldCoordsChanged() {
+	    	Future<TriangleIndex> old = index;
+	    	if (old != null) {
+	    		old.cancel(false);
+	    	}
+	    	index = TriangleIndex.build(triangles, worldCoords);
+	    }
+
 	    public void setTexture(float[] textures) {
 	    	this.texture = new float[textures.length];
 	    	System.arraycopy(textures, 0, this.texture, 0, textures.length);
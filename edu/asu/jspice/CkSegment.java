@@ -0,0 +1,158 @@
+package edu.asu.jspice;
+
+import java.io.IOException;
+
+/**
+ * One type 3 segment of a CK file, which stores discrete pointing instances
+ * as quaternions at encoded spacecraft clock times, grouped into intervals
+ * over which the pointing may be interpolated.
+ *
+ * Pointing between two instances is found by rotating from the first toward
+ * the second at a constant rate about the axis between them, as SPICE does.
+ * Times are searched directly in the mapped file, so segments with millions
+ * of instances cost nothing to open and may be read from any thread.
+ */
+final class CkSegment {
+	final int instrument;
+	final int frame;
+	final double start;
+	final double stop;
+	/** False for segment types this class can't evaluate, which only record coverage */
+	final boolean supported;
+
+	private final DafFile file;
+	private final int begin;
+	private final int psize;
+	private final int count;
+	private final int intervals;
+	private final int times;
+	private final int starts;
+
+	/** @throws IOException if a type 3 segment has an invalid layout */
+	CkSegment(DafFile file, DafFile.Summary s) throws IOException {
+		this.file = file;
+		start = s.dc[0];
+		stop = s.dc[1];
+		instrument = s.ic[0];
+		frame = s.ic[1];
+		supported = s.ic[2] == 3;
+		if (!supported) {
+			begin = psize = count = intervals = times = starts = 0;
+			return;
+		}
+		psize = s.ic[3] != 0 ? 7 : 4;
+		begin = s.begin();
+		int end = s.end();
+		intervals = (int)file.get(end - 1);
+		count = (int)file.get(end);
+		times = begin + count * psize;
+		starts = times + count + (count - 1) / 100;
+		if (count < 1 || intervals < 1 || starts + intervals + (intervals - 1) / 100 + 1 != end) {
+			throw new IOException("Invalid CK type 3 layout for instrument " + instrument + " in " + file.getPath());
+		}
+	}
+
+	/** @return true if this segment's coverage, widened by tol, includes the given time */
+	boolean covers(double sclk, double tol) {
+		return sclk >= start - tol && sclk <= stop + tol;
+	}
+
+	/** @return the index of the last of n values at address base that is <= value, or -1 */
+	private int floor(int base, int n, double value) {
+		int lo = 0, hi = n;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (file.get(base + mid) <= value) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		return lo - 1;
+	}
+
+	/**
+	 * Computes the rotation from this segment's frame to the instrument frame
+	 * at the given time, when it lies within an interpolation interval.
+	 * @return the quaternion, with the scalar first, or null when the time
+	 * falls in a gap between intervals.
+	 */
+	double[] pointing(double sclk) {
+		int interval = floor(starts, intervals, sclk);
+		if (interval < 0) {
+			return null;
+		}
+		// the instances of this interval start at the first one at or after its start time
+		int first = floor(times, count, Math.nextAfter(file.get(starts + interval), Double.NEGATIVE_INFINITY)) + 1;
+		int last = interval + 1 < intervals
+			? floor(times, count, Math.nextAfter(file.get(starts + interval + 1), Double.NEGATIVE_INFINITY))
+			: count - 1;
+		int i = floor(times, count, sclk);
+		if (i < first || i > last) {
+			return null;
+		}
+		double[] q1 = quaternion(i);
+		double t1 = file.get(times + i);
+		if (t1 == sclk) {
+			return q1;
+		}
+		if (i == last) {
+			return null;
+		}
+		double[] q2 = quaternion(i + 1);
+		double t2 = file.get(times + i + 1);
+		return interpolate(q1, q2, (sclk - t1) / (t2 - t1));
+	}
+
+	private double[] quaternion(int i) {
+		double[] q = new double[4];
+		file.get(begin + i * psize, q);
+		double n = Math.sqrt(q[0]*q[0] + q[1]*q[1] + q[2]*q[2] + q[3]*q[3]);
+		for (int k = 0; k < 4; k++) {
+			q[k] /= n;
+		}
+		return q;
+	}
+
+	/**
+	 * Rotates q1 by the given fraction of the smallest rotation that takes it
+	 * to q2.
+	 */
+	static double[] interpolate(double[] q1, double[] q2, double frac) {
+		// r = q2 * conj(q1), the rotation from the first instance to the second
+		double[] r = multiply(q2, new double[] {q1[0], -q1[1], -q1[2], -q1[3]});
+		if (r[0] < 0) {
+			for (int k = 0; k < 4; k++) {
+				r[k] = -r[k];
+			}
+		}
+		double sin = Math.sqrt(r[1]*r[1] + r[2]*r[2] + r[3]*r[3]);
+		if (sin == 0) {
+			return q1.clone();
+		}
+		double half = frac * Math.atan2(sin, r[0]);
+		double scale = Math.sin(half) / sin;
+		double[] delta = {Math.cos(half), r[1] * scale, r[2] * scale, r[3] * scale};
+		return multiply(delta, q1);
+	}
+
+	/** @return the product a*b of two quaternions with the scalar first */
+	static double[] multiply(double[] a, double[] b) {
+		return new double[] {
+			a[0]*b[0] - a[1]*b[1] - a[2]*b[2] - a[3]*b[3],
+			a[0]*b[1] + a[1]*b[0] + a[2]*b[3] - a[3]*b[2],
+			a[0]*b[2] - a[1]*b[3] + a[2]*b[0] + a[3]*b[1],
+			a[0]*b[3] + a[1]*b[2] - a[2]*b[1] + a[3]*b[0]
+		};
+	}
+
+	/** @return the rotation matrix of the given SPICE quaternion, row by row */
+	static double[][] toMatrix(double[] q) {
+		double q0 = q[0], q1 = q[1], q2 = q[2], q3 = q[3];
+		return new double[][] {
+			{1 - 2*(q2*q2 + q3*q3), 2*(q1*q2 - q0*q3), 2*(q1*q3 + q0*q2)},
+			{2*(q1*q2 + q0*q3), 1 - 2*(q1*q1 + q3*q3), 2*(q2*q3 - q0*q1)},
+			{2*(q1*q3 - q0*q2), 2*(q2*q3 + q0*q1), 1 - 2*(q1*q1 + q2*q2)}
+		};
+	}
+}
@@ -0,0 +1,154 @@
+package edu.asu.jspice;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Read-only access to a NAIF double precision array file (DAF), the
+ * container used by binary SPK, CK and PCK kernels.
+ *
+ * The file is memory mapped, and every read is an absolute get on the
+ * mapping, so one instance may be read by any number of threads at once.
+ * Addresses are the 1-based double precision word addresses used by SPICE.
+ * Both the "LTL-IEEE" and "BIG-IEEE" binary formats are understood.
+ */
+final class DafFile {
+	private static final int RECORD = 1024;
+
+	private final String path;
+	private final String type;
+	private final ByteBuffer data;
+	private final int nd;
+	private final int ni;
+	private final List<Summary> summaries = new ArrayList<Summary>();
+
+	/** One array of the file: its double and integer components and its name */
+	static final class Summary {
+		final double[] dc;
+		final int[] ic;
+		final String name;
+		Summary(double[] dc, int[] ic, String name) {
+			this.dc = dc;
+			this.ic = ic;
+			this.name = name;
+		}
+		/** @return the address of the first word of the array */
+		int begin() {
+			return ic[ic.length - 2];
+		}
+		/** @return the address of the last word of the array */
+		int end() {
+			return ic[ic.length - 1];
+		}
+	}
+
+	/**
+	 * Maps the given file and reads its summaries.
+	 * @throws IOException if the file can't be read, isn't a DAF, or is too
+	 * large to map.
+	 */
+	DafFile(File file) throws IOException {
+		path = file.getPath();
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel ch = raf.getChannel();
+			if (ch.size() > Integer.MAX_VALUE) {
+				throw new IOException("DAF too large to map: " + path);
+			}
+			if (ch.size() < RECORD) {
+				throw new IOException("Not a DAF: " + path);
+			}
+			data = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+		} finally {
+			raf.close();
+		}
+
+		String idword = chars(0, 8);
+		if (!idword.startsWith("DAF/")) {
+			throw new IOException("Unsupported DAF id word '" + idword + "' in " + path);
+		}
+		type = idword.substring(4).trim();
+
+		String format = chars(88, 8);
+		if (format.equals("LTL-IEEE")) {
+			data.order(ByteOrder.LITTLE_ENDIAN);
+		} else if (format.equals("BIG-IEEE")) {
+			data.order(ByteOrder.BIG_ENDIAN);
+		} else {
+			throw new IOException("Unsupported DAF format '" + format + "' in " + path);
+		}
+
+		nd = data.getInt(8);
+		ni = data.getInt(12);
+		if (nd < 0 || nd > 124 || ni < 2 || ni > 250) {
+			throw new IOException("Invalid DAF summary format ND=" + nd + " NI=" + ni + " in " + path);
+		}
+		int ss = nd + (ni + 1) / 2;
+
+		int record = data.getInt(76);
+		int visited = 0;
+		while (record > 0) {
+			if (++visited > data.capacity() / RECORD) {
+				throw new IOException("Summary records loop in " + path);
+			}
+			int base = (record - 1) * RECORD;
+			int next = (int)data.getDouble(base);
+			int count = (int)data.getDouble(base + 16);
+			for (int i = 0; i < count; i++) {
+				int pos = base + 24 + i * ss * 8;
+				double[] dc = new double[nd];
+				for (int j = 0; j < nd; j++) {
+					dc[j] = data.getDouble(pos + j * 8);
+				}
+				int[] ic = new int[ni];
+				for (int j = 0; j < ni; j++) {
+					ic[j] = data.getInt(pos + nd * 8 + j * 4);
+				}
+				String name = chars(base + RECORD + i * ss * 8, ss * 8).trim();
+				summaries.add(new Summary(dc, ic, name));
+			}
+			record = next;
+		}
+	}
+
+	private String chars(int pos, int length) {
+		StringBuilder buf = new StringBuilder(length);
+		for (int i = 0; i < length; i++) {
+			buf.append((char)(data.get(pos + i) & 0xff));
+		}
+		return buf.toString();
+	}
+
+	String getPath() {
+		return path;
+	}
+
+	/** @return the kernel type from the id word, such as "SPK" or "CK" */
+	String getType() {
+		return type;
+	}
+
+	/** @return the arrays in the order they appear in the file */
+	List<Summary> getSummaries() {
+		return summaries;
+	}
+
+	/** @return the double at the given address */
+	double get(int address) {
+		return data.getDouble((address - 1) * 8);
+	}
+
+	/** Reads out.length doubles starting at the given address */
+	void get(int address, double[] out) {
+		int pos = (address - 1) * 8;
+		for (int i = 0; i < out.length; i++) {
+			out[i] = data.getDouble(pos + i * 8);
+		}
+	}
+}
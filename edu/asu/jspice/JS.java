@@ -208,6 +208,7 @@ public final class JS
 			}
 
 			JSpice.furnshc(new StringBuffer(newFname));
+			KernelSet.loaded(newFname);
 		}
 	}
 
@@ -383,6 +384,10 @@ public final class JS
 	public  HVector getPos(double et, HVector v)
 	 {
 		double[] pos = new double[3];
+		if (KernelSet.state(craftId, et, refFrame, bodyId, pos)) {
+			v.set(pos);
+			return  v;
+		}
 		double[] lt = new double[1];
 		JSpice.spkezpc(craftId,
 					   et,
@@ -656,6 +661,38 @@ public final class JS
 		return  tipm;
 	 }
 
+	/**
+	 ** Java wrapper for SPICE ckgp function. Returns the rotation from
+	 ** refFrame to the frame of the given instrument, at the given
+	 ** encoded spacecraft clock time.
+	 **
+	 ** @param tol the largest difference allowed between sclkdp and the
+	 ** time of the pointing returned, in encoded clock ticks
+	 ** @return the 3x3 rotation matrix, or null if no pointing is found.
+	 **/
+	public  static double[][] ckgp(int inst,
+									double sclkdp,
+									double tol,
+									String refFrame)
+	 {
+		double[][] cmat = KernelSet.pointing(inst, sclkdp, tol, refFrame);
+		if(cmat != null)
+			return  cmat;
+
+		double[] tmp = new double[3*3];
+		double[] clkout = new double[1];
+		boolean[] found = new boolean[1];
+		JSpice.ckgpc(inst, sclkdp, tol, new StringBuffer(refFrame), tmp, clkout, found);
+		if(!found[0])
+			return  null;
+
+		cmat = new double[3][3];
+		System.arraycopy(tmp, 0, cmat[0], 0, 3);
+		System.arraycopy(tmp, 3, cmat[1], 0, 3);
+		System.arraycopy(tmp, 6, cmat[2], 0, 3);
+		return  cmat;
+	 }
+
 	/**
 	 ** Java wrapper for SPICE spkez function. Returns the state of an
 	 ** arbitrary body with respect to {@link #bodyId}, in the {@link #refFrame}
@@ -715,18 +752,20 @@ public final class JS
 		if (stateRaw == null){
 			stateRaw = new double[6];
 			double[] lt = new double[1];
-			try {
-				JSpice.spkezc(targBody,
-						et,
-						new StringBuffer(refFrame),
-						new StringBuffer("NONE"),
-						obsBody,
-						stateRaw,
-						lt);
-			}
-			catch(SpiceException e) {
-				log.println(">>>>>>>>>>>> et = " + et);
-				throw  e;
+			if (!KernelSet.state(targBody, et, refFrame, obsBody, stateRaw)){
+				try {
+					JSpice.spkezc(targBody,
+							et,
+							new StringBuffer(refFrame),
+							new StringBuffer("NONE"),
+							obsBody,
+							stateRaw,
+							lt);
+				}
+				catch(SpiceException e) {
+					log.println(">>>>>>>>>>>> et = " + et);
+					throw  e;
+				}
 			}
 		}
 		else {
@@ -913,6 +952,7 @@ public final class JS
 			else {
 				loadedKernels.put(path, new Integer(1));
 				JSpice.furnshc(new StringBuffer(path));
+				KernelSet.loaded(path);
 				log.println("Added kernel "+path+" to pool.");
 			}
 		}
@@ -932,6 +972,7 @@ public final class JS
 			if (loadedKernels.get(path).intValue() == 0){
 				loadedKernels.remove(path);
 				JSpice.unloadc(new StringBuffer(path));
+				KernelSet.unloaded(path);
 				log.println("Removed kernel "+path+" from pool.");
 			}
 			else {
@@ -0,0 +1,534 @@
+package edu.asu.jspice;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import edu.asu.jmars.util.Config;
+import edu.asu.jmars.util.DebugLog;
+
+/**
+ * A pure Java view of the SPK and CK kernels loaded through {@link JS}, used
+ * to answer ephemeris and pointing queries without going through
+ * {@link JSpice}, every method of which holds one global lock.
+ *
+ * Type 2 and 3 SPK segments and type 3 CK segments are evaluated here, in
+ * the same priority order SPICE uses: later files first, and later segments
+ * within a file first. A query is only answered here when it would be
+ * answered from exactly the same data: every segment it needs must be of a
+ * supported type in the J2000 frame, and the requested frame must be J2000,
+ * or a body-fixed PCK frame whose orientation comes from text PCK constants.
+ * Otherwise the methods return false or null, and the caller falls back to
+ * JSpice. Meta-kernels, and DAF files this class can't read, turn this class
+ * off while they are loaded, since they may hold data it can't see.
+ *
+ * This is off unless <code>js.javaKernels</code> is set.
+ */
+final class KernelSet {
+	private static final DebugLog log = DebugLog.instance();
+
+	static final boolean ENABLED = Config.get("js.javaKernels", false);
+
+	private static final int J2000 = 1;
+	private static final int PCK_CLASS = 2;
+	private static final int MAX_CHAIN = 100;
+
+	/** Files in load order, guarded by the class lock */
+	private static final List<Kernel> kernels = new ArrayList<Kernel>();
+
+	/** Everything derived from the loaded files, replaced whenever they change */
+	private static volatile Snapshot current = new Snapshot(kernels);
+
+	private KernelSet() {
+	}
+
+	/** One loaded file, and whatever this class could read from it */
+	private static final class Kernel {
+		final String path;
+		final DafFile daf;
+		/** True if the file may affect results in ways this class can't follow */
+		final boolean opaque;
+		Kernel(String path, DafFile daf, boolean opaque) {
+			this.path = path;
+			this.daf = daf;
+			this.opaque = opaque;
+		}
+	}
+
+	/** A frame as SPICE knows it: its id code, class, and class-specific id */
+	private static final class Frame {
+		final int code;
+		final int frameClass;
+		final int classId;
+		Frame(int code, int frameClass, int classId) {
+			this.code = code;
+			this.frameClass = frameClass;
+			this.classId = classId;
+		}
+	}
+
+	/** Segments by body, highest priority first, with the caches that depend on them */
+	private static final class Snapshot {
+		final boolean usable;
+		final boolean binaryPck;
+		final Map<Integer,SpkSegment[]> spk = new HashMap<Integer,SpkSegment[]>();
+		final Map<Integer,CkSegment[]> ck = new HashMap<Integer,CkSegment[]>();
+		final Map<String,Frame> frames = new ConcurrentHashMap<String,Frame>();
+		final Map<Integer,Object> rotations = new ConcurrentHashMap<Integer,Object>();
+
+		Snapshot(List<Kernel> kernels) {
+			boolean opaque = false, pck = false;
+			Map<Integer,List<SpkSegment>> spkLists = new HashMap<Integer,List<SpkSegment>>();
+			Map<Integer,List<CkSegment>> ckLists = new HashMap<Integer,List<CkSegment>>();
+			for (int k = kernels.size() - 1; k >= 0; k--) {
+				Kernel kernel = kernels.get(k);
+				opaque |= kernel.opaque;
+				if (kernel.daf == null) {
+					continue;
+				}
+				String type = kernel.daf.getType();
+				pck |= type.equals("PCK");
+				List<DafFile.Summary> summaries = kernel.daf.getSummaries();
+				for (int i = summaries.size() - 1; i >= 0; i--) {
+					try {
+						if (type.equals("SPK")) {
+							SpkSegment seg = new SpkSegment(kernel.daf, summaries.get(i));
+							List<SpkSegment> list = spkLists.get(seg.target);
+							if (list == null) {
+								spkLists.put(seg.target, list = new ArrayList<SpkSegment>());
+							}
+							list.add(seg);
+						} else if (type.equals("CK")) {
+							CkSegment seg = new CkSegment(kernel.daf, summaries.get(i));
+							List<CkSegment> list = ckLists.get(seg.instrument);
+							if (list == null) {
+								ckLists.put(seg.instrument, list = new ArrayList<CkSegment>());
+							}
+							list.add(seg);
+						}
+					} catch (IOException e) {
+						log.aprintln(e.getMessage());
+						opaque = true;
+					}
+				}
+			}
+			for (Map.Entry<Integer,List<SpkSegment>> e: spkLists.entrySet()) {
+				spk.put(e.getKey(), e.getValue().toArray(new SpkSegment[0]));
+			}
+			for (Map.Entry<Integer,List<CkSegment>> e: ckLists.entrySet()) {
+				ck.put(e.getKey(), e.getValue().toArray(new CkSegment[0]));
+			}
+			usable = !opaque;
+			binaryPck = pck;
+		}
+	}
+
+	/**
+	 * Records a kernel that was just loaded into SPICE. Loading a file again
+	 * raises its priority, as it does in SPICE.
+	 */
+	static void loaded(String path) {
+		if (!ENABLED) {
+			return;
+		}
+		Kernel kernel = open(path);
+		synchronized(KernelSet.class) {
+			remove(path);
+			kernels.add(kernel);
+			current = new Snapshot(kernels);
+		}
+		log.println("Java kernel view added " + path + (kernel.opaque ? ", which it can't follow" : ""));
+	}
+
+	/** Forgets a kernel that was just unloaded from SPICE */
+	static void unloaded(String path) {
+		if (!ENABLED) {
+			return;
+		}
+		synchronized(KernelSet.class) {
+			remove(path);
+			current = new Snapshot(kernels);
+		}
+	}
+
+	private static void remove(String path) {
+		for (int i = kernels.size() - 1; i >= 0; i--) {
+			if (kernels.get(i).path.equals(path)) {
+				kernels.remove(i);
+			}
+		}
+	}
+
+	private static Kernel open(String path) {
+		File file = new File(path);
+		try {
+			byte[] id = new byte[8];
+			InputStream in = new FileInputStream(file);
+			try {
+				int n = 0, r;
+				while (n < id.length && (r = in.read(id, n, id.length - n)) > 0) {
+					n += r;
+				}
+			} finally {
+				in.close();
+			}
+			String idword = new String(id, "ISO-8859-1");
+			if (idword.startsWith("DAF/")) {
+				return new Kernel(path, new DafFile(file), false);
+			} else if (idword.startsWith("DAS/")) {
+				// shape and event kernels don't change ephemerides or pointing
+				return new Kernel(path, null, false);
+			} else if (idword.startsWith("NAIF/DAF") || idword.startsWith("NAIF/DAS")) {
+				return new Kernel(path, null, true);
+			}
+			return new Kernel(path, null, isMetaKernel(file));
+		} catch (IOException e) {
+			log.aprintln("Unable to read kernel " + path + ": " + e.getMessage());
+			return new Kernel(path, null, true);
+		}
+	}
+
+	private static boolean isMetaKernel(File file) throws IOException {
+		BufferedReader in = new BufferedReader(new FileReader(file));
+		try {
+			for (String line = in.readLine(); line != null; line = in.readLine()) {
+				if (line.toUpperCase().indexOf("KERNELS_TO_LOAD") >= 0) {
+					return true;
+				}
+			}
+			return false;
+		} finally {
+			in.close();
+		}
+	}
+
+	/** @return the highest priority segment for the body covering the time, or null */
+	private static SpkSegment segment(Snapshot snap, int body, double et) {
+		SpkSegment[] segs = snap.spk.get(body);
+		if (segs != null) {
+			for (SpkSegment seg: segs) {
+				if (seg.covers(et)) {
+					return seg;
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Follows the chain of centers from the given body, as far as the loaded
+	 * segments go.
+	 * @return the bodies visited, starting with the given one, or null if a
+	 * segment on the way can't be evaluated here
+	 */
+	private static List<SpkSegment> chain(Snapshot snap, int body, double et, List<Integer> bodies) {
+		List<SpkSegment> segs = new ArrayList<SpkSegment>();
+		bodies.add(body);
+		for (SpkSegment seg = segment(snap, body, et); seg != null && segs.size() < MAX_CHAIN; seg = segment(snap, seg.center, et)) {
+			if (!seg.supported || seg.frame != J2000) {
+				return null;
+			}
+			segs.add(seg);
+			bodies.add(seg.center);
+		}
+		return segs;
+	}
+
+	/**
+	 * Computes the geometric state of the target relative to the observer,
+	 * the same as spkez with no aberration correction.
+	 * @param state receives the position and velocity, in km and km/s
+	 * @return false if the answer must come from SPICE instead
+	 */
+	static boolean state(int target, double et, String ref, int observer, double[] state) {
+		Snapshot snap = current;
+		if (!ENABLED || !snap.usable) {
+			return false;
+		}
+		Frame frame = frame(snap, ref);
+		if (frame == null) {
+			return false;
+		}
+		BodyRotation rotation = null;
+		if (frame.code != J2000) {
+			if (frame.frameClass != PCK_CLASS || snap.binaryPck) {
+				return false;
+			}
+			rotation = rotation(snap, frame.classId);
+			if (rotation == null) {
+				return false;
+			}
+		}
+
+		List<Integer> targetBodies = new ArrayList<Integer>();
+		List<Integer> observerBodies = new ArrayList<Integer>();
+		List<SpkSegment> targetChain = chain(snap, target, et, targetBodies);
+		List<SpkSegment> observerChain = chain(snap, observer, et, observerBodies);
+		if (targetChain == null || observerChain == null) {
+			return false;
+		}
+		int common = -1, observerDepth = -1;
+		for (int i = 0; i < targetBodies.size() && common < 0; i++) {
+			int j = observerBodies.indexOf(targetBodies.get(i));
+			if (j >= 0) {
+				common = i;
+				observerDepth = j;
+			}
+		}
+		if (common < 0) {
+			return false;
+		}
+
+		double[] sum = new double[6];
+		double[] link = new double[6];
+		for (int i = 0; i < common; i++) {
+			targetChain.get(i).state(et, link);
+			for (int k = 0; k < 6; k++) {
+				sum[k] += link[k];
+			}
+		}
+		for (int j = 0; j < observerDepth; j++) {
+			observerChain.get(j).state(et, link);
+			for (int k = 0; k < 6; k++) {
+				sum[k] -= link[k];
+			}
+		}
+		if (rotation != null) {
+			rotation.transform(et, sum);
+		}
+		System.arraycopy(sum, 0, state, 0, Math.min(state.length, 6));
+		return true;
+	}
+
+	/**
+	 * Finds the rotation from the given frame to the instrument frame at the
+	 * given encoded spacecraft clock time, like ckgp, but only when the time
+	 * lies within an interpolation interval of the segment SPICE would use.
+	 * @return the rotation matrix, or null if the answer must come from SPICE
+	 */
+	static double[][] pointing(int instrument, double sclkdp, double tol, String ref) {
+		Snapshot snap = current;
+		if (!ENABLED || !snap.usable) {
+			return null;
+		}
+		CkSegment[] segs = snap.ck.get(instrument);
+		if (segs == null) {
+			return null;
+		}
+		for (CkSegment seg: segs) {
+			if (seg.covers(sclkdp, tol)) {
+				Frame frame = frame(snap, ref);
+				if (!seg.supported || frame == null || frame.code != seg.frame) {
+					return null;
+				}
+				double[] q = seg.pointing(sclkdp);
+				return q == null ? null : CkSegment.toMatrix(q);
+			}
+		}
+		return null;
+	}
+
+	/** @return the named frame, or null if SPICE doesn't know it */
+	private static Frame frame(Snapshot snap, String name) {
+		Frame frame = snap.frames.get(name);
+		if (frame == null) {
+			int[] code = new int[1];
+			JSpice.namfrmc(new StringBuffer(name), code);
+			int[] center = new int[1], frameClass = new int[1], classId = new int[1];
+			boolean[] found = new boolean[1];
+			if (code[0] != 0) {
+				JSpice.frinfoc(code[0], center, frameClass, classId, found);
+			}
+			frame = new Frame(found[0] ? code[0] : 0, frameClass[0], classId[0]);
+			snap.frames.put(name, frame);
+		}
+		return frame.code == 0 ? null : frame;
+	}
+
+	/** @return the orientation model of the body, or null if it can't be evaluated here */
+	private static BodyRotation rotation(Snapshot snap, int body) {
+		Object rotation = snap.rotations.get(body);
+		if (rotation == null) {
+			rotation = BodyRotation.fromPool(body);
+			snap.rotations.put(body, rotation == null ? Boolean.FALSE : rotation);
+		}
+		return rotation instanceof BodyRotation ? (BodyRotation)rotation : null;
+	}
+
+	/**
+	 * The IAU orientation model of a body from text PCK constants: pole right
+	 * ascension and declination, and prime meridian angle, each a quadratic
+	 * in time plus nutation and precession terms, as SPICE evaluates them.
+	 */
+	static final class BodyRotation {
+		private static final double SPD = 86400;
+		private static final double SPC = SPD * 36525;
+		private static final double RPD = Math.PI / 180;
+
+		private final double[] ra, dec, pm;
+		private final double[] nutRa, nutDec, nutPm;
+		private final double[] angles;
+		private final int phaseDegree;
+
+		BodyRotation(double[] ra, double[] dec, double[] pm,
+				double[] nutRa, double[] nutDec, double[] nutPm,
+				double[] angles, int phaseDegree) {
+			this.ra = ra;
+			this.dec = dec;
+			this.pm = pm;
+			this.nutRa = nutRa;
+			this.nutDec = nutDec;
+			this.nutPm = nutPm;
+			this.angles = angles;
+			this.phaseDegree = phaseDegree;
+		}
+
+		/** @return the body's model from the kernel pool, or null if it isn't one this class handles */
+		static BodyRotation fromPool(int body) {
+			String prefix = "BODY" + body + "_";
+			double[] ra = pool(prefix + "POLE_RA");
+			double[] dec = pool(prefix + "POLE_DEC");
+			double[] pm = pool(prefix + "PM");
+			if (ra == null || dec == null || pm == null
+					|| pool(prefix + "CONSTANTS_REF_FRAME") != null
+					|| pool(prefix + "CONSTANTS_JED_EPOCH") != null) {
+				return null;
+			}
+			double[] nutRa = pool(prefix + "NUT_PREC_RA");
+			double[] nutDec = pool(prefix + "NUT_PREC_DEC");
+			double[] nutPm = pool(prefix + "NUT_PREC_PM");
+			double[] angles = null;
+			int degree = 1;
+			if (nutRa != null || nutDec != null || nutPm != null) {
+				int bary = body > 0 && body < 1000 ? body / 100 : body;
+				angles = pool("BODY" + bary + "_NUT_PREC_ANGLES");
+				if (angles == null) {
+					return null;
+				}
+				double[] max = pool("BODY" + bary + "_MAX_PHASE_DEGREE");
+				if (max != null) {
+					degree = (int)max[0];
+				}
+			}
+			return new BodyRotation(ra, dec, pm, nutRa, nutDec, nutPm, angles, degree);
+		}
+
+		private static double[] pool(String name) {
+			int[] n = new int[1];
+			double[] values = new double[400];
+			boolean[] found = new boolean[1];
+			JSpice.gdpoolc(new StringBuffer(name), 0, values.length, n, values, found);
+			if (!found[0]) {
+				return null;
+			}
+			double[] out = new double[n[0]];
+			System.arraycopy(values, 0, out, 0, n[0]);
+			return out;
+		}
+
+		/** @return the i'th coefficient of the given array, or 0 if it has fewer */
+		private static double coef(double[] c, int i) {
+			return c != null && i < c.length ? c[i] : 0;
+		}
+
+		/**
+		 * Rotates a J2000 state into the body-fixed frame at the given time,
+		 * including the effect of the frame's rotation on the velocity.
+		 */
+		void transform(double et, double[] state) {
+			double t = et / SPC;
+			double d = et / SPD;
+			int stride = phaseDegree + 1;
+			int count = angles == null ? 0 : angles.length / stride;
+
+			// angles in degrees, rates in degrees per second
+			double a = coef(ra, 0) + t * (coef(ra, 1) + t * coef(ra, 2));
+			double da = (coef(ra, 1) + 2 * t * coef(ra, 2)) / SPC;
+			double delta = coef(dec, 0) + t * (coef(dec, 1) + t * coef(dec, 2));
+			double ddelta = (coef(dec, 1) + 2 * t * coef(dec, 2)) / SPC;
+			double w = coef(pm, 0) + d * (coef(pm, 1) + d * coef(pm, 2));
+			double dw = (coef(pm, 1) + 2 * d * coef(pm, 2)) / SPD;
+			for (int i = 0; i < count; i++) {
+				double theta = 0, dtheta = 0, power = 1;
+				for (int k = 0; k <= phaseDegree; k++) {
+					double c = angles[i * stride + k];
+					if (k > 0) {
+						dtheta += k * c * power;
+						power *= t;
+					}
+					theta += c * power;
+				}
+				theta *= RPD;
+				dtheta = dtheta * RPD / SPC;
+				double sin = Math.sin(theta), cos = Math.cos(theta);
+				a += coef(nutRa, i) * sin;
+				da += coef(nutRa, i) * cos * dtheta;
+				delta += coef(nutDec, i) * cos;
+				ddelta -= coef(nutDec, i) * sin * dtheta;
+				w += coef(nutPm, i) * sin;
+				dw += coef(nutPm, i) * cos * dtheta;
+			}
+			a *= RPD;
+			da *= RPD;
+			delta *= RPD;
+			ddelta *= RPD;
+			w = (w % 360) * RPD;
+			dw *= RPD;
+
+			// m = [w]3 [pi/2 - delta]1 [pi/2 + a]3
+			double[][] m3 = rot3(w);
+			double[][] m31 = multiply(m3, rot1(Math.PI / 2 - delta));
+			double[][] m = multiply(m31, rot3(Math.PI / 2 + a));
+
+			// the frame's angular velocity, in body-fixed coordinates
+			double[] omega = new double[3];
+			for (int r = 0; r < 3; r++) {
+				omega[r] = (r == 2 ? dw : 0) - m3[r][0] * ddelta + m31[r][2] * da;
+			}
+
+			double[] pos = new double[3], vel = new double[3];
+			for (int r = 0; r < 3; r++) {
+				for (int c = 0; c < 3; c++) {
+					pos[r] += m[r][c] * state[c];
+					vel[r] += m[r][c] * state[c+3];
+				}
+			}
+			state[0] = pos[0];
+			state[1] = pos[1];
+			state[2] = pos[2];
+			state[3] = vel[0] - (omega[1] * pos[2] - omega[2] * pos[1]);
+			state[4] = vel[1] - (omega[2] * pos[0] - omega[0] * pos[2]);
+			state[5] = vel[2] - (omega[0] * pos[1] - omega[1] * pos[0]);
+		}
+
+		/** @return the frame rotation by the given angle about the z axis */
+		private static double[][] rot3(double angle) {
+			double c = Math.cos(angle), s = Math.sin(angle);
+			return new double[][] {{c, s, 0}, {-s, c, 0}, {0, 0, 1}};
+		}
+
+		/** @return the frame rotation by the given angle about the x axis */
+		private static double[][] rot1(double angle) {
+			double c = Math.cos(angle), s = Math.sin(angle);
+			return new double[][] {{1, 0, 0}, {0, c, s}, {0, -s, c}};
+		}
+
+		private static double[][] multiply(double[][] a, double[][] b) {
+			double[][] out = new double[3][3];
+			for (int r = 0; r < 3; r++) {
+				for (int c = 0; c < 3; c++) {
+					out[r][c] = a[r][0] * b[0][c] + a[r][1] * b[1][c] + a[r][2] * b[2][c];
+				}
+			}
+			return out;
+		}
+	}
+}
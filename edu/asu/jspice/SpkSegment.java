@@ -0,0 +1,149 @@
+package edu.asu.jspice;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * One type 2 or type 3 segment of an SPK file, which stores the state of a
+ * target relative to a center as Chebyshev polynomials over fixed length
+ * intervals of ephemeris time.
+ *
+ * Decoded records are kept in a small table indexed by record number, so
+ * runs of nearby times only read the file once per record. The records are
+ * immutable and the table is updated atomically, so any number of threads
+ * may evaluate the same segment at once.
+ */
+final class SpkSegment {
+	private static final int CACHED_RECORDS = 64;
+
+	final int target;
+	final int center;
+	final int frame;
+	final int type;
+	final double start;
+	final double stop;
+	/** False for segment types this class can't evaluate, which only record coverage */
+	final boolean supported;
+
+	private final DafFile file;
+	private final int begin;
+	private final double init;
+	private final double intlen;
+	private final int rsize;
+	private final int count;
+	private final int degree;
+	private final AtomicReferenceArray<Record> records = new AtomicReferenceArray<Record>(CACHED_RECORDS);
+
+	/** One decoded record: the interval it covers and its coefficients */
+	private static final class Record {
+		final int index;
+		final double mid;
+		final double radius;
+		final double[] coef;
+		Record(int index, double[] raw) {
+			this.index = index;
+			this.mid = raw[0];
+			this.radius = raw[1];
+			this.coef = raw;
+		}
+	}
+
+	/** @throws IOException if a type 2 or 3 segment has an invalid directory */
+	SpkSegment(DafFile file, DafFile.Summary s) throws IOException {
+		this.file = file;
+		start = s.dc[0];
+		stop = s.dc[1];
+		target = s.ic[0];
+		center = s.ic[1];
+		frame = s.ic[2];
+		type = s.ic[3];
+		begin = s.begin();
+		supported = type == 2 || type == 3;
+		if (!supported) {
+			init = intlen = 0;
+			rsize = count = degree = 0;
+			return;
+		}
+		int end = s.end();
+		init = file.get(end - 3);
+		intlen = file.get(end - 2);
+		rsize = (int)file.get(end - 1);
+		count = (int)file.get(end);
+		int sets = type == 2 ? 3 : 6;
+		degree = (rsize - 2) / sets - 1;
+		if (intlen <= 0 || count < 1 || degree < 0 || 2 + sets * (degree + 1) != rsize
+				|| begin + (long)count * rsize - 1 > end - 4) {
+			throw new IOException("Invalid SPK type " + type + " directory for body " + target + " in " + file.getPath());
+		}
+	}
+
+	/** @return true if this segment covers the given ephemeris time */
+	boolean covers(double et) {
+		return et >= start && et <= stop;
+	}
+
+	private Record record(double et) {
+		int index = (int)((et - init) / intlen);
+		index = Math.max(0, Math.min(count - 1, index));
+		int slot = index % CACHED_RECORDS;
+		Record r = records.get(slot);
+		if (r == null || r.index != index) {
+			double[] raw = new double[rsize];
+			file.get(begin + index * rsize, raw);
+			r = new Record(index, raw);
+			records.set(slot, r);
+		}
+		return r;
+	}
+
+	/**
+	 * Fills state[0..5] with the position (km) and velocity (km/s) of the
+	 * target relative to the center at the given time, in this segment's
+	 * frame.
+	 */
+	void state(double et, double[] state) {
+		Record r = record(et);
+		double s = (et - r.mid) / r.radius;
+		int n = degree + 1;
+		double[] t = new double[n];
+		double[] dt = new double[n];
+		t[0] = 1;
+		dt[0] = 0;
+		if (n > 1) {
+			t[1] = s;
+			dt[1] = 1;
+		}
+		for (int k = 2; k < n; k++) {
+			t[k] = 2 * s * t[k-1] - t[k-2];
+			dt[k] = 2 * t[k-1] + 2 * s * dt[k-1] - dt[k-2];
+		}
+		double[] c = r.coef;
+		for (int i = 0; i < 3; i++) {
+			int off = 2 + i * n;
+			double p = 0;
+			for (int k = 0; k < n; k++) {
+				p += c[off + k] * t[k];
+			}
+			state[i] = p;
+		}
+		if (type == 3) {
+			for (int i = 3; i < 6; i++) {
+				int off = 2 + i * n;
+				double v = 0;
+				for (int k = 0; k < n; k++) {
+					v += c[off + k] * t[k];
+				}
+				state[i] = v;
+			}
+		} else {
+			for (int i = 0; i < 3; i++) {
+				int off = 2 + i * n;
+				double v = 0;
+				for (int k = 1; k < n; k++) {
+					v += c[off + k] * dt[k];
+				}
+				state[i+3] = v / r.radius;
+			}
+		}
+	}
+}
@@ -0,0 +1,165 @@
+package edu.asu.jmars.layer.stamp;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectOutputStream;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import junit.framework.TestCase;
+
+import edu.asu.msff.ResponseInfo;
+import edu.asu.msff.Stamp;
+import edu.asu.msff.StampInterface;
+
+/**
+ * Writes stamps with {@link ColumnarStampCodec.Writer} the way a stand-in
+ * server or the metadata cache would, gzipped, and checks that the
+ * {@link ColumnarStampCodec.Reader} returns the same records.
+ */
+public class ColumnarStampCodecTest extends TestCase {
+	private static final String[] NAMES = {"name", "count", "big", "emission", "ratio", "flag",
+		"band", "mode", "taken", "updated", "samples", "weights", "lines", "extra"};
+	private static final Class<?>[] CLASSES = {String.class, Integer.class, Long.class, Double.class,
+		Float.class, Boolean.class, Short.class, Byte.class, Date.class, Timestamp.class,
+		double[].class, float[].class, int[].class, Object.class};
+
+	private static Object[] row(int i) {
+		Timestamp ts = new Timestamp(1400000000000L + i * 1000L);
+		ts.setNanos(123456789);
+		return new Object[] {
+			"name " + (i / 3),
+			i % 7 == 0 ? null : Integer.valueOf(i),
+			Long.valueOf(1L << 40 | i),
+			Double.valueOf(i * 0.25),
+			Float.valueOf(i / 8f),
+			Boolean.valueOf(i % 2 == 0),
+			Short.valueOf((short)(i % 100)),
+			Byte.valueOf((byte)3),
+			new Date(1300000000000L + (i / 10) * 86400000L),
+			ts,
+			new double[] {i, -i, 0.5},
+			new float[] {1f, 2f},
+			i % 5 == 0 ? new int[0] : new int[] {i},
+			new ArrayList<String>(Arrays.asList("x" + (i % 2)))
+		};
+	}
+
+	private static List<StampInterface> stamps(int count) {
+		List<StampInterface> stamps = new ArrayList<StampInterface>();
+		for (int i = 0; i < count; i++) {
+			if (i % 2 == 0) {
+				// east-leading points, which Stamp converts to west-leading
+				stamps.add(new Stamp("I" + i, new double[] {10 + i * 0.001, -5, 11, -5, 11, -4, Double.NaN, Double.NaN, 12, 3}, row(i)));
+			} else {
+				stamps.add(new CompactStamp("V" + i, new float[] {350.5f, 20f, 351f, 21f}, row(i)));
+			}
+		}
+		return stamps;
+	}
+
+	private static byte[] encode(ResponseInfo info, List<StampInterface> stamps) throws Exception {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		GZIPOutputStream gz = new GZIPOutputStream(bytes);
+		ColumnarStampCodec.Writer w = new ColumnarStampCodec.Writer(gz, info, NAMES, CLASSES);
+		for (StampInterface s: stamps) {
+			w.write(s);
+		}
+		w.finish();
+		gz.close();
+		return bytes.toByteArray();
+	}
+
+	private static BufferedInputStream open(byte[] encoded) throws Exception {
+		return new BufferedInputStream(new GZIPInputStream(new ByteArrayInputStream(encoded)));
+	}
+
+	public void testRoundTrip() throws Exception {
+		List<StampInterface> stamps = stamps(2500);
+		ResponseInfo info = new ResponseInfo(ResponseInfo.COMPLETED_WITH_WARNING, "partial");
+		info.setRecordCnt(stamps.size());
+		BufferedInputStream in = open(encode(info, stamps));
+		assertTrue(ColumnarStampCodec.isColumnar(in));
+
+		ColumnarStampCodec.Reader reader = new ColumnarStampCodec.Reader(in);
+		assertEquals(ResponseInfo.COMPLETED_WITH_WARNING, reader.getInfo().getStatus());
+		assertEquals("partial", reader.getInfo().getMessage());
+		assertEquals(stamps.size(), reader.getInfo().getRecordCnt());
+		assertTrue(Arrays.equals(NAMES, reader.getColumnNames()));
+		assertTrue(Arrays.equals(CLASSES, reader.getColumnClasses()));
+
+		List<StampInterface> read = new ArrayList<StampInterface>();
+		int blocks = 0;
+		List<StampInterface> block;
+		while ((block = reader.nextBlock()) != null) {
+			read.addAll(block);
+			blocks++;
+		}
+		assertNull(reader.nextBlock());
+		assertEquals(3, blocks);
+		assertEquals(stamps.size(), read.size());
+
+		for (int i = 0; i < stamps.size(); i++) {
+			StampInterface a = stamps.get(i), b = read.get(i);
+			assertEquals(a.getId(), b.getId());
+			double[] pa = a.getPoints(), pb = b.getPoints();
+			assertEquals(pa.length, pb.length);
+			for (int p = 0; p < pa.length; p++) {
+				// compared as floats, which is how footprints are sent, and NaN separators must survive
+				assertEquals(a.getId(), 0, Float.compare((float)pa[p], (float)pb[p]));
+			}
+			Object[] da = a.getData(), db = b.getData();
+			assertEquals(da.length, db.length);
+			for (int c = 0; c < da.length; c++) {
+				assertValue(i + "," + NAMES[c], da[c], db[c]);
+			}
+		}
+	}
+
+	private static void assertValue(String where, Object expected, Object actual) {
+		if (expected == null) {
+			assertNull(where, actual);
+			return;
+		}
+		assertNotNull(where, actual);
+		assertEquals(where, expected.getClass(), actual.getClass());
+		if (expected instanceof double[]) {
+			assertTrue(where, Arrays.equals((double[])expected, (double[])actual));
+		} else if (expected instanceof float[]) {
+			assertTrue(where, Arrays.equals((float[])expected, (float[])actual));
+		} else if (expected instanceof int[]) {
+			assertTrue(where, Arrays.equals((int[])expected, (int[])actual));
+		} else {
+			assertEquals(where, expected, actual);
+			if (expected instanceof Timestamp) {
+				assertEquals(where, ((Timestamp)expected).getNanos(), ((Timestamp)actual).getNanos());
+			}
+		}
+	}
+
+	public void testEmptyResult() throws Exception {
+		ResponseInfo info = new ResponseInfo(ResponseInfo.FAILED, null);
+		ColumnarStampCodec.Reader reader = new ColumnarStampCodec.Reader(open(encode(info, new ArrayList<StampInterface>())));
+		assertEquals(ResponseInfo.FAILED, reader.getInfo().getStatus());
+		assertEquals("No details provided", reader.getInfo().getMessage());
+		assertNull(reader.nextBlock());
+	}
+
+	public void testSerializedResponseIsNotColumnar() throws Exception {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream oos = new ObjectOutputStream(bytes);
+		oos.writeObject(new ResponseInfo(ResponseInfo.COMPLETED));
+		oos.close();
+		BufferedInputStream in = new BufferedInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+		assertFalse(ColumnarStampCodec.isColumnar(in));
+		// nothing was consumed
+		assertEquals(bytes.size(), in.available());
+		assertFalse(ColumnarStampCodec.isColumnar(new BufferedInputStream(new ByteArrayInputStream(new byte[2]))));
+	}
+}
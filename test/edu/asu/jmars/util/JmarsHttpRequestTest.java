@@ -0,0 +1,112 @@
+package edu.asu.jmars.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Runs pooled and conditional requests against an HTTP server on the
+ * loopback interface.
+ */
+public class JmarsHttpRequestTest extends TestCase {
+	private static final String ETAG = "\"tile-1\"";
+	private static final byte[] BODY = "tile".getBytes();
+
+	private HttpServer server;
+	private String url;
+	/** Client port of each request, in order */
+	private final List<Integer> ports = new ArrayList<Integer>();
+	/** If-None-Match header of each request, in order */
+	private final List<String> conditions = new ArrayList<String>();
+
+	protected void setUp() throws Exception {
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/tile", new HttpHandler() {
+			public void handle(HttpExchange ex) throws IOException {
+				String condition = ex.getRequestHeaders().getFirst("If-None-Match");
+				synchronized(JmarsHttpRequestTest.this) {
+					ports.add(ex.getRemoteAddress().getPort());
+					conditions.add(condition);
+				}
+				ex.getResponseHeaders().set("ETag", ETAG);
+				ex.getResponseHeaders().set("Content-Type", "text/plain");
+				if (ETAG.equals(condition)) {
+					ex.sendResponseHeaders(304, -1);
+				} else {
+					ex.sendResponseHeaders(200, BODY.length);
+					OutputStream os = ex.getResponseBody();
+					os.write(BODY);
+					os.close();
+				}
+				ex.close();
+			}
+		});
+		server.start();
+		url = "http://127.0.0.1:" + server.getAddress().getPort() + "/tile";
+	}
+
+	protected void tearDown() {
+		server.stop(0);
+	}
+
+	private byte[] get(boolean pooled, String ifNoneMatch) throws Exception {
+		JmarsHttpRequest request = new JmarsHttpRequest(url, HttpRequestType.GET);
+		if (pooled) {
+			request.setPooled();
+		}
+		request.setIfNoneMatch(ifNoneMatch);
+		try {
+			assertTrue(request.send());
+			if (request.isNotModified()) {
+				assertEquals(ETAG, request.getETag());
+				return null;
+			}
+			assertEquals(200, request.getStatus());
+			assertEquals(ETAG, request.getETag());
+			InputStream is = request.getResponseAsStream();
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			byte[] buf = new byte[1024];
+			for (int n; (n = is.read(buf)) >= 0; ) {
+				bytes.write(buf, 0, n);
+			}
+			return bytes.toByteArray();
+		} finally {
+			request.close();
+		}
+	}
+
+	public void testPooledRequestsReuseConnection() throws Exception {
+		for (int i = 0; i < 3; i++) {
+			assertEquals(new String(BODY), new String(get(true, null)));
+		}
+		assertEquals(3, ports.size());
+		assertEquals(ports.get(0), ports.get(1));
+		assertEquals(ports.get(0), ports.get(2));
+	}
+
+	public void testUnpooledRequestsCloseConnection() throws Exception {
+		get(false, null);
+		get(false, null);
+		assertEquals(2, ports.size());
+		assertFalse(ports.get(0).equals(ports.get(1)));
+	}
+
+	public void testConditionalRequest() throws Exception {
+		assertNotNull(get(true, null));
+		assertNull(get(true, ETAG));
+		assertNotNull(get(true, "\"tile-0\""));
+		assertNull(conditions.get(0));
+		assertEquals(ETAG, conditions.get(1));
+		assertEquals("\"tile-0\"", conditions.get(2));
+	}
+}
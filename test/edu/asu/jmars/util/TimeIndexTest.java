@@ -0,0 +1,64 @@
+package edu.asu.jmars.util;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks that the binary search finds the same rows as the linear scan
+ * it replaced, including at repeated values and exact row boundaries.
+ */
+public class TimeIndexTest extends TestCase {
+	private static final int ROWS = 5000;
+
+	private TimeIndex index;
+	private double[] et;
+	private long[] millis;
+
+	protected void setUp() {
+		Random r = new Random(3);
+		et = new double[ROWS];
+		millis = new long[ROWS];
+		for (int i = 1; i < ROWS; i++) {
+			// repeated values happen where two crossings share a second
+			et[i] = et[i-1] + (r.nextInt(10) == 0 ? 0 : 1 + r.nextInt(7000));
+			millis[i] = millis[i-1] + (long)((et[i] - et[i-1]) * 1000);
+		}
+		index = new TimeIndex(et, millis);
+	}
+
+	private int scanEt(double value) {
+		int i = 0;
+		while (i < ROWS && et[i] <= value) {
+			i++;
+		}
+		return i;
+	}
+
+	private int scanMillis(long value) {
+		int i = 0;
+		while (i < ROWS && millis[i] <= value) {
+			i++;
+		}
+		return i;
+	}
+
+	public void testRandomValues() {
+		Random r = new Random(5);
+		for (int i = 0; i < 20000; i++) {
+			double v = -1000 + r.nextDouble() * (et[ROWS-1] + 2000);
+			assertEquals("et " + v, scanEt(v), index.aboveEt(v));
+			long m = (long)(v * 1000);
+			assertEquals("millis " + m, scanMillis(m), index.above(0, m));
+		}
+	}
+
+	public void testBoundaries() {
+		for (int i = 0; i < ROWS; i++) {
+			assertEquals("et " + et[i], scanEt(et[i]), index.aboveEt(et[i]));
+			assertEquals("millis " + millis[i], scanMillis(millis[i]), index.above(0, millis[i]));
+		}
+		assertEquals(0, index.aboveEt(-1));
+		assertEquals(ROWS, index.aboveEt(et[ROWS-1] + 1));
+	}
+}
@@ -0,0 +1,162 @@
+package edu.asu.jmars.viz3d;
+
+import java.awt.geom.Point2D;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks that {@link TriangleIndex#select} gives the same triangles, in the
+ * same order, and the same texture coordinates as testing every triangle of
+ * the model the way Visual3D did before the index existed.
+ */
+public class TriangleIndexTest extends TestCase {
+	private static final int NX = 360, NY = 180;
+
+	private double[] worlds;
+	private int[] triangles;
+	private TriangleIndex index;
+
+	/**
+	 * A jittered lon/lat grid over the whole planet, two triangles per cell,
+	 * with the last column joined to the first across the prime meridian
+	 */
+	protected void setUp() {
+		Random r = new Random(3);
+		worlds = new double[NX * NY * 2];
+		for (int j = 0; j < NY; j++) {
+			for (int i = 0; i < NX; i++) {
+				worlds[(j*NX+i)*2] = i * 360.0 / NX + r.nextDouble() * 0.1;
+				worlds[(j*NX+i)*2+1] = -90 + j * 180.0 / (NY - 1);
+			}
+		}
+		triangles = new int[NX * (NY-1) * 6];
+		int k = 0;
+		for (int j = 0; j < NY - 1; j++) {
+			for (int i = 0; i < NX; i++) {
+				int v = j*NX + i, right = j*NX + (i + 1) % NX;
+				triangles[k++] = v;
+				triangles[k++] = right;
+				triangles[k++] = v + NX;
+				triangles[k++] = right;
+				triangles[k++] = right + NX;
+				triangles[k++] = v + NX;
+			}
+		}
+		index = new TriangleIndex(triangles, worlds);
+	}
+
+	/** The per triangle test of the first bounding box from before the index */
+	private static boolean scanFirst(BoundingCorners bc, int[] t, double[] worlds, float[] tex) {
+		boolean[] in = new boolean[3];
+		for (int i = 0; i < 3; i++) {
+			in[i] = bc.checkPointFirst(worlds[t[i]*2], worlds[t[i]*2+1]);
+		}
+		if (in[0] && in[1] && in[2]) {
+			for (int i = 0; i < 3; i++) {
+				bc.getTexCoordsFirst(worlds[t[i]*2], worlds[t[i]*2+1], t[i], tex);
+			}
+			return true;
+		}
+		if (!(in[0] || in[1] || in[2])) {
+			return false;
+		}
+		for (int i = 0; i < 3; i++) {
+			double x = worlds[t[i]*2], y = worlds[t[i]*2+1];
+			if (!bc.checkPointFirst(x, y) && !bc.checkPointSecond(x, y)) {
+				return false;
+			}
+		}
+		for (int i = 0; i < 3; i++) {
+			bc.getTexCoordsThird(worlds[t[i]*2], worlds[t[i]*2+1], t[i], tex);
+		}
+		return true;
+	}
+
+	/** The per triangle test of the second bounding box from before the index */
+	private static boolean scanSecond(BoundingCorners bc, int[] t, double[] worlds, float[] tex) {
+		if (!bc.crossesMeridian()) {
+			return false;
+		}
+		boolean[] in = new boolean[3];
+		for (int i = 0; i < 3; i++) {
+			in[i] = bc.checkPointSecond(worlds[t[i]*2], worlds[t[i]*2+1]);
+		}
+		if (!(in[0] || in[1] || in[2])) {
+			return false;
+		}
+		if (!(in[0] && in[1] && in[2])) {
+			for (int i = 0; i < 3; i++) {
+				double x = worlds[t[i]*2], y = worlds[t[i]*2+1];
+				if (!bc.checkPointFirst(x - 360.0, y) && !bc.checkPointSecond(x, y)) {
+					return false;
+				}
+			}
+		}
+		for (int i = 0; i < 3; i++) {
+			bc.getTexCoordsSecond(worlds[t[i]*2], worlds[t[i]*2+1], t[i], tex);
+		}
+		return true;
+	}
+
+	private int[] scan(BoundingCorners bc, float[] tex) {
+		int[] out = new int[triangles.length * 2];
+		int size = 0;
+		for (int i = 0; i < triangles.length; i += 3) {
+			int[] t = {triangles[i], triangles[i+1], triangles[i+2]};
+			if (scanFirst(bc, t, worlds, tex)) {
+				System.arraycopy(t, 0, out, size, 3);
+				size += 3;
+			}
+			if (scanSecond(bc, t, worlds, tex)) {
+				System.arraycopy(t, 0, out, size, 3);
+				size += 3;
+			}
+		}
+		return Arrays.copyOf(out, size);
+	}
+
+	private void check(String what, double x0, double y0, double x1, double y1, boolean pad) {
+		Point2D min = new Point2D.Double(x0, y0), max = new Point2D.Double(x1, y1);
+		BoundingCorners scanned = new BoundingCorners(min, max);
+		BoundingCorners indexed = new BoundingCorners(min, max);
+		if (pad) {
+			scanned.pad(1);
+			indexed.pad(1);
+		}
+		float[] expectedTex = new float[worlds.length], tex = new float[worlds.length];
+		Arrays.fill(expectedTex, Float.NaN);
+		Arrays.fill(tex, Float.NaN);
+		int[] expected = scan(scanned, expectedTex);
+		int[] selected = index.select(indexed, tex);
+		assertTrue(what + " selects something", expected.length > 0);
+		assertTrue(what + " triangles", Arrays.equals(expected, selected));
+		assertTrue(what + " texture coordinates", Arrays.equals(expectedTex, tex));
+	}
+
+	public void testSmallDecals() {
+		Random r = new Random(5);
+		for (int i = 0; i < 20; i++) {
+			double x = r.nextDouble() * 350, y = -85 + r.nextDouble() * 160;
+			check("decal " + i, x, y, x + 3 + r.nextDouble() * 10, y + 3 + r.nextDouble() * 10, i % 2 == 0);
+		}
+	}
+
+	public void testLargeDecal() {
+		// enough candidates to be split across the classifier pool
+		check("large", 100, -40, 180, 40, false);
+		check("large padded", 100, -40, 180, 40, true);
+	}
+
+	public void testMeridianDecals() {
+		check("meridian", -5, 10, 5, 20, false);
+		check("meridian padded", -20, -30, 30, 10, true);
+	}
+
+	public void testNoDecalTriangles() {
+		float[] tex = new float[worlds.length];
+		assertEquals(0, index.select(new BoundingCorners(
+			new Point2D.Double(10, 95), new Point2D.Double(20, 100)), tex).length);
+	}
+}
@@ -0,0 +1,205 @@
+package edu.asu.jspice;
+
+import java.io.File;
+import java.net.URISyntaxException;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks the Java kernel readers against the small kernels next to this
+ * class, and against SPICE itself when the native library can be loaded.
+ *
+ * The kernels hold Chebyshev fits of the made up orbits below, over
+ * -1e5 to 1e5 seconds past J2000:
+ * <ul>
+ * <li>base.bsp, little endian: body -74 around 499 as type 2, 499 around 4
+ * as type 3, and 4 and 10 around 0 as type 2, all in J2000.
+ * <li>update.bsp, big endian: a second orbit of -74 around 499 from 0 to
+ * 1e4 seconds, which takes priority when loaded later.
+ * <li>pointing.bc: instrument -74000 turning about z at 1e-3 radians per
+ * tick from tick 0 to 2990, in J2000, with an instance every 10 ticks and
+ * a gap between the interpolation intervals 0-1500 and 1510-2990.
+ * <li>mars.tpc: the orientation of IAU_MARS.
+ * </ul>
+ */
+public class KernelSetTest extends TestCase {
+	private static final double T0 = -1e5, T1 = 1e5;
+	private static final double TURN_RATE = 1e-3;
+
+	private static final Orbit craft = new Orbit(3700, 2*Math.PI/7000, 0.3, 0.01);
+	private static final Orbit craftUpdate = new Orbit(3800, 2*Math.PI/7100, 0.1, 0);
+	private static final Orbit mars = new Orbit(500, 2*Math.PI/1e5, 1.1, 0);
+
+	/** A circle in the xy plane, with a drift and wobble along z */
+	private static final class Orbit {
+		final double r, w, phase, drift;
+		Orbit(double r, double w, double phase, double drift) {
+			this.r = r;
+			this.w = w;
+			this.phase = phase;
+			this.drift = drift;
+		}
+		double[] at(double t) {
+			return new double[] {
+				r*Math.cos(w*t+phase), r*Math.sin(w*t+phase), drift*t + 50*Math.sin(2*w*t),
+				-r*w*Math.sin(w*t+phase), r*w*Math.cos(w*t+phase), drift + 100*w*Math.cos(2*w*t)
+			};
+		}
+	}
+
+	private static File fixture(String name) throws URISyntaxException {
+		return new File(KernelSetTest.class.getResource(name).toURI());
+	}
+
+	private static double maxDiff(double[] a, double[] b, int from, int to) {
+		double max = 0;
+		for (int i = from; i < to; i++) {
+			max = Math.max(max, Math.abs(a[i] - b[i]));
+		}
+		return max;
+	}
+
+	public void testSpkSegments() throws Exception {
+		DafFile daf = new DafFile(fixture("base.bsp"));
+		assertEquals("SPK", daf.getType());
+		assertEquals(4, daf.getSummaries().size());
+		SpkSegment type2 = new SpkSegment(daf, daf.getSummaries().get(0));
+		SpkSegment type3 = new SpkSegment(daf, daf.getSummaries().get(1));
+		assertEquals(2, type2.type);
+		assertEquals(3, type3.type);
+		assertEquals(-74, type2.target);
+		assertEquals(499, type2.center);
+		Random r = new Random(1);
+		double[] state = new double[6];
+		for (int i = 0; i < 5000; i++) {
+			double t = T0 + r.nextDouble() * (T1 - T0);
+			type2.state(t, state);
+			assertTrue("type 2 at " + t, maxDiff(state, craft.at(t), 0, 3) < 1e-8 && maxDiff(state, craft.at(t), 3, 6) < 1e-10);
+			type3.state(t, state);
+			assertTrue("type 3 at " + t, maxDiff(state, mars.at(t), 0, 3) < 1e-8 && maxDiff(state, mars.at(t), 3, 6) < 1e-10);
+		}
+		type2.state(T1, state);
+		assertTrue("end of coverage", maxDiff(state, craft.at(T1), 0, 6) < 1e-8);
+	}
+
+	public void testBigEndian() throws Exception {
+		DafFile daf = new DafFile(fixture("update.bsp"));
+		SpkSegment seg = new SpkSegment(daf, daf.getSummaries().get(0));
+		assertTrue(seg.covers(0) && seg.covers(1e4) && !seg.covers(-1));
+		double[] state = new double[6];
+		for (double t = 0; t <= 1e4; t += 37) {
+			seg.state(t, state);
+			assertTrue("at " + t, maxDiff(state, craftUpdate.at(t), 0, 6) < 1e-8);
+		}
+	}
+
+	public void testCkSegment() throws Exception {
+		DafFile daf = new DafFile(fixture("pointing.bc"));
+		assertEquals("CK", daf.getType());
+		CkSegment seg = new CkSegment(daf, daf.getSummaries().get(0));
+		assertTrue(seg.supported);
+		assertEquals(-74000, seg.instrument);
+		for (double tick: new double[] {0, 5, 123.4, 1490, 1500, 1510, 2990}) {
+			double[] q = seg.pointing(tick);
+			assertNotNull("pointing at " + tick, q);
+			double[][] m = CkSegment.toMatrix(q);
+			double th = TURN_RATE * tick;
+			assertEquals(Math.cos(th), m[0][0], 1e-12);
+			assertEquals(Math.sin(th), m[0][1], 1e-12);
+			assertEquals(-Math.sin(th), m[1][0], 1e-12);
+			assertEquals(1, m[2][2], 1e-12);
+		}
+		assertNull("gap between intervals", seg.pointing(1502));
+		assertNull("before coverage", seg.pointing(-1));
+	}
+
+	public void testInterpolateTakesShortestPath() {
+		double[] q1 = {0.5, 0.5, 0.5, 0.5};
+		double[] q2 = {0.9, 0.1, -0.3, 0.2};
+		double n = Math.sqrt(0.9*0.9 + 0.1*0.1 + 0.3*0.3 + 0.2*0.2);
+		for (int i = 0; i < 4; i++) {
+			q2[i] /= n;
+		}
+		double[] negated = {-q2[0], -q2[1], -q2[2], -q2[3]};
+		double[][] expected = CkSegment.toMatrix(q2);
+		for (double[] end: new double[][] {q2, negated}) {
+			double[][] start = CkSegment.toMatrix(CkSegment.interpolate(q1, end, 0));
+			double[][] stop = CkSegment.toMatrix(CkSegment.interpolate(q1, end, 1));
+			for (int i = 0; i < 3; i++) {
+				assertTrue(maxDiff(start[i], CkSegment.toMatrix(q1)[i], 0, 3) < 1e-14);
+				assertTrue(maxDiff(stop[i], expected[i], 0, 3) < 1e-14);
+			}
+		}
+	}
+
+	/** @return true if the native SPICE library could be loaded */
+	private static boolean spiceAvailable() {
+		try {
+			Class.forName("edu.asu.jspice.JSpice");
+			return true;
+		} catch (Throwable e) {
+			// the library is loaded by a static initializer, which fails with an Error
+			return false;
+		}
+	}
+
+	/**
+	 * Loads the kernels through {@link JS} and compares {@link KernelSet}
+	 * with spkez and ckgp. Skipped when SPICE isn't installed.
+	 */
+	public void testAgainstSpice() throws Exception {
+		if (!spiceAvailable()) {
+			System.err.println("Native SPICE library not available, skipping comparison with SPICE");
+			return;
+		}
+		System.setProperty("jmars.js.javaKernels", "true");
+		assertTrue("js.javaKernels must be read after it is set", KernelSet.ENABLED);
+		String[] kernels = {
+			fixture("mars.tpc").getPath(), fixture("base.bsp").getPath(),
+			fixture("update.bsp").getPath(), fixture("pointing.bc").getPath()
+		};
+		for (String path: kernels) {
+			JS.furnshc(path);
+		}
+		try {
+			int[][] pairs = {{-74, 499}, {-74, 10}, {499, -74}, {4, -74}, {10, 499}, {-74, -74}};
+			Random r = new Random(2);
+			double[] mine = new double[6], spice = new double[6], lt = new double[1];
+			for (int i = 0; i < 2000; i++) {
+				// half the times fall where update.bsp covers -74
+				double t = i % 2 == 0 ? r.nextDouble() * 1e4 : T0 + r.nextDouble() * (T1 - T0);
+				int[] pair = pairs[i % pairs.length];
+				String ref = i % 3 == 0 ? "IAU_MARS" : "J2000";
+				assertTrue(pair[0] + " from " + pair[1] + " in " + ref + " at " + t,
+					KernelSet.state(pair[0], t, ref, pair[1], mine));
+				JSpice.spkezc(pair[0], t, new StringBuffer(ref), new StringBuffer("NONE"), pair[1], spice, lt);
+				double scale = Math.max(1, Math.abs(spice[0]) + Math.abs(spice[1]) + Math.abs(spice[2]));
+				double speed = Math.max(1, Math.abs(spice[3]) + Math.abs(spice[4]) + Math.abs(spice[5]));
+				assertTrue(pair[0] + " from " + pair[1] + " in " + ref + " at " + t + " position",
+					maxDiff(mine, spice, 0, 3) < 1e-10 * scale);
+				assertTrue(pair[0] + " from " + pair[1] + " in " + ref + " at " + t + " velocity",
+					maxDiff(mine, spice, 3, 6) < 1e-10 * speed);
+			}
+
+			double[] cmat = new double[9], clkout = new double[1];
+			boolean[] found = new boolean[1];
+			for (double tick = -5; tick <= 3000; tick += 2.5) {
+				double[][] m = KernelSet.pointing(-74000, tick, 0, "J2000");
+				JSpice.ckgpc(-74000, tick, 0, new StringBuffer("J2000"), cmat, clkout, found);
+				assertEquals("pointing found at " + tick, found[0], m != null);
+				if (m != null) {
+					for (int row = 0; row < 3; row++) {
+						for (int col = 0; col < 3; col++) {
+							assertEquals("cmat at " + tick, cmat[row*3+col], m[row][col], 1e-12);
+						}
+					}
+				}
+			}
+		} finally {
+			for (String path: kernels) {
+				JS.unloadc(path);
+			}
+		}
+	}
+}